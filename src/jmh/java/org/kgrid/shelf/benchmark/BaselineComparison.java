@@ -0,0 +1,93 @@
+package org.kgrid.shelf.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares benchmark results with a baseline, both in JMH's JSON result format. A benchmark has
+ * regressed when its score is worse than the baseline's by more than the threshold, a fraction
+ * of the baseline score: slower for time per operation, fewer for operations per time. Scores
+ * are only compared for the same benchmark, parameters and mode, and in the same unit.
+ */
+public class BaselineComparison {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final double threshold;
+  private final ArrayNode rows = mapper.createArrayNode();
+  private final List<String> regressions = new ArrayList<>();
+
+  public BaselineComparison(File baseline, File result, double threshold) throws IOException {
+    this.threshold = threshold;
+    Map<String, JsonNode> before = byKey(mapper.readTree(baseline));
+    byKey(mapper.readTree(result)).forEach((key, run) -> compare(key, before.get(key), run));
+  }
+
+  /** One row per benchmark run, with its score, the baseline's, and the change between them. */
+  public ArrayNode getRows() {
+    return rows;
+  }
+
+  /** The benchmarks that got worse by more than the threshold. */
+  public List<String> getRegressions() {
+    return regressions;
+  }
+
+  public void write(File comparison) throws IOException {
+    ObjectNode report = mapper.createObjectNode().put("threshold", threshold);
+    report.set("benchmarks", rows);
+    report.set("regressions", mapper.valueToTree(regressions));
+    mapper.writerWithDefaultPrettyPrinter().writeValue(comparison, report);
+  }
+
+  private void compare(String key, JsonNode baseline, JsonNode run) {
+    String mode = run.path("mode").asText();
+    String unit = run.path("primaryMetric").path("scoreUnit").asText();
+    double score = run.path("primaryMetric").path("score").asDouble();
+    ObjectNode row = rows.addObject().put("benchmark", key).put("mode", mode).put("unit", unit);
+    row.put("score", score);
+    if (baseline == null
+        || !unit.equals(baseline.path("primaryMetric").path("scoreUnit").asText())) {
+      row.putNull("baseline");
+      return;
+    }
+    double base = baseline.path("primaryMetric").path("score").asDouble();
+    // Positive when worse, whichever way round the mode measures
+    double change = base == 0 ? 0 : (score - base) / base;
+    if ("thrpt".equals(mode)) {
+      change = -change;
+    }
+    row.put("baseline", base).put("change", change);
+    if (change > threshold) {
+      row.put("regression", true);
+      regressions.add(String.format("%s is %.1f%% worse (%.3f %s, was %.3f)",
+          key, change * 100, score, unit, base));
+    }
+  }
+
+  private static Map<String, JsonNode> byKey(JsonNode results) {
+    Map<String, JsonNode> runs = new LinkedHashMap<>();
+    for (JsonNode run : results) {
+      runs.put(key(run), run);
+    }
+    return runs;
+  }
+
+  private static String key(JsonNode run) {
+    StringBuilder key = new StringBuilder(run.path("benchmark").asText());
+    Map<String, String> params = new TreeMap<>();
+    run.path("params").fields().forEachRemaining(
+        param -> params.put(param.getKey(), param.getValue().asText()));
+    params.forEach((name, value) -> key.append(':').append(name).append('=').append(value));
+    return key.append(" [").append(run.path("mode").asText()).append(']').toString();
+  }
+}
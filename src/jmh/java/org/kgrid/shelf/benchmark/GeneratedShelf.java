@@ -0,0 +1,79 @@
+package org.kgrid.shelf.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.FileUtils;
+import org.kgrid.shelf.domain.ArkId;
+import org.zeroturnaround.zip.ZipUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Shelves of made-up KOs for the benchmarks to read. Every KO is a copy of the {@code mycoolko}
+ * test fixture with its own ark id, {@code ark:/bench/ko<n>/v1}, in a folder {@code ko<n>}.
+ *
+ * <p>Generating the larger shelves takes a while, so each size is written once under {@code
+ * target/benchmark-shelves} and used again by later forks and runs until {@code mvn clean}.
+ */
+public final class GeneratedShelf {
+
+  public static final String NAAN = "bench";
+  public static final String VERSION = "v1";
+  public static final File TEMPLATE =
+      new File("src/test/resources/fixtures/import-export/mycoolko.zip");
+
+  private static final Path SHELVES = Paths.get("target", "benchmark-shelves");
+  private static final String[] ARTIFACTS = {"deployment.yaml", "service.yaml", "dist/main.js"};
+
+  private GeneratedShelf() {}
+
+  /**
+   * A shelf of the given number of KOs, written now unless an earlier run already wrote it.
+   *
+   * @return the shelf directory, for a {@code filesystem:} store
+   */
+  public static synchronized Path of(int kos) throws IOException {
+    Path shelf = SHELVES.resolve(String.valueOf(kos)).toAbsolutePath();
+    Path complete = SHELVES.resolve(kos + ".complete");
+    if (Files.exists(complete)) {
+      return shelf;
+    }
+    FileUtils.deleteDirectory(shelf.toFile());
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode metadata = (ObjectNode) mapper.readTree(template("metadata.json"));
+    byte[][] artifacts = new byte[ARTIFACTS.length][];
+    for (int i = 0; i < ARTIFACTS.length; i++) {
+      artifacts[i] = template(ARTIFACTS[i]);
+    }
+    for (int n = 0; n < kos; n++) {
+      Path ko = shelf.resolve(name(n));
+      Files.createDirectories(ko.resolve("dist"));
+      metadata.put("@id", name(n)).put("identifier", "ark:/" + NAAN + "/" + name(n));
+      metadata.put("version", VERSION);
+      mapper.writeValue(ko.resolve("metadata.json").toFile(), metadata);
+      for (int i = 0; i < ARTIFACTS.length; i++) {
+        Files.write(ko.resolve(ARTIFACTS[i]), artifacts[i]);
+      }
+    }
+    Files.createFile(complete);
+    return shelf;
+  }
+
+  /** The ark id of the n-th KO on a generated shelf. */
+  public static ArkId arkId(int n) {
+    return new ArkId(NAAN, name(n), VERSION);
+  }
+
+  /** A file of the template KO, e.g. {@code service.yaml}. */
+  public static byte[] template(String file) {
+    return ZipUtil.unpackEntry(TEMPLATE, "mycoolko/" + file);
+  }
+
+  private static String name(int n) {
+    return "ko" + n;
+  }
+}
@@ -0,0 +1,66 @@
+package org.kgrid.shelf.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Runs the shelf benchmarks, writes their results as JMH JSON and compares them with a baseline
+ * from an earlier run. Exits with status 1 when any benchmark regressed, so the build fails.
+ *
+ * <p>Settings are system properties, which the {@code benchmarks} Maven profile passes on:
+ *
+ * <ul>
+ *   <li>{@code benchmark.include}: a regular expression for the benchmarks to run
+ *   <li>{@code benchmark.result}: where to write the results
+ *   <li>{@code benchmark.baseline}: results to compare with; skipped when it does not exist
+ *   <li>{@code benchmark.threshold}: how much worse than the baseline a score may get, as a
+ *       fraction
+ *   <li>{@code benchmark.comparison}: where to write the comparison
+ *   <li>{@code benchmark.save-baseline}: make these results the baseline for later runs
+ * </ul>
+ */
+public class ShelfBenchmarks {
+
+  public static void main(String[] args) throws RunnerException, IOException {
+    File result = new File(System.getProperty("benchmark.result", "target/jmh-result.json"));
+    File baseline = new File(System.getProperty("benchmark.baseline", "src/jmh/baseline.json"));
+    File comparison =
+        new File(System.getProperty("benchmark.comparison", "target/jmh-comparison.json"));
+    double threshold = Double.parseDouble(System.getProperty("benchmark.threshold", "0.10"));
+
+    Options options =
+        new OptionsBuilder()
+            .include(System.getProperty("benchmark.include", ".*"))
+            .resultFormat(ResultFormatType.JSON)
+            .result(result.getPath())
+            .build();
+    new Runner(options).run();
+
+    if (Boolean.getBoolean("benchmark.save-baseline")) {
+      Files.copy(result.toPath(), baseline.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      System.out.println("Saved the results as the baseline in " + baseline);
+      return;
+    }
+    if (!baseline.exists()) {
+      System.out.println("No baseline at " + baseline + ", not comparing the results");
+      return;
+    }
+    BaselineComparison compared = new BaselineComparison(baseline, result, threshold);
+    compared.write(comparison);
+    System.out.println("Compared with the baseline in " + comparison);
+    if (!compared.getRegressions().isEmpty()) {
+      for (String regression : compared.getRegressions()) {
+        System.out.println("Regression: " + regression);
+      }
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package org.kgrid.shelf.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing, hashing and comparing ark ids, which every request and index lookup does. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArkIdBenchmark {
+
+  private static final int INDEXED = 10_000;
+
+  private final String fullArk = "ark:/hello/world/v0.1.0";
+  private ArkId arkId;
+  private ArkId equalArkId;
+  private Map<ArkId, Integer> index;
+
+  @Setup
+  public void setUp() {
+    arkId = new ArkId(fullArk);
+    index = new HashMap<>();
+    for (int n = 0; n < INDEXED; n++) {
+      index.put(new ArkId("hello", "world-" + n, "v0.1.0"), n);
+    }
+    // A different instance, so lookups compare fields rather than references
+    equalArkId = new ArkId("hello", "world-" + INDEXED / 2, "v0.1.0");
+  }
+
+  @Benchmark
+  public ArkId parseFullArk() {
+    return new ArkId(fullArk);
+  }
+
+  @Benchmark
+  public ArkId createFromParts() {
+    return new ArkId("hello", "world", "v0.1.0");
+  }
+
+  @Benchmark
+  public boolean isArkId() {
+    return ArkId.isArkId(fullArk);
+  }
+
+  @Benchmark
+  public int hash() {
+    return arkId.hashCode();
+  }
+
+  @Benchmark
+  public Integer indexLookup() {
+    return index.get(equalArkId);
+  }
+
+  @Benchmark
+  public String getFullDashArk() {
+    return arkId.getFullDashArk();
+  }
+}
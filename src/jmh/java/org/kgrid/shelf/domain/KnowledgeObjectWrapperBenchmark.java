@@ -0,0 +1,68 @@
+package org.kgrid.shelf.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+import org.kgrid.shelf.benchmark.GeneratedShelf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the YAML service and deployment specifications, as the repository does for every
+ * {@code getKow}, and working out a KO's artifacts from them, as every export does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KnowledgeObjectWrapperBenchmark {
+
+  private byte[] serviceSpec;
+  private byte[] deploymentSpec;
+  private KnowledgeObjectWrapper kow;
+
+  @Setup
+  public void setUp() throws IOException {
+    serviceSpec = GeneratedShelf.template("service.yaml");
+    deploymentSpec = GeneratedShelf.template("deployment.yaml");
+    JsonNode metadata = new ObjectMapper().readTree(GeneratedShelf.template("metadata.json"));
+    kow = new KnowledgeObjectWrapper(metadata);
+    kow.addService(parse(serviceSpec));
+    kow.addDeployment(parse(deploymentSpec));
+  }
+
+  @Benchmark
+  public JsonNode parseServiceSpec() throws IOException {
+    return parse(serviceSpec);
+  }
+
+  @Benchmark
+  public JsonNode parseDeploymentSpec() throws IOException {
+    return parse(deploymentSpec);
+  }
+
+  @Benchmark
+  public Set<URI> getArtifactLocations() {
+    return kow.getArtifactLocations();
+  }
+
+  // The repository makes a new mapper for every specification, so this does too
+  private static JsonNode parse(byte[] spec) throws IOException {
+    return new YAMLMapper().readTree(spec);
+  }
+}
@@ -0,0 +1,13 @@
+package org.kgrid.shelf.repository;
+
+import java.nio.file.Path;
+
+/** Opens repositories over filesystem shelves for benchmarks outside this package. */
+public final class BenchmarkRepositories {
+
+  private BenchmarkRepositories() {}
+
+  public static KnowledgeObjectRepository open(Path shelf) {
+    return new KnowledgeObjectRepository(new FilesystemCDOStore("filesystem:" + shelf.toUri()));
+  }
+}
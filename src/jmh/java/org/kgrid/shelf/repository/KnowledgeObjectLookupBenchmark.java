@@ -0,0 +1,64 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.kgrid.shelf.benchmark.GeneratedShelf;
+import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one KO from a filesystem shelf through the repository: its metadata alone, and its
+ * metadata with both specifications. Each call asks for the next KO on the shelf in turn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KnowledgeObjectLookupBenchmark {
+
+  @Param({"10000"})
+  public int kos;
+
+  private KnowledgeObjectRepository repo;
+  private ArkId[] arkIds;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    repo = BenchmarkRepositories.open(GeneratedShelf.of(kos));
+    arkIds = new ArkId[kos];
+    for (int n = 0; n < kos; n++) {
+      arkIds[n] = GeneratedShelf.arkId(n);
+    }
+  }
+
+  @Benchmark
+  public JsonNode findKnowledgeObjectMetadata() {
+    return repo.findKnowledgeObjectMetadata(nextArkId());
+  }
+
+  @Benchmark
+  public KnowledgeObjectWrapper getKow() {
+    return repo.getKow(nextArkId());
+  }
+
+  private ArkId nextArkId() {
+    next = next + 1 < arkIds.length ? next + 1 : 0;
+    return arkIds[next];
+  }
+}
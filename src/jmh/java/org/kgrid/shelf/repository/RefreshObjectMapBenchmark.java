@@ -0,0 +1,48 @@
+package org.kgrid.shelf.repository;
+
+import org.kgrid.shelf.benchmark.GeneratedShelf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilding the index from a scan of a filesystem shelf, as at startup and on {@code GET
+ * /kos/refresh}. Each rebuild takes long enough to be timed on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RefreshObjectMapBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int kos;
+
+  private KnowledgeObjectRepository repo;
+
+  @Setup
+  public void setUp() throws IOException {
+    repo = BenchmarkRepositories.open(GeneratedShelf.of(kos));
+    if (repo.findAll().size() != kos) {
+      throw new IllegalStateException("Generated shelf does not have " + kos + " KOs");
+    }
+  }
+
+  @Benchmark
+  public void refreshObjectMap() {
+    repo.refreshObjectMap();
+  }
+}
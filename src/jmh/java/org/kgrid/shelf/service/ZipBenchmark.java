@@ -0,0 +1,85 @@
+package org.kgrid.shelf.service;
+
+import org.apache.commons.io.FileUtils;
+import org.kgrid.shelf.benchmark.GeneratedShelf;
+import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.repository.BenchmarkRepositories;
+import org.kgrid.shelf.repository.FilesystemCDOStore;
+import org.kgrid.shelf.repository.KnowledgeObjectLocks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporting a KO from a filesystem shelf as a zip, and importing that zip onto another one. The
+ * import replaces the same KO every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZipBenchmark {
+
+  private static final ArkId ARK_ID = GeneratedShelf.arkId(0);
+
+  private ExportService exportService;
+  private ImportService importService;
+  private FileSystemResource zip;
+  private Path importShelf;
+
+  @Setup
+  public void setUp() throws IOException {
+    exportService = new ExportService();
+    exportService.knowledgeObjectRepository = BenchmarkRepositories.open(GeneratedShelf.of(1000));
+
+    Path work = Files.createDirectories(Paths.get("target", "benchmark-zips"));
+    // Imports expect the zip to be named after the folder inside it
+    Path zipFile = work.resolve(ARK_ID.getFullDashArk() + ".zip");
+    try (OutputStream out = Files.newOutputStream(zipFile)) {
+      exportService.zipKnowledgeObject(ARK_ID, out);
+    }
+    zip = new FileSystemResource(zipFile);
+
+    importShelf = work.resolve("import-shelf").toAbsolutePath();
+    FileUtils.deleteDirectory(importShelf.toFile());
+    Files.createDirectories(importShelf);
+    importService = new ImportService();
+    importService.cdoStore = new FilesystemCDOStore("filesystem:" + importShelf.toUri());
+    importService.locks = new KnowledgeObjectLocks();
+    importService.koRepo = BenchmarkRepositories.open(importShelf);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(importShelf.toFile());
+  }
+
+  @Benchmark
+  public void exportZip() {
+    exportService.zipKnowledgeObject(ARK_ID, OutputStream.nullOutputStream());
+  }
+
+  @Benchmark
+  public URI importZip() {
+    return importService.importZip(zip);
+  }
+}
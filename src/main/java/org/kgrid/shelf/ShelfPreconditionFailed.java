@@ -0,0 +1,20 @@
+package org.kgrid.shelf;
+
+public class ShelfPreconditionFailed extends ShelfException {
+
+  public ShelfPreconditionFailed() {
+    super();
+  }
+
+  public ShelfPreconditionFailed(String message) {
+    super(message);
+  }
+
+  public ShelfPreconditionFailed(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  public ShelfPreconditionFailed(Throwable cause) {
+    super(cause);
+  }
+}
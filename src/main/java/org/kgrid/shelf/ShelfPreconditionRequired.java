@@ -0,0 +1,20 @@
+package org.kgrid.shelf;
+
+public class ShelfPreconditionRequired extends ShelfException {
+
+  public ShelfPreconditionRequired() {
+    super();
+  }
+
+  public ShelfPreconditionRequired(String message) {
+    super(message);
+  }
+
+  public ShelfPreconditionRequired(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  public ShelfPreconditionRequired(Throwable cause) {
+    super(cause);
+  }
+}
@@ -4,6 +4,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.kgrid.shelf.ShelfResourceForbidden;
 import org.kgrid.shelf.domain.ArkId;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.kgrid.shelf.repository.ShelfMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
@@ -27,6 +28,8 @@ public class BinaryController extends ShelfExceptionHandler {
   @Autowired
   public MimetypesFileTypeMap fileTypeMap;
 
+  @Autowired ShelfMetrics metrics = ShelfMetrics.disabled();
+
   public BinaryController(KnowledgeObjectRepository koRepo, MimetypesFileTypeMap fileTypeMap) {
     super(koRepo);
     this.fileTypeMap = fileTypeMap;
@@ -44,8 +47,10 @@ public class BinaryController extends ShelfExceptionHandler {
     final ArkId arkId = new ArkId(naan, name, version);
     InputStream fileStream = koRepo.getBinaryStream(arkId, childPath);
     HttpHeaders headers = getContentHeaders(childPath, arkId);
+    // Finished when the response has been written and the stream is closed
+    InputStream served = metrics.startTransfer("binary").meter(fileStream);
 
-    return new ResponseEntity<>(new InputStreamResource(fileStream), headers, HttpStatus.OK);
+    return new ResponseEntity<>(new InputStreamResource(served), headers, HttpStatus.OK);
   }
 
   private HttpHeaders getContentHeaders(String childPath, ArkId arkId) {
@@ -0,0 +1,295 @@
+package org.kgrid.shelf.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.repository.KnowledgeObjectChange;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.repository.KnowledgeObjectChangeFeed;
+import org.kgrid.shelf.repository.KnowledgeObjectChangeLog;
+import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets clients follow imports, edits and deletes instead of polling the whole shelf, either by
+ * long polling for the changes after a sequence number or as a stream of server-sent events. A
+ * mirror that has been away longer than the feed remembers can ask for the delta instead.
+ */
+@RestController
+@RequestMapping("${kgrid.shelf.endpoint:kos}")
+@CrossOrigin(origins = "${cors.url:}")
+public class ChangeFeedController extends ShelfExceptionHandler implements DisposableBean {
+
+  static final int MAX_WAIT_SECONDS = 60;
+  static final int PAGE_SIZE = 500;
+
+  private final KnowledgeObjectChangeFeed changes;
+  private final KnowledgeObjectChangeLog changeLog;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final ExecutorService streamSender =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "ko-change-stream");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  @Value("${kgrid.shelf.changes.stream-timeout:300000}")
+  long streamTimeoutMillis = 300000;
+
+  @Value("${kgrid.shelf.changes.stream-queue:1000}")
+  int streamQueueSize = 1000;
+
+  public ChangeFeedController(
+      KnowledgeObjectRepository koRepo,
+      KnowledgeObjectChangeFeed changes,
+      KnowledgeObjectChangeLog changeLog) {
+    super(koRepo);
+    this.changes = changes;
+    this.changeLog = changeLog;
+  }
+
+  /**
+   * The changes after a sequence number. If there are none yet and {@code wait} is given, the
+   * response is held until there is a change or that many seconds have passed. When some of the
+   * changes have already dropped out of the feed the response says {@code "resync": true}, and
+   * the client has to read {@code GET /kos} again and carry on from {@code latest}.
+   */
+  @GetMapping(path = "/changes", produces = MediaType.APPLICATION_JSON_VALUE)
+  public DeferredResult<ObjectNode> getChanges(
+      @RequestParam(name = "since", required = false, defaultValue = "0") long since,
+      @RequestParam(name = "wait", required = false, defaultValue = "0") int wait) {
+    int waitSeconds = Math.min(Math.max(wait, 0), MAX_WAIT_SECONDS);
+    DeferredResult<ObjectNode> result =
+        new DeferredResult<>(TimeUnit.SECONDS.toMillis(waitSeconds) + 1000);
+    if (waitSeconds == 0 || changes.getLatestSequence() != since) {
+      result.setResult(page(since));
+      return result;
+    }
+    Runnable unsubscribe = changes.subscribe(change -> result.setResult(page(since)));
+    result.onCompletion(unsubscribe);
+    result.onTimeout(() -> result.setResult(page(since)));
+    // A change may have come in before the subscription
+    if (changes.getLatestSequence() != since) {
+      result.setResult(page(since));
+    }
+    return result;
+  }
+
+  /**
+   * Streams the changes as server-sent events, each with its sequence number as the event id. A
+   * client that reconnects with a Last-Event-ID header, or a {@code since} parameter, first gets
+   * the changes it missed. If some of those have dropped out of the feed it gets a {@code resync}
+   * event instead.
+   */
+  @GetMapping(path = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamChanges(
+      @RequestParam(name = "since", required = false) Long since,
+      @RequestHeader(name = "Last-Event-ID", required = false) Long lastEventId) {
+    SseEmitter emitter = new SseEmitter(streamTimeoutMillis);
+    long after =
+        lastEventId != null ? lastEventId : since != null ? since : changes.getLatestSequence();
+    stream(emitter, after);
+    return emitter;
+  }
+
+  /** Starts sending the changes after a sequence number to an emitter. */
+  void stream(SseEmitter emitter, long after) {
+    new ChangeStream(emitter, after).start();
+  }
+
+  @Override
+  public void destroy() {
+    streamSender.shutdownNow();
+  }
+
+  /**
+   * The versions added, updated or removed after a sequence number, or after a time given as
+   * milliseconds since the epoch or an ISO-8601 instant. Each version is listed once however many
+   * times it changed. When the changes cannot be worked out the response says {@code "resync":
+   * true} and the client has to read {@code GET /kos} again. Either way it asks with {@code
+   * since=latest} next time.
+   */
+  @GetMapping(path = "/delta", produces = MediaType.APPLICATION_JSON_VALUE)
+  public KnowledgeObjectChangeLog.Delta getDelta(
+      @RequestParam(name = "since", required = false) Long since,
+      @RequestParam(name = "after", required = false) String after) {
+    if (since != null && after != null) {
+      throw new ShelfException(
+          "Ask for the delta since a sequence number or after a time, not both");
+    }
+    if (after != null) {
+      return changeLog.since(parseTime(after));
+    }
+    return changeLog.since(since != null ? since : 0);
+  }
+
+  private Instant parseTime(String time) {
+    try {
+      return time.chars().allMatch(Character::isDigit)
+          ? Instant.ofEpochMilli(Long.parseLong(time))
+          : Instant.parse(time);
+    } catch (DateTimeParseException | NumberFormatException e) {
+      throw new ShelfException("Cannot read the time " + time, e);
+    }
+  }
+
+  private ObjectNode page(long since) {
+    ObjectNode page = mapper.createObjectNode();
+    if (!changes.hasChangesSince(since)) {
+      page.put("latest", changes.getLatestSequence());
+      page.put("resync", true);
+      page.putArray("changes");
+      return page;
+    }
+    List<KnowledgeObjectChange> found = changes.since(since, PAGE_SIZE);
+    page.put("latest", found.isEmpty() ? since : found.get(found.size() - 1).getSequence());
+    page.put("resync", false);
+    page.set("changes", mapper.valueToTree(found));
+    return page;
+  }
+
+  /**
+   * Sends one client the changes it missed and then each new change, in order, once each. The
+   * feed's thread only puts new changes on the stream's queue; a thread of the controller's own
+   * does the sending, so a slow client holds up nobody but itself. A client that falls so far
+   * behind that its queue fills up gets a {@code resync} event and the stream is closed.
+   */
+  private class ChangeStream {
+
+    private final SseEmitter emitter;
+    private final BlockingQueue<KnowledgeObjectChange> queue;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean overflowed;
+    private volatile boolean closed;
+    private volatile Runnable unsubscribe = () -> {};
+    // Only used by the thread draining the queue
+    private boolean backlogSent;
+    private long lastSent;
+
+    ChangeStream(SseEmitter emitter, long after) {
+      this.emitter = emitter;
+      this.queue = new ArrayBlockingQueue<>(Math.max(streamQueueSize, 1));
+      this.lastSent = after;
+    }
+
+    void start() {
+      // Subscribed before the backlog is read, so nothing falls between the two; changes that
+      // are in both are sent once
+      unsubscribe = changes.subscribe(this::enqueue);
+      emitter.onCompletion(this::close);
+      emitter.onTimeout(emitter::complete);
+      emitter.onError(error -> close());
+      schedule();
+    }
+
+    private void enqueue(KnowledgeObjectChange change) {
+      if (closed) {
+        return;
+      }
+      if (!queue.offer(change)) {
+        overflowed = true;
+      }
+      schedule();
+    }
+
+    private void schedule() {
+      if (closed || !draining.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        streamSender.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        draining.set(false);
+        close();
+      }
+    }
+
+    private void drain() {
+      try {
+        while (!closed) {
+          if (overflowed) {
+            sendResync();
+            close();
+            emitter.complete();
+          } else if (!backlogSent) {
+            backlogSent = sendBacklogPage();
+          } else {
+            KnowledgeObjectChange change = queue.poll();
+            if (change == null) {
+              break;
+            }
+            send(change);
+          }
+        }
+      } catch (IOException | IllegalStateException e) {
+        close();
+        emitter.completeWithError(e);
+      } finally {
+        draining.set(false);
+      }
+      // A change may have been queued after the last poll but before draining was cleared
+      if (overflowed || !queue.isEmpty()) {
+        schedule();
+      }
+    }
+
+    /** Sends the next page of changes the client missed, and says whether that was the last. */
+    private boolean sendBacklogPage() throws IOException {
+      if (!changes.hasChangesSince(lastSent)) {
+        sendResync();
+        return true;
+      }
+      List<KnowledgeObjectChange> missed = changes.since(lastSent, PAGE_SIZE);
+      for (KnowledgeObjectChange change : missed) {
+        send(change);
+      }
+      return missed.size() < PAGE_SIZE;
+    }
+
+    private void send(KnowledgeObjectChange change) throws IOException {
+      if (change.getSequence() <= lastSent) {
+        return;
+      }
+      emitter.send(
+          SseEmitter.event()
+              .name("change")
+              .id(String.valueOf(change.getSequence()))
+              .data(change, MediaType.APPLICATION_JSON));
+      lastSent = change.getSequence();
+    }
+
+    private void sendResync() throws IOException {
+      lastSent = changes.getLatestSequence();
+      emitter.send(
+          SseEmitter.event()
+              .name("resync")
+              .id(String.valueOf(lastSent))
+              .data(
+                  mapper.createObjectNode().put("latest", lastSent).put("resync", true),
+                  MediaType.APPLICATION_JSON));
+    }
+
+    private void close() {
+      closed = true;
+      unsubscribe.run();
+      queue.clear();
+    }
+  }
+}
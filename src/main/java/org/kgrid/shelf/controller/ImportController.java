@@ -2,18 +2,28 @@ package org.kgrid.shelf.controller;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.apache.commons.io.FileUtils;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.kgrid.shelf.service.ImportJob;
+import org.kgrid.shelf.service.ImportJobService;
 import org.kgrid.shelf.service.ImportService;
 import org.kgrid.shelf.service.ManifestReader;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,14 +34,20 @@ public class ImportController extends ShelfExceptionHandler {
 
   private final ImportService importService;
   private final ManifestReader manifestReader;
+  private final ImportJobService importJobService;
+
+  @Value("${kgrid.shelf.endpoint:kos}")
+  String shelfEndpoint = "kos";
 
   public ImportController(
       KnowledgeObjectRepository koRepo,
       ImportService importService,
-      ManifestReader manifestReader) {
+      ManifestReader manifestReader,
+      ImportJobService importJobService) {
     super(koRepo);
     this.importService = importService;
     this.manifestReader = manifestReader;
+    this.importJobService = importJobService;
   }
 
   @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
@@ -66,6 +82,71 @@ public class ImportController extends ShelfExceptionHandler {
     return new ResponseEntity<>(manifestReader.loadManifests(manifestList), HttpStatus.CREATED);
   }
 
+  @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE, params = "async=true")
+  public ResponseEntity<ImportJob> depositKnowledgeObjectAsync(
+      @RequestParam("ko") MultipartFile zippedKo) throws IOException {
+
+    log.info("Add ko via zip in the background");
+    // the upload is deleted when the request ends, so keep a copy for the job
+    File uploadDir = Files.createTempDirectory("ko-upload").toFile();
+    String filename = StringUtils.getFilename(zippedKo.getOriginalFilename());
+    File upload = new File(uploadDir, filename == null || filename.isEmpty() ? "ko.zip" : filename);
+    try {
+      zippedKo.transferTo(upload);
+    } catch (IOException | RuntimeException e) {
+      FileUtils.deleteQuietly(uploadDir);
+      throw e;
+    }
+    return acceptedJob(importJobService.submitZip(new FileSystemResource(upload), uploadDir));
+  }
+
+  @PostMapping(
+      path = "/manifest",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      params = "async=true")
+  public ResponseEntity<ImportJob> depositManifestAsync(@RequestBody JsonNode manifest) {
+
+    log.info("Add kos from manifest in the background");
+
+    return acceptedJob(importJobService.submitManifest(manifest));
+  }
+
+  @PostMapping(
+      path = "/manifest-list",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      params = "async=true")
+  public ResponseEntity<ImportJob> depositManifestsAsync(@RequestBody JsonNode manifestList) {
+
+    log.info("Adding kos from list of manifests in the background");
+
+    return acceptedJob(importJobService.submitManifestList(manifestList));
+  }
+
+  @GetMapping(path = "/import-jobs", produces = MediaType.APPLICATION_JSON_VALUE)
+  public Collection<ImportJob> getImportJobs() {
+    return importJobService.getJobs();
+  }
+
+  @GetMapping(path = "/import-jobs/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<ImportJob> getImportJob(@PathVariable String jobId) {
+    return new ResponseEntity<>(importJobService.getJob(jobId), HttpStatus.OK);
+  }
+
+  @DeleteMapping(path = "/import-jobs/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<ImportJob> cancelImportJob(@PathVariable String jobId) {
+    return new ResponseEntity<>(importJobService.cancel(jobId), HttpStatus.OK);
+  }
+
+  private ResponseEntity<ImportJob> acceptedJob(ImportJob job) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setLocation(
+        ServletUriComponentsBuilder.fromCurrentContextPath()
+            .path("/" + shelfEndpoint + "/import-jobs/" + job.getId())
+            .build()
+            .toUri());
+    return new ResponseEntity<>(job, headers, HttpStatus.ACCEPTED);
+  }
+
   private HttpHeaders addKoHeaderLocation(URI id) {
     URI loc = ServletUriComponentsBuilder.fromCurrentRequestUri().build().toUri();
 
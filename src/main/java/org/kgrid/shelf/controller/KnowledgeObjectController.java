@@ -1,15 +1,25 @@
 package org.kgrid.shelf.controller;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.ShelfPreconditionRequired;
 import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
+import org.kgrid.shelf.domain.MetadataPatch;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("${kgrid.shelf.endpoint:kos}")
@@ -34,8 +44,14 @@ public class KnowledgeObjectController extends ShelfExceptionHandler {
       @PathVariable String name,
       @RequestParam(name = "v", required = false) String version) {
     log.info("get ko " + naan + "/" + name);
-    return new ResponseEntity<>(
-        koRepo.findKnowledgeObjectMetadata(new ArkId(naan, name, version)), HttpStatus.OK);
+    ArkId arkId = new ArkId(naan, name, version);
+    JsonNode metadata = koRepo.findKnowledgeObjectMetadata(arkId);
+    HttpHeaders headers = new HttpHeaders();
+    // Tagged from the body itself, so an edit since it was read cannot pair it with a newer tag
+    if (arkId.hasVersion() && metadata != null) {
+      headers.setETag(KnowledgeObjectRepository.metadataTag(metadata));
+    }
+    return new ResponseEntity<>(metadata, headers, HttpStatus.OK);
   }
 
   @GetMapping(path = "/{naan}/{name}/{version}", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -44,14 +60,118 @@ public class KnowledgeObjectController extends ShelfExceptionHandler {
     return findKnowledgeObject(naan, name, version);
   }
 
+  /**
+   * Fetches many KOs in one request. The body is a JSON array of ark ids; one without a version
+   * fetches every version. The response has each KO found under "kos", keyed by its version ark
+   * id, and the ark ids nothing was found for under "missing".
+   */
+  @PostMapping(
+      path = "/bulk",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<ObjectNode> findKnowledgeObjects(
+      @RequestBody List<String> arks,
+      @RequestParam(name = "specs", required = false, defaultValue = "true") boolean specs) {
+    log.info("get " + arks.size() + " kos in bulk");
+    List<ArkId> arkIds = arks.stream().map(ArkId::new).collect(Collectors.toList());
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode response = mapper.createObjectNode();
+    ObjectNode kos = response.putObject("kos");
+    if (specs) {
+      for (Map.Entry<ArkId, KnowledgeObjectWrapper> kow : koRepo.getKows(arkIds).entrySet()) {
+        ObjectNode ko = kos.putObject(kow.getKey().getFullArk());
+        ko.set("metadata", kow.getValue().getMetadata());
+        ko.set("service", kow.getValue().getService());
+        ko.set("deployment", kow.getValue().getDeployment());
+      }
+    } else {
+      koRepo
+          .findKnowledgeObjectsMetadata(arkIds)
+          .forEach(
+              (arkId, metadata) -> kos.putObject(arkId.getFullArk()).set("metadata", metadata));
+    }
+    ArrayNode missing = response.putArray("missing");
+    arkIds.stream()
+        .filter(arkId -> !isFound(arkId, kos))
+        .forEach(arkId -> missing.add(arkId.getFullArk()));
+    return new ResponseEntity<>(response, HttpStatus.OK);
+  }
+
+  private boolean isFound(ArkId arkId, ObjectNode kos) {
+    if (arkId.hasVersion()) {
+      return kos.has(arkId.getFullArk());
+    }
+    String versionPrefix = arkId.getFullArk() + "/";
+    for (Iterator<String> fullArks = kos.fieldNames(); fullArks.hasNext(); ) {
+      if (fullArks.next().startsWith(versionPrefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Replaces a version's metadata. The request must carry the ETag the metadata was read with in
+   * an If-Match header, and fails with 412 if someone else has changed the metadata since.
+   */
   @PutMapping(path = "/{naan}/{name}/{version}", consumes = MediaType.APPLICATION_JSON_VALUE)
   public ResponseEntity<JsonNode> editVersionMetadata(
       @PathVariable String naan,
       @PathVariable String name,
       @PathVariable String version,
+      @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch,
       @RequestBody String data) {
-    return new ResponseEntity<>(
-        koRepo.editMetadata(new ArkId(naan, name, version), data), HttpStatus.OK);
+    if (ifMatch == null) {
+      throw new ShelfPreconditionRequired(
+          "Editing metadata needs an If-Match header with the ETag the metadata was read with");
+    }
+    JsonNode metadata = koRepo.editMetadata(new ArkId(naan, name, version), data, ifMatch);
+    HttpHeaders headers = new HttpHeaders();
+    if (metadata != null) {
+      headers.setETag(KnowledgeObjectRepository.metadataTag(metadata));
+    }
+    return new ResponseEntity<>(metadata, headers, HttpStatus.OK);
+  }
+
+  /**
+   * Changes part of a version's metadata with a JSON Merge Patch. An If-Match header is optional:
+   * without one the patch applies to whatever the metadata is now.
+   */
+  @PatchMapping(
+      path = "/{naan}/{name}/{version}",
+      consumes = MetadataPatch.MERGE_PATCH_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<JsonNode> mergePatchVersionMetadata(
+      @PathVariable String naan,
+      @PathVariable String name,
+      @PathVariable String version,
+      @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+      @RequestBody JsonNode patch) {
+    return patched(
+        koRepo.mergePatchMetadata(new ArkId(naan, name, version), patch, ifMatch));
+  }
+
+  /**
+   * Changes part of a version's metadata with a JSON Patch. An If-Match header is optional, and a
+   * patch can carry its own "test" operations instead.
+   */
+  @PatchMapping(
+      path = "/{naan}/{name}/{version}",
+      consumes = MetadataPatch.JSON_PATCH_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<JsonNode> jsonPatchVersionMetadata(
+      @PathVariable String naan,
+      @PathVariable String name,
+      @PathVariable String version,
+      @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+      @RequestBody JsonNode patch) {
+    return patched(koRepo.jsonPatchMetadata(new ArkId(naan, name, version), patch, ifMatch));
+  }
+
+  private ResponseEntity<JsonNode> patched(JsonNode metadata) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setETag(KnowledgeObjectRepository.metadataTag(metadata));
+    return new ResponseEntity<>(metadata, headers, HttpStatus.OK);
   }
 
   @DeleteMapping(path = "/{naan}/{name}/{version}")
@@ -0,0 +1,32 @@
+package org.kgrid.shelf.controller;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.kgrid.shelf.service.ShelfReplicator;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+/** Reports on, and runs, replication of this shelf from a source shelf. */
+@RestController
+@RequestMapping("${kgrid.shelf.endpoint:kos}")
+@CrossOrigin(origins = "${cors.url:}")
+public class ReplicationController extends ShelfExceptionHandler {
+
+  private final ShelfReplicator replicator;
+
+  public ReplicationController(KnowledgeObjectRepository koRepo, ShelfReplicator replicator) {
+    super(koRepo);
+    this.replicator = replicator;
+  }
+
+  @GetMapping(path = "/replication", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ObjectNode getReplicationStatus() {
+    return replicator.getStatus();
+  }
+
+  /** Runs a round of replication now instead of waiting for the next one. */
+  @PostMapping(path = "/replication", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ObjectNode replicate() {
+    return replicator.replicate();
+  }
+}
@@ -1,6 +1,8 @@
 package org.kgrid.shelf.controller;
 
 import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfPreconditionFailed;
+import org.kgrid.shelf.ShelfPreconditionRequired;
 import org.kgrid.shelf.ShelfResourceForbidden;
 import org.kgrid.shelf.ShelfResourceNotFound;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
@@ -95,6 +97,24 @@ public abstract class ShelfExceptionHandler {
         getErrorMap(request, e.getMessage(), HttpStatus.FORBIDDEN), HttpStatus.FORBIDDEN);
   }
 
+  @ExceptionHandler(ShelfPreconditionFailed.class)
+  public ResponseEntity<Map<String, String>> handlePreconditionFailedExceptions(
+      ShelfException e, WebRequest request) {
+
+    return new ResponseEntity<>(
+        getErrorMap(request, e.getMessage(), HttpStatus.PRECONDITION_FAILED),
+        HttpStatus.PRECONDITION_FAILED);
+  }
+
+  @ExceptionHandler(ShelfPreconditionRequired.class)
+  public ResponseEntity<Map<String, String>> handlePreconditionRequiredExceptions(
+      ShelfException e, WebRequest request) {
+
+    return new ResponseEntity<>(
+        getErrorMap(request, e.getMessage(), HttpStatus.PRECONDITION_REQUIRED),
+        HttpStatus.PRECONDITION_REQUIRED);
+  }
+
   @ExceptionHandler(Exception.class)
   public ResponseEntity<Map<String, String>> handleGeneralExceptions(
       Exception e, WebRequest request) {
@@ -65,6 +65,26 @@ public class KnowledgeObjectWrapper {
     return id;
   }
 
+  /**
+   * The version ark id of the KO, from its identifier and version the way the shelf reads them,
+   * or from a {@code naan/name/version} @id when it has no identifier.
+   */
+  public ArkId getArkId() {
+    String identifier = metadata.path(IDENTIFIER.asStr()).asText();
+    if (!ArkId.isArkId(identifier)) {
+      String[] arkParts = id.toString().split("/");
+      if (arkParts.length < 3) {
+        throw new ShelfException("Cannot determine the ark id of object " + id);
+      }
+      return new ArkId(arkParts[0], arkParts[1], arkParts[2]);
+    }
+    String version = metadata.path(VERSION.asStr()).asText();
+    if (metadata.has(VERSION.asStr()) && !identifier.contains(version)) {
+      return new ArkId(identifier + "/" + version);
+    }
+    return new ArkId(identifier);
+  }
+
   public JsonNode getMetadata() {
     return metadata;
   }
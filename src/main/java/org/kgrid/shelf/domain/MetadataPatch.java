@@ -0,0 +1,180 @@
+package org.kgrid.shelf.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.ShelfException;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Partial updates of KO metadata. Supports JSON Merge Patch (RFC 7386) and JSON Patch (RFC 6902).
+ * Both work on a copy, so the metadata passed in is never changed and can still be handed to
+ * readers while a patch is applied.
+ */
+public final class MetadataPatch {
+
+  public static final String MERGE_PATCH_JSON_VALUE = "application/merge-patch+json";
+  public static final String JSON_PATCH_JSON_VALUE = "application/json-patch+json";
+
+  private MetadataPatch() {}
+
+  /**
+   * Applies a JSON Merge Patch: members of the patch replace members of the target, null members
+   * remove them and nested objects are merged the same way.
+   *
+   * @param target metadata to patch
+   * @param patch the merge patch
+   * @return the patched copy of the metadata
+   */
+  public static JsonNode merge(JsonNode target, JsonNode patch) {
+    if (!patch.isObject()) {
+      return patch.deepCopy();
+    }
+    ObjectNode result =
+        target != null && target.isObject() ? target.deepCopy() : ((ObjectNode) patch).objectNode();
+    Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (field.getValue().isNull()) {
+        result.remove(field.getKey());
+      } else {
+        result.set(field.getKey(), merge(result.get(field.getKey()), field.getValue()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Applies a JSON Patch: an array of add, remove, replace, move, copy and test operations, done in
+   * order. If any operation fails none of them take effect.
+   *
+   * @param target metadata to patch
+   * @param patch the array of operations
+   * @return the patched copy of the metadata
+   * @throws ShelfException if the patch is malformed or an operation cannot be applied
+   */
+  public static JsonNode apply(JsonNode target, JsonNode patch) {
+    if (!patch.isArray()) {
+      throw new ShelfException("A JSON patch must be an array of operations");
+    }
+    JsonNode result = target.deepCopy();
+    for (JsonNode operation : patch) {
+      String op = operation.path("op").asText();
+      String path = required(operation, "path");
+      switch (op) {
+        case "add":
+          result = add(result, path, value(operation));
+          break;
+        case "remove":
+          result = remove(result, path);
+          break;
+        case "replace":
+          JsonNode replacement = value(operation);
+          result = path.isEmpty() ? replacement : add(remove(result, path), path, replacement);
+          break;
+        case "move":
+          String from = required(operation, "from");
+          if (path.startsWith(from + "/")) {
+            throw new ShelfException("Cannot move " + from + " into one of its children");
+          }
+          JsonNode moved = get(result, from);
+          result = add(remove(result, from), path, moved);
+          break;
+        case "copy":
+          result = add(result, path, get(result, required(operation, "from")).deepCopy());
+          break;
+        case "test":
+          if (!get(result, path).equals(value(operation))) {
+            throw new ShelfException("Patch test failed, " + path + " has a different value");
+          }
+          break;
+        default:
+          throw new ShelfException("Unknown JSON patch operation '" + op + "'");
+      }
+    }
+    return result;
+  }
+
+  private static JsonNode add(JsonNode root, String path, JsonNode value) {
+    if (path.isEmpty()) {
+      return value;
+    }
+    JsonNode parent = get(root, parentOf(path));
+    String child = lastTokenOf(path);
+    if (parent.isObject()) {
+      ((ObjectNode) parent).set(child, value);
+    } else if (parent.isArray()) {
+      ArrayNode array = (ArrayNode) parent;
+      int index = child.equals("-") ? array.size() : index(child, array.size() + 1, path);
+      array.insert(index, value);
+    } else {
+      throw new ShelfException("Cannot add to " + path + ", its parent is not a container");
+    }
+    return root;
+  }
+
+  private static JsonNode remove(JsonNode root, String path) {
+    if (path.isEmpty()) {
+      throw new ShelfException("Cannot remove the whole metadata");
+    }
+    JsonNode parent = get(root, parentOf(path));
+    String child = lastTokenOf(path);
+    if (parent.isObject() && parent.has(child)) {
+      ((ObjectNode) parent).remove(child);
+    } else if (parent.isArray()) {
+      ((ArrayNode) parent).remove(index(child, parent.size(), path));
+    } else {
+      throw new ShelfException("Cannot remove " + path + ", it does not exist");
+    }
+    return root;
+  }
+
+  private static JsonNode get(JsonNode root, String path) {
+    JsonNode node = root.at(path);
+    if (node.isMissingNode()) {
+      throw new ShelfException("Patch path " + path + " does not exist in the metadata");
+    }
+    return node;
+  }
+
+  private static int index(String token, int size, String path) {
+    try {
+      int index = Integer.parseInt(token);
+      if (index >= 0 && index < size && (token.equals("0") || !token.startsWith("0"))) {
+        return index;
+      }
+    } catch (NumberFormatException e) {
+      // Falls through to the error below
+    }
+    throw new ShelfException("Patch path " + path + " has a bad array index");
+  }
+
+  private static String parentOf(String path) {
+    return path.substring(0, path.lastIndexOf('/'));
+  }
+
+  private static String lastTokenOf(String path) {
+    return path.substring(path.lastIndexOf('/') + 1).replace("~1", "/").replace("~0", "~");
+  }
+
+  private static String required(JsonNode operation, String member) {
+    JsonNode value = operation.get(member);
+    if (value == null || !value.isTextual()) {
+      throw new ShelfException("JSON patch operation " + operation + " needs a '" + member + "'");
+    }
+    String pointer = value.asText();
+    if (!pointer.isEmpty() && !pointer.startsWith("/")) {
+      throw new ShelfException("Patch path " + pointer + " is not a JSON pointer");
+    }
+    return pointer;
+  }
+
+  private static JsonNode value(JsonNode operation) {
+    if (!operation.has("value")) {
+      throw new ShelfException("JSON patch operation " + operation + " needs a 'value'");
+    }
+    return operation.get("value").deepCopy();
+  }
+}
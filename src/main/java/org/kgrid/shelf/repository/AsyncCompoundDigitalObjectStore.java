@@ -0,0 +1,20 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking reads from a shelf, so callers can start several reads and wait for all of them
+ * at once instead of one after another. Failures complete the future exceptionally with the same
+ * exceptions the matching {@link CompoundDigitalObjectStore} methods throw.
+ */
+public interface AsyncCompoundDigitalObjectStore {
+
+  CompletableFuture<ObjectNode> getMetadataAsync(URI relativeLocation);
+
+  CompletableFuture<byte[]> getBinaryAsync(URI relativeLocation);
+
+  CompletableFuture<Long> getBinarySizeAsync(URI relativeLocation);
+}
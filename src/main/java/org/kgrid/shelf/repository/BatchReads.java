@@ -0,0 +1,41 @@
+package org.kgrid.shelf.repository;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/** Runs the reads of a batch at the same time and collects what they read. */
+final class BatchReads {
+
+  private BatchReads() {}
+
+  /**
+   * Starts a read for every location, waits for all of them and returns what they read in the
+   * order the locations were given. Reads that fail are left out.
+   */
+  static <T> Map<URI, T> readAll(
+      Collection<URI> locations, Function<URI, CompletableFuture<T>> read) {
+    Map<URI, CompletableFuture<T>> started = new LinkedHashMap<>();
+    for (URI location : locations) {
+      try {
+        started.putIfAbsent(location, read.apply(location));
+      } catch (RuntimeException e) {
+        started.putIfAbsent(location, CompletableFuture.failedFuture(e));
+      }
+    }
+    Map<URI, T> results = new LinkedHashMap<>();
+    started.forEach(
+        (location, future) -> {
+          try {
+            results.put(location, future.join());
+          } catch (CompletionException e) {
+            // Left out of the result
+          }
+        });
+    return results;
+  }
+}
@@ -0,0 +1,71 @@
+package org.kgrid.shelf.repository;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads one region of a file with positional reads, so any number of these can share a channel.
+ * Closing the stream closes {@code onClose}, which may be the channel itself or a lease on it.
+ */
+class ChannelRegionInputStream extends InputStream {
+
+  private final FileChannel channel;
+  private final Closeable onClose;
+  private long position;
+  private final long end;
+  private boolean closed;
+
+  ChannelRegionInputStream(FileChannel channel, long offset, long length, Closeable onClose) {
+    this.channel = channel;
+    this.onClose = onClose;
+    this.position = offset;
+    this.end = offset + length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (position >= end) {
+      return -1;
+    }
+    ByteBuffer target = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position));
+    int read = channel.read(target, position);
+    if (read < 0) {
+      throw new EOFException("File is shorter than the region being read");
+    }
+    position += read;
+    return read;
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.max(0, Math.min(n, end - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, end - position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      onClose.close();
+    }
+  }
+}
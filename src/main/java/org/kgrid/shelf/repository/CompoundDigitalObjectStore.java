@@ -6,7 +6,10 @@ import org.kgrid.shelf.ShelfException;
 
 import java.io.InputStream;
 import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public interface CompoundDigitalObjectStore {
 
@@ -38,4 +41,44 @@ public interface CompoundDigitalObjectStore {
   void rollbackTransaction(String transactionID);
 
   long getBinarySize(URI relativeLocation);
+
+  /**
+   * Reads the metadata at several locations. The result is in the order the locations were given
+   * and leaves out any that could not be read. Stores override this to reorder, parallelize or
+   * coalesce the reads.
+   *
+   * @param relativeLocations KO directories or metadata files
+   * @return the metadata read, keyed by the location it was asked for with
+   */
+  default Map<URI, ObjectNode> getMetadata(Collection<URI> relativeLocations) {
+    Map<URI, ObjectNode> metadata = new LinkedHashMap<>();
+    for (URI location : relativeLocations) {
+      try {
+        metadata.put(location, getMetadata(location));
+      } catch (ShelfException e) {
+        // Left out of the result
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * Reads the binaries at several locations. The result is in the order the locations were given
+   * and leaves out any that could not be read. Stores override this to reorder, parallelize or
+   * coalesce the reads.
+   *
+   * @param relativeLocations binary files
+   * @return the bytes read, keyed by the location they were asked for with
+   */
+  default Map<URI, byte[]> getBinaries(Collection<URI> relativeLocations) {
+    Map<URI, byte[]> binaries = new LinkedHashMap<>();
+    for (URI location : relativeLocations) {
+      try {
+        binaries.put(location, getBinary(location));
+      } catch (ShelfException e) {
+        // Left out of the result
+      }
+    }
+    return binaries;
+  }
 }
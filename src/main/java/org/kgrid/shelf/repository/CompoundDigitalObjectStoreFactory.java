@@ -9,6 +9,20 @@ public class CompoundDigitalObjectStoreFactory {
     String shelfClass = cdoStoreURI.substring(0, cdoStoreURI.indexOf(':'));
     if ("filesystem".equals(shelfClass)) {
       return new FilesystemCDOStore(cdoStoreURI);
+    } else if ("dedup".equals(shelfClass)) {
+      return new DeduplicatingFilesystemCDOStore(cdoStoreURI);
+    } else if ("memory".equals(shelfClass)) {
+      return new InMemoryCDOStore(cdoStoreURI);
+    } else if ("pack".equals(shelfClass)) {
+      return new PackedCDOStore(cdoStoreURI);
+    } else if ("zip".equals(shelfClass)) {
+      return new ZipArchiveCDOStore(cdoStoreURI);
+    } else if ("s3".equals(shelfClass)) {
+      return new S3CDOStore(cdoStoreURI);
+    } else if ("sharded".equals(shelfClass)) {
+      return new ShardedFilesystemCDOStore(cdoStoreURI);
+    } else if ("tiered".equals(shelfClass)) {
+      return new TieredCDOStore(cdoStoreURI);
     } else {
       throw new IllegalArgumentException("Cannot find specified CDO store type " + shelfClass);
     }
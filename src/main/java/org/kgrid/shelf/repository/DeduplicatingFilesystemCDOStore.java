@@ -0,0 +1,275 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.domain.KoFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * A filesystem shelf that keeps each distinct artifact once. Artifacts are stored by SHA-256 under
+ * {@code .blobs/} at the shelf root. The files in a KO are hard links to those blobs, so versions
+ * of a KO that share artifacts share the disk space too, and an artifact that is already on the
+ * shelf is never written again.
+ *
+ * <p>The link count of a blob is its reference count. Files in a KO are always replaced by linking
+ * a new blob into place, never written over, because writing over a link would change every KO
+ * sharing the blob. Deleting a KO removes the blobs of its files that nothing else links to.
+ * {@link #collectGarbage()} sweeps the whole blob store for any that were left behind; it runs
+ * when the store starts and whenever it is called. On filesystems without hard links the blob is
+ * copied into the KO instead.
+ *
+ * <p>Use it with a connection string like {@code dedup:file:///data/myshelf}.
+ */
+@Qualifier("dedup")
+public class DeduplicatingFilesystemCDOStore extends FilesystemCDOStore {
+
+  static final String BLOB_DIR = ".blobs";
+  private static final String TEMP_DIR = "tmp";
+  private static final int IN_MEMORY_LIMIT = 1 << 20;
+  private static final long STALE_TEMP_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /** Blobs written or reused this recently are kept, since a save may be about to link them. */
+  long gracePeriodMillis = TimeUnit.MINUTES.toMillis(1);
+
+  private final Path blobDir;
+  private final Path tempDir;
+  // When each blob was last reused, kept here because touching a blob touches every KO linking it
+  private final Map<Path, Long> reused = new ConcurrentHashMap<>();
+  private final Logger log = LoggerFactory.getLogger(DeduplicatingFilesystemCDOStore.class);
+
+  public DeduplicatingFilesystemCDOStore(String connectionURI) {
+    super(connectionURI);
+    blobDir = localStorageDir.resolve(BLOB_DIR);
+    tempDir = blobDir.resolve(TEMP_DIR);
+    try {
+      Files.createDirectories(tempDir);
+    } catch (IOException e) {
+      log.error("Unable to find or create blob store at {}", blobDir);
+    }
+    collectGarbage();
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativePath) {
+    Path metadataPath = localStorageDir.resolve(relativePath.toString());
+    if (Files.isDirectory(metadataPath)) {
+      relativePath =
+          URI.create(
+              localStorageDir
+                  .relativize(metadataPath.resolve(KoFields.METADATA_FILENAME.asStr()))
+                  .toString()
+                  .replaceAll("\\\\", "/"));
+    }
+    try {
+      byte[] json =
+          new ObjectMapper()
+              .writer()
+              .with(SerializationFeature.INDENT_OUTPUT)
+              .writeValueAsBytes(metadata);
+      saveBinary(new ByteArrayInputStream(json), relativePath);
+    } catch (IOException ioEx) {
+      throw new ShelfException("Could not write to file at " + metadataPath, ioEx);
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] output, URI relativePath) {
+    saveBinary(new ByteArrayInputStream(output), relativePath);
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativePath) {
+    Path dataPath = localStorageDir.resolve(relativePath.toString());
+    try {
+      Path blob = storeBlob(stream);
+      Files.createDirectories(dataPath.getParent());
+      Path link = dataPath.resolveSibling("." + dataPath.getFileName() + "." + UUID.randomUUID());
+      try {
+        Files.createLink(link, blob);
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        log.debug("Cannot hard link {}, copying it instead", blob);
+        Files.copy(blob, link);
+      }
+      Files.move(link, dataPath, ATOMIC_MOVE);
+    } catch (IOException ioEx) {
+      throw new ShelfException("Could not write to file at " + dataPath, ioEx);
+    }
+  }
+
+  @Override
+  public void delete(URI relativePath) throws ShelfException {
+    List<Path> blobs = blobsOf(localStorageDir.resolve(relativePath.toString()));
+    super.delete(relativePath);
+    long recent = System.currentTimeMillis() - gracePeriodMillis;
+    for (Path blob : blobs) {
+      try {
+        deleteIfUnused(blob, recent);
+      } catch (IOException | UnsupportedOperationException e) {
+        log.warn("Cannot delete unused blob {}: {}", blob, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Deletes blobs that no KO links to any more, and temp files left behind by interrupted writes.
+   * Only link counts are read, not file contents, but it walks the whole blob store.
+   *
+   * @return the number of blobs deleted
+   */
+  public int collectGarbage() {
+    int deleted = 0;
+    long recent = System.currentTimeMillis() - gracePeriodMillis;
+    reused.values().removeIf(time -> time < recent);
+    try (Stream<Path> paths = Files.walk(blobDir, 2)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        if (Files.isRegularFile(path)
+            && !path.startsWith(tempDir)
+            && deleteIfUnused(path, recent)) {
+          deleted++;
+        }
+      }
+    } catch (IOException | UnsupportedOperationException e) {
+      log.warn("Cannot collect unused blobs in {}: {}", blobDir, e.getMessage());
+    }
+    long cutoff = System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS;
+    File[] tempFiles = tempDir.toFile().listFiles(file -> file.lastModified() < cutoff);
+    if (tempFiles != null) {
+      for (File tempFile : tempFiles) {
+        FileUtils.deleteQuietly(tempFile);
+      }
+    }
+    if (deleted > 0) {
+      log.info("Deleted {} unused blobs from {}", deleted, blobDir);
+    }
+    return deleted;
+  }
+
+  /** Deletes a blob if no KO links to it and it was not written or reused since {@code recent}. */
+  private boolean deleteIfUnused(Path blob, long recent) throws IOException {
+    if (linkCount(blob) != 1
+        || Files.getLastModifiedTime(blob).toMillis() >= recent
+        || reused.getOrDefault(blob, Long.MIN_VALUE) >= recent) {
+      return false;
+    }
+    reused.remove(blob);
+    return Files.deleteIfExists(blob);
+  }
+
+  /** The blobs the files under a path are stored in, found by hashing the files. */
+  private List<Path> blobsOf(Path path) {
+    List<Path> blobs = new ArrayList<>();
+    if (!Files.exists(path)) {
+      return blobs;
+    }
+    try (Stream<Path> files = Files.walk(path)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (!Files.isRegularFile(file)) {
+          continue;
+        }
+        try (InputStream data = Files.newInputStream(file)) {
+          Path blob = getBlobPath(DigestUtils.sha256Hex(data));
+          if (Files.exists(blob)) {
+            blobs.add(blob);
+          }
+        }
+      }
+    } catch (IOException | UncheckedIOException e) {
+      log.warn("Cannot find the blobs of {}, leaving them for garbage collection", path);
+    }
+    return blobs;
+  }
+
+  Path getBlobPath(String sha256) {
+    return blobDir.resolve(sha256.substring(0, 2)).resolve(sha256);
+  }
+
+  /**
+   * Hashes the stream and stores it as a blob unless one with the same content exists. Content
+   * up to {@code IN_MEMORY_LIMIT} is hashed in memory, so small artifacts that are already on the
+   * shelf are not written at all.
+   */
+  private Path storeBlob(InputStream stream) throws IOException {
+    MessageDigest digest = DigestUtils.getSha256Digest();
+    DigestInputStream hashing = new DigestInputStream(stream, digest);
+    byte[] head = hashing.readNBytes(IN_MEMORY_LIMIT);
+    if (head.length < IN_MEMORY_LIMIT) {
+      Path blob = getBlobPath(Hex.encodeHexString(digest.digest()));
+      if (!reuse(blob)) {
+        writeBlob(new ByteArrayInputStream(head), blob);
+      }
+      return blob;
+    }
+    Path temp = Files.createTempFile(tempDir, "blob", null);
+    try {
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        new SequenceInputStream(new ByteArrayInputStream(head), hashing).transferTo(out);
+      }
+      Path blob = getBlobPath(Hex.encodeHexString(digest.digest()));
+      if (!reuse(blob)) {
+        Files.createDirectories(blob.getParent());
+        Files.move(temp, blob, ATOMIC_MOVE);
+      }
+      return blob;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Marks an existing blob as in use so garbage collection leaves it alone. */
+  private boolean reuse(Path blob) {
+    if (!Files.isRegularFile(blob)) {
+      return false;
+    }
+    reused.put(blob, System.currentTimeMillis());
+    // Garbage collection may have deleted it before it was marked
+    return Files.isRegularFile(blob);
+  }
+
+  private void writeBlob(InputStream data, Path blob) throws IOException {
+    Path temp = Files.createTempFile(tempDir, "blob", null);
+    try {
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        data.transferTo(out);
+      }
+      Files.createDirectories(blob.getParent());
+      Files.move(temp, blob, ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private int linkCount(Path path) throws IOException {
+    return (Integer) Files.getAttribute(path, "unix:nlink");
+  }
+}
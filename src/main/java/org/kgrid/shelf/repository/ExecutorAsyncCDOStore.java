@@ -0,0 +1,65 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives any {@link CompoundDigitalObjectStore} the async read API by running its blocking reads
+ * on an executor. Unless one is given, reads share a pool of daemon threads sized for I/O rather
+ * than for CPU work.
+ */
+public class ExecutorAsyncCDOStore implements AsyncCompoundDigitalObjectStore {
+
+  private static final ExecutorService SHARED_EXECUTOR = createSharedExecutor();
+
+  private final CompoundDigitalObjectStore cdoStore;
+  private final Executor executor;
+
+  public ExecutorAsyncCDOStore(CompoundDigitalObjectStore cdoStore) {
+    this(cdoStore, SHARED_EXECUTOR);
+  }
+
+  public ExecutorAsyncCDOStore(CompoundDigitalObjectStore cdoStore, Executor executor) {
+    this.cdoStore = cdoStore;
+    this.executor = executor;
+  }
+
+  /** The store itself if it reads asynchronously already, otherwise an adapter for it. */
+  public static AsyncCompoundDigitalObjectStore of(CompoundDigitalObjectStore cdoStore) {
+    return cdoStore instanceof AsyncCompoundDigitalObjectStore
+        ? (AsyncCompoundDigitalObjectStore) cdoStore
+        : new ExecutorAsyncCDOStore(cdoStore);
+  }
+
+  @Override
+  public CompletableFuture<ObjectNode> getMetadataAsync(URI relativeLocation) {
+    return CompletableFuture.supplyAsync(() -> cdoStore.getMetadata(relativeLocation), executor);
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getBinaryAsync(URI relativeLocation) {
+    return CompletableFuture.supplyAsync(() -> cdoStore.getBinary(relativeLocation), executor);
+  }
+
+  @Override
+  public CompletableFuture<Long> getBinarySizeAsync(URI relativeLocation) {
+    return CompletableFuture.supplyAsync(() -> cdoStore.getBinarySize(relativeLocation), executor);
+  }
+
+  private static ExecutorService createSharedExecutor() {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return Executors.newFixedThreadPool(
+        Math.max(8, Runtime.getRuntime().availableProcessors() * 2),
+        runnable -> {
+          Thread thread = new Thread(runnable, "cdo-store-read-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+}
@@ -20,19 +20,44 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.nio.file.FileVisitOption.FOLLOW_LINKS;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 @Qualifier("filesystem")
-public class FilesystemCDOStore implements CompoundDigitalObjectStore {
+public class FilesystemCDOStore
+    implements CompoundDigitalObjectStore, AsyncCompoundDigitalObjectStore {
 
-  private final Path localStorageDir;
+  private static final long TRANSFER_CHUNK_SIZE = 1 << 20;
+  private static final ObjectWriter METADATA_WRITER =
+      new ObjectMapper().writer().with(SerializationFeature.INDENT_OUTPUT);
+
+  protected final Path localStorageDir;
 
   private final Logger log = LoggerFactory.getLogger(FilesystemCDOStore.class);
 
@@ -59,8 +84,9 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
       int MAX_DEPTH = 3;
       children =
           Files.walk(localStorageDir, MAX_DEPTH, FOLLOW_LINKS)
-              .filter(this::pathContainsMetadata)
               .filter(path -> path.toString().length() > localStorageDir.toString().length())
+              .filter(this::isPublished)
+              .filter(this::pathContainsMetadata)
               .map(this::getChildUri)
               .collect(Collectors.toList());
     } catch (IOException ioEx) {
@@ -90,11 +116,7 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
   @Override
   public ObjectNode getMetadata(URI relativePath) {
     Path metadataPath = localStorageDir.resolve(relativePath.toString().replaceAll("%20", " "));
-    File metadataFile = metadataPath.toFile();
-    if (metadataFile.isDirectory()
-        || !metadataFile.getPath().endsWith(KoFields.METADATA_FILENAME.asStr())) {
-      metadataFile = metadataPath.resolve(KoFields.METADATA_FILENAME.asStr()).toFile();
-    }
+    File metadataFile = metadataFile(relativePath);
 
     ObjectMapper mapper = new ObjectMapper();
     mapper.setSerializationInclusion(Include.NON_NULL);
@@ -108,6 +130,16 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
     }
   }
 
+  private File metadataFile(URI relativePath) {
+    Path metadataPath = localStorageDir.resolve(relativePath.toString().replaceAll("%20", " "));
+    File metadataFile = metadataPath.toFile();
+    if (metadataFile.isDirectory()
+        || !metadataFile.getPath().endsWith(KoFields.METADATA_FILENAME.asStr())) {
+      metadataFile = metadataPath.resolve(KoFields.METADATA_FILENAME.asStr()).toFile();
+    }
+    return metadataFile;
+  }
+
   @Override
   public byte[] getBinary(URI relativePath) {
     Path binaryPath = localStorageDir.resolve(relativePath.toString().replaceAll("%20", " "));
@@ -130,6 +162,114 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
     }
   }
 
+  @Override
+  public CompletableFuture<ObjectNode> getMetadataAsync(URI relativePath) {
+    Path metadataPath = metadataFile(relativePath).toPath();
+    return readAsync(metadataPath)
+        .thenApply(
+            bytes -> {
+              try {
+                return (ObjectNode) new ObjectMapper().readTree(bytes);
+              } catch (IOException | ClassCastException e) {
+                throw new ShelfResourceNotFound("Metadata resource not found " + metadataPath, e);
+              }
+            })
+        .exceptionally(
+            e -> {
+              Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+              if (cause instanceof ShelfResourceNotFound) {
+                throw (ShelfResourceNotFound) cause;
+              }
+              throw new ShelfResourceNotFound("Metadata resource not found " + metadataPath, cause);
+            });
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getBinaryAsync(URI relativePath) {
+    Path binaryPath = localStorageDir.resolve(relativePath.toString().replaceAll("%20", " "));
+    return readAsync(binaryPath)
+        .exceptionally(
+            e -> {
+              Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+              throw new ShelfResourceNotFound("Binary resource not found " + binaryPath, cause);
+            });
+  }
+
+  /** Reads every metadata file at the same time instead of one after another. */
+  @Override
+  public Map<URI, ObjectNode> getMetadata(Collection<URI> relativePaths) {
+    return BatchReads.readAll(relativePaths, this::getMetadataAsync);
+  }
+
+  /** Reads every binary at the same time instead of one after another. */
+  @Override
+  public Map<URI, byte[]> getBinaries(Collection<URI> relativePaths) {
+    return BatchReads.readAll(relativePaths, this::getBinaryAsync);
+  }
+
+  @Override
+  public CompletableFuture<Long> getBinarySizeAsync(URI relativePath) {
+    // A stat does not block for long enough to be worth handing to another thread
+    try {
+      return CompletableFuture.completedFuture(getBinarySize(relativePath));
+    } catch (ShelfException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Reads a whole file with an {@link AsynchronousFileChannel}, continuing each partial read from
+   * the channel's completion handler, so no thread waits on the disk.
+   */
+  private CompletableFuture<byte[]> readAsync(Path path) {
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+    AsynchronousFileChannel channel;
+    ByteBuffer buffer;
+    try {
+      channel = AsynchronousFileChannel.open(path, READ);
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE - 8) {
+        channel.close();
+        throw new IOException(path + " is too large to read into memory");
+      }
+      buffer = ByteBuffer.allocate((int) size);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    CompletionHandler<Integer, ByteBuffer> handler =
+        new CompletionHandler<>() {
+          @Override
+          public void completed(Integer read, ByteBuffer target) {
+            if (read >= 0 && target.hasRemaining()) {
+              channel.read(target, target.position(), target, this);
+              return;
+            }
+            closeQuietly(channel);
+            result.complete(Arrays.copyOf(target.array(), target.position()));
+          }
+
+          @Override
+          public void failed(Throwable e, ByteBuffer target) {
+            closeQuietly(channel);
+            result.completeExceptionally(e);
+          }
+        };
+    if (buffer.hasRemaining()) {
+      channel.read(buffer, 0, buffer, handler);
+    } else {
+      handler.completed(0, buffer);
+    }
+    return result;
+  }
+
+  private void closeQuietly(AsynchronousFileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.trace("Cannot close channel: {}", e.getMessage());
+    }
+  }
+
   @Override
   public void saveMetadata(JsonNode metadata, URI relativePath) {
     Path metadataPath = localStorageDir.resolve(relativePath.toString());
@@ -137,10 +277,23 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
     if (metadataFile.isDirectory()) {
       metadataFile = metadataPath.resolve(KoFields.METADATA_FILENAME.asStr()).toFile();
     }
+    // Written beside the file and renamed over it, so a reader never sees half of an edit
+    Path target = metadataFile.toPath();
+    Path written =
+        target.resolveSibling("." + target.getFileName() + ".written-" + UUID.randomUUID());
     try {
-      ObjectWriter writer = new ObjectMapper().writer().with(SerializationFeature.INDENT_OUTPUT);
-      writer.writeValue(metadataFile, metadata);
+      METADATA_WRITER.writeValue(written.toFile(), metadata);
+      try {
+        Files.move(written, target, ATOMIC_MOVE, REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(written, target, REPLACE_EXISTING);
+      }
     } catch (IOException ioEx) {
+      try {
+        Files.deleteIfExists(written);
+      } catch (IOException cleanup) {
+        ioEx.addSuppressed(cleanup);
+      }
       throw new ShelfException("Could not write to file at " + metadataPath, ioEx);
     }
   }
@@ -160,9 +313,16 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
   @Override
   public void saveBinary(InputStream stream, URI relativePath) {
     Path dataPath = localStorageDir.resolve(relativePath.toString());
-    File dataFile = dataPath.toFile();
-    try {
-      FileUtils.copyInputStreamToFile(stream, dataFile);
+    try (ReadableByteChannel source = Channels.newChannel(stream)) {
+      Files.createDirectories(dataPath.getParent());
+      try (FileChannel target =
+          FileChannel.open(dataPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+        long position = 0;
+        long transferred;
+        while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+          position += transferred;
+        }
+      }
     } catch (IOException ioEx) {
       throw new ShelfException("Could not write to file at " + dataPath, ioEx);
     }
@@ -193,7 +353,11 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
   public void delete(URI relativePath) throws ShelfException {
     Path path = localStorageDir.resolve(relativePath.toString());
     try {
-      FileUtils.deleteDirectory(new File(path.toString()));
+      if (Files.isDirectory(path)) {
+        FileUtils.deleteDirectory(new File(path.toString()));
+      } else {
+        Files.deleteIfExists(path);
+      }
     } catch (IOException e) {
       throw new ShelfException("Could not delete cdo " + relativePath, e);
     }
@@ -207,14 +371,105 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
     return trxID;
   }
 
+  /**
+   * Publishes everything written in the transaction by renaming it onto the shelf. The files are
+   * synced first, and each KO directory is renamed in one step, so readers never see a partial
+   * copy of a KO. A KO that is already on the shelf is renamed aside before the new one is moved
+   * into its place and then deleted. A directory cannot be renamed over one that has files in it,
+   * so between those two renames the KO is missing: a reader may find no KO there for that
+   * moment, but never a mix of the old and new files. If the transaction area is on a different
+   * device from the target, the KO is copied next to the target and then renamed.
+   */
   @Override
   public void commitTransaction(String transactionID) {
-    File tempFolder = new File(localStorageDir.toFile(), transactionID);
+    Path transactionDir = localStorageDir.resolve(transactionID);
+    if (!Files.isDirectory(transactionDir)) {
+      log.warn("Cannot commit transaction {}, it does not exist", transactionID);
+      return;
+    }
     try {
-      FileUtils.copyDirectory(tempFolder, localStorageDir.toFile());
-      FileUtils.deleteDirectory(tempFolder);
+      syncTree(transactionDir);
+      publish(transactionDir, localStorageDir);
+      syncDirectory(localStorageDir);
+      FileUtils.deleteDirectory(transactionDir.toFile());
     } catch (IOException e) {
-      log.warn("Cannot copy files from temp directory to shelf " + e);
+      throw new ShelfException("Cannot commit transaction " + transactionID, e);
+    }
+  }
+
+  private void publish(Path sourceDir, Path targetDir) throws IOException {
+    List<Path> entries;
+    try (Stream<Path> list = Files.list(sourceDir)) {
+      entries = list.collect(Collectors.toList());
+    }
+    for (Path source : entries) {
+      Path target = targetDir.resolve(source.getFileName().toString());
+      if (!Files.exists(target, NOFOLLOW_LINKS)) {
+        move(source, target);
+      } else if (Files.isDirectory(source) && pathContainsMetadata(source)) {
+        replace(source, target);
+      } else if (Files.isDirectory(source) && Files.isDirectory(target)) {
+        publish(source, target);
+        syncDirectory(target);
+      } else {
+        move(source, target);
+      }
+    }
+  }
+
+  private void replace(Path source, Path target) throws IOException {
+    Path replaced =
+        target.resolveSibling("." + target.getFileName() + ".replaced-" + UUID.randomUUID());
+    Files.move(target, replaced, ATOMIC_MOVE);
+    try {
+      move(source, target);
+    } catch (IOException e) {
+      Files.move(replaced, target, ATOMIC_MOVE);
+      throw e;
+    }
+    FileUtils.deleteQuietly(replaced.toFile());
+  }
+
+  private void move(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Path staged =
+          target.resolveSibling("." + target.getFileName() + ".staged-" + UUID.randomUUID());
+      try {
+        if (Files.isDirectory(source)) {
+          FileUtils.copyDirectory(source.toFile(), staged.toFile());
+        } else {
+          Files.copy(source, staged);
+        }
+        syncTree(staged);
+        Files.move(staged, target, ATOMIC_MOVE);
+      } finally {
+        FileUtils.deleteQuietly(staged.toFile());
+      }
+    }
+  }
+
+  private void syncTree(Path root) throws IOException {
+    try (Stream<Path> paths = Files.walk(root)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        if (Files.isDirectory(path)) {
+          syncDirectory(path);
+        } else {
+          try (FileChannel channel = FileChannel.open(path, READ)) {
+            channel.force(true);
+          }
+        }
+      }
+    }
+  }
+
+  private void syncDirectory(Path directory) {
+    // Not every platform lets a directory be opened, Windows for one, so this is best effort
+    try (FileChannel channel = FileChannel.open(directory, READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      log.trace("Cannot sync directory {}", directory);
     }
   }
 
@@ -228,6 +483,12 @@ public class FilesystemCDOStore implements CompoundDigitalObjectStore {
     }
   }
 
+  /** False for paths in open transactions and in KOs that are being replaced. */
+  private boolean isPublished(Path path) {
+    return StorePaths.isPublished(
+        localStorageDir.relativize(path).toString().replace('\\', '/'));
+  }
+
   private boolean pathContainsMetadata(Path path) {
     return path.toFile().isDirectory()
         && path.resolve(KoFields.METADATA_FILENAME.asStr()).toFile().exists();
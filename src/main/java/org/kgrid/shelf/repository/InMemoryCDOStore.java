@@ -0,0 +1,299 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import static org.kgrid.shelf.repository.StorePaths.child;
+import static org.kgrid.shelf.repository.StorePaths.koPathOf;
+import static org.kgrid.shelf.repository.StorePaths.prefixEnd;
+import static org.kgrid.shelf.repository.StorePaths.toPath;
+
+/**
+ * A shelf held entirely in memory, for read-mostly nodes seeded from a manifest at startup and for
+ * tests. Contents are lost when the application stops. Use it with a connection string like
+ * {@code memory:shelf}; everything after the colon is only used as a name.
+ *
+ * <p>Files are kept in a sorted map from path to a read-only direct buffer, so artifact bytes live
+ * off the Java heap. Reads never lock. A transaction is an overlay map that holds only what was
+ * written in it. The map of paths is a {@link PersistentSortedMap}, so committing applies the
+ * overlay to a new version of it that shares everything the transaction did not touch, in time
+ * proportional to the transaction rather than the shelf, and swaps that in. Readers see all of a
+ * transaction or none of it.
+ */
+@Qualifier("memory")
+public class InMemoryCDOStore implements CompoundDigitalObjectStore {
+
+  private static final String METADATA = StorePaths.METADATA;
+
+  private final String name;
+  private volatile PersistentSortedMap<ByteBuffer> files = PersistentSortedMap.empty();
+  private final ConcurrentSkipListSet<String> containers = new ConcurrentSkipListSet<>();
+  private final Map<String, ConcurrentSkipListMap<String, ByteBuffer>> transactions =
+      new ConcurrentHashMap<>();
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Logger log = LoggerFactory.getLogger(InMemoryCDOStore.class);
+
+  public InMemoryCDOStore(String connectionURI) {
+    this.name = connectionURI.substring(connectionURI.indexOf(':') + 1);
+  }
+
+  @Override
+  public List<URI> getChildren() {
+    return StorePaths.children(files.keys());
+  }
+
+  @Override
+  public URI getAbsoluteLocation(URI relativeLocation) {
+    URI root = URI.create("memory:/" + name.replaceAll(" ", "%20") + "/");
+    return relativeLocation == null ? root : root.resolve(relativeLocation);
+  }
+
+  @Override
+  public ObjectNode getMetadata(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (!path.endsWith(METADATA) || isDirectory(path)) {
+      path = child(path, METADATA);
+    }
+    ByteBuffer data = read(path);
+    if (data == null) {
+      throw new ShelfResourceNotFound("Metadata resource not found " + path);
+    }
+    try {
+      return (ObjectNode) mapper.readTree(toBytes(data));
+    } catch (IOException | ClassCastException e) {
+      throw new ShelfResourceNotFound("Metadata resource not found " + path, e);
+    }
+  }
+
+  @Override
+  public byte[] getBinary(URI relativeLocation) {
+    return toBytes(readExisting(toPath(relativeLocation)));
+  }
+
+  @Override
+  public InputStream getBinaryStream(URI relativeLocation) {
+    return new ByteBufferInputStream(readExisting(toPath(relativeLocation)));
+  }
+
+  @Override
+  public long getBinarySize(URI relativeLocation) {
+    ByteBuffer data = read(toPath(relativeLocation));
+    if (data == null) {
+      throw new ShelfException("Cannot get file size for " + relativeLocation);
+    }
+    return data.remaining();
+  }
+
+  @Override
+  public void createContainer(URI relativeLocation) {
+    containers.add(toPath(relativeLocation));
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (isDirectory(path)) {
+      path = child(path, METADATA);
+    }
+    try {
+      write(
+          path,
+          mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValueAsBytes(metadata));
+    } catch (IOException e) {
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] data, URI relativeLocation) {
+    write(toPath(relativeLocation), data);
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    try (stream) {
+      write(path, stream.readAllBytes());
+    } catch (IOException e) {
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  @Override
+  public synchronized void delete(URI relativeLocation) throws ShelfException {
+    String path = toPath(relativeLocation);
+    files = files.minus(path).minusRange(path + "/", prefixEnd(path + "/"));
+    containers.remove(path);
+    containers.subSet(path + "/", prefixEnd(path + "/")).clear();
+  }
+
+  @Override
+  public String createTransaction() {
+    String trxID = "trx-" + UUID.randomUUID().toString();
+    transactions.put(trxID, new ConcurrentSkipListMap<>());
+    return trxID;
+  }
+
+  /**
+   * Publishes the transaction's files. As with the filesystem store, a KO written in the
+   * transaction replaces the whole KO at that path, and other files are added or replaced one by
+   * one.
+   */
+  @Override
+  public synchronized void commitTransaction(String transactionID) {
+    NavigableMap<String, ByteBuffer> overlay = transactions.remove(transactionID);
+    if (overlay == null) {
+      log.warn("Cannot commit transaction {}, it does not exist", transactionID);
+      return;
+    }
+    PersistentSortedMap<ByteBuffer> committed = files;
+    for (String path : overlay.keySet()) {
+      String koPath = koPathOf(path);
+      if (koPath != null) {
+        committed = committed.minusRange(koPath + "/", prefixEnd(koPath + "/"));
+      }
+    }
+    for (Map.Entry<String, ByteBuffer> written : overlay.entrySet()) {
+      committed = committed.plus(written.getKey(), written.getValue());
+    }
+    files = committed;
+  }
+
+  @Override
+  public void rollbackTransaction(String transactionID) {
+    transactions.remove(transactionID);
+  }
+
+  private boolean isDirectory(String path) {
+    String prefix = path.isEmpty() ? "" : path + "/";
+    String firstFile;
+    String[] transaction = splitTransaction(path);
+    if (transaction != null) {
+      NavigableMap<String, ByteBuffer> overlay = transactions.get(transaction[0]);
+      prefix = transaction[1].isEmpty() ? "" : transaction[1] + "/";
+      firstFile = overlay != null ? overlay.ceilingKey(prefix) : null;
+    } else {
+      firstFile = files.ceilingKey(prefix);
+    }
+    return containers.contains(path)
+        || containers.ceiling(prefix) != null && containers.ceiling(prefix).startsWith(prefix)
+        || firstFile != null && firstFile.startsWith(prefix);
+  }
+
+  private ByteBuffer read(String path) {
+    String[] transaction = splitTransaction(path);
+    if (transaction != null) {
+      NavigableMap<String, ByteBuffer> overlay = transactions.get(transaction[0]);
+      if (overlay == null) {
+        throw new ShelfResourceNotFound("Transaction " + transaction[0] + " has ended");
+      }
+      return overlay.get(transaction[1]);
+    }
+    return files.get(path);
+  }
+
+  private ByteBuffer readExisting(String path) {
+    ByteBuffer data = read(path);
+    if (data == null) {
+      throw new ShelfResourceNotFound("Binary resource not found " + path);
+    }
+    return data;
+  }
+
+  private void write(String path, byte[] data) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data).flip();
+    ByteBuffer readOnly = buffer.asReadOnlyBuffer();
+    String[] transaction = splitTransaction(path);
+    if (transaction != null) {
+      NavigableMap<String, ByteBuffer> overlay = transactions.get(transaction[0]);
+      if (overlay == null) {
+        throw new ShelfException("Cannot write " + path + ", its transaction has ended");
+      }
+      overlay.put(transaction[1], readOnly);
+      return;
+    }
+    synchronized (this) {
+      files = files.plus(path, readOnly);
+    }
+  }
+
+  /**
+   * Splits a path in an open transaction into the transaction id and the path within it. The
+   * transaction can still end before its overlay is fetched, so callers check for null.
+   */
+  private String[] splitTransaction(String path) {
+    int slash = path.indexOf('/');
+    String first = slash < 0 ? path : path.substring(0, slash);
+    if (!transactions.containsKey(first)) {
+      return null;
+    }
+    return new String[] {first, slash < 0 ? "" : path.substring(slash + 1)};
+  }
+
+  private byte[] toBytes(ByteBuffer data) {
+    byte[] bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /** Reads a stored buffer without copying it onto the heap first. */
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.kgrid.shelf.repository;
+
+import org.kgrid.shelf.domain.ArkId;
+
+import java.util.Date;
+
+/** One import, edit or delete of a KO version, as reported by the change feed. */
+public class KnowledgeObjectChange {
+
+  public enum Type {
+    ADDED,
+    UPDATED,
+    DELETED
+  }
+
+  private final long sequence;
+  private final Type type;
+  private final ArkId arkId;
+  private final String tag;
+  private final Date time;
+  private final boolean fromJournal;
+
+  KnowledgeObjectChange(long sequence, Type type, ArkId arkId, String tag, Date time) {
+    this(sequence, type, arkId, tag, time, false);
+  }
+
+  KnowledgeObjectChange(
+      long sequence, Type type, ArkId arkId, String tag, Date time, boolean fromJournal) {
+    this.sequence = sequence;
+    this.type = type;
+    this.arkId = arkId;
+    this.tag = tag;
+    this.time = time;
+    this.fromJournal = fromJournal;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getArk() {
+    return arkId.getFullArk();
+  }
+
+  /** The tag of the version's metadata after the change, or null when it was deleted. */
+  public String getTag() {
+    return tag;
+  }
+
+  public Date getTime() {
+    return time;
+  }
+
+  ArkId arkId() {
+    return arkId;
+  }
+
+  /** True if another instance sharing the shelf made the change, read back from the journal. */
+  boolean fromJournal() {
+    return fromJournal;
+  }
+}
@@ -0,0 +1,161 @@
+package org.kgrid.shelf.repository;
+
+import org.kgrid.shelf.domain.ArkId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * The sequence of changes made to the shelf, for clients that want to follow it instead of
+ * polling. Every import, edit and delete gets the next sequence number. The latest changes are
+ * kept in a fixed-size ring, so a client that comes back with the last sequence number it saw can
+ * pick up where it left off, as long as it has not fallen more than the ring's capacity behind.
+ *
+ * <p>Subscribers are called on a single thread of the feed's own, in sequence order, never on the
+ * thread that made the change.
+ */
+@Component
+public class KnowledgeObjectChangeFeed implements DisposableBean {
+
+  static final int DEFAULT_CAPACITY = 1024;
+
+  private final Logger log = LoggerFactory.getLogger(KnowledgeObjectChangeFeed.class);
+  private final KnowledgeObjectChange[] ring;
+  private final List<Consumer<KnowledgeObjectChange>> subscribers = new CopyOnWriteArrayList<>();
+  private final ExecutorService delivery =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "ko-change-feed");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private long latest;
+  private long first;
+
+  public KnowledgeObjectChangeFeed() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  @Autowired
+  public KnowledgeObjectChangeFeed(@Value("${kgrid.shelf.changes.capacity:1024}") int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException(
+          "The change feed needs room for at least one change, not " + capacity);
+    }
+    ring = new KnowledgeObjectChange[capacity];
+  }
+
+  /**
+   * Records a change and hands it to the subscribers.
+   *
+   * @param type what happened to the version
+   * @param arkId version ark id
+   * @param tag the tag of the version's metadata after the change, or null after a delete
+   * @return the change, with its sequence number
+   */
+  public KnowledgeObjectChange publish(KnowledgeObjectChange.Type type, ArkId arkId, String tag) {
+    return publish(type, arkId, tag, false);
+  }
+
+  /** Records a change, marked as read from the journal if another instance made it. */
+  KnowledgeObjectChange publish(
+      KnowledgeObjectChange.Type type, ArkId arkId, String tag, boolean fromJournal) {
+    KnowledgeObjectChange change;
+    synchronized (ring) {
+      latest++;
+      change = new KnowledgeObjectChange(latest, type, arkId, tag, new Date(), fromJournal);
+      ring[(int) (latest % ring.length)] = change;
+      // Queued while the ring is locked, so subscribers get changes in sequence order
+      try {
+        delivery.execute(() -> deliver(change));
+      } catch (RejectedExecutionException e) {
+        log.debug("Change feed is shut down, not delivering change " + latest);
+      }
+    }
+    return change;
+  }
+
+  /**
+   * Carries on numbering changes after a sequence number kept from before a restart, so numbers
+   * a client saw before the restart are never given to new changes. Changes from before that
+   * number are not in the ring.
+   */
+  public void continueFrom(long sequence) {
+    synchronized (ring) {
+      latest = Math.max(latest, sequence);
+      first = latest;
+    }
+  }
+
+  /** The sequence number of the last change, or 0 if nothing has changed yet. */
+  public long getLatestSequence() {
+    synchronized (ring) {
+      return latest;
+    }
+  }
+
+  /**
+   * Whether every change after the given sequence number is still in the ring. If not, a client
+   * that has seen changes up to that number has missed some and has to read the whole shelf again.
+   */
+  public boolean hasChangesSince(long sequence) {
+    synchronized (ring) {
+      return sequence >= Math.max(latest - ring.length, first) && sequence <= latest;
+    }
+  }
+
+  /**
+   * The changes after a sequence number that are still in the ring, oldest first.
+   *
+   * @param sequence the last sequence number the caller has seen
+   * @param limit the most changes to return
+   * @return the changes
+   */
+  public List<KnowledgeObjectChange> since(long sequence, int limit) {
+    List<KnowledgeObjectChange> changes = new ArrayList<>();
+    synchronized (ring) {
+      long from = Math.max(Math.max(sequence, latest - ring.length), first) + 1;
+      for (long next = from; next <= latest && changes.size() < limit; next++) {
+        changes.add(ring[(int) (next % ring.length)]);
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Calls the subscriber with every change from now on, until the returned handle is run.
+   * Subscribers must be quick: they are all called on the same thread.
+   */
+  public Runnable subscribe(Consumer<KnowledgeObjectChange> subscriber) {
+    subscribers.add(subscriber);
+    return () -> subscribers.remove(subscriber);
+  }
+
+  private void deliver(KnowledgeObjectChange change) {
+    for (Consumer<KnowledgeObjectChange> subscriber : subscribers) {
+      try {
+        subscriber.accept(change);
+      } catch (RuntimeException e) {
+        log.warn("Dropping change feed subscriber that failed: " + e.getMessage());
+        subscribers.remove(subscriber);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    delivery.shutdownNow();
+  }
+}
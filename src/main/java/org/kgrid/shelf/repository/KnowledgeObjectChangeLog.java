@@ -0,0 +1,454 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.kgrid.shelf.domain.ArkId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A persistent log of the changes from the change feed, kept in a JSON file at the root of the
+ * shelf. It is compacted: only the last change to each KO version is kept, so the log grows with
+ * the number of versions rather than the number of edits. Deletes are kept as tombstones until
+ * there are more than {@code kgrid.shelf.changes.log.max-tombstones}, then the oldest are dropped.
+ *
+ * <p>Mirrors ask for the versions added, updated or removed after a sequence number or a time. A
+ * client whose position is older than the oldest dropped tombstone, or falls among changes that
+ * were lost because the shelf stopped before they were written out, is told to read the whole
+ * shelf again.
+ *
+ * <p>The file is written in the background at most once every {@code
+ * kgrid.shelf.changes.log.flush-interval} milliseconds, and when the shelf shuts down. Changes
+ * lost in a crash are found again on the next start by comparing the log with the shelf.
+ * Sequence numbers after a start are based on the time, so they are always above the numbers
+ * handed out before it.
+ *
+ * <p>Sequence numbers belong to one instance, so instances sharing a shelf through the change
+ * journal each keep their own log, named by {@code kgrid.shelf.changes.log.instance}. Each sees
+ * the others' changes through the journal, so every log covers the whole shelf. On a shared shelf
+ * without an instance name there is no log, and every delta asks the client to resync.
+ */
+@Component
+public class KnowledgeObjectChangeLog implements InitializingBean, DisposableBean {
+
+  static final URI LOG_LOCATION = URI.create(".change-log.json");
+  // Sequence numbers after a start begin at the time in milliseconds times this
+  static final long SEQUENCES_PER_MILLISECOND = 1000;
+
+  private final Logger log = LoggerFactory.getLogger(KnowledgeObjectChangeLog.class);
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final CompoundDigitalObjectStore cdoStore;
+  private final KnowledgeObjectChangeFeed changes;
+  private final KnowledgeObjectRepository koRepo;
+
+  @Value("${kgrid.shelf.changes.log.flush-interval:1000}")
+  long flushIntervalMillis = 1000;
+
+  @Value("${kgrid.shelf.changes.log.max-tombstones:10000}")
+  int maxTombstones = 10000;
+
+  @Value("${kgrid.shelf.changes.log.instance:}")
+  String instance = "";
+
+  @Value("${kgrid.shelf.coherence.journal:false}")
+  boolean sharedShelf = false;
+
+  // In sequence order: an entry is moved to the end when its version changes again
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+  private final List<Gap> gaps = new ArrayList<>();
+  private long latest;
+  private long prunedThrough;
+  private long prunedTime;
+  private int tombstones;
+  private boolean dirty;
+  private ScheduledExecutorService flusher;
+  private Runnable unsubscribe = () -> {};
+  private URI logLocation = LOG_LOCATION;
+  private boolean enabled;
+
+  @Autowired
+  public KnowledgeObjectChangeLog(
+      CompoundDigitalObjectStore cdoStore,
+      KnowledgeObjectChangeFeed changes,
+      KnowledgeObjectRepository koRepo) {
+    this.cdoStore = cdoStore;
+    this.changes = changes;
+    this.koRepo = koRepo;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (!instance.isBlank()) {
+      if (!instance.matches("[A-Za-z0-9._-]+")) {
+        throw new IllegalArgumentException(
+            "A change log instance name can only have letters, digits, '.', '_' and '-', not "
+                + instance);
+      }
+      logLocation = URI.create(".change-log-" + instance + ".json");
+    } else if (sharedShelf) {
+      log.warn(
+          "Not keeping a change log on a shared shelf, set kgrid.shelf.changes.log.instance to"
+              + " give this instance its own");
+      return;
+    }
+    enabled = true;
+    long now = System.currentTimeMillis();
+    long start = now * SEQUENCES_PER_MILLISECOND;
+    synchronized (this) {
+      if (!load()) {
+        // Nothing from before this start can be trusted
+        prunedThrough = start;
+        prunedTime = now;
+      } else if (latest < start) {
+        // Whatever was numbered after the last write was lost with the old log
+        gaps.add(new Gap(latest, lastChangeTime(), start, now));
+      }
+      dropPrunedGaps();
+      start = Math.max(start, latest);
+      latest = start;
+      dirty = true;
+    }
+    changes.continueFrom(start);
+    unsubscribe = changes.subscribe(this::record);
+    reconcile();
+    flusher =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "ko-change-log");
+              thread.setDaemon(true);
+              return thread;
+            });
+    flusher.scheduleWithFixedDelay(
+        this::flush, flushIntervalMillis, Math.max(flushIntervalMillis, 1), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void destroy() {
+    unsubscribe.run();
+    if (flusher != null) {
+      flusher.shutdownNow();
+    }
+    flush();
+  }
+
+  /**
+   * The versions added, updated or removed after a sequence number.
+   *
+   * @param sequence the {@code latest} of the client's previous delta, or 0 for everything
+   * @return the delta
+   */
+  public synchronized Delta since(long sequence) {
+    if (!enabled) {
+      return new Delta(changes.getLatestSequence(), true);
+    }
+    boolean resync =
+        sequence < prunedThrough
+            || sequence > latest
+            || gaps.stream().anyMatch(gap -> sequence > gap.after && sequence < gap.until);
+    return delta(resync, entry -> entry.sequence > sequence, entry -> entry.added > sequence);
+  }
+
+  /**
+   * The versions added, updated or removed after a time.
+   *
+   * @param time the time of the client's previous read
+   * @return the delta
+   */
+  public synchronized Delta since(Instant time) {
+    if (!enabled) {
+      return new Delta(changes.getLatestSequence(), true);
+    }
+    long millis = time.toEpochMilli();
+    boolean resync =
+        millis < prunedTime
+            || gaps.stream().anyMatch(gap -> millis >= gap.afterTime && millis < gap.untilTime);
+    return delta(resync, entry -> entry.time > millis, entry -> entry.addedTime > millis);
+  }
+
+  private Delta delta(boolean resync, Predicate<Entry> changed, Predicate<Entry> added) {
+    Delta delta = new Delta(latest, resync);
+    if (resync) {
+      return delta;
+    }
+    for (Entry entry : entries.values()) {
+      if (!changed.test(entry)) {
+        continue;
+      }
+      if (entry.deleted) {
+        delta.removed.add(entry.ark);
+      } else if (added.test(entry)) {
+        delta.added.add(entry.ark);
+      } else {
+        delta.updated.add(entry.ark);
+      }
+    }
+    return delta;
+  }
+
+  synchronized void record(KnowledgeObjectChange change) {
+    Entry previous = entries.remove(change.getArk());
+    Entry entry = new Entry(change.getArk());
+    entry.sequence = change.getSequence();
+    entry.time = change.getTime().getTime();
+    entry.tag = change.getTag();
+    entry.deleted = change.getType() == KnowledgeObjectChange.Type.DELETED;
+    if (previous == null
+        || previous.deleted
+        || change.getType() == KnowledgeObjectChange.Type.ADDED) {
+      entry.added = entry.sequence;
+      entry.addedTime = entry.time;
+    } else {
+      entry.added = previous.added;
+      entry.addedTime = previous.addedTime;
+    }
+    if (previous != null && previous.deleted) {
+      tombstones--;
+    }
+    if (entry.deleted) {
+      tombstones++;
+    }
+    entries.put(entry.ark, entry);
+    latest = Math.max(latest, entry.sequence);
+    dirty = true;
+    pruneTombstones();
+  }
+
+  private void pruneTombstones() {
+    Iterator<Entry> oldest = entries.values().iterator();
+    while (tombstones > maxTombstones && oldest.hasNext()) {
+      Entry entry = oldest.next();
+      if (entry.deleted) {
+        oldest.remove();
+        tombstones--;
+        prunedThrough = Math.max(prunedThrough, entry.sequence);
+        prunedTime = Math.max(prunedTime, entry.time);
+      }
+    }
+    dropPrunedGaps();
+  }
+
+  /** Drops the gaps that end before the pruned mark, since clients there resync anyway. */
+  private void dropPrunedGaps() {
+    gaps.removeIf(gap -> gap.until <= prunedThrough && gap.untilTime <= prunedTime);
+  }
+
+  /** Publishes whatever differs between the log and the shelf, e.g. changes lost in a crash. */
+  private void reconcile() {
+    Map<String, String> logged = new HashMap<>();
+    synchronized (this) {
+      entries.values().stream()
+          .filter(entry -> !entry.deleted)
+          .forEach(entry -> logged.put(entry.ark, entry.tag));
+    }
+    for (ArkId arkId : koRepo.findAll().keySet()) {
+      String tag;
+      try {
+        tag = koRepo.getMetadataTag(arkId);
+      } catch (ShelfResourceNotFound e) {
+        continue;
+      }
+      String loggedTag = logged.remove(arkId.getFullArk());
+      if (loggedTag == null) {
+        changes.publish(KnowledgeObjectChange.Type.ADDED, arkId, tag);
+      } else if (!loggedTag.equals(tag)) {
+        changes.publish(KnowledgeObjectChange.Type.UPDATED, arkId, tag);
+      }
+    }
+    logged
+        .keySet()
+        .forEach(ark -> changes.publish(KnowledgeObjectChange.Type.DELETED, new ArkId(ark), null));
+  }
+
+  void flush() {
+    byte[] json;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      try {
+        json = mapper.writeValueAsBytes(toJson());
+      } catch (IOException e) {
+        log.warn("Cannot write the change log: {}", e.getMessage());
+        return;
+      }
+      dirty = false;
+    }
+    try {
+      cdoStore.saveBinary(new ByteArrayInputStream(json), logLocation);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        dirty = true;
+      }
+      log.warn("Cannot save the change log: {}", e.getMessage());
+    }
+  }
+
+  private boolean load() {
+    JsonNode json;
+    try (InputStream stream = cdoStore.getBinaryStream(logLocation)) {
+      json = mapper.readTree(stream);
+    } catch (ShelfResourceNotFound e) {
+      log.debug("No change log on the shelf yet");
+      return false;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Ignoring unreadable change log, clients will have to resync: {}", e.getMessage());
+      return false;
+    }
+    if (json == null || !json.has("latest")) {
+      return false;
+    }
+    latest = json.path("latest").asLong();
+    prunedThrough = json.path("prunedThrough").asLong();
+    prunedTime = json.path("prunedTime").asLong();
+    for (JsonNode gap : json.path("gaps")) {
+      gaps.add(
+          new Gap(
+              gap.path("after").asLong(),
+              gap.path("afterTime").asLong(),
+              gap.path("until").asLong(),
+              gap.path("untilTime").asLong()));
+    }
+    for (JsonNode node : json.path("entries")) {
+      Entry entry = new Entry(node.path("ark").asText());
+      entry.sequence = node.path("sequence").asLong();
+      entry.time = node.path("time").asLong();
+      entry.added = node.path("added").asLong();
+      entry.addedTime = node.path("addedTime").asLong();
+      entry.deleted = node.path("deleted").asBoolean();
+      entry.tag = node.hasNonNull("tag") ? node.get("tag").asText() : null;
+      entries.put(entry.ark, entry);
+      if (entry.deleted) {
+        tombstones++;
+      }
+    }
+    return true;
+  }
+
+  private ObjectNode toJson() {
+    ObjectNode json = mapper.createObjectNode();
+    json.put("latest", latest);
+    json.put("prunedThrough", prunedThrough);
+    json.put("prunedTime", prunedTime);
+    ArrayNode gapNodes = json.putArray("gaps");
+    gaps.forEach(
+        gap ->
+            gapNodes
+                .addObject()
+                .put("after", gap.after)
+                .put("afterTime", gap.afterTime)
+                .put("until", gap.until)
+                .put("untilTime", gap.untilTime));
+    ArrayNode entryNodes = json.putArray("entries");
+    entries
+        .values()
+        .forEach(
+            entry ->
+                entryNodes
+                    .addObject()
+                    .put("ark", entry.ark)
+                    .put("sequence", entry.sequence)
+                    .put("time", entry.time)
+                    .put("added", entry.added)
+                    .put("addedTime", entry.addedTime)
+                    .put("deleted", entry.deleted)
+                    .put("tag", entry.tag));
+    return json;
+  }
+
+  private long lastChangeTime() {
+    long time = prunedTime;
+    for (Entry entry : entries.values()) {
+      time = Math.max(time, entry.time);
+    }
+    return time;
+  }
+
+  /** The versions that changed after some point, as returned by the delta endpoint. */
+  public static class Delta {
+
+    private final long latest;
+    private final boolean resync;
+    private final List<String> added = new ArrayList<>();
+    private final List<String> updated = new ArrayList<>();
+    private final List<String> removed = new ArrayList<>();
+
+    Delta(long latest, boolean resync) {
+      this.latest = latest;
+      this.resync = resync;
+    }
+
+    /** The sequence number to ask for changes after next time. */
+    public long getLatest() {
+      return latest;
+    }
+
+    /** True if the changes cannot be worked out and the whole shelf has to be read again. */
+    public boolean isResync() {
+      return resync;
+    }
+
+    public List<String> getAdded() {
+      return added;
+    }
+
+    public List<String> getUpdated() {
+      return updated;
+    }
+
+    public List<String> getRemoved() {
+      return removed;
+    }
+  }
+
+  private static class Entry {
+    final String ark;
+    long sequence;
+    long time;
+    long added;
+    long addedTime;
+    boolean deleted;
+    String tag;
+
+    Entry(String ark) {
+      this.ark = ark;
+    }
+  }
+
+  private static class Gap {
+    final long after;
+    final long afterTime;
+    final long until;
+    final long untilTime;
+
+    Gap(long after, long afterTime, long until, long untilTime) {
+      this.after = after;
+      this.afterTime = afterTime;
+      this.until = until;
+      this.untilTime = untilTime;
+    }
+  }
+}
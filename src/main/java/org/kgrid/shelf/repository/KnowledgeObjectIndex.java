@@ -0,0 +1,81 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.kgrid.shelf.domain.ArkId;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * What the repository knows about the KOs on the shelf: where each version is stored, its
+ * metadata and the tag of that metadata. The three are only changed together, through {@link
+ * #put}, {@link #putMetadata} and {@link #remove}, so they never disagree about a version.
+ */
+class KnowledgeObjectIndex {
+
+  private final Map<String, Map<String, URI>> locations = new ConcurrentHashMap<>();
+  private final Map<ArkId, JsonNode> metadata = new ConcurrentHashMap<>();
+  private final Map<ArkId, String> tags = new ConcurrentHashMap<>();
+
+  /** Adds a version, or replaces everything known about it. */
+  void put(ArkId arkId, URI location, JsonNode versionMetadata, String tag) {
+    locations.compute(
+        arkId.getSlashArk(),
+        (ark, versions) -> {
+          Map<String, URI> updated = versions != null ? versions : newVersionMap();
+          updated.put(arkId.getVersion(), location);
+          return updated;
+        });
+    putMetadata(arkId, versionMetadata, tag);
+  }
+
+  /** Replaces the metadata of a version whose location has not changed. */
+  void putMetadata(ArkId arkId, JsonNode versionMetadata, String tag) {
+    metadata.put(arkId, versionMetadata);
+    tags.put(arkId, tag);
+  }
+
+  /** Forgets a version, and the ark too once it has no versions left. */
+  void remove(ArkId arkId) {
+    metadata.remove(arkId);
+    tags.remove(arkId);
+    locations.computeIfPresent(
+        arkId.getSlashArk(),
+        (ark, versions) -> {
+          versions.remove(arkId.getVersion());
+          return versions.isEmpty() ? null : versions;
+        });
+  }
+
+  /** The versions of an ark in reverse version order, or null if the ark is not on the shelf. */
+  Map<String, URI> versions(String slashArk) {
+    Map<String, URI> versions = locations.get(slashArk);
+    return versions == null ? null : Collections.unmodifiableMap(versions);
+  }
+
+  URI location(ArkId arkId) {
+    Map<String, URI> versions = locations.get(arkId.getSlashArk());
+    return versions == null || arkId.getVersion() == null
+        ? null
+        : versions.get(arkId.getVersion());
+  }
+
+  JsonNode metadata(ArkId arkId) {
+    return metadata.get(arkId);
+  }
+
+  String tag(ArkId arkId) {
+    return tags.get(arkId);
+  }
+
+  Map<ArkId, JsonNode> allMetadata() {
+    return Collections.unmodifiableMap(metadata);
+  }
+
+  private static Map<String, URI> newVersionMap() {
+    return new ConcurrentSkipListMap<>(Collections.reverseOrder());
+  }
+}
@@ -0,0 +1,312 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.domain.ArkId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the indexes of several instances sharing one shelf directory in step. Each instance
+ * appends its imports, edits and deletes to a journal file at the root of the shelf, and reads
+ * what the others appended every {@code kgrid.shelf.coherence.poll-interval} milliseconds. Only
+ * the versions named in the journal are read again from the store, so instances never need to
+ * rescan the whole shelf to see each other's changes.
+ *
+ * <p>Writers hold an exclusive lock on the file while they append and readers a shared one, so a
+ * reader never sees half an entry. When the journal grows past {@code
+ * kgrid.shelf.coherence.max-size} bytes the instance about to append starts it again under a new
+ * header. The others notice the new header and rescan the shelf once, since they may have missed
+ * the last entries of the old journal.
+ *
+ * <p>The journal only works for stores on a file system all the instances can lock, and is off
+ * unless {@code kgrid.shelf.coherence.journal} is true.
+ */
+@Component
+public class KnowledgeObjectJournal implements InitializingBean, DisposableBean {
+
+  static final String JOURNAL_FILENAME = ".change-journal";
+  // Entries this much older than the start of the startup scan are already in the index
+  static final long STARTUP_REPLAY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  // FileLock is held by the whole JVM, so instances in the same JVM also take turns here
+  private static final Map<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+  private final Logger log = LoggerFactory.getLogger(KnowledgeObjectJournal.class);
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final String node = UUID.randomUUID().toString();
+  private final CompoundDigitalObjectStore cdoStore;
+  private final KnowledgeObjectChangeFeed changes;
+  private final KnowledgeObjectRepository koRepo;
+
+  @Value("${kgrid.shelf.coherence.journal:false}")
+  boolean enabled = false;
+
+  @Value("${kgrid.shelf.coherence.poll-interval:500}")
+  long pollIntervalMillis = 500;
+
+  @Value("${kgrid.shelf.coherence.max-size:8388608}")
+  long maxSize = 8388608;
+
+  private Path journal;
+  private FileChannel channel;
+  private Object jvmLock;
+  private ScheduledExecutorService worker;
+  private Runnable unsubscribe = () -> {};
+  private String header;
+  private long offset;
+  private long replayFrom = Long.MIN_VALUE;
+
+  @Autowired
+  public KnowledgeObjectJournal(
+      CompoundDigitalObjectStore cdoStore,
+      KnowledgeObjectChangeFeed changes,
+      KnowledgeObjectRepository koRepo) {
+    this.cdoStore = cdoStore;
+    this.changes = changes;
+    this.koRepo = koRepo;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    URI shelf = cdoStore.getAbsoluteLocation(null);
+    if (shelf == null || !"file".equals(shelf.getScheme())) {
+      log.warn("Not keeping a change journal, the shelf at {} is not on a file system", shelf);
+      return;
+    }
+    journal = Paths.get(shelf).resolve(JOURNAL_FILENAME);
+    jvmLock = JVM_LOCKS.computeIfAbsent(journal.toAbsolutePath().normalize(), path -> new Object());
+    channel =
+        FileChannel.open(
+            journal, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    locked(false, () -> {
+      if (channel.size() == 0) {
+        startJournal();
+      }
+      return null;
+    });
+    // Catch up with changes other instances made while this one was scanning the shelf
+    replayFrom = koRepo.indexScanStarted() - STARTUP_REPLAY_MARGIN_MILLIS;
+    poll();
+    replayFrom = Long.MIN_VALUE;
+    worker =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "ko-journal");
+              thread.setDaemon(true);
+              return thread;
+            });
+    unsubscribe = changes.subscribe(this::journal);
+    worker.scheduleWithFixedDelay(
+        this::pollQuietly, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    log.info("Sharing changes with other instances through {}", journal);
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    unsubscribe.run();
+    if (worker != null) {
+      worker.shutdown();
+      try {
+        worker.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  public boolean isEnabled() {
+    return channel != null;
+  }
+
+  private void journal(KnowledgeObjectChange change) {
+    if (change.fromJournal()) {
+      return;
+    }
+    // Where the version is now; if it has moved or gone since, a later entry says so
+    URI location = koRepo.indexedLocation(change.arkId());
+    ObjectNode entry =
+        mapper
+            .createObjectNode()
+            .put("node", node)
+            .put("type", change.getType().name())
+            .put("ark", change.getArk())
+            .put("location", location != null ? location.toString() : null)
+            .put("time", change.getTime().getTime());
+    try {
+      worker.execute(() -> append(entry));
+    } catch (RejectedExecutionException e) {
+      log.debug("Journal is shut down, not writing {}", change.getArk());
+    }
+  }
+
+  void append(ObjectNode entry) {
+    try {
+      byte[] line = (mapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+      locked(false, () -> {
+        if (channel.size() + line.length > maxSize) {
+          startJournal();
+        }
+        write(ByteBuffer.wrap(line), channel.size());
+        return null;
+      });
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot write {} to the change journal: {}", entry.path("ark"), e.getMessage());
+    }
+  }
+
+  private void pollQuietly() {
+    try {
+      poll();
+    } catch (RuntimeException e) {
+      log.warn("Cannot read the change journal: {}", e.getMessage());
+    }
+  }
+
+  /** Reads what other instances have appended since the last poll and applies it. */
+  synchronized void poll() {
+    List<JsonNode> entries = new ArrayList<>();
+    boolean restarted =
+        locked(true, () -> {
+          String current = readLine(0);
+          boolean newJournal = !current.equals(header) || channel.size() < offset;
+          if (newJournal) {
+            header = current;
+            offset = header.getBytes(StandardCharsets.UTF_8).length + 1;
+          }
+          readEntries(entries);
+          return newJournal;
+        });
+    if (restarted && replayFrom == Long.MIN_VALUE) {
+      log.info("Change journal was started again, rescanning the shelf");
+      koRepo.refreshObjectMap();
+    }
+    for (JsonNode entry : entries) {
+      if (node.equals(entry.path("node").asText()) || entry.path("time").asLong() < replayFrom) {
+        continue;
+      }
+      try {
+        ArkId arkId = new ArkId(entry.path("ark").asText());
+        String location = entry.path("location").textValue();
+        boolean deleted =
+            KnowledgeObjectChange.Type.DELETED.name().equals(entry.path("type").asText());
+        koRepo.reindex(arkId, deleted || location == null ? null : URI.create(location));
+      } catch (RuntimeException e) {
+        log.warn("Skipping change journal entry {}: {}", entry, e.getMessage());
+      }
+    }
+  }
+
+  private void readEntries(List<JsonNode> entries) throws IOException {
+    long size = channel.size();
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    long position = offset;
+    while (position < size) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      if (read <= 0) {
+        break;
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        byte next = buffer.get();
+        position++;
+        if (next != '\n') {
+          line.write(next);
+          continue;
+        }
+        try {
+          entries.add(mapper.readTree(line.toByteArray()));
+        } catch (IOException e) {
+          log.warn("Skipping unreadable change journal entry: {}", e.getMessage());
+        }
+        line.reset();
+        // Only whole entries are consumed; a partial last line is read again next time
+        offset = position;
+      }
+    }
+  }
+
+  private String readLine(long from) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(256);
+    long position = from;
+    while (channel.read(buffer, position) > 0) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        byte next = buffer.get();
+        if (next == '\n') {
+          return line.toString(StandardCharsets.UTF_8);
+        }
+        line.write(next);
+      }
+      position += buffer.limit();
+      buffer.clear();
+    }
+    return line.toString(StandardCharsets.UTF_8);
+  }
+
+  /** Empties the journal and writes a new header. The caller holds the exclusive lock. */
+  private void startJournal() throws IOException {
+    channel.truncate(0);
+    String newHeader =
+        mapper.writeValueAsString(
+            mapper.createObjectNode().put("journal", UUID.randomUUID().toString()));
+    write(ByteBuffer.wrap((newHeader + "\n").getBytes(StandardCharsets.UTF_8)), 0);
+  }
+
+  private void write(ByteBuffer bytes, long position) throws IOException {
+    while (bytes.hasRemaining()) {
+      position += channel.write(bytes, position);
+    }
+    channel.force(false);
+  }
+
+  private <T> T locked(boolean shared, IOSupplier<T> action) {
+    synchronized (jvmLock) {
+      try (FileLock lock = channel.lock(0, Long.MAX_VALUE, shared)) {
+        return action.get();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot use the change journal " + journal, e);
+      }
+    }
+  }
+
+  private interface IOSupplier<T> {
+    T get() throws IOException;
+  }
+}
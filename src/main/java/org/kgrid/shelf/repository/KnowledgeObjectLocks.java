@@ -0,0 +1,125 @@
+package org.kgrid.shelf.repository;
+
+import org.kgrid.shelf.domain.ArkId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Read/write locks for KO versions, so readers never see a version half way through an edit,
+ * import or delete. Any number of readers can hold a version at once and a writer holds it alone.
+ * There is no lock over the whole shelf: versions hash onto a fixed set of stripes, and work on
+ * versions in different stripes never waits.
+ *
+ * <p>The stripes are {@link StampedLock}s, so a read started on one thread can be unlocked by
+ * whichever thread finishes it. They are not reentrant: code holding a stripe must not lock it
+ * again. Several versions are always locked in stripe order, so two callers cannot deadlock.
+ */
+@Component
+public class KnowledgeObjectLocks {
+
+  static final int DEFAULT_STRIPES = 64;
+
+  private final StampedLock[] stripes;
+
+  public KnowledgeObjectLocks() {
+    this(DEFAULT_STRIPES);
+  }
+
+  @Autowired
+  public KnowledgeObjectLocks(@Value("${kgrid.shelf.locks.stripes:64}") int stripes) {
+    if (stripes < 1) {
+      throw new IllegalArgumentException("Need at least one lock stripe, not " + stripes);
+    }
+    this.stripes = new StampedLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new StampedLock();
+    }
+  }
+
+  public <T> T read(ArkId arkId, Supplier<T> read) {
+    try (Held held = lockRead(List.of(arkId))) {
+      return read.get();
+    }
+  }
+
+  public <T> T write(ArkId arkId, Supplier<T> write) {
+    try (Held held = lockWrite(List.of(arkId))) {
+      return write.get();
+    }
+  }
+
+  public void write(ArkId arkId, Runnable write) {
+    try (Held held = lockWrite(List.of(arkId))) {
+      write.run();
+    }
+  }
+
+  /**
+   * Takes shared locks on several versions. The returned hold can be closed from any thread,
+   * which lets an async read unlock when it completes.
+   */
+  public Held lockRead(Collection<ArkId> arkIds) {
+    return lock(arkIds, false);
+  }
+
+  /** Takes exclusive locks on several versions. */
+  public Held lockWrite(Collection<ArkId> arkIds) {
+    return lock(arkIds, true);
+  }
+
+  int stripeOf(ArkId arkId) {
+    String version = arkId.getSlashArk() + "/" + arkId.getVersion();
+    return Math.floorMod(version.hashCode(), stripes.length);
+  }
+
+  private Held lock(Collection<ArkId> arkIds, boolean exclusive) {
+    TreeSet<Integer> ordered = new TreeSet<>();
+    arkIds.forEach(arkId -> ordered.add(stripeOf(arkId)));
+    int[] locked = new int[ordered.size()];
+    long[] stamps = new long[ordered.size()];
+    int count = 0;
+    try {
+      for (int stripe : ordered) {
+        stamps[count] =
+            exclusive
+                ? stripes[stripe].writeLockInterruptibly()
+                : stripes[stripe].readLockInterruptibly();
+        locked[count++] = stripe;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      new Held(locked, stamps, count).close();
+      throw new IllegalStateException("Interrupted while waiting for a KO lock", e);
+    }
+    return new Held(locked, stamps, count);
+  }
+
+  /** Locks held on some versions, released by {@link #close()}. */
+  public final class Held implements AutoCloseable {
+
+    private final int[] locked;
+    private final long[] stamps;
+    private int count;
+
+    private Held(int[] locked, long[] stamps, int count) {
+      this.locked = locked;
+      this.stamps = stamps;
+      this.count = count;
+    }
+
+    @Override
+    public synchronized void close() {
+      while (count > 0) {
+        count--;
+        stripes[locked[count]].unlock(stamps[count]);
+      }
+    }
+  }
+}
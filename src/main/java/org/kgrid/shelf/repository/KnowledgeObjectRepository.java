@@ -6,11 +6,14 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfPreconditionFailed;
 import org.kgrid.shelf.ShelfResourceNotFound;
 import org.kgrid.shelf.domain.ArkId;
 import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
 import org.kgrid.shelf.domain.KoFields;
+import org.kgrid.shelf.domain.MetadataPatch;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -18,34 +21,73 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 @Service
 public class KnowledgeObjectRepository {
 
     private final org.slf4j.Logger log = LoggerFactory.getLogger(KnowledgeObjectRepository.class);
     private final CompoundDigitalObjectStore cdoStore;
-    private static final Map<String, Map<String, URI>> objectLocations = new HashMap<>();
-    private static final Map<ArkId, JsonNode> knowledgeObjects = new HashMap<>();
+    private final AsyncCompoundDigitalObjectStore asyncCdoStore;
+    private final KnowledgeObjectLocks locks;
+    private final KnowledgeObjectChangeFeed changes;
+    private final ShelfMetrics metrics;
+    private static final ObjectMapper tagMapper = new ObjectMapper();
+    static final String INDEX_REFRESH = "shelf.index.refresh";
+    static final String INDEXED_VERSIONS = "shelf.index.versions";
+    static final String LOOKUPS = "shelf.index.lookups";
+    private final Object indexUpdates = new Object();
+    private volatile KnowledgeObjectIndex index = new KnowledgeObjectIndex();
+    private List<Consumer<KnowledgeObjectIndex>> updatesDuringRefresh;
+    private volatile long indexScanStarted;
 
-    @Autowired
     KnowledgeObjectRepository(CompoundDigitalObjectStore compoundDigitalObjectStore) {
+        this(compoundDigitalObjectStore, new KnowledgeObjectLocks());
+    }
+
+    KnowledgeObjectRepository(
+            CompoundDigitalObjectStore compoundDigitalObjectStore, KnowledgeObjectLocks locks) {
+        this(compoundDigitalObjectStore, locks, new KnowledgeObjectChangeFeed());
+    }
+
+    KnowledgeObjectRepository(
+            CompoundDigitalObjectStore compoundDigitalObjectStore,
+            KnowledgeObjectLocks locks,
+            KnowledgeObjectChangeFeed changes) {
+        this(compoundDigitalObjectStore, locks, changes, ShelfMetrics.disabled());
+    }
+
+    @Autowired
+    KnowledgeObjectRepository(
+            CompoundDigitalObjectStore compoundDigitalObjectStore,
+            KnowledgeObjectLocks locks,
+            KnowledgeObjectChangeFeed changes,
+            ShelfMetrics metrics) {
         cdoStore = compoundDigitalObjectStore;
-        refreshObjectMap();
+        asyncCdoStore = ExecutorAsyncCDOStore.of(compoundDigitalObjectStore);
+        this.locks = locks;
+        this.changes = changes;
+        this.metrics = metrics;
+        metrics.gauge(INDEXED_VERSIONS, this, repo -> repo.index.allMetadata().size());
+        rebuildIndex(false);
     }
 
     public void delete(ArkId arkId) {
-        cdoStore.delete(resolveArkIdToLocation(arkId));
-        knowledgeObjects.remove(arkId);
-        Map<String, URI> versionMap = objectLocations.get(arkId.getSlashArk());
-        if (versionMap.size() > 1) {
-            versionMap.remove(arkId.getVersion());
-        } else {
-            objectLocations.remove(arkId.getSlashArk());
-        }
+        locks.write(arkId, () -> {
+            cdoStore.delete(resolveArkIdToLocation(arkId));
+            updateIndex(updated -> updated.remove(arkId));
+            changes.publish(KnowledgeObjectChange.Type.DELETED, arkId, null);
+        });
         log.info("Deleted ko with ark id " + arkId);
     }
 
@@ -57,23 +99,190 @@ public class KnowledgeObjectRepository {
      * @return metadata metadata
      */
     public ObjectNode editMetadata(ArkId arkId, String metadata) {
-        URI metadataLocation =
-                resolveArkIdToLocation(arkId).resolve(KoFields.METADATA_FILENAME.asStr());
+        return editMetadata(arkId, metadata, "*");
+    }
+
+    /**
+     * Replaces the metadata of a version only if it has not changed since the caller read it.
+     * The check and the write happen under the version's write lock, so of two editors working
+     * from the same metadata one succeeds and the other gets a precondition failure instead of
+     * silently overwriting the first.
+     *
+     * @param arkId    version ark id
+     * @param metadata the new metadata
+     * @param ifMatch  the tags the caller read the metadata with, as in an If-Match header:
+     *                 {@code *} or one or more quoted tags separated by commas
+     * @return the new metadata, as saved
+     * @throws ShelfPreconditionFailed if the current metadata has none of the tags
+     * @throws ShelfException if the new metadata names a different identifier or version
+     */
+    public ObjectNode editMetadata(ArkId arkId, String metadata, String ifMatch) {
         JsonNode jsonMetadata;
         try {
             jsonMetadata = new ObjectMapper().readTree(metadata);
         } catch (JsonProcessingException e) {
             throw new ShelfException("Cannot parse new metadata", e);
         }
+        if (!jsonMetadata.isObject()) {
+            throw new ShelfException("Cannot parse new metadata, it is not a JSON object");
+        }
+
+        return locks.write(arkId, () -> {
+            URI metadataLocation =
+                    resolveArkIdToLocation(arkId).resolve(KoFields.METADATA_FILENAME.asStr());
+            String currentTag = currentMetadataTag(arkId, metadataLocation);
+            if (!tagMatches(ifMatch, currentTag)) {
+                throw new ShelfPreconditionFailed(String.format(
+                        "Metadata for %s has changed, its tag is now %s", arkId, currentTag));
+            }
+            // A replacement may leave them out, the version stays filed under its ark id
+            checkIdentityUnchanged(arkId, index.metadata(arkId), jsonMetadata, "change", true);
+            cdoStore.saveMetadata(jsonMetadata, metadataLocation);
+            changes.publish(
+                    KnowledgeObjectChange.Type.UPDATED, arkId, indexMetadata(arkId, jsonMetadata));
+            return (ObjectNode) jsonMetadata;
+        });
+    }
+
+    /**
+     * Applies a JSON Merge Patch to the metadata of a version.
+     *
+     * @param arkId   version ark id
+     * @param patch   the merge patch
+     * @param ifMatch the tags the caller read the metadata with, or null to patch whatever the
+     *                metadata is now
+     * @return the patched metadata, as saved
+     * @see #patchMetadata(ArkId, String, UnaryOperator)
+     */
+    public ObjectNode mergePatchMetadata(ArkId arkId, JsonNode patch, String ifMatch) {
+        return patchMetadata(arkId, ifMatch, metadata -> MetadataPatch.merge(metadata, patch));
+    }
 
-        cdoStore.saveMetadata(jsonMetadata, metadataLocation);
+    /**
+     * Applies a JSON Patch to the metadata of a version.
+     *
+     * @param arkId   version ark id
+     * @param patch   the array of patch operations
+     * @param ifMatch the tags the caller read the metadata with, or null to patch whatever the
+     *                metadata is now
+     * @return the patched metadata, as saved
+     * @see #patchMetadata(ArkId, String, UnaryOperator)
+     */
+    public ObjectNode jsonPatchMetadata(ArkId arkId, JsonNode patch, String ifMatch) {
+        return patchMetadata(arkId, ifMatch, metadata -> MetadataPatch.apply(metadata, patch));
+    }
 
-        return cdoStore.getMetadata(metadataLocation);
+    /**
+     * Patches the indexed copy of a version's metadata under its write lock, so unlike a whole
+     * replacement nothing needs to be read back from the store. A patch that changes nothing is
+     * not written. The identifier and version cannot be patched because the version is filed
+     * under them; everything else only touches the metadata and its tag in the index.
+     */
+    private ObjectNode patchMetadata(ArkId arkId, String ifMatch, UnaryOperator<JsonNode> patch) {
+        return locks.write(arkId, () -> {
+            URI metadataLocation =
+                    resolveArkIdToLocation(arkId).resolve(KoFields.METADATA_FILENAME.asStr());
+            String currentTag = currentMetadataTag(arkId, metadataLocation);
+            if (ifMatch != null && !tagMatches(ifMatch, currentTag)) {
+                throw new ShelfPreconditionFailed(String.format(
+                        "Metadata for %s has changed, its tag is now %s", arkId, currentTag));
+            }
+            JsonNode current = index.metadata(arkId);
+            JsonNode patched = patch.apply(current);
+            if (!patched.isObject()) {
+                throw new ShelfException("Patched metadata is not a JSON object");
+            }
+            if (patched.equals(current)) {
+                return (ObjectNode) current;
+            }
+            checkIdentityUnchanged(arkId, current, patched, "patch", false);
+            cdoStore.saveMetadata(patched, metadataLocation);
+            changes.publish(
+                    KnowledgeObjectChange.Type.UPDATED, arkId, indexMetadata(arkId, patched));
+            return (ObjectNode) patched;
+        });
+    }
+
+    /**
+     * Refuses new metadata with a different identifier or version than the current metadata,
+     * since the version is filed under them and would no longer match its own metadata.
+     */
+    private static void checkIdentityUnchanged(
+            ArkId arkId, JsonNode current, JsonNode updated, String action, boolean mayOmit) {
+        if (current == null) {
+            return;
+        }
+        for (KoFields field : List.of(KoFields.IDENTIFIER, KoFields.VERSION)) {
+            JsonNode value = updated.path(field.asStr());
+            if (mayOmit && value.isMissingNode()) {
+                continue;
+            }
+            if (!value.equals(current.path(field.asStr()))) {
+                throw new ShelfException(String.format(
+                        "Cannot %s the %s of %s, import it as a new version instead",
+                        action, field.asStr(), arkId));
+            }
+        }
+    }
+
+    /**
+     * The tag of a version's current metadata, for use as an HTTP ETag. It is a hash of the
+     * metadata's content, kept in the index next to the metadata.
+     *
+     * @param arkId version ark id
+     * @return the quoted tag
+     */
+    public String getMetadataTag(ArkId arkId) {
+        return readLocked(arkId, () -> currentMetadataTag(
+                arkId, resolveArkIdToLocation(arkId).resolve(KoFields.METADATA_FILENAME.asStr())));
+    }
+
+    private String currentMetadataTag(ArkId arkId, URI metadataLocation) {
+        String tag = index.tag(arkId);
+        if (tag == null) {
+            // Not indexed yet, e.g. added to the store by something other than this repository
+            tag = indexMetadata(arkId, cdoStore.getMetadata(metadataLocation));
+        }
+        return tag;
+    }
+
+    private String indexMetadata(ArkId arkId, JsonNode metadata) {
+        String tag = metadataTag(metadata);
+        updateIndex(updated -> updated.putMetadata(arkId, metadata, tag));
+        return tag;
+    }
+
+    /**
+     * Computes the tag of some metadata: a quoted hash of its content.
+     *
+     * @param metadata KO metadata
+     * @return the quoted tag
+     */
+    public static String metadataTag(JsonNode metadata) {
+        try {
+            return "\"" + DigestUtils.sha256Hex(tagMapper.writeValueAsBytes(metadata))
+                    .substring(0, 32) + "\"";
+        } catch (JsonProcessingException e) {
+            throw new ShelfException("Cannot compute metadata tag", e);
+        }
+    }
+
+    private static boolean tagMatches(String ifMatch, String currentTag) {
+        if (ifMatch == null) {
+            return false;
+        }
+        for (String tag : ifMatch.split(",")) {
+            tag = tag.trim();
+            // Weak tags never match for If-Match
+            if (tag.equals("*") || tag.equals(currentTag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public Map<ArkId, JsonNode> findAll() {
-        refreshObjectMap();
-        return knowledgeObjects;
+        return index.allMetadata();
     }
 
     /**
@@ -97,15 +306,18 @@ public class KnowledgeObjectRepository {
      * @return JsonNode deployment specification
      */
     public JsonNode findDeploymentSpecification(ArkId arkId, JsonNode metadata) {
+        return readLocked(arkId, () ->
+                loadSpecificationNode(arkId, deploymentSpecificationLocation(arkId, metadata)));
+    }
+
+    private URI deploymentSpecificationLocation(ArkId arkId, JsonNode metadata) {
 
         if (metadata.has(KoFields.DEPLOYMENT_SPEC_TERM.asStr())) {
 
             String deploymentSpecPath =
                     metadata.findValue(KoFields.DEPLOYMENT_SPEC_TERM.asStr()).asText();
 
-            URI uriPath = resolveArkIdToLocation(arkId).resolve(deploymentSpecPath);
-
-            return loadSpecificationNode(arkId, uriPath);
+            return resolveArkIdToLocation(arkId).resolve(deploymentSpecPath);
 
         } else {
             throw new ShelfException(
@@ -114,34 +326,187 @@ public class KnowledgeObjectRepository {
     }
 
     public JsonNode findKnowledgeObjectMetadata(ArkId arkId) {
+        return join(findKnowledgeObjectMetadataAsync(arkId));
+    }
+
+    /**
+     * Reads the metadata of one version, or of every version when the ark id has none. The
+     * versions are all read at the same time.
+     *
+     * @param arkId ark id, with or without a version
+     * @return the metadata, or an array of the metadata of every version
+     */
+    public CompletableFuture<JsonNode> findKnowledgeObjectMetadataAsync(ArkId arkId) {
 
         if (arkId == null) {
             throw new ShelfResourceNotFound("Cannot find metadata for null ark id");
         }
-        Map<String, URI> versionMap = objectLocations.get(arkId.getSlashArk());
+        if (index.versions(arkId.getSlashArk()) == null) {
+            countLookup("metadata", false);
+            throw new ShelfResourceNotFound(
+                    "Object location not found for ark id " + arkId.getFullArk());
+        }
+        return readLockedAsync(arkId, () -> readMetadataAsync(arkId));
+    }
+
+    private CompletableFuture<JsonNode> readMetadataAsync(ArkId arkId) {
+        Map<String, URI> versionMap = index.versions(arkId.getSlashArk());
         if (versionMap == null) {
+            countLookup("metadata", false);
             throw new ShelfResourceNotFound("Object location not found for ark id " + arkId.getFullArk());
         }
 
         if (!arkId.hasVersion()) {
-            ArrayNode node = new ObjectMapper().createArrayNode();
-            versionMap.forEach((version, location) -> node.add(cdoStore.getMetadata(location)));
-            return node;
+            countLookup("metadata", true);
+            List<CompletableFuture<ObjectNode>> versions = new ArrayList<>();
+            versionMap.forEach((version, location) ->
+                    versions.add(asyncCdoStore.getMetadataAsync(location)));
+            return CompletableFuture.allOf(versions.toArray(new CompletableFuture[0]))
+                    .thenApply(done -> {
+                        ArrayNode node = new ObjectMapper().createArrayNode();
+                        versions.forEach(version -> node.add(version.join()));
+                        return node;
+                    });
         }
         URI koLocation = versionMap.get(arkId.getVersion());
+        countLookup("metadata", koLocation != null);
         if (koLocation == null) {
             throw new ShelfResourceNotFound(
                     "Object location not found for ark id " + arkId.getFullArk());
         }
-        return cdoStore.getMetadata(koLocation);
+        return asyncCdoStore.getMetadataAsync(koLocation).thenApply(metadata -> metadata);
     }
 
     public KnowledgeObjectWrapper getKow(ArkId arkId) {
-        JsonNode metadata = findKnowledgeObjectMetadata(arkId);
-        KnowledgeObjectWrapper kow = new KnowledgeObjectWrapper(metadata);
-        kow.addService(findServiceSpecification(arkId, metadata));
-        kow.addDeployment(findDeploymentSpecification(arkId, metadata));
-        return kow;
+        return join(getKowAsync(arkId));
+    }
+
+    /**
+     * Reads a KO's metadata and then its service and deployment specifications, the two
+     * specifications at the same time.
+     *
+     * @param arkId version ark id
+     * @return the metadata and specifications
+     */
+    public CompletableFuture<KnowledgeObjectWrapper> getKowAsync(ArkId arkId) {
+        if (arkId == null) {
+            throw new ShelfResourceNotFound("Cannot find metadata for null ark id");
+        }
+        return readLockedAsync(arkId, () -> readMetadataAsync(arkId)
+                .thenCompose(metadata -> {
+                    URI serviceLocation = serviceSpecificationLocation(arkId, metadata);
+                    URI deploymentLocation = deploymentSpecificationLocation(arkId, metadata);
+                    CompletableFuture<JsonNode> service = loadSpecificationNodeAsync(arkId, serviceLocation);
+                    CompletableFuture<JsonNode> deployment =
+                            loadSpecificationNodeAsync(arkId, deploymentLocation);
+                    return service.thenCombine(deployment, (serviceSpec, deploymentSpec) -> {
+                        KnowledgeObjectWrapper kow = new KnowledgeObjectWrapper(metadata);
+                        kow.addService(serviceSpec);
+                        kow.addDeployment(deploymentSpec);
+                        return kow;
+                    });
+                }));
+    }
+
+    /**
+     * Reads the metadata of many KOs as one batch from the store. An ark id without a version
+     * stands for every version of the ark. KOs that are not on the shelf are left out.
+     *
+     * @param arkIds ark ids, with or without versions
+     * @return the metadata, keyed by version ark id in the order asked for
+     */
+    public Map<ArkId, JsonNode> findKnowledgeObjectsMetadata(Collection<ArkId> arkIds) {
+        Map<ArkId, URI> locations = resolveArkIdsToLocations(arkIds);
+        try (KnowledgeObjectLocks.Held held = locks.lockRead(locations.keySet())) {
+            return readMetadata(locations);
+        }
+    }
+
+    private Map<ArkId, JsonNode> readMetadata(Map<ArkId, URI> locations) {
+        Map<URI, ObjectNode> metadata = cdoStore.getMetadata(new ArrayList<>(locations.values()));
+        Map<ArkId, JsonNode> found = new LinkedHashMap<>();
+        locations.forEach((arkId, location) -> {
+            if (metadata.containsKey(location)) {
+                found.put(arkId, metadata.get(location));
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Reads the metadata and specifications of many KOs, with one batch read for the metadata and
+     * one for the specifications. KOs that are not on the shelf, or whose specifications cannot
+     * be read, are left out.
+     *
+     * @param arkIds ark ids, with or without versions
+     * @return the metadata and specifications, keyed by version ark id in the order asked for
+     */
+    public Map<ArkId, KnowledgeObjectWrapper> getKows(Collection<ArkId> arkIds) {
+        Map<ArkId, URI> locations = resolveArkIdsToLocations(arkIds);
+        try (KnowledgeObjectLocks.Held held = locks.lockRead(locations.keySet())) {
+            return readKows(locations);
+        }
+    }
+
+    private Map<ArkId, KnowledgeObjectWrapper> readKows(Map<ArkId, URI> koLocations) {
+        Map<ArkId, JsonNode> metadata = readMetadata(koLocations);
+        Map<ArkId, URI[]> specLocations = new LinkedHashMap<>();
+        List<URI> specs = new ArrayList<>();
+        metadata.forEach((arkId, koMetadata) -> {
+            try {
+                URI[] locations = {
+                        serviceSpecificationLocation(arkId, koMetadata),
+                        deploymentSpecificationLocation(arkId, koMetadata)};
+                specLocations.put(arkId, locations);
+                specs.addAll(List.of(locations));
+            } catch (ShelfException e) {
+                log.warn("Leaving {} out of a batch read: {}", arkId, e.getMessage());
+            }
+        });
+        Map<URI, byte[]> specBytes = cdoStore.getBinaries(specs);
+        Map<ArkId, KnowledgeObjectWrapper> kows = new LinkedHashMap<>();
+        specLocations.forEach((arkId, locations) -> {
+            byte[] service = specBytes.get(locations[0]);
+            byte[] deployment = specBytes.get(locations[1]);
+            if (service == null || deployment == null) {
+                log.warn("Leaving {} out of a batch read, its specifications are missing", arkId);
+                return;
+            }
+            try {
+                KnowledgeObjectWrapper kow = new KnowledgeObjectWrapper(metadata.get(arkId));
+                kow.addService(parseSpecification(arkId, service));
+                kow.addDeployment(parseSpecification(arkId, deployment));
+                kows.put(arkId, kow);
+            } catch (ShelfException e) {
+                log.warn("Leaving {} out of a batch read: {}", arkId, e.getMessage());
+            }
+        });
+        return kows;
+    }
+
+    /**
+     * Reads several files of one KO as one batch from the store.
+     *
+     * @param arkId      version ark id
+     * @param childPaths paths of the files within the KO
+     * @return the bytes read, keyed by child path; files that cannot be read are left out
+     */
+    public Map<String, byte[]> getBinaries(ArkId arkId, Collection<String> childPaths) {
+        return readLocked(arkId, () -> readBinaries(arkId, childPaths));
+    }
+
+    private Map<String, byte[]> readBinaries(ArkId arkId, Collection<String> childPaths) {
+        URI koLocation = resolveArkIdToLocation(arkId);
+        Map<String, URI> locations = new LinkedHashMap<>();
+        childPaths.forEach(childPath -> locations.put(childPath, koLocation.resolve(childPath)));
+        Map<URI, byte[]> binaries = cdoStore.getBinaries(new ArrayList<>(locations.values()));
+        Map<String, byte[]> found = new LinkedHashMap<>();
+        locations.forEach((childPath, location) -> {
+            if (binaries.containsKey(location)) {
+                found.put(childPath, binaries.get(location));
+            }
+        });
+        return found;
     }
 
     /**
@@ -152,6 +517,11 @@ public class KnowledgeObjectRepository {
      * @return JsonNode service specification
      */
     public JsonNode findServiceSpecification(ArkId arkId, JsonNode metadataNode) {
+        return readLocked(arkId, () ->
+                loadSpecificationNode(arkId, serviceSpecificationLocation(arkId, metadataNode)));
+    }
+
+    private URI serviceSpecificationLocation(ArkId arkId, JsonNode metadataNode) {
         JsonNode serviceSpecNode = metadataNode.findValue(KoFields.SERVICE_SPEC_TERM.asStr());
         if (serviceSpecNode == null) {
             throw new ShelfException(
@@ -166,10 +536,10 @@ public class KnowledgeObjectRepository {
 
         } else {
             path =
-                    ((URI) objectLocations.get(arkId.getSlashArk()).values().toArray()[0])
+                    ((URI) index.versions(arkId.getSlashArk()).values().toArray()[0])
                             .resolve(serviceSpecPath);
         }
-        return loadSpecificationNode(arkId, path);
+        return path;
     }
 
     /**
@@ -183,28 +553,61 @@ public class KnowledgeObjectRepository {
     }
 
     public byte[] getBinary(ArkId arkId, String childPath) {
-        return cdoStore.getBinary(resolveArkIdToLocation(arkId).resolve(childPath));
+        return readLocked(arkId, () ->
+                cdoStore.getBinary(resolveArkIdToLocation(arkId).resolve(childPath)));
     }
 
+    /**
+     * Opens a file of a KO. The read lock is held only while the file is opened: the stores
+     * replace a KO by moving new files into place, so an open stream keeps reading the old bytes
+     * and a slow client cannot hold up writers.
+     */
     public InputStream getBinaryStream(ArkId arkId, String childPath) {
-        return cdoStore.getBinaryStream(resolveArkIdToLocation(arkId).resolve(childPath));
+        return readLocked(arkId, () ->
+                cdoStore.getBinaryStream(resolveArkIdToLocation(arkId).resolve(childPath)));
     }
 
     public long getBinarySize(ArkId arkId, String childPath) {
-        return cdoStore.getBinarySize(resolveArkIdToLocation(arkId).resolve(childPath));
+        return readLocked(arkId, () ->
+                cdoStore.getBinarySize(resolveArkIdToLocation(arkId).resolve(childPath)));
     }
 
     private URI resolveArkIdToLocation(ArkId arkId) {
-        if (isKoMissingFromMap(arkId)) {
+        URI location = index.location(arkId);
+        countLookup("location", location != null);
+        if (location == null) {
             throw new ShelfResourceNotFound(
                     "Object location not found for ark id " + arkId.getFullArk());
         }
-        return objectLocations.get(arkId.getSlashArk()).get(arkId.getVersion());
+        return location;
+    }
+
+    private Map<ArkId, URI> resolveArkIdsToLocations(Collection<ArkId> arkIds) {
+        Map<ArkId, URI> locations = new LinkedHashMap<>();
+        for (ArkId arkId : arkIds) {
+            Map<String, URI> versionMap = index.versions(arkId.getSlashArk());
+            if (versionMap == null) {
+                continue;
+            }
+            if (arkId.hasVersion()) {
+                URI location = versionMap.get(arkId.getVersion());
+                if (location != null) {
+                    locations.put(arkId, location);
+                }
+            } else {
+                versionMap.forEach((version, location) -> locations.put(
+                        new ArkId(arkId.getNaan(), arkId.getName(), version), location));
+            }
+        }
+        return locations;
+    }
+
+    private void countLookup(String operation, boolean found) {
+        metrics.count(LOOKUPS, operation, found ? "hit" : "miss");
     }
 
     private boolean isKoMissingFromMap(ArkId arkId) {
-        Map<String, URI> versionMapForArk = objectLocations.get(arkId.getSlashArk());
-        return versionMapForArk == null || versionMapForArk.get(arkId.getVersion()) == null;
+        return index.location(arkId) == null;
     }
 
     public URI getKoRepoLocation() {
@@ -227,19 +630,185 @@ public class KnowledgeObjectRepository {
      * @return JsonNode representing YMAL specification file
      */
     protected JsonNode loadSpecificationNode(ArkId arkId, URI uriPath) {
+        return parseSpecification(arkId, cdoStore.getBinary(uriPath));
+    }
+
+    private CompletableFuture<JsonNode> loadSpecificationNodeAsync(ArkId arkId, URI uriPath) {
+        return asyncCdoStore.getBinaryAsync(uriPath)
+                .thenApply(bytes -> parseSpecification(arkId, bytes));
+    }
+
+    private JsonNode parseSpecification(ArkId arkId, byte[] specification) {
         try {
             YAMLMapper yamlMapper = new YAMLMapper();
-            return yamlMapper.readTree(cdoStore.getBinary(uriPath));
+            return yamlMapper.readTree(specification);
         } catch (IOException exception) {
             throw new ShelfException(
                     "Could not parse service specification for " + arkId.getFullArk(), exception);
         }
     }
 
+    /**
+     * The versions a read of the ark id touches: the version itself, or every version of the ark
+     * when it has none.
+     */
+    private List<ArkId> versionsOf(ArkId arkId) {
+        Map<String, URI> versionMap = index.versions(arkId.getSlashArk());
+        if (arkId.hasVersion() || versionMap == null) {
+            return List.of(arkId);
+        }
+        return versionMap.keySet().stream()
+                .map(version -> new ArkId(arkId.getNaan(), arkId.getName(), version))
+                .collect(Collectors.toList());
+    }
+
+    private <T> T readLocked(ArkId arkId, Supplier<T> read) {
+        try (KnowledgeObjectLocks.Held held = locks.lockRead(versionsOf(arkId))) {
+            return read.get();
+        }
+    }
+
+    /** Holds read locks on the versions until the async read completes. */
+    private <T> CompletableFuture<T> readLockedAsync(
+            ArkId arkId, Supplier<CompletableFuture<T>> read) {
+        KnowledgeObjectLocks.Held held = locks.lockRead(versionsOf(arkId));
+        try {
+            return read.get().whenComplete((result, error) -> held.close());
+        } catch (RuntimeException e) {
+            held.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for an async read, rethrowing what it failed with as the synchronous methods would.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ShelfException("Cannot read from shelf", e.getCause());
+        }
+    }
+
+    /**
+     * Rebuilds the index from a scan of the whole store. The index is kept up to date as KOs are
+     * imported, edited and deleted, so this is only needed to pick up changes made to the store
+     * behind the repository's back, which are published to the change feed. Readers keep using the
+     * old index until the new one is complete, and changes made while the store is scanned are
+     * applied to both.
+     */
     public void refreshObjectMap() {
-        objectLocations.clear();
-        knowledgeObjects.clear();
+        rebuildIndex(true);
+    }
 
+    private synchronized void rebuildIndex(boolean publishChanges) {
+        synchronized (indexUpdates) {
+            updatesDuringRefresh = new ArrayList<>();
+        }
+        long scanStarted = System.currentTimeMillis();
+        long timer = metrics.start();
+        String operation = publishChanges ? "refresh" : "startup";
+        KnowledgeObjectIndex rebuilt;
+        try {
+            rebuilt = scanShelf();
+        } catch (RuntimeException e) {
+            synchronized (indexUpdates) {
+                updatesDuringRefresh = null;
+            }
+            metrics.stop(INDEX_REFRESH, operation, timer, false);
+            throw e;
+        }
+        synchronized (indexUpdates) {
+            updatesDuringRefresh.forEach(update -> update.accept(rebuilt));
+            updatesDuringRefresh = null;
+            if (publishChanges) {
+                publishDifferences(index, rebuilt);
+            }
+            index = rebuilt;
+            indexScanStarted = scanStarted;
+        }
+        metrics.stop(INDEX_REFRESH, operation, timer, true);
+    }
+
+    /** When the scan of the store the index was last rebuilt from began, in epoch millis. */
+    long indexScanStarted() {
+        return indexScanStarted;
+    }
+
+    /** Where the index has a version, or null. Does not rescan the store. */
+    URI indexedLocation(ArkId arkId) {
+        return index.location(arkId);
+    }
+
+    /**
+     * Brings one version in the index up to date with the store, after another instance sharing
+     * the store has changed it, without rescanning the whole store. The store is the truth: the
+     * version is indexed at the given location if its metadata is there, and dropped if it is no
+     * longer where the index has it.
+     *
+     * @param arkId    version ark id
+     * @param location where the other instance put the version, or null if it was deleted
+     */
+    void reindex(ArkId arkId, URI location) {
+        locks.write(arkId, () -> {
+            URI indexed = index.location(arkId);
+            JsonNode metadata = location != null ? metadataAt(arkId, location) : null;
+            if (metadata == null) {
+                if (indexed != null && metadataAt(arkId, indexed) == null) {
+                    updateIndex(updated -> updated.remove(arkId));
+                    changes.publish(KnowledgeObjectChange.Type.DELETED, arkId, null, true);
+                }
+                return;
+            }
+            String tagBefore = index.tag(arkId);
+            String tag = metadataTag(metadata);
+            if (tag.equals(tagBefore) && location.equals(indexed)) {
+                return;
+            }
+            updateIndex(updated -> updated.put(arkId, location, metadata, tag));
+            changes.publish(
+                    tagBefore == null
+                            ? KnowledgeObjectChange.Type.ADDED
+                            : KnowledgeObjectChange.Type.UPDATED,
+                    arkId,
+                    tag,
+                    true);
+        });
+    }
+
+    /** The metadata at a location if it is there and belongs to the version, otherwise null. */
+    private JsonNode metadataAt(ArkId arkId, URI location) {
+        try {
+            JsonNode metadata = cdoStore.getMetadata(location);
+            return arkId.equals(new KnowledgeObjectWrapper(metadata).getArkId()) ? metadata : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void publishDifferences(KnowledgeObjectIndex before, KnowledgeObjectIndex after) {
+        for (ArkId arkId : before.allMetadata().keySet()) {
+            if (after.tag(arkId) == null) {
+                changes.publish(KnowledgeObjectChange.Type.DELETED, arkId, null);
+            }
+        }
+        for (ArkId arkId : after.allMetadata().keySet()) {
+            String tagBefore = before.tag(arkId);
+            String tagAfter = after.tag(arkId);
+            if (tagBefore == null) {
+                changes.publish(KnowledgeObjectChange.Type.ADDED, arkId, tagAfter);
+            } else if (!tagBefore.equals(tagAfter)) {
+                changes.publish(KnowledgeObjectChange.Type.UPDATED, arkId, tagAfter);
+            }
+        }
+    }
+
+    private KnowledgeObjectIndex scanShelf() {
+        KnowledgeObjectIndex scanned = new KnowledgeObjectIndex();
         for (URI path : cdoStore.getChildren()) {
             try {
                 ArkId arkId;
@@ -252,33 +821,36 @@ public class KnowledgeObjectRepository {
                 String identifier = metadata.get(KoFields.IDENTIFIER.asStr()).asText();
                 if (ArkId.isArkId(identifier)) {
                     arkId = determineArkId(path, metadata, identifier);
-                    checkForDuplicateKoOnShelf(path, arkId);
-                    putEntryInObjectLocationMap(path, arkId);
-                    knowledgeObjects.put(arkId, metadata);
+                    checkForDuplicateKoOnShelf(scanned, path, arkId);
+                    scanned.put(arkId, path, metadata, metadataTag(metadata));
                 }
 
             } catch (Exception illegalArgument) {
                 log.warn("Unable to load KO " + illegalArgument.getMessage());
             }
         }
+        return scanned;
     }
 
-    private void putEntryInObjectLocationMap(URI path, ArkId arkId) {
-        if (objectLocations.get(arkId.getSlashArk()) == null) {
-            Map<String, URI> versionMap = new TreeMap<>(Collections.reverseOrder());
-            versionMap.put(arkId.getVersion(), path);
-            objectLocations.put(arkId.getSlashArk(), versionMap);
-        } else {
-            objectLocations.get(arkId.getSlashArk()).put(arkId.getVersion(), path);
+    /**
+     * Applies a change to the index. Every change to the index goes through here, under the
+     * write lock of the versions it changes, so that a refresh in progress can replay it.
+     */
+    private void updateIndex(Consumer<KnowledgeObjectIndex> update) {
+        synchronized (indexUpdates) {
+            update.accept(index);
+            if (updatesDuringRefresh != null) {
+                updatesDuringRefresh.add(update);
+            }
         }
     }
 
-    private void checkForDuplicateKoOnShelf(URI path, ArkId arkId) {
-        if (objectLocations.get(arkId.getSlashArk()) != null
-                && objectLocations.get(arkId.getSlashArk()).get(arkId.getVersion()) != null) {
+    private void checkForDuplicateKoOnShelf(KnowledgeObjectIndex scanned, URI path, ArkId arkId) {
+        URI existing = scanned.location(arkId);
+        if (existing != null) {
             log.warn(
                     String.format("Two objects on the shelf have the same ark id: %s. Check folders %s and %s",
-                            arkId, path, resolveArkIdToLocation(arkId))
+                            arkId, path, existing)
             );
         }
     }
@@ -296,16 +868,22 @@ public class KnowledgeObjectRepository {
         return new ArkId(identifier);
     }
 
+    /**
+     * Adds a KO that was just written to the store. Callers writing a KO hold its write lock from
+     * {@link KnowledgeObjectLocks} around the write and this call.
+     *
+     * @param id       location of the KO in the store
+     * @param metadata the KO's metadata
+     */
     public void addKnowledgeObjectToLocationMap(URI id, JsonNode metadata) {
-        String[] arkParts = id.toString().split("/");
-        ArkId arkId = new ArkId(arkParts[0], arkParts[1], arkParts[2]);
-        if (objectLocations.get(arkId.getSlashArk()) != null) {
-            objectLocations.get(arkId.getSlashArk()).put(arkId.getVersion(), id);
-        } else {
-            Map<String, URI> versionMap = new HashMap<>();
-            versionMap.put(arkId.getVersion(), id);
-            objectLocations.put(arkId.getSlashArk(), versionMap);
-        }
-        knowledgeObjects.put(arkId, metadata);
+        // The same ark id the importer locked the version under
+        ArkId arkId = new KnowledgeObjectWrapper(metadata).getArkId();
+        String tag = metadataTag(metadata);
+        boolean replacing = index.location(arkId) != null;
+        updateIndex(updated -> updated.put(arkId, id, metadata, tag));
+        changes.publish(
+                replacing ? KnowledgeObjectChange.Type.UPDATED : KnowledgeObjectChange.Type.ADDED,
+                arkId,
+                tag);
     }
 }
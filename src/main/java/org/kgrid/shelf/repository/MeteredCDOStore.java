@@ -0,0 +1,223 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.input.CountingInputStream;
+import org.kgrid.shelf.ShelfException;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Times every operation of another store and counts the bytes it reads and writes. The timer is
+ * {@code shelf.store.operations} and the byte counts are the {@code shelf.store.bytes.read} and
+ * {@code shelf.store.bytes.written} summaries, all tagged with the store method called and whether
+ * it succeeded. Bytes read through a stream are recorded when the stream is closed.
+ *
+ * <p>The store bean is wrapped in one of these by {@link Decorator} when metrics are enabled.
+ */
+public class MeteredCDOStore
+    implements CompoundDigitalObjectStore, AsyncCompoundDigitalObjectStore, AutoCloseable {
+
+  static final String OPERATIONS = "shelf.store.operations";
+  static final String BYTES_READ = "shelf.store.bytes.read";
+  static final String BYTES_WRITTEN = "shelf.store.bytes.written";
+
+  private final CompoundDigitalObjectStore delegate;
+  private final AsyncCompoundDigitalObjectStore asyncDelegate;
+  private final ShelfMetrics metrics;
+
+  public MeteredCDOStore(CompoundDigitalObjectStore delegate, ShelfMetrics metrics) {
+    this.delegate = delegate;
+    this.asyncDelegate = ExecutorAsyncCDOStore.of(delegate);
+    this.metrics = metrics;
+  }
+
+  public CompoundDigitalObjectStore getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public List<URI> getChildren() {
+    return metrics.time(OPERATIONS, "getChildren", delegate::getChildren);
+  }
+
+  @Override
+  public URI getAbsoluteLocation(URI relativeLocation) {
+    return delegate.getAbsoluteLocation(relativeLocation);
+  }
+
+  @Override
+  public ObjectNode getMetadata(URI relativeLocation) {
+    return metrics.time(OPERATIONS, "getMetadata", () -> delegate.getMetadata(relativeLocation));
+  }
+
+  @Override
+  public byte[] getBinary(URI relativeLocation) {
+    byte[] binary =
+        metrics.time(OPERATIONS, "getBinary", () -> delegate.getBinary(relativeLocation));
+    metrics.recordBytes(BYTES_READ, "getBinary", true, binary.length);
+    return binary;
+  }
+
+  @Override
+  public InputStream getBinaryStream(URI relativeLocation) {
+    InputStream stream =
+        metrics.time(
+            OPERATIONS, "getBinaryStream", () -> delegate.getBinaryStream(relativeLocation));
+    return metrics.countBytes(stream, BYTES_READ, "getBinaryStream");
+  }
+
+  @Override
+  public void createContainer(URI relativeLocation) {
+    metrics.time(OPERATIONS, "createContainer", () -> delegate.createContainer(relativeLocation));
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativeLocation) {
+    metrics.time(
+        OPERATIONS, "saveMetadata", () -> delegate.saveMetadata(metadata, relativeLocation));
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] data, URI relativeLocation) {
+    metrics.time(OPERATIONS, "saveBinary", () -> delegate.saveBinary(data, relativeLocation));
+    metrics.recordBytes(BYTES_WRITTEN, "saveBinary", true, data.length);
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativeLocation) {
+    if (!metrics.isEnabled()) {
+      delegate.saveBinary(stream, relativeLocation);
+      return;
+    }
+    CountingInputStream counted = new CountingInputStream(stream);
+    boolean success = false;
+    try {
+      metrics.time(
+          OPERATIONS, "saveBinaryStream", () -> delegate.saveBinary(counted, relativeLocation));
+      success = true;
+    } finally {
+      metrics.recordBytes(BYTES_WRITTEN, "saveBinaryStream", success, counted.getByteCount());
+    }
+  }
+
+  @Override
+  public void delete(URI relativeLocation) throws ShelfException {
+    metrics.time(OPERATIONS, "delete", () -> delegate.delete(relativeLocation));
+  }
+
+  @Override
+  public String createTransaction() {
+    return metrics.time(OPERATIONS, "createTransaction", delegate::createTransaction);
+  }
+
+  @Override
+  public void commitTransaction(String transactionID) {
+    metrics.time(
+        OPERATIONS, "commitTransaction", () -> delegate.commitTransaction(transactionID));
+  }
+
+  @Override
+  public void rollbackTransaction(String transactionID) {
+    metrics.time(
+        OPERATIONS, "rollbackTransaction", () -> delegate.rollbackTransaction(transactionID));
+  }
+
+  @Override
+  public long getBinarySize(URI relativeLocation) {
+    return metrics.time(
+        OPERATIONS, "getBinarySize", () -> delegate.getBinarySize(relativeLocation));
+  }
+
+  @Override
+  public Map<URI, ObjectNode> getMetadata(Collection<URI> relativeLocations) {
+    return metrics.time(
+        OPERATIONS, "getMetadataBatch", () -> delegate.getMetadata(relativeLocations));
+  }
+
+  @Override
+  public Map<URI, byte[]> getBinaries(Collection<URI> relativeLocations) {
+    Map<URI, byte[]> binaries =
+        metrics.time(OPERATIONS, "getBinaries", () -> delegate.getBinaries(relativeLocations));
+    long bytes = 0;
+    for (byte[] binary : binaries.values()) {
+      bytes += binary.length;
+    }
+    metrics.recordBytes(BYTES_READ, "getBinaries", true, bytes);
+    return binaries;
+  }
+
+  @Override
+  public CompletableFuture<ObjectNode> getMetadataAsync(URI relativeLocation) {
+    return metrics.timeAsync(
+        OPERATIONS, "getMetadataAsync", () -> asyncDelegate.getMetadataAsync(relativeLocation));
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getBinaryAsync(URI relativeLocation) {
+    return metrics
+        .timeAsync(
+            OPERATIONS, "getBinaryAsync", () -> asyncDelegate.getBinaryAsync(relativeLocation))
+        .thenApply(binary -> {
+          metrics.recordBytes(BYTES_READ, "getBinaryAsync", true, binary.length);
+          return binary;
+        });
+  }
+
+  @Override
+  public CompletableFuture<Long> getBinarySizeAsync(URI relativeLocation) {
+    return metrics.timeAsync(
+        OPERATIONS, "getBinarySizeAsync", () -> asyncDelegate.getBinarySizeAsync(relativeLocation));
+  }
+
+  /**
+   * Closes the store, which Spring otherwise does through the close method it finds on the bean.
+   * The stores have one without being {@link AutoCloseable}, so it is looked up the same way.
+   */
+  @Override
+  public void close() throws Exception {
+    if (delegate instanceof AutoCloseable) {
+      ((AutoCloseable) delegate).close();
+      return;
+    }
+    Method close = ReflectionUtils.findMethod(delegate.getClass(), "close");
+    if (close != null) {
+      ReflectionUtils.invokeMethod(close, delegate);
+    }
+  }
+
+  /** Wraps the store bean so every operation on it is measured, when metrics are enabled. */
+  @Component
+  public static class Decorator implements BeanPostProcessor {
+
+    // Looked up only once the store bean exists, so the registry is not created too early
+    private final ObjectProvider<ShelfMetrics> metrics;
+
+    public Decorator(ObjectProvider<ShelfMetrics> metrics) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+      if (!(bean instanceof CompoundDigitalObjectStore) || bean instanceof MeteredCDOStore) {
+        return bean;
+      }
+      ShelfMetrics shelfMetrics = metrics.getIfAvailable();
+      if (shelfMetrics == null || !shelfMetrics.isEnabled()) {
+        return bean;
+      }
+      return new MeteredCDOStore((CompoundDigitalObjectStore) bean, shelfMetrics);
+    }
+  }
+}
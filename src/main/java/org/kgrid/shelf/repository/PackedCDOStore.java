@@ -0,0 +1,919 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.input.CountingInputStream;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.kgrid.shelf.repository.StorePaths.child;
+import static org.kgrid.shelf.repository.StorePaths.koPathOf;
+import static org.kgrid.shelf.repository.StorePaths.prefixEnd;
+import static org.kgrid.shelf.repository.StorePaths.toPath;
+
+/**
+ * A shelf kept in a few large files instead of a directory tree. The bytes of every KO file are
+ * appended to segment files ({@code segment-00001.pack}, ...), and an append-only index log maps
+ * each path to its segment, offset and length. The index is replayed into memory at startup, so
+ * listing the shelf is an index scan and reads are one positional read from a segment.
+ *
+ * <p>Every change is appended to the index log as a batch with a checksum. A batch torn by a crash
+ * is dropped on the next startup, which makes a transaction commit, written as one batch,
+ * all-or-nothing. In memory the index is a {@link PersistentSortedMap}, so a commit builds the
+ * next version of it from the transaction's changes alone and swaps it in for readers. Deleted
+ * and replaced files leave dead bytes in the segments; once these outweigh the live ones the store
+ * is compacted, rewriting the live files into new segments and the index into a single snapshot.
+ *
+ * <p>Writes hold the store's lock only to take a segment to append to and to publish what they
+ * appended, not while they copy the file's bytes. A write takes the tail of a segment no other
+ * write is appending to, opening a new segment when every open one is in use, so concurrent
+ * imports copy in parallel into different segments.
+ *
+ * <p>Readers hold the segment an entry is in while they read it, and compaction deletes an old
+ * segment only once the last reader that found an entry in it is done.
+ *
+ * <p>Use it with a connection string like {@code pack:file:///data/myshelf}.
+ */
+@Qualifier("pack")
+public class PackedCDOStore implements CompoundDigitalObjectStore {
+
+  static final String INDEX_FILE = "index.log";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".pack";
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+  private static final int SNAPSHOT_BATCH_SIZE = 1000;
+
+  long segmentSize = 256L * 1024 * 1024;
+  long compactionThreshold = 64L * 1024 * 1024;
+
+  private final Path storageDir;
+  private final Path indexPath;
+  private volatile PersistentSortedMap<Entry> index = PersistentSortedMap.empty();
+  private final ConcurrentSkipListSet<String> containers = new ConcurrentSkipListSet<>();
+  private final Map<String, ConcurrentSkipListMap<String, Entry>> transactions =
+      new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+  private FileChannel indexLog;
+  private final Map<Integer, FileChannel> appenders = new HashMap<>();
+  private final Map<Integer, SegmentReaders> readers = new ConcurrentHashMap<>();
+  private final Deque<Integer> idleSegments = new ArrayDeque<>();
+  private int writesInProgress;
+  private int segmentNumber;
+  private long deadBytes;
+  private long liveBytes;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Logger log = LoggerFactory.getLogger(PackedCDOStore.class);
+
+  public PackedCDOStore(String connectionURI) {
+    connectionURI = connectionURI.replace(" ", "%20");
+    URI uri = URI.create(connectionURI.substring(connectionURI.indexOf(':') + 1));
+    storageDir = uri.getHost() == null ? Paths.get(uri) : Paths.get(uri.getHost(), uri.getPath());
+    indexPath = storageDir.resolve(INDEX_FILE);
+    try {
+      Files.createDirectories(storageDir);
+      replayIndex();
+      indexLog = FileChannel.open(indexPath, CREATE, WRITE, APPEND);
+      idleSegments.push(openSegment(Math.max(lastSegmentNumber(), 1)));
+    } catch (IOException e) {
+      throw new ShelfException("Unable to open packed shelf at " + storageDir, e);
+    }
+  }
+
+  @Override
+  public List<URI> getChildren() {
+    return StorePaths.children(index.keys());
+  }
+
+  @Override
+  public URI getAbsoluteLocation(URI relativeLocation) {
+    URI root = storageDir.toUri();
+    return relativeLocation == null ? root : root.resolve(relativeLocation);
+  }
+
+  @Override
+  public ObjectNode getMetadata(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (!path.endsWith(StorePaths.METADATA) || isDirectory(path)) {
+      path = child(path, StorePaths.METADATA);
+    }
+    try (InputStream json = openHeld(path)) {
+      if (json == null) {
+        throw new ShelfResourceNotFound("Metadata resource not found " + path);
+      }
+      return (ObjectNode) mapper.readTree(json);
+    } catch (IOException | ClassCastException e) {
+      throw new ShelfResourceNotFound("Metadata resource not found " + path, e);
+    }
+  }
+
+  @Override
+  public byte[] getBinary(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    try (InputStream data = openExisting(path)) {
+      return data.readAllBytes();
+    } catch (IOException e) {
+      throw new ShelfResourceNotFound("Binary resource not found " + path, e);
+    }
+  }
+
+  /**
+   * Parses the metadata files read by {@link #getBinaries(Collection)}, so a batch of metadata is
+   * read in segment order too.
+   */
+  @Override
+  public Map<URI, ObjectNode> getMetadata(Collection<URI> relativeLocations) {
+    Map<URI, URI> metadataFiles = new LinkedHashMap<>();
+    for (URI location : relativeLocations) {
+      String path = toPath(location);
+      if (!path.endsWith(StorePaths.METADATA) || isDirectory(path)) {
+        path = child(path, StorePaths.METADATA);
+      }
+      metadataFiles.put(location, URI.create(path.replace(" ", "%20")));
+    }
+    Map<URI, byte[]> files = getBinaries(metadataFiles.values());
+    Map<URI, ObjectNode> metadata = new LinkedHashMap<>();
+    metadataFiles.forEach(
+        (location, file) -> {
+          byte[] json = files.get(file);
+          if (json == null) {
+            return;
+          }
+          try {
+            metadata.put(location, (ObjectNode) mapper.readTree(json));
+          } catch (IOException | ClassCastException e) {
+            log.debug("Leaving unreadable metadata {} out of a batch", file);
+          }
+        });
+    return metadata;
+  }
+
+  /**
+   * Reads the binaries of a batch one segment at a time, in the order they sit in the segment, so
+   * each segment is opened once and read front to back.
+   */
+  @Override
+  public Map<URI, byte[]> getBinaries(Collection<URI> relativeLocations) {
+    Map<URI, Entry> entries = new LinkedHashMap<>();
+    try {
+      for (URI location : relativeLocations) {
+        Entry entry = acquire(toPath(location));
+        Entry previous = entry != null ? entries.put(location, entry) : null;
+        if (previous != null) {
+          readers.get(previous.segment).release();
+        }
+      }
+      return readInSegmentOrder(entries);
+    } finally {
+      entries.values().forEach(entry -> readers.get(entry.segment).release());
+    }
+  }
+
+  private Map<URI, byte[]> readInSegmentOrder(Map<URI, Entry> entries) {
+    List<Map.Entry<URI, Entry>> reads = new ArrayList<>(entries.entrySet());
+    reads.sort(
+        Comparator.comparing((Map.Entry<URI, Entry> read) -> read.getValue().segment)
+            .thenComparing(read -> read.getValue().offset));
+    Map<URI, byte[]> read = new HashMap<>();
+    FileChannel channel = null;
+    int openSegment = -1;
+    try {
+      for (Map.Entry<URI, Entry> next : reads) {
+        Entry entry = next.getValue();
+        try {
+          if (entry.segment != openSegment) {
+            if (channel != null) {
+              channel.close();
+            }
+            openSegment = entry.segment;
+            channel = FileChannel.open(segmentPath(entry.segment), READ);
+          }
+          read.put(next.getKey(), readFully(channel, entry));
+        } catch (IOException e) {
+          log.debug("Leaving unreadable {} out of a batch", next.getKey());
+          openSegment = -1;
+        }
+      }
+    } finally {
+      closeQuietly(channel);
+    }
+    Map<URI, byte[]> binaries = new LinkedHashMap<>();
+    entries.keySet().stream()
+        .filter(read::containsKey)
+        .forEach(location -> binaries.put(location, read.get(location)));
+    return binaries;
+  }
+
+  private static byte[] readFully(FileChannel channel, Entry entry) throws IOException {
+    ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(entry.length));
+    long position = entry.offset;
+    while (data.hasRemaining()) {
+      int count = channel.read(data, position);
+      if (count < 0) {
+        throw new EOFException("Segment " + entry.segment + " ends before " + entry.offset);
+      }
+      position += count;
+    }
+    return data.array();
+  }
+
+  private void closeQuietly(FileChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Cannot close segment", e);
+      }
+    }
+  }
+
+  @Override
+  public InputStream getBinaryStream(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    try {
+      return openExisting(path);
+    } catch (IOException e) {
+      throw new ShelfResourceNotFound("Binary resource not found " + path, e);
+    }
+  }
+
+  @Override
+  public long getBinarySize(URI relativeLocation) {
+    Entry entry = find(toPath(relativeLocation));
+    if (entry == null) {
+      throw new ShelfException("Cannot get file size for " + relativeLocation);
+    }
+    return entry.length;
+  }
+
+  @Override
+  public void createContainer(URI relativeLocation) {
+    containers.add(toPath(relativeLocation));
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (isDirectory(path)) {
+      path = child(path, StorePaths.METADATA);
+    }
+    try {
+      byte[] json =
+          mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValueAsBytes(metadata);
+      write(path, new ByteArrayInputStream(json));
+    } catch (IOException e) {
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] data, URI relativeLocation) {
+    saveBinary(new ByteArrayInputStream(data), relativeLocation);
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    try (stream) {
+      write(path, stream);
+    } catch (IOException e) {
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  @Override
+  public void delete(URI relativeLocation) throws ShelfException {
+    String path = toPath(relativeLocation);
+    synchronized (writeLock) {
+      List<String> deleted = new ArrayList<>();
+      if (index.containsKey(path)) {
+        deleted.add(path);
+      }
+      deleted.addAll(index.keys(path + "/", prefixEnd(path + "/")));
+      containers.remove(path);
+      containers.subSet(path + "/", prefixEnd(path + "/")).clear();
+      if (deleted.isEmpty()) {
+        return;
+      }
+      try {
+        appendBatch(new ArrayList<>(), deleted, false);
+      } catch (IOException e) {
+        throw new ShelfException("Could not delete cdo " + relativeLocation, e);
+      }
+      for (String deletedPath : deleted) {
+        Entry entry = index.get(deletedPath);
+        deadBytes += entry.length;
+        liveBytes -= entry.length;
+      }
+      index = index.minus(path).minusRange(path + "/", prefixEnd(path + "/"));
+      compactIfWorthwhile();
+    }
+  }
+
+  @Override
+  public String createTransaction() {
+    String trxID = "trx-" + UUID.randomUUID().toString();
+    transactions.put(trxID, new ConcurrentSkipListMap<>());
+    return trxID;
+  }
+
+  /**
+   * Publishes the transaction by appending all of its index entries as one batch. A KO written in
+   * the transaction replaces the whole KO at that path, as it does in the filesystem store.
+   */
+  @Override
+  public void commitTransaction(String transactionID) {
+    synchronized (writeLock) {
+      NavigableMap<String, Entry> overlay = transactions.remove(transactionID);
+      if (overlay == null) {
+        log.warn("Cannot commit transaction {}, it does not exist", transactionID);
+        return;
+      }
+      PersistentSortedMap<Entry> committed = index;
+      Set<String> replaced = new LinkedHashSet<>();
+      for (String path : overlay.keySet()) {
+        String koPath = koPathOf(path);
+        if (koPath != null) {
+          for (String oldPath : committed.keys(koPath + "/", prefixEnd(koPath + "/"))) {
+            if (!overlay.containsKey(oldPath)) {
+              replaced.add(oldPath);
+            }
+          }
+        }
+      }
+      List<Map.Entry<String, Entry>> puts = new ArrayList<>(overlay.entrySet());
+      try {
+        forceSegments(overlay.values());
+        appendBatch(puts, replaced, true);
+      } catch (IOException e) {
+        throw new ShelfException("Cannot commit transaction " + transactionID, e);
+      }
+      for (String path : replaced) {
+        Entry previous = committed.get(path);
+        deadBytes += previous.length;
+        liveBytes -= previous.length;
+        committed = committed.minus(path);
+      }
+      for (Map.Entry<String, Entry> put : puts) {
+        Entry previous = committed.get(put.getKey());
+        if (previous != null) {
+          deadBytes += previous.length;
+          liveBytes -= previous.length;
+        }
+        liveBytes += put.getValue().length;
+        committed = committed.plus(put.getKey(), put.getValue());
+      }
+      index = committed;
+      compactIfWorthwhile();
+    }
+  }
+
+  @Override
+  public void rollbackTransaction(String transactionID) {
+    NavigableMap<String, Entry> overlay = transactions.remove(transactionID);
+    if (overlay != null) {
+      synchronized (writeLock) {
+        overlay.values().forEach(entry -> deadBytes += entry.length);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the live files into new segments and the index into a single snapshot, then deletes
+   * the old segments. Skipped while transactions are open or files are being written, since their
+   * files are still going into the old segments.
+   *
+   * @return true if the store was compacted
+   */
+  public boolean compact() {
+    synchronized (writeLock) {
+      if (!transactions.isEmpty() || writesInProgress > 0) {
+        log.debug("Not compacting {}, transactions or writes are open", storageDir);
+        return false;
+      }
+      int firstOldSegment = firstSegmentNumber();
+      int lastOldSegment = segmentNumber;
+      try {
+        while (!idleSegments.isEmpty()) {
+          closeSegment(idleSegments.pop());
+        }
+        int target = openSegment(lastOldSegment + 1);
+        PersistentSortedMap<Entry> compacted = PersistentSortedMap.empty();
+        for (Map.Entry<String, Entry> live : index.entries()) {
+          if (appenders.get(target).size() >= segmentSize) {
+            closeSegment(target);
+            target = openSegment(segmentNumber + 1);
+          }
+          try (InputStream data = open(live.getValue())) {
+            Entry moved = appendData(target, appenders.get(target), data);
+            compacted = compacted.plus(live.getKey(), moved);
+          }
+        }
+        appenders.get(target).force(false);
+        idleSegments.push(target);
+        writeSnapshot(compacted.entries());
+        index = compacted;
+        deadBytes = 0;
+        for (int number = firstOldSegment; number <= lastOldSegment; number++) {
+          readersOf(number).retire();
+        }
+      } catch (IOException e) {
+        throw new ShelfException("Cannot compact packed shelf at " + storageDir, e);
+      }
+      log.info("Compacted packed shelf at {}", storageDir);
+      return true;
+    }
+  }
+
+  /** Closes the open segments and index log. */
+  public void close() throws IOException {
+    synchronized (writeLock) {
+      for (FileChannel appender : appenders.values()) {
+        appender.close();
+      }
+      appenders.clear();
+      idleSegments.clear();
+      indexLog.close();
+    }
+  }
+
+  private void compactIfWorthwhile() {
+    if (deadBytes > compactionThreshold && deadBytes > liveBytes) {
+      compact();
+    }
+  }
+
+  /**
+   * Copies the data to the tail of a segment taken for this write alone, without the lock, then
+   * publishes it: into the transaction it belongs to, or onto the shelf with an index batch.
+   */
+  private void write(String path, InputStream data) throws IOException {
+    String[] transaction = splitTransaction(path);
+    int number;
+    FileChannel appender;
+    synchronized (writeLock) {
+      number = takeSegment();
+      appender = appenders.get(number);
+    }
+    long start = appender.size();
+    Entry entry;
+    try {
+      entry = appendData(number, appender, data);
+    } catch (IOException | RuntimeException e) {
+      synchronized (writeLock) {
+        deadBytes += appender.size() - start;
+        returnSegment(number);
+      }
+      throw e;
+    }
+    synchronized (writeLock) {
+      returnSegment(number);
+      if (transaction != null) {
+        NavigableMap<String, Entry> overlay = transactions.get(transaction[0]);
+        if (overlay == null) {
+          deadBytes += entry.length;
+          throw new ShelfException("Cannot write " + path + ", its transaction has ended");
+        }
+        Entry previous = overlay.put(transaction[1], entry);
+        if (previous != null) {
+          deadBytes += previous.length;
+        }
+        return;
+      }
+      List<Map.Entry<String, Entry>> puts = new ArrayList<>();
+      puts.add(Map.entry(path, entry));
+      appendBatch(puts, new ArrayList<>(), false);
+      Entry previous = index.get(path);
+      if (previous != null) {
+        deadBytes += previous.length;
+        liveBytes -= previous.length;
+      }
+      liveBytes += entry.length;
+      index = index.plus(path, entry);
+    }
+  }
+
+  /** Appends the stream to a segment that no other write is appending to. */
+  private Entry appendData(int number, FileChannel appender, InputStream data)
+      throws IOException {
+    long offset = appender.size();
+    long length = 0;
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    int read;
+    while ((read = data.read(buffer)) != -1) {
+      ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+      while (chunk.hasRemaining()) {
+        appender.write(chunk);
+      }
+      length += read;
+    }
+    return new Entry(number, offset, length);
+  }
+
+  /**
+   * Takes an open segment for one write, closing any that have filled up and opening a new one if
+   * the others are all in use. Called holding the lock.
+   */
+  private int takeSegment() throws IOException {
+    while (!idleSegments.isEmpty()) {
+      int number = idleSegments.pop();
+      if (appenders.get(number).size() < segmentSize) {
+        writesInProgress++;
+        return number;
+      }
+      closeSegment(number);
+    }
+    writesInProgress++;
+    return openSegment(segmentNumber + 1);
+  }
+
+  /** Hands a segment back after a write, for the next one to append to. Called holding the lock. */
+  private void returnSegment(int number) {
+    writesInProgress--;
+    idleSegments.push(number);
+  }
+
+  /** Syncs the open segments holding any of the entries, before an index batch refers to them. */
+  private void forceSegments(Collection<Entry> entries) throws IOException {
+    for (int number : entries.stream().mapToInt(entry -> entry.segment).distinct().toArray()) {
+      FileChannel appender = appenders.get(number);
+      if (appender != null) {
+        appender.force(false);
+      }
+    }
+  }
+
+  private void appendBatch(
+      Collection<Map.Entry<String, Entry>> puts, Collection<String> deletes, boolean sync)
+      throws IOException {
+    indexLog.write(ByteBuffer.wrap(encodeBatch(puts, deletes)));
+    if (sync) {
+      indexLog.force(false);
+    }
+  }
+
+  private void writeSnapshot(Collection<Map.Entry<String, Entry>> entries) throws IOException {
+    Path snapshot = storageDir.resolve(INDEX_FILE + ".compacting");
+    try (FileChannel out = FileChannel.open(snapshot, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      List<Map.Entry<String, Entry>> batch = new ArrayList<>();
+      for (Map.Entry<String, Entry> entry : entries) {
+        batch.add(entry);
+        if (batch.size() == SNAPSHOT_BATCH_SIZE) {
+          out.write(ByteBuffer.wrap(encodeBatch(batch, new ArrayList<>())));
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        out.write(ByteBuffer.wrap(encodeBatch(batch, new ArrayList<>())));
+      }
+      out.force(true);
+    }
+    indexLog.close();
+    Files.move(snapshot, indexPath, ATOMIC_MOVE, REPLACE_EXISTING);
+    indexLog = FileChannel.open(indexPath, CREATE, WRITE, APPEND);
+  }
+
+  /** A batch is a record count, the records, and a CRC32 of the records. */
+  private byte[] encodeBatch(Collection<Map.Entry<String, Entry>> puts, Collection<String> deletes)
+      throws IOException {
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(records);
+    for (String path : deletes) {
+      out.writeByte(DELETE);
+      out.writeUTF(path);
+    }
+    for (Map.Entry<String, Entry> put : puts) {
+      out.writeByte(PUT);
+      out.writeUTF(put.getKey());
+      out.writeInt(put.getValue().segment);
+      out.writeLong(put.getValue().offset);
+      out.writeLong(put.getValue().length);
+    }
+    out.flush();
+    CRC32 crc = new CRC32();
+    crc.update(records.toByteArray());
+
+    ByteArrayOutputStream batch = new ByteArrayOutputStream(records.size() + 16);
+    DataOutputStream batchOut = new DataOutputStream(batch);
+    batchOut.writeInt(puts.size() + deletes.size());
+    batchOut.writeInt(records.size());
+    records.writeTo(batchOut);
+    batchOut.writeLong(crc.getValue());
+    batchOut.flush();
+    return batch.toByteArray();
+  }
+
+  /** Loads the index log, dropping a torn or corrupt batch at the end left by a crash. */
+  private void replayIndex() throws IOException {
+    if (!Files.exists(indexPath)) {
+      return;
+    }
+    long goodLength = 0;
+    long fileLength = Files.size(indexPath);
+    try (CountingInputStream counting =
+            new CountingInputStream(new BufferedInputStream(Files.newInputStream(indexPath)));
+        DataInputStream in = new DataInputStream(counting)) {
+      while (true) {
+        int recordCount;
+        try {
+          recordCount = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        // A torn batch can hold any length, so it is checked against what is left of the file
+        // before anything is allocated for it
+        int recordsLength = in.readInt();
+        long left = fileLength - counting.getByteCount() - Long.BYTES;
+        if (recordsLength < 0 || recordsLength > left) {
+          log.warn("Dropping incomplete batch at end of {}", indexPath);
+          break;
+        }
+        byte[] records = new byte[recordsLength];
+        in.readFully(records);
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        if (crc.getValue() != in.readLong()) {
+          log.warn("Dropping corrupt batch at end of {}", indexPath);
+          break;
+        }
+        applyBatch(recordCount, records);
+        goodLength = counting.getByteCount();
+      }
+    } catch (EOFException e) {
+      log.warn("Dropping incomplete batch at end of {}", indexPath);
+    }
+    if (fileLength > goodLength) {
+      try (FileChannel channel = FileChannel.open(indexPath, WRITE)) {
+        channel.truncate(goodLength);
+      }
+    }
+    liveBytes = index.values().stream().mapToLong(entry -> entry.length).sum();
+    long totalBytes = 0;
+    for (int number = firstSegmentNumber(); number <= lastSegmentNumber(); number++) {
+      Path segmentPath = segmentPath(number);
+      totalBytes += Files.exists(segmentPath) ? Files.size(segmentPath) : 0;
+    }
+    deadBytes = Math.max(0, totalBytes - liveBytes);
+  }
+
+  private void applyBatch(int recordCount, byte[] records) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+    for (int i = 0; i < recordCount; i++) {
+      byte op = in.readByte();
+      String path = in.readUTF();
+      if (op == PUT) {
+        index = index.plus(path, new Entry(in.readInt(), in.readLong(), in.readLong()));
+      } else {
+        index = index.minus(path);
+      }
+    }
+  }
+
+  private int openSegment(int number) throws IOException {
+    segmentNumber = Math.max(segmentNumber, number);
+    appenders.put(number, FileChannel.open(segmentPath(number), CREATE, WRITE, APPEND));
+    return number;
+  }
+
+  /** Stops appending to a segment, syncing it first so entries in it need no later sync. */
+  private void closeSegment(int number) throws IOException {
+    FileChannel appender = appenders.remove(number);
+    if (appender != null) {
+      appender.force(false);
+      appender.close();
+    }
+  }
+
+  private Path segmentPath(int number) {
+    return storageDir.resolve(String.format("%s%05d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+  }
+
+  private int firstSegmentNumber() {
+    return segmentNumbers().min().orElse(1);
+  }
+
+  private int lastSegmentNumber() {
+    return segmentNumbers().max().orElse(0);
+  }
+
+  private IntStream segmentNumbers() {
+    try (Stream<Path> files = Files.list(storageDir)) {
+      int[] numbers =
+          files
+              .map(file -> file.getFileName().toString())
+              .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+              .mapToInt(
+                  name ->
+                      Integer.parseInt(
+                          name.substring(
+                              SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+              .toArray();
+      return Arrays.stream(numbers);
+    } catch (IOException e) {
+      throw new ShelfException("Cannot list segments in " + storageDir, e);
+    }
+  }
+
+  /**
+   * Finds a path's entry and holds its segment for reading, or returns null if there is no such
+   * file. A segment that compaction has retired is not held; the index has moved on from it by
+   * then, so finding the path again gives its new place.
+   */
+  private Entry acquire(String path) {
+    while (true) {
+      Entry entry = find(path);
+      if (entry == null || readersOf(entry.segment).acquire()) {
+        return entry;
+      }
+    }
+  }
+
+  private SegmentReaders readersOf(int number) {
+    return readers.computeIfAbsent(number, SegmentReaders::new);
+  }
+
+  private InputStream openExisting(String path) throws IOException {
+    InputStream data = openHeld(path);
+    if (data == null) {
+      throw new ShelfResourceNotFound("Binary resource not found " + path);
+    }
+    return data;
+  }
+
+  /** Opens a file, holding its segment until the stream is closed, or returns null if none. */
+  private InputStream openHeld(String path) throws IOException {
+    Entry entry = acquire(path);
+    if (entry == null) {
+      return null;
+    }
+    SegmentReaders segmentReaders = readers.get(entry.segment);
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(segmentPath(entry.segment), READ);
+    } catch (IOException e) {
+      segmentReaders.release();
+      throw e;
+    }
+    return new ChannelRegionInputStream(
+        channel,
+        entry.offset,
+        entry.length,
+        () -> {
+          try {
+            channel.close();
+          } finally {
+            segmentReaders.release();
+          }
+        });
+  }
+
+  private InputStream open(Entry entry) throws IOException {
+    FileChannel channel = FileChannel.open(segmentPath(entry.segment), READ);
+    return new ChannelRegionInputStream(channel, entry.offset, entry.length, channel);
+  }
+
+  private Entry find(String path) {
+    String[] transaction = splitTransaction(path);
+    if (transaction != null) {
+      NavigableMap<String, Entry> overlay = transactions.get(transaction[0]);
+      if (overlay == null) {
+        throw new ShelfResourceNotFound("Transaction " + transaction[0] + " has ended");
+      }
+      return overlay.get(transaction[1]);
+    }
+    return index.get(path);
+  }
+
+  private boolean isDirectory(String path) {
+    String prefix = path.isEmpty() ? "" : path + "/";
+    String firstFile;
+    String[] transaction = splitTransaction(path);
+    if (transaction != null) {
+      NavigableMap<String, Entry> overlay = transactions.get(transaction[0]);
+      prefix = transaction[1].isEmpty() ? "" : transaction[1] + "/";
+      firstFile = overlay != null ? overlay.ceilingKey(prefix) : null;
+    } else {
+      firstFile = index.ceilingKey(prefix);
+    }
+    String firstContainer = containers.ceiling(prefix);
+    return containers.contains(path)
+        || firstContainer != null && firstContainer.startsWith(prefix)
+        || firstFile != null && firstFile.startsWith(prefix);
+  }
+
+  /**
+   * Splits a path in an open transaction into the transaction id and the path within it. The
+   * transaction can still end before its overlay is fetched, so callers check for null.
+   */
+  private String[] splitTransaction(String path) {
+    int slash = path.indexOf('/');
+    String first = slash < 0 ? path : path.substring(0, slash);
+    if (!transactions.containsKey(first)) {
+      return null;
+    }
+    return new String[] {first, slash < 0 ? "" : path.substring(slash + 1)};
+  }
+
+  /** Counts the readers of a segment, so a retired one is deleted when the last is done. */
+  private class SegmentReaders {
+
+    private final int number;
+    private int count;
+    private boolean retired;
+
+    SegmentReaders(int number) {
+      this.number = number;
+    }
+
+    synchronized boolean acquire() {
+      if (retired) {
+        return false;
+      }
+      count++;
+      return true;
+    }
+
+    synchronized void release() {
+      count--;
+      deleteIfUnread();
+    }
+
+    synchronized void retire() {
+      retired = true;
+      deleteIfUnread();
+    }
+
+    private void deleteIfUnread() {
+      if (retired && count == 0) {
+        try {
+          Files.deleteIfExists(segmentPath(number));
+        } catch (IOException e) {
+          log.warn("Cannot delete compacted segment {}: {}", number, e.getMessage());
+        }
+      }
+    }
+  }
+
+  /** Where a file's bytes are: a segment number, an offset in it and a length. */
+  private static class Entry {
+
+    final int segment;
+    final long offset;
+    final long length;
+
+    Entry(int segment, long offset, long length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package org.kgrid.shelf.repository;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * An immutable map from paths to values, sorted by path, for the stores that keep an index of
+ * paths in memory. Every change returns a new map that shares all but O(log n) of its nodes with
+ * the old one, so a store can apply a transaction's changes without copying its whole index, and
+ * swap the result in for readers in one step.
+ *
+ * <p>The map is a treap: a binary search tree on the paths that is also a heap on a priority
+ * hashed from each path, which keeps it balanced whatever order the paths are added in.
+ */
+final class PersistentSortedMap<V> {
+
+  private static final PersistentSortedMap<?> EMPTY = new PersistentSortedMap<>(null);
+
+  private final Node<V> root;
+
+  private PersistentSortedMap(Node<V> root) {
+    this.root = root;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <V> PersistentSortedMap<V> empty() {
+    return (PersistentSortedMap<V>) EMPTY;
+  }
+
+  int size() {
+    return size(root);
+  }
+
+  boolean isEmpty() {
+    return root == null;
+  }
+
+  V get(String path) {
+    Node<V> node = root;
+    while (node != null) {
+      int order = path.compareTo(node.path);
+      if (order == 0) {
+        return node.value;
+      }
+      node = order < 0 ? node.left : node.right;
+    }
+    return null;
+  }
+
+  boolean containsKey(String path) {
+    return get(path) != null;
+  }
+
+  /** The least path greater than or equal to the given one, or null if there is none. */
+  String ceilingKey(String path) {
+    String ceiling = null;
+    Node<V> node = root;
+    while (node != null) {
+      int order = path.compareTo(node.path);
+      if (order == 0) {
+        return node.path;
+      }
+      if (order < 0) {
+        ceiling = node.path;
+        node = node.left;
+      } else {
+        node = node.right;
+      }
+    }
+    return ceiling;
+  }
+
+  /** The map with the path set to the value, which must not be null. */
+  PersistentSortedMap<V> plus(String path, V value) {
+    Node<V>[] split = split(root, path);
+    Node<V> rest = split[1];
+    if (rest != null) {
+      // Drop the old entry for the path, which is the least one left in the upper part
+      rest = split(rest, path + '\0')[1];
+    }
+    Node<V> single = new Node<>(path, value, null, null);
+    return new PersistentSortedMap<>(merge(merge(split[0], single), rest));
+  }
+
+  PersistentSortedMap<V> minus(String path) {
+    return minusRange(path, path + '\0');
+  }
+
+  /** The map without the paths from {@code from}, inclusive, to {@code to}, exclusive. */
+  PersistentSortedMap<V> minusRange(String from, String to) {
+    Node<V>[] lower = split(root, from);
+    if (lower[1] == null) {
+      return this;
+    }
+    Node<V>[] upper = split(lower[1], to);
+    if (upper[0] == null) {
+      return this;
+    }
+    return new PersistentSortedMap<>(merge(lower[0], upper[1]));
+  }
+
+  /** The paths from {@code from}, inclusive, to {@code to}, exclusive, in order. */
+  List<String> keys(String from, String to) {
+    List<String> keys = new ArrayList<>();
+    forEach(from, to, node -> keys.add(node.path));
+    return keys;
+  }
+
+  List<String> keys() {
+    List<String> keys = new ArrayList<>(size());
+    forEach(null, null, node -> keys.add(node.path));
+    return keys;
+  }
+
+  List<V> values() {
+    List<V> values = new ArrayList<>(size());
+    forEach(null, null, node -> values.add(node.value));
+    return values;
+  }
+
+  List<Map.Entry<String, V>> entries() {
+    List<Map.Entry<String, V>> entries = new ArrayList<>(size());
+    forEach(null, null, node -> entries.add(new SimpleImmutableEntry<>(node.path, node.value)));
+    return entries;
+  }
+
+  /** Visits the nodes in path order, between optional bounds, without recursing. */
+  private void forEach(String from, String to, Consumer<Node<V>> visit) {
+    Deque<Node<V>> stack = new ArrayDeque<>();
+    Node<V> node = root;
+    while (node != null || !stack.isEmpty()) {
+      while (node != null) {
+        if (from != null && node.path.compareTo(from) < 0) {
+          node = node.right;
+        } else {
+          stack.push(node);
+          node = node.left;
+        }
+      }
+      node = stack.pop();
+      if (to != null && node.path.compareTo(to) >= 0) {
+        return;
+      }
+      visit.accept(node);
+      node = node.right;
+    }
+  }
+
+  /** Splits a tree into the nodes with paths less than {@code path} and the rest. */
+  @SuppressWarnings("unchecked")
+  private static <V> Node<V>[] split(Node<V> node, String path) {
+    if (node == null) {
+      return (Node<V>[]) new Node[2];
+    }
+    if (node.path.compareTo(path) < 0) {
+      Node<V>[] right = split(node.right, path);
+      right[0] = node.with(node.left, right[0]);
+      return right;
+    }
+    Node<V>[] left = split(node.left, path);
+    left[1] = node.with(left[1], node.right);
+    return left;
+  }
+
+  /** Joins two trees where every path in the first is less than every path in the second. */
+  private static <V> Node<V> merge(Node<V> lower, Node<V> upper) {
+    if (lower == null) {
+      return upper;
+    }
+    if (upper == null) {
+      return lower;
+    }
+    if (lower.priority >= upper.priority) {
+      return lower.with(lower.left, merge(lower.right, upper));
+    }
+    return upper.with(merge(lower, upper.left), upper.right);
+  }
+
+  private static int size(Node<?> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static final class Node<V> {
+
+    final String path;
+    final V value;
+    final int priority;
+    final Node<V> left;
+    final Node<V> right;
+    final int size;
+
+    Node(String path, V value, Node<V> left, Node<V> right) {
+      this(path, value, priority(path), left, right);
+    }
+
+    private Node(String path, V value, int priority, Node<V> left, Node<V> right) {
+      this.path = path;
+      this.value = value;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.size = 1 + size(left) + size(right);
+    }
+
+    Node<V> with(Node<V> left, Node<V> right) {
+      return left == this.left && right == this.right
+          ? this
+          : new Node<>(path, value, priority, left, right);
+    }
+
+    /** A well mixed hash of the path, so similar paths get unrelated priorities. */
+    private static int priority(String path) {
+      int hash = path.hashCode() * 0x9E3779B9;
+      hash ^= hash >>> 16;
+      hash *= 0x85EBCA6B;
+      return hash ^ (hash >>> 13);
+    }
+  }
+}
@@ -0,0 +1,790 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.kgrid.shelf.repository.StorePaths.child;
+import static org.kgrid.shelf.repository.StorePaths.koPathOf;
+import static org.kgrid.shelf.repository.StorePaths.toPath;
+
+/**
+ * A shelf kept in an S3 bucket, or any object store that speaks the S3 API, so shelf nodes need no
+ * shared filesystem. Each KO file is an object whose key is the store's key prefix followed by the
+ * file's path; containers are implied by the keys and need no objects of their own.
+ *
+ * <p>Artifacts larger than {@link #partSize} are uploaded as multipart uploads, with several parts
+ * in flight at once. Streams of objects larger than {@link #rangeSize} are read as a series of
+ * ranged GETs, fetching the next ranges while the current one is consumed. The list of keys is
+ * cached for {@link #listingTtlMillis} and kept up to date with this node's own writes, so listing
+ * the shelf rarely has to page through the bucket.
+ *
+ * <p>Transactions write under a {@code trx-} key prefix and are committed with server-side copies,
+ * so a commit is not atomic: readers may briefly see a mix of the old and new files of a KO.
+ *
+ * <p>Use it with a path-style connection string made of the endpoint, bucket and optional key
+ * prefix, like {@code s3:https://s3.us-east-1.amazonaws.com/my-bucket/shelf?region=us-east-1}.
+ * Credentials are read from the {@code aws.accessKeyId}, {@code aws.secretAccessKey} and {@code
+ * aws.sessionToken} system properties or the matching {@code AWS_*} environment variables.
+ */
+@Qualifier("s3")
+public class S3CDOStore implements CompoundDigitalObjectStore {
+
+  private static final int MAX_DELETE_KEYS = 1000;
+
+  int partSize = 8 * 1024 * 1024;
+  int rangeSize = 8 * 1024 * 1024;
+  int readAhead = 2;
+  int maxPartsInFlight = 4;
+  long listingTtlMillis = 30_000;
+
+  private final String endpoint;
+  private final String bucket;
+  private final String keyPrefix;
+  private final S3RequestSigner signer;
+  private final CloseableHttpClient httpClient;
+  private final ExecutorService transfers;
+  private final Map<String, Set<String>> transactions = new ConcurrentHashMap<>();
+  private final Object listingLock = new Object();
+  private volatile Listing listing;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Logger log = LoggerFactory.getLogger(S3CDOStore.class);
+
+  public S3CDOStore(String connectionURI) {
+    this(
+        connectionURI,
+        credential("aws.accessKeyId", "AWS_ACCESS_KEY_ID"),
+        credential("aws.secretAccessKey", "AWS_SECRET_ACCESS_KEY"),
+        credential("aws.sessionToken", "AWS_SESSION_TOKEN"));
+  }
+
+  S3CDOStore(String connectionURI, String accessKey, String secretKey, String sessionToken) {
+    URI uri = URI.create(connectionURI.substring(connectionURI.indexOf(':') + 1));
+    Map<String, String> settings = parseQuery(uri.getQuery());
+    String[] bucketAndPrefix = toPath(URI.create(uri.getRawPath())).split("/", 2);
+    if (uri.getScheme() == null || uri.getAuthority() == null || bucketAndPrefix[0].isEmpty()) {
+      throw new IllegalArgumentException(
+          "An s3 store needs an endpoint and a bucket, like s3:https://host/bucket/prefix");
+    }
+    if (accessKey == null || secretKey == null) {
+      throw new ShelfException("No S3 credentials found for " + uri.getAuthority());
+    }
+    endpoint = uri.getScheme() + "://" + uri.getRawAuthority();
+    bucket = bucketAndPrefix[0];
+    keyPrefix = bucketAndPrefix.length > 1 ? bucketAndPrefix[1] + "/" : "";
+    String region =
+        settings.getOrDefault(
+            "region", System.getenv().getOrDefault("AWS_REGION", "us-east-1"));
+    signer = new S3RequestSigner(accessKey, secretKey, sessionToken, region);
+    if (settings.containsKey("listing-ttl")) {
+      listingTtlMillis = Long.parseLong(settings.get("listing-ttl")) * 1000;
+    }
+
+    int threads = Integer.parseInt(settings.getOrDefault("threads", "8"));
+    PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+    connections.setMaxTotal(threads * 2);
+    connections.setDefaultMaxPerRoute(threads * 2);
+    httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connections)
+            .setDefaultRequestConfig(
+                RequestConfig.custom().setConnectTimeout(10_000).setSocketTimeout(60_000).build())
+            .build();
+    AtomicInteger threadNumber = new AtomicInteger();
+    transfers =
+        Executors.newFixedThreadPool(
+            threads,
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "s3-transfer-" + threadNumber.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public List<URI> getChildren() {
+    return StorePaths.children(currentListing().sizes.keySet());
+  }
+
+  @Override
+  public URI getAbsoluteLocation(URI relativeLocation) {
+    String path = relativeLocation == null ? "" : toPath(relativeLocation);
+    return objectUri(path, null);
+  }
+
+  @Override
+  public ObjectNode getMetadata(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (!path.endsWith(StorePaths.METADATA)) {
+      path = child(path, StorePaths.METADATA);
+    }
+    try {
+      JsonNode metadata = mapper.readTree(getObject(path, null));
+      if (!metadata.isObject()) {
+        throw new ShelfResourceNotFound("Metadata resource not found " + path);
+      }
+      return (ObjectNode) metadata;
+    } catch (ShelfResourceNotFound e) {
+      throw new ShelfResourceNotFound("Metadata resource not found " + path, e);
+    } catch (IOException e) {
+      throw new ShelfException("Cannot read metadata " + path, e);
+    }
+  }
+
+  @Override
+  public byte[] getBinary(URI relativeLocation) {
+    return getObject(toPath(relativeLocation), null);
+  }
+
+  /** Sends the GETs of a batch at the same time on the transfer threads. */
+  @Override
+  public Map<URI, ObjectNode> getMetadata(Collection<URI> relativeLocations) {
+    return BatchReads.readAll(
+        relativeLocations,
+        location -> CompletableFuture.supplyAsync(() -> getMetadata(location), transfers));
+  }
+
+  /** Sends the GETs of a batch at the same time on the transfer threads. */
+  @Override
+  public Map<URI, byte[]> getBinaries(Collection<URI> relativeLocations) {
+    return BatchReads.readAll(
+        relativeLocations,
+        location -> CompletableFuture.supplyAsync(() -> getBinary(location), transfers));
+  }
+
+  /**
+   * Sizes known from the listing pick between one GET and ranged reads. Otherwise the first range
+   * is fetched straight away and its Content-Range gives the size, rather than a HEAD first.
+   */
+  @Override
+  public InputStream getBinaryStream(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    Listing current = listing;
+    Long size = current != null && !current.isStale() ? current.sizes.get(path) : null;
+    if (size == null) {
+      return getFirstRange(path);
+    }
+    if (size <= rangeSize) {
+      return new ByteArrayInputStream(getObject(path, null));
+    }
+    return new RangedObjectStream(path, size, new byte[0]);
+  }
+
+  @Override
+  public long getBinarySize(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    Listing current = listing;
+    if (current != null && !current.isStale()) {
+      Long size = current.sizes.get(path);
+      if (size != null) {
+        return size;
+      }
+    }
+    return headSize(path);
+  }
+
+  @Override
+  public void createContainer(URI relativeLocation) {
+    // Key prefixes need no objects of their own
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (!path.endsWith(StorePaths.METADATA)) {
+      path = child(path, StorePaths.METADATA);
+    }
+    try {
+      putObject(
+          path,
+          mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValueAsBytes(metadata));
+    } catch (IOException e) {
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] data, URI relativeLocation) {
+    putObject(toPath(relativeLocation), data);
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    try {
+      byte[] firstPart = stream.readNBytes(partSize);
+      if (firstPart.length < partSize) {
+        putObject(path, firstPart);
+      } else {
+        uploadMultipart(path, firstPart, stream);
+      }
+    } catch (IOException e) {
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  @Override
+  public void delete(URI relativeLocation) throws ShelfException {
+    String path = toPath(relativeLocation);
+    List<String> paths = new ArrayList<>(listKeys(path.isEmpty() ? "" : path + "/").keySet());
+    if (!path.isEmpty()) {
+      paths.add(path);
+    }
+    deleteObjects(paths);
+  }
+
+  @Override
+  public String createTransaction() {
+    String trxID = "trx-" + UUID.randomUUID().toString();
+    transactions.put(trxID, ConcurrentHashMap.newKeySet());
+    return trxID;
+  }
+
+  /**
+   * Copies every file written in the transaction into place, then removes the transaction's
+   * objects and any files left over from earlier versions of the KOs it wrote.
+   */
+  @Override
+  public void commitTransaction(String transactionID) {
+    Set<String> written = transactions.remove(transactionID);
+    if (written == null) {
+      log.warn("Cannot commit transaction {}, it does not exist", transactionID);
+      return;
+    }
+    Set<String> koPaths = new TreeSet<>();
+    for (String path : written) {
+      String koPath = koPathOf(path);
+      if (koPath != null) {
+        koPaths.add(koPath);
+      }
+    }
+    List<String> obsolete = new ArrayList<>();
+    String listed = null;
+    for (String koPath : koPaths) {
+      // Sorted, so a ko nested in one already listed comes right after it
+      if (listed != null && koPath.startsWith(listed + "/")) {
+        continue;
+      }
+      listed = koPath;
+      listKeys(koPath + "/").keySet().stream()
+          .filter(existing -> !written.contains(existing))
+          .forEach(obsolete::add);
+    }
+    List<Future<?>> copies = new ArrayList<>();
+    for (String path : written) {
+      copies.add(transfers.submit(() -> copyObject(child(transactionID, path), path)));
+    }
+    await(copies, "Cannot commit transaction " + transactionID);
+    obsolete.addAll(
+        written.stream().map(path -> child(transactionID, path)).collect(Collectors.toList()));
+    deleteObjects(obsolete);
+  }
+
+  @Override
+  public void rollbackTransaction(String transactionID) {
+    transactions.remove(transactionID);
+    deleteObjects(listKeys(transactionID + "/").keySet());
+  }
+
+  public void close() throws IOException {
+    transfers.shutdownNow();
+    httpClient.close();
+  }
+
+  private byte[] getObject(String path, String range) {
+    Map<String, String> headers = new HashMap<>();
+    if (range != null) {
+      headers.put("Range", range);
+    }
+    try (CloseableHttpResponse response = send("GET", objectUri(path, null), headers, null)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_NOT_FOUND) {
+        EntityUtils.consume(response.getEntity());
+        throw new ShelfResourceNotFound("Binary resource not found " + path);
+      }
+      return readBody(response, "GET " + path, HttpStatus.SC_OK, HttpStatus.SC_PARTIAL_CONTENT);
+    } catch (IOException e) {
+      throw new ShelfException("Cannot read " + path, e);
+    }
+  }
+
+  private InputStream getFirstRange(String path) {
+    Map<String, String> headers = Map.of("Range", "bytes=0-" + (rangeSize - 1));
+    try (CloseableHttpResponse response = send("GET", objectUri(path, null), headers, null)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_NOT_FOUND) {
+        EntityUtils.consume(response.getEntity());
+        throw new ShelfResourceNotFound("Binary resource not found " + path);
+      }
+      if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+        // S3 has no range to give for an empty object
+        EntityUtils.consume(response.getEntity());
+        return new ByteArrayInputStream(new byte[0]);
+      }
+      byte[] first =
+          readBody(response, "GET " + path, HttpStatus.SC_OK, HttpStatus.SC_PARTIAL_CONTENT);
+      Header contentRange = response.getFirstHeader("Content-Range");
+      long size =
+          status == HttpStatus.SC_PARTIAL_CONTENT && contentRange != null
+              ? Long.parseLong(
+                  contentRange.getValue().substring(contentRange.getValue().lastIndexOf('/') + 1))
+              : first.length;
+      if (first.length >= size) {
+        return new ByteArrayInputStream(first);
+      }
+      return new RangedObjectStream(path, size, first);
+    } catch (IOException e) {
+      throw new ShelfException("Cannot read " + path, e);
+    }
+  }
+
+  private long headSize(String path) {
+    try (CloseableHttpResponse response = send("HEAD", objectUri(path, null), null, null)) {
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+        throw new ShelfException("Cannot get file size for " + path);
+      }
+      return Long.parseLong(response.getFirstHeader("Content-Length").getValue());
+    } catch (IOException e) {
+      throw new ShelfException("Cannot get file size for " + path, e);
+    }
+  }
+
+  private void putObject(String path, byte[] data) {
+    request("PUT", objectUri(path, null), null, data, "PUT " + path);
+    written(path, data.length);
+  }
+
+  private void copyObject(String fromPath, String toPath) {
+    Map<String, String> headers = new HashMap<>();
+    headers.put(
+        "x-amz-copy-source",
+        "/" + S3RequestSigner.encode(bucket, false) + "/" + encodeKey(fromPath));
+    byte[] result = request("PUT", objectUri(toPath, null), headers, null, "Copy " + fromPath);
+    // A copy can fail after the 200 status has been sent, which S3 reports in the body
+    if (parseXml(result).getDocumentElement().getTagName().equals("Error")) {
+      throw new ShelfException("Cannot copy " + fromPath + " to " + toPath);
+    }
+    Listing current = listing;
+    Long size = current != null ? current.sizes.get(fromPath) : null;
+    written(toPath, size != null ? size : headSize(toPath));
+  }
+
+  private void uploadMultipart(String path, byte[] firstPart, InputStream stream)
+      throws IOException {
+    byte[] created = request("POST", objectUri(path, "uploads"), null, null, "Upload " + path);
+    String uploadId = text(parseXml(created).getDocumentElement(), "UploadId");
+    String uploadQuery = "uploadId=" + S3RequestSigner.encode(uploadId, false);
+    Semaphore inFlight = new Semaphore(maxPartsInFlight);
+    List<Future<String>> etags = new ArrayList<>();
+    long size = 0;
+    try {
+      byte[] part = firstPart;
+      while (part.length > 0) {
+        inFlight.acquire();
+        byte[] data = part;
+        String query = "partNumber=" + (etags.size() + 1) + "&" + uploadQuery;
+        etags.add(
+            transfers.submit(
+                () -> {
+                  try {
+                    return uploadPart(path, query, data);
+                  } finally {
+                    inFlight.release();
+                  }
+                }));
+        size += part.length;
+        part = stream.readNBytes(partSize);
+      }
+      StringBuilder complete = new StringBuilder("<CompleteMultipartUpload>");
+      for (int i = 0; i < etags.size(); i++) {
+        complete
+            .append("<Part><PartNumber>")
+            .append(i + 1)
+            .append("</PartNumber><ETag>")
+            .append(escapeXml(etags.get(i).get()))
+            .append("</ETag></Part>");
+      }
+      complete.append("</CompleteMultipartUpload>");
+      byte[] result =
+          request(
+              "POST",
+              objectUri(path, uploadQuery),
+              null,
+              complete.toString().getBytes(StandardCharsets.UTF_8),
+              "Complete upload of " + path);
+      if (parseXml(result).getDocumentElement().getTagName().equals("Error")) {
+        throw new ShelfException("Cannot complete upload of " + path);
+      }
+      written(path, size);
+    } catch (InterruptedException | ExecutionException | RuntimeException e) {
+      etags.forEach(etag -> etag.cancel(true));
+      abortUpload(path, uploadQuery);
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  private String uploadPart(String path, String query, byte[] data) throws IOException {
+    try (CloseableHttpResponse response = send("PUT", objectUri(path, query), null, data)) {
+      readBody(response, "Upload part of " + path, HttpStatus.SC_OK);
+      return response.getFirstHeader("ETag").getValue();
+    }
+  }
+
+  private void abortUpload(String path, String uploadQuery) {
+    try (CloseableHttpResponse response =
+        send("DELETE", objectUri(path, uploadQuery), null, null)) {
+      EntityUtils.consume(response.getEntity());
+    } catch (IOException e) {
+      log.warn("Cannot abort upload of {}: {}", path, e.getMessage());
+    }
+  }
+
+  /** Deletes objects with multi-object delete requests of up to 1000 keys each. */
+  private void deleteObjects(Collection<String> paths) {
+    List<String> remaining = new ArrayList<>(paths);
+    for (int start = 0; start < remaining.size(); start += MAX_DELETE_KEYS) {
+      List<String> batch =
+          remaining.subList(start, Math.min(remaining.size(), start + MAX_DELETE_KEYS));
+      StringBuilder delete = new StringBuilder("<Delete><Quiet>true</Quiet>");
+      for (String path : batch) {
+        delete
+            .append("<Object><Key>")
+            .append(escapeXml(keyPrefix + path))
+            .append("</Key></Object>");
+      }
+      delete.append("</Delete>");
+      byte[] body = delete.toString().getBytes(StandardCharsets.UTF_8);
+      Map<String, String> headers = new HashMap<>();
+      headers.put("Content-MD5", Base64.getEncoder().encodeToString(DigestUtils.md5(body)));
+      byte[] result = request("POST", bucketUri("delete"), headers, body, "Delete");
+      NodeList errors = parseXml(result).getElementsByTagName("Error");
+      if (errors.getLength() > 0) {
+        String key = text((Element) errors.item(0), "Key");
+        throw new ShelfException("Could not delete " + key.substring(keyPrefix.length()));
+      }
+      Listing current = listing;
+      if (current != null) {
+        batch.forEach(current.sizes::remove);
+      }
+    }
+  }
+
+  /** Lists every key under a path prefix, with its size, by paging through ListObjectsV2. */
+  private Map<String, Long> listKeys(String pathPrefix) {
+    Map<String, Long> keys = new LinkedHashMap<>();
+    String continuationToken = null;
+    do {
+      String query =
+          "list-type=2&prefix=" + S3RequestSigner.encode(keyPrefix + pathPrefix, false);
+      if (continuationToken != null) {
+        query += "&continuation-token=" + S3RequestSigner.encode(continuationToken, false);
+      }
+      Element result =
+          parseXml(request("GET", bucketUri(query), null, null, "List")).getDocumentElement();
+      NodeList contents = result.getElementsByTagName("Contents");
+      for (int i = 0; i < contents.getLength(); i++) {
+        Element object = (Element) contents.item(i);
+        keys.put(
+            text(object, "Key").substring(keyPrefix.length()),
+            Long.parseLong(text(object, "Size")));
+      }
+      continuationToken =
+          "true".equals(text(result, "IsTruncated")) ? text(result, "NextContinuationToken") : null;
+    } while (continuationToken != null);
+    return keys;
+  }
+
+  private Listing currentListing() {
+    Listing current = listing;
+    if (current != null && !current.isStale()) {
+      return current;
+    }
+    synchronized (listingLock) {
+      current = listing;
+      if (current == null || current.isStale()) {
+        current = new Listing(listKeys(""));
+        listing = current;
+      }
+      return current;
+    }
+  }
+
+  /** Keeps the cached listing and any open transaction up to date with a write. */
+  private void written(String path, long size) {
+    Listing current = listing;
+    if (current != null) {
+      current.sizes.put(path, size);
+    }
+    int slash = path.indexOf('/');
+    Set<String> transaction = slash > 0 ? transactions.get(path.substring(0, slash)) : null;
+    if (transaction != null) {
+      transaction.add(path.substring(slash + 1));
+    }
+  }
+
+  /** Sends a request and returns its body, failing unless the status is one of {@code ok}. */
+  private byte[] request(
+      String method, URI uri, Map<String, String> headers, byte[] body, String description) {
+    try (CloseableHttpResponse response = send(method, uri, headers, body)) {
+      return readBody(response, description, HttpStatus.SC_OK, HttpStatus.SC_NO_CONTENT);
+    } catch (IOException e) {
+      throw new ShelfException(description + " failed", e);
+    }
+  }
+
+  private byte[] readBody(CloseableHttpResponse response, String description, int... ok)
+      throws IOException {
+    byte[] body =
+        response.getEntity() != null ? EntityUtils.toByteArray(response.getEntity()) : new byte[0];
+    int status = response.getStatusLine().getStatusCode();
+    for (int expected : ok) {
+      if (status == expected) {
+        return body;
+      }
+    }
+    throw new ShelfException(
+        String.format(
+            "%s failed with %s: %s",
+            description, response.getStatusLine(), new String(body, StandardCharsets.UTF_8)));
+  }
+
+  private CloseableHttpResponse send(
+      String method, URI uri, Map<String, String> headers, byte[] body) throws IOException {
+    Map<String, String> signed = headers != null ? new HashMap<>(headers) : new HashMap<>();
+    signer.sign(
+        method,
+        uri,
+        signed,
+        body != null ? DigestUtils.sha256Hex(body) : S3RequestSigner.EMPTY_PAYLOAD_SHA256,
+        Instant.now());
+    RequestBuilder builder = RequestBuilder.create(method).setUri(uri);
+    signed.forEach(builder::setHeader);
+    if (body != null) {
+      builder.setEntity(new ByteArrayEntity(body));
+    }
+    HttpUriRequest request = builder.build();
+    return httpClient.execute(request);
+  }
+
+  private URI objectUri(String path, String query) {
+    return URI.create(
+        endpoint
+            + "/"
+            + S3RequestSigner.encode(bucket, false)
+            + "/"
+            + encodeKey(path)
+            + (query != null ? "?" + query : ""));
+  }
+
+  private URI bucketUri(String query) {
+    return URI.create(endpoint + "/" + S3RequestSigner.encode(bucket, false) + "?" + query);
+  }
+
+  private String encodeKey(String path) {
+    return S3RequestSigner.encode(keyPrefix + path, true);
+  }
+
+  private static Document parseXml(byte[] xml) {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    } catch (Exception e) {
+      throw new ShelfException("Cannot parse S3 response", e);
+    }
+  }
+
+  private static String text(Element element, String tagName) {
+    NodeList nodes = element.getElementsByTagName(tagName);
+    return nodes.getLength() > 0 ? nodes.item(0).getTextContent() : null;
+  }
+
+  private static String escapeXml(String text) {
+    return text.replace("&", "&amp;")
+        .replace("<", "&lt;")
+        .replace(">", "&gt;")
+        .replace("\"", "&quot;");
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> settings = new HashMap<>();
+    if (query != null) {
+      for (String setting : query.split("&")) {
+        String[] keyValue = setting.split("=", 2);
+        settings.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+      }
+    }
+    return settings;
+  }
+
+  private static String credential(String property, String environmentVariable) {
+    String value = System.getProperty(property);
+    return value != null ? value : System.getenv(environmentVariable);
+  }
+
+  private void await(List<? extends Future<?>> tasks, String message) {
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ShelfException(message, e);
+    } catch (ExecutionException e) {
+      throw new ShelfException(message, e.getCause());
+    }
+  }
+
+  /** The keys in the bucket under this store's prefix, and when they were listed. */
+  private class Listing {
+
+    final ConcurrentSkipListMap<String, Long> sizes;
+    final long listedAt = System.currentTimeMillis();
+
+    Listing(Map<String, Long> sizes) {
+      this.sizes = new ConcurrentSkipListMap<>(sizes);
+    }
+
+    boolean isStale() {
+      return System.currentTimeMillis() - listedAt >= listingTtlMillis;
+    }
+  }
+
+  /**
+   * Reads an object as consecutive ranged GETs, keeping {@link #readAhead} further ranges in
+   * flight while the current one is consumed.
+   */
+  private class RangedObjectStream extends InputStream {
+
+    private final String path;
+    private final long size;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private long nextRange;
+    private byte[] current;
+    private int position;
+
+    RangedObjectStream(String path, long size, byte[] first) {
+      this.path = path;
+      this.size = size;
+      this.current = first;
+      this.nextRange = first.length;
+      for (int i = 0; i <= readAhead; i++) {
+        fetchNextRange();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      int read = Math.min(length, current.length - position);
+      System.arraycopy(current, position, buffer, offset, read);
+      position += read;
+      return read;
+    }
+
+    @Override
+    public void close() {
+      pending.forEach(range -> range.cancel(true));
+      pending.clear();
+    }
+
+    private boolean ensureAvailable() throws IOException {
+      while (position >= current.length) {
+        Future<byte[]> next = pending.poll();
+        if (next == null) {
+          return false;
+        }
+        try {
+          current = next.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while reading " + path, e);
+        } catch (ExecutionException e) {
+          throw new IOException("Cannot read " + path, e.getCause());
+        }
+        position = 0;
+        fetchNextRange();
+      }
+      return true;
+    }
+
+    private void fetchNextRange() {
+      if (nextRange >= size) {
+        return;
+      }
+      long start = nextRange;
+      long end = Math.min(size, start + rangeSize) - 1;
+      nextRange = end + 1;
+      pending.add(transfers.submit(() -> getObject(path, "bytes=" + start + "-" + end)));
+    }
+  }
+}
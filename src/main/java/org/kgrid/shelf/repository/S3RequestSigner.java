@@ -0,0 +1,137 @@
+package org.kgrid.shelf.repository;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Signs S3 requests with AWS Signature Version 4, so the S3 store needs nothing more than an HTTP
+ * client. Every header passed in is signed.
+ */
+final class S3RequestSigner {
+
+  static final String EMPTY_PAYLOAD_SHA256 = DigestUtils.sha256Hex(new byte[0]);
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+  private static final DateTimeFormatter AMZ_DATE =
+      DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  private final String accessKey;
+  private final String secretKey;
+  private final String sessionToken;
+  private final String region;
+
+  S3RequestSigner(String accessKey, String secretKey, String sessionToken, String region) {
+    this.accessKey = accessKey;
+    this.secretKey = secretKey;
+    this.sessionToken = sessionToken;
+    this.region = region;
+  }
+
+  /**
+   * Adds the date, payload hash, session token and authorization headers to {@code headers} for a
+   * request to {@code uri}, whose path and query must already be encoded.
+   */
+  void sign(
+      String method, URI uri, Map<String, String> headers, String payloadSha256, Instant now) {
+    String amzDate = AMZ_DATE.format(now);
+    String scope = amzDate.substring(0, 8) + "/" + region + "/s3/aws4_request";
+    headers.put("host", uri.getRawAuthority());
+    headers.put("x-amz-date", amzDate);
+    headers.put("x-amz-content-sha256", payloadSha256);
+    if (sessionToken != null) {
+      headers.put("x-amz-security-token", sessionToken);
+    }
+
+    Map<String, String> canonicalHeaders = new TreeMap<>();
+    headers.forEach(
+        (name, value) -> canonicalHeaders.put(name.toLowerCase(Locale.ROOT), value.trim()));
+    String signedHeaders = String.join(";", canonicalHeaders.keySet());
+    String canonicalRequest =
+        String.join(
+            "\n",
+            method,
+            uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath(),
+            canonicalQuery(uri.getRawQuery()),
+            canonicalHeaders.entrySet().stream()
+                    .map(header -> header.getKey() + ":" + header.getValue())
+                    .collect(Collectors.joining("\n"))
+                + "\n",
+            signedHeaders,
+            payloadSha256);
+    String stringToSign =
+        String.join("\n", ALGORITHM, amzDate, scope, DigestUtils.sha256Hex(canonicalRequest));
+
+    byte[] key = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+    key = hmac(key, amzDate.substring(0, 8));
+    key = hmac(key, region);
+    key = hmac(key, "s3");
+    key = hmac(key, "aws4_request");
+    String signature = Hex.encodeHexString(hmac(key, stringToSign));
+
+    headers.put(
+        "Authorization",
+        String.format(
+            "%s Credential=%s/%s, SignedHeaders=%s, Signature=%s",
+            ALGORITHM, accessKey, scope, signedHeaders, signature));
+  }
+
+  /** Percent-encodes a key or query value the way S3 expects, optionally keeping '/'. */
+  static String encode(String value, boolean keepSlashes) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      char c = (char) (b & 0xff);
+      if ((c >= 'A' && c <= 'Z')
+          || (c >= 'a' && c <= 'z')
+          || (c >= '0' && c <= '9')
+          || c == '-'
+          || c == '_'
+          || c == '.'
+          || c == '~'
+          || (keepSlashes && c == '/')) {
+        encoded.append(c);
+      } else {
+        encoded.append(String.format("%%%02X", b & 0xff));
+      }
+    }
+    return encoded.toString();
+  }
+
+  private static String canonicalQuery(String rawQuery) {
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      return "";
+    }
+    List<String> parameters = new ArrayList<>();
+    for (String parameter : rawQuery.split("&")) {
+      parameters.add(parameter.contains("=") ? parameter : parameter + "=");
+    }
+    parameters.sort(
+        Comparator.comparing((String parameter) -> parameter.substring(0, parameter.indexOf('=')))
+            .thenComparing(parameter -> parameter.substring(parameter.indexOf('=') + 1)));
+    return String.join("&", parameters);
+  }
+
+  private static byte[] hmac(byte[] key, String data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HmacSHA256 is not available", e);
+    }
+  }
+}
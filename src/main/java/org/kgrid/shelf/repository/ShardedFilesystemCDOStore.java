@@ -0,0 +1,451 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.kgrid.shelf.ShelfException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.kgrid.shelf.repository.StorePaths.MAX_DEPTH;
+import static org.kgrid.shelf.repository.StorePaths.METADATA;
+import static org.kgrid.shelf.repository.StorePaths.toPath;
+
+/**
+ * A filesystem shelf spread over several root directories, usually one per disk, so reads and
+ * writes of different KOs are served by different devices. Each KO's directory, which the
+ * repository names after its ark as either {@code naan-name-version} or {@code
+ * naan/name/version}, is placed on a root by consistent hashing: every root owns {@link
+ * #VIRTUAL_NODES} points on a hash ring, keyed by the root's path, and a KO belongs to the root
+ * owning the next point after the hash of its full directory path. Adding a root therefore only
+ * moves the KOs whose points the new root takes over.
+ *
+ * <p>Which directory a path's KO is in is only known once the KO has metadata, so until then its
+ * files are written to the root owning its top-level directory. Committing a transaction moves
+ * each of its KOs to the root owning it before publishing it there, and {@link #rebalance()} moves
+ * KOs written outside a transaction.
+ *
+ * <p>KOs that are not on the root the ring assigns them, after a root was added, are still found by
+ * looking on the other roots, and are moved to their owner by {@link #rebalance()}, which runs in
+ * the background at startup unless {@code rebalance=false} is given. Each root is a {@link
+ * FilesystemCDOStore}, so a KO is written, committed and moved with the same atomic renames.
+ *
+ * <p>Use it with the root URLs separated by '|', like {@code
+ * sharded:file:///disk1/shelf|file:///disk2/shelf|file:///disk3/shelf}.
+ */
+@Qualifier("sharded")
+public class ShardedFilesystemCDOStore implements CompoundDigitalObjectStore {
+
+  static final int VIRTUAL_NODES = 64;
+  private static final int LOCK_STRIPES = 64;
+
+  private final List<FilesystemCDOStore> roots = new ArrayList<>();
+  private final TreeMap<Long, Integer> ring = new TreeMap<>();
+  private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+  private final ExecutorService fanOut;
+  private final ExecutorService rebalancer;
+  private final Logger log = LoggerFactory.getLogger(ShardedFilesystemCDOStore.class);
+
+  public ShardedFilesystemCDOStore(String connectionURI) {
+    String[] parts = connectionURI.substring(connectionURI.indexOf(':') + 1).split("\\|");
+    boolean rebalanceAtStartup = true;
+    for (String part : parts) {
+      if (part.equals("rebalance=false")) {
+        rebalanceAtStartup = false;
+      } else if (!part.isBlank()) {
+        roots.add(new FilesystemCDOStore("filesystem:" + part.trim()));
+      }
+    }
+    if (roots.isEmpty()) {
+      throw new IllegalArgumentException("A sharded store needs at least one root");
+    }
+    for (int root = 0; root < roots.size(); root++) {
+      String rootId = rootDir(root).toAbsolutePath().normalize().toString();
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        ring.put(hash(rootId + "#" + node), root);
+      }
+    }
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    fanOut = Executors.newFixedThreadPool(roots.size(), daemonThreads("sharded-store"));
+    rebalancer = Executors.newSingleThreadExecutor(daemonThreads("sharded-store-rebalancer"));
+    if (rebalanceAtStartup && roots.size() > 1) {
+      rebalanceInBackground();
+    }
+  }
+
+  /** Lists every root at the same time, dropping KOs seen twice while they are being moved. */
+  @Override
+  public List<URI> getChildren() {
+    List<CompletableFuture<List<URI>>> listings =
+        roots.stream()
+            .map(root -> CompletableFuture.supplyAsync(root::getChildren, fanOut))
+            .collect(Collectors.toList());
+    Set<URI> children = new LinkedHashSet<>();
+    try {
+      listings.forEach(listing -> children.addAll(listing.join()));
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof ShelfException
+          ? (ShelfException) e.getCause()
+          : new ShelfException("Cannot list sharded shelf", e.getCause());
+    }
+    return new ArrayList<>(children);
+  }
+
+  @Override
+  public URI getAbsoluteLocation(URI relativeLocation) {
+    if (relativeLocation == null) {
+      return roots.get(0).getAbsoluteLocation(null);
+    }
+    return rootFor(toPath(relativeLocation)).getAbsoluteLocation(relativeLocation);
+  }
+
+  @Override
+  public ObjectNode getMetadata(URI relativeLocation) {
+    return rootFor(toPath(relativeLocation)).getMetadata(relativeLocation);
+  }
+
+  @Override
+  public byte[] getBinary(URI relativeLocation) {
+    return rootFor(toPath(relativeLocation)).getBinary(relativeLocation);
+  }
+
+  @Override
+  public InputStream getBinaryStream(URI relativeLocation) {
+    return rootFor(toPath(relativeLocation)).getBinaryStream(relativeLocation);
+  }
+
+  @Override
+  public long getBinarySize(URI relativeLocation) {
+    return rootFor(toPath(relativeLocation)).getBinarySize(relativeLocation);
+  }
+
+  @Override
+  public void createContainer(URI relativeLocation) {
+    withLock(toPath(relativeLocation), root -> root.createContainer(relativeLocation));
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativeLocation) {
+    withLock(toPath(relativeLocation), root -> root.saveMetadata(metadata, relativeLocation));
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] data, URI relativeLocation) {
+    withLock(toPath(relativeLocation), root -> root.saveBinary(data, relativeLocation));
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativeLocation) {
+    withLock(toPath(relativeLocation), root -> root.saveBinary(stream, relativeLocation));
+  }
+
+  @Override
+  public void delete(URI relativeLocation) throws ShelfException {
+    withLock(
+        toPath(relativeLocation), owner -> roots.forEach(root -> root.delete(relativeLocation)));
+  }
+
+  /**
+   * Transactions need nothing up front: each root's part of one is the {@code trx-} directory its
+   * KOs are written to, which the root creates on the first write.
+   */
+  @Override
+  public String createTransaction() {
+    return "trx-" + UUID.randomUUID().toString();
+  }
+
+  /**
+   * Moves each KO in the transaction to the transaction's directory on the root owning it and
+   * commits the transaction on each root, then removes the copies of those KOs, and only those,
+   * left on other roots from before a root was added.
+   */
+  @Override
+  public void commitTransaction(String transactionID) {
+    Map<String, Integer> staged = new TreeMap<>();
+    for (int root = 0; root < roots.size(); root++) {
+      Path transactionDir = rootDir(root).resolve(transactionID);
+      if (Files.isDirectory(transactionDir)) {
+        for (String ko : koDirs(transactionDir)) {
+          staged.put(ko, root);
+        }
+      }
+    }
+    // Stripes are taken in index order so two commits cannot deadlock
+    int[] stripes = staged.keySet().stream().mapToInt(this::stripeOf).distinct().sorted().toArray();
+    for (int stripe : stripes) {
+      locks[stripe].lock();
+    }
+    try {
+      for (Map.Entry<String, Integer> ko : staged.entrySet()) {
+        int owner = ownerOf(ko.getKey());
+        if (owner != ko.getValue()) {
+          Path staging = rootDir(ko.getValue()).resolve(transactionID);
+          transfer(
+              staging.resolve(ko.getKey()),
+              rootDir(owner).resolve(transactionID).resolve(ko.getKey()));
+          deleteEmptyParents(staging, ko.getKey());
+        }
+      }
+      for (int root = 0; root < roots.size(); root++) {
+        if (Files.isDirectory(rootDir(root).resolve(transactionID))) {
+          roots.get(root).commitTransaction(transactionID);
+        }
+      }
+      for (String ko : staged.keySet()) {
+        deleteFromOtherRoots(ko, ownerOf(ko));
+      }
+    } finally {
+      for (int stripe : stripes) {
+        locks[stripe].unlock();
+      }
+    }
+  }
+
+  @Override
+  public void rollbackTransaction(String transactionID) {
+    roots.forEach(root -> root.rollbackTransaction(transactionID));
+  }
+
+  /** Moves every KO that is not on the root the hash ring assigns it, returning how many moved. */
+  public int rebalance() {
+    int moved = 0;
+    for (int root = 0; root < roots.size(); root++) {
+      for (String ko : koDirs(rootDir(root))) {
+        if (ownerOf(ko) != root && move(ko, root)) {
+          moved++;
+        }
+      }
+    }
+    if (moved > 0) {
+      log.info("Moved {} KOs to their owning roots", moved);
+    }
+    return moved;
+  }
+
+  public Future<Integer> rebalanceInBackground() {
+    return rebalancer.submit(this::rebalance);
+  }
+
+  public void close() {
+    rebalancer.shutdownNow();
+    fanOut.shutdownNow();
+  }
+
+  /**
+   * Copies a KO into a transaction on its owning root, publishes it there with that root's atomic
+   * commit and then deletes it from where it was. Readers find it on one root or the other
+   * throughout.
+   */
+  private boolean move(String ko, int from) {
+    ReentrantLock lock = lockFor(ko);
+    lock.lock();
+    try {
+      Path source = rootDir(from).resolve(ko);
+      int to = ownerOf(ko);
+      if (!Files.isDirectory(source) || to == from) {
+        return false;
+      }
+      String transactionID = "trx-" + UUID.randomUUID().toString();
+      FileUtils.copyDirectory(
+          source.toFile(), rootDir(to).resolve(transactionID).resolve(ko).toFile());
+      roots.get(to).commitTransaction(transactionID);
+      FileUtils.deleteDirectory(source.toFile());
+      deleteEmptyParents(rootDir(from), ko);
+      return true;
+    } catch (IOException | ShelfException e) {
+      log.warn("Cannot move {} to its owning root: {}", ko, e.getMessage());
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Moves a KO between transaction directories, copying it when they are on different disks. */
+  private static void transfer(Path source, Path target) {
+    try {
+      Files.createDirectories(target.getParent());
+      try {
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        FileUtils.copyDirectory(source.toFile(), target.toFile());
+        FileUtils.deleteDirectory(source.toFile());
+      }
+    } catch (IOException e) {
+      throw new ShelfException("Cannot move " + source + " to its owning root", e);
+    }
+  }
+
+  /**
+   * Deletes the copies of a KO on every root but its owner. Only a directory that is itself a KO
+   * is deleted, never one that holds other KOs, like the NAAN directory of slash-form ids.
+   */
+  private void deleteFromOtherRoots(String ko, int keep) {
+    for (int root = 0; root < roots.size(); root++) {
+      Path copy = rootDir(root).resolve(ko);
+      if (root != keep && Files.exists(copy.resolve(METADATA))) {
+        try {
+          FileUtils.deleteDirectory(copy.toFile());
+          deleteEmptyParents(rootDir(root), ko);
+        } catch (IOException e) {
+          throw new ShelfException("Could not delete old copy of " + ko, e);
+        }
+      }
+    }
+  }
+
+  /** Removes the directories above a deleted KO, like {@code naan/name}, once they are empty. */
+  private static void deleteEmptyParents(Path base, String ko) {
+    Path dir = base.resolve(ko).getParent();
+    while (dir != null && dir.startsWith(base) && !dir.equals(base)) {
+      try {
+        Files.delete(dir);
+      } catch (IOException e) {
+        // Not empty, or already gone; either way nothing above it is empty
+        return;
+      }
+      dir = dir.getParent();
+    }
+  }
+
+  private FilesystemCDOStore rootFor(String path) {
+    return roots.get(locate(path).root);
+  }
+
+  /**
+   * The KO directory a path is in and the root it is on. A published KO is the shortest directory
+   * in the path that has metadata on some root, looking on the root owning it first. Paths of KOs
+   * that have no metadata yet, and every path in a transaction, go to the root owning their
+   * top-level directory, so all of a KO's files are written to the same root until it is
+   * committed.
+   */
+  private Location locate(String path) {
+    String[] segments = path.split("/");
+    boolean inTransaction = !StorePaths.isPublished(segments[0]);
+    if (inTransaction && segments.length > 1) {
+      return new Location(segments[0] + "/" + segments[1], ownerOf(segments[1]));
+    }
+    if (!inTransaction) {
+      String ko = "";
+      for (int depth = 0; depth < Math.min(segments.length, MAX_DEPTH); depth++) {
+        ko = StorePaths.child(ko, segments[depth]);
+        int owner = ownerOf(ko);
+        if (Files.exists(rootDir(owner).resolve(ko).resolve(METADATA))) {
+          return new Location(ko, owner);
+        }
+        for (int root = 0; root < roots.size(); root++) {
+          if (root != owner && Files.exists(rootDir(root).resolve(ko).resolve(METADATA))) {
+            return new Location(ko, root);
+          }
+        }
+      }
+    }
+    return new Location(segments[0], ownerOf(segments[0]));
+  }
+
+  int ownerOf(String ko) {
+    Map.Entry<Long, Integer> point = ring.ceilingEntry(hash(ko));
+    return (point != null ? point : ring.firstEntry()).getValue();
+  }
+
+  Path rootDir(int root) {
+    return roots.get(root).localStorageDir;
+  }
+
+  /** Runs a write on the root a path is on, holding the lock of the path's KO. */
+  private void withLock(String path, Consumer<FilesystemCDOStore> write) {
+    ReentrantLock lock = lockFor(locate(path).ko);
+    lock.lock();
+    try {
+      write.accept(rootFor(path));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private ReentrantLock lockFor(String ko) {
+    return locks[stripeOf(ko)];
+  }
+
+  private int stripeOf(String ko) {
+    return Math.floorMod(ko.hashCode(), LOCK_STRIPES);
+  }
+
+  /**
+   * The published KO directories under a directory, as paths relative to it, down to the depth
+   * the filesystem store looks for KOs. A KO inside another KO's directory is part of it.
+   */
+  private static List<String> koDirs(Path dir) {
+    List<String> kos = new ArrayList<>();
+    try (Stream<Path> paths = Files.walk(dir, MAX_DEPTH)) {
+      paths
+          .filter(path -> !path.equals(dir) && Files.isRegularFile(path.resolve(METADATA)))
+          .map(path -> dir.relativize(path).toString().replace('\\', '/'))
+          .filter(StorePaths::isPublished)
+          .sorted()
+          .forEach(
+              ko -> {
+                if (kos.stream().noneMatch(outer -> ko.startsWith(outer + "/"))) {
+                  kos.add(ko);
+                }
+              });
+    } catch (IOException | UncheckedIOException e) {
+      throw new ShelfException("Cannot list " + dir, e);
+    }
+    return kos;
+  }
+
+  private static long hash(String key) {
+    return ByteBuffer.wrap(DigestUtils.md5(key.getBytes(StandardCharsets.UTF_8))).getLong();
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static class Location {
+    private final String ko;
+    private final int root;
+
+    Location(String ko, int root) {
+      this.ko = ko;
+      this.root = root;
+    }
+  }
+}
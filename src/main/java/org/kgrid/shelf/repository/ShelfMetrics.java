@@ -0,0 +1,315 @@
+package org.kgrid.shelf.repository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Timers, counters and summaries for the shelf, registered with the application's Micrometer
+ * registry so they show up wherever its other metrics do, for example under {@code
+ * /actuator/metrics}. Every meter is tagged with the operation measured and its outcome.
+ *
+ * <p>When the application has no registry, or {@code kgrid.shelf.metrics.enabled} is false,
+ * nothing is measured: the store is not wrapped and every method here returns before reading the
+ * clock or looking up a meter.
+ */
+@Component
+public class ShelfMetrics {
+
+  public static final String SUCCESS = "success";
+  public static final String ERROR = "error";
+
+  private static final ShelfMetrics DISABLED = new ShelfMetrics(null);
+
+  private final MeterRegistry registry;
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+  private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+  private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> transfersInFlight = new ConcurrentHashMap<>();
+
+  @Autowired
+  public ShelfMetrics(
+      ObjectProvider<MeterRegistry> registry,
+      @Value("${kgrid.shelf.metrics.enabled:true}") boolean enabled) {
+    this(enabled ? registry.getIfUnique() : null);
+  }
+
+  public ShelfMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  /** Metrics that measure nothing, for use outside a Spring context. */
+  public static ShelfMetrics disabled() {
+    return DISABLED;
+  }
+
+  public boolean isEnabled() {
+    return registry != null;
+  }
+
+  /** The clock reading to later pass to {@link #stop}, or 0 when disabled. */
+  public long start() {
+    return registry == null ? 0 : System.nanoTime();
+  }
+
+  public void stop(String name, String operation, long start, boolean success) {
+    if (registry != null) {
+      timer(name, operation, outcome(success))
+          .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public <T> T time(String name, String operation, Supplier<T> action) {
+    if (registry == null) {
+      return action.get();
+    }
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      T result = action.get();
+      success = true;
+      return result;
+    } finally {
+      stop(name, operation, start, success);
+    }
+  }
+
+  public void time(String name, String operation, Runnable action) {
+    time(name, operation, () -> {
+      action.run();
+      return null;
+    });
+  }
+
+  /** Times an asynchronous operation from when it is started until its future completes. */
+  public <T> CompletableFuture<T> timeAsync(
+      String name, String operation, Supplier<CompletableFuture<T>> action) {
+    if (registry == null) {
+      return action.get();
+    }
+    long start = System.nanoTime();
+    CompletableFuture<T> future;
+    try {
+      future = action.get();
+    } catch (RuntimeException e) {
+      stop(name, operation, start, false);
+      throw e;
+    }
+    return future.whenComplete((result, e) -> stop(name, operation, start, e == null));
+  }
+
+  public void count(String name, String operation, String outcome) {
+    if (registry != null) {
+      counters
+          .computeIfAbsent(
+              key(name, operation, outcome),
+              key -> Counter.builder(name).tags(tags(operation, outcome)).register(registry))
+          .increment();
+    }
+  }
+
+  /** Records a number of bytes, such as the size of a read or a write, in a summary. */
+  public void recordBytes(String name, String operation, boolean success, double bytes) {
+    if (registry != null) {
+      summary(name, operation, outcome(success), "bytes").record(bytes);
+    }
+  }
+
+  /**
+   * Counts the bytes read from a stream, recording them when it is closed.
+   *
+   * @return the stream itself when disabled
+   */
+  public InputStream countBytes(InputStream stream, String name, String operation) {
+    if (registry == null) {
+      return stream;
+    }
+    return new MeteredInputStream(
+        stream, (bytes, success) -> recordBytes(name, operation, success, bytes));
+  }
+
+  /** Reports a value read from an object whenever the registry is scraped. */
+  public <T> void gauge(String name, T object, ToDoubleFunction<T> value) {
+    if (registry != null) {
+      Gauge.builder(name, object, value).strongReference(true).register(registry);
+    }
+  }
+
+  /**
+   * Starts measuring a transfer of a KO or an artifact into or out of the shelf. It counts as in
+   * flight until it is finished.
+   *
+   * @param operation what is transferred, like import, export or binary
+   */
+  public Transfer startTransfer(String operation) {
+    if (registry == null) {
+      return Transfer.NONE;
+    }
+    AtomicInteger inFlight =
+        transfersInFlight.computeIfAbsent(
+            operation,
+            key -> {
+              AtomicInteger count = new AtomicInteger();
+              Gauge.builder("shelf.transfers.active", count, AtomicInteger::get)
+                  .tag("operation", operation)
+                  .register(registry);
+              return count;
+            });
+    inFlight.incrementAndGet();
+    return new Transfer(this, operation, inFlight);
+  }
+
+  private Timer timer(String name, String operation, String outcome) {
+    return timers.computeIfAbsent(
+        key(name, operation, outcome),
+        key -> Timer.builder(name).tags(tags(operation, outcome)).register(registry));
+  }
+
+  private DistributionSummary summary(
+      String name, String operation, String outcome, String baseUnit) {
+    return summaries.computeIfAbsent(
+        key(name, operation, outcome),
+        key ->
+            DistributionSummary.builder(name)
+                .baseUnit(baseUnit)
+                .tags(tags(operation, outcome))
+                .register(registry));
+  }
+
+  private static String key(String name, String operation, String outcome) {
+    return name + ' ' + operation + ' ' + outcome;
+  }
+
+  private static Tags tags(String operation, String outcome) {
+    return Tags.of("operation", operation, "outcome", outcome);
+  }
+
+  private static String outcome(boolean success) {
+    return success ? SUCCESS : ERROR;
+  }
+
+  /**
+   * A transfer in progress. Its bytes are counted through the streams it meters or added to it
+   * directly, and its duration, size and throughput are recorded when it is finished.
+   */
+  public static class Transfer {
+
+    static final Transfer NONE = new Transfer(null, null, null);
+
+    private final ShelfMetrics metrics;
+    private final String operation;
+    private final AtomicInteger inFlight;
+    private final long start;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private Transfer(ShelfMetrics metrics, String operation, AtomicInteger inFlight) {
+      this.metrics = metrics;
+      this.operation = operation;
+      this.inFlight = inFlight;
+      this.start = metrics == null ? 0 : System.nanoTime();
+    }
+
+    public void addBytes(long count) {
+      bytes.addAndGet(count);
+    }
+
+    /** Counts the bytes read from the stream and finishes the transfer when it is closed. */
+    public InputStream meter(InputStream stream) {
+      if (metrics == null) {
+        return stream;
+      }
+      return new MeteredInputStream(stream, (count, success) -> {
+        addBytes(count);
+        finish(success);
+      });
+    }
+
+    /** Counts the bytes written to the stream. The caller still finishes the transfer. */
+    public OutputStream meter(OutputStream stream) {
+      if (metrics == null) {
+        return stream;
+      }
+      return new ProxyOutputStream(stream) {
+        @Override
+        protected void afterWrite(int n) throws IOException {
+          super.afterWrite(n);
+          addBytes(n);
+        }
+      };
+    }
+
+    public void finish(boolean success) {
+      if (metrics == null || !finished.compareAndSet(false, true)) {
+        return;
+      }
+      inFlight.decrementAndGet();
+      long elapsed = System.nanoTime() - start;
+      String outcome = outcome(success);
+      metrics.timer("shelf.transfers", operation, outcome).record(elapsed, TimeUnit.NANOSECONDS);
+      metrics.summary("shelf.transfers.bytes", operation, outcome, "bytes").record(bytes.get());
+      if (elapsed > 0) {
+        metrics
+            .summary("shelf.transfers.throughput", operation, outcome, "bytes.per.second")
+            .record(bytes.get() * 1e9 / elapsed);
+      }
+    }
+  }
+
+  private interface ByteCountListener {
+    void closed(long bytes, boolean success);
+  }
+
+  /** Counts what is read and reports it once, when the stream is closed. */
+  private static class MeteredInputStream extends CountingInputStream {
+
+    private final ByteCountListener listener;
+    private boolean failed;
+    private boolean closed;
+
+    MeteredInputStream(InputStream stream, ByteCountListener listener) {
+      super(stream);
+      this.listener = listener;
+    }
+
+    @Override
+    protected void handleIOException(IOException e) throws IOException {
+      failed = true;
+      super.handleIOException(e);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!closed) {
+          closed = true;
+          listener.closed(getByteCount(), !failed);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.kgrid.shelf.repository;
+
+import org.kgrid.shelf.domain.KoFields;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Path handling shared by the stores that keep an index of paths rather than a directory tree.
+ * Paths are relative, use '/' separators and have no leading or trailing slash.
+ */
+final class StorePaths {
+
+  static final String METADATA = KoFields.METADATA_FILENAME.asStr();
+
+  /** Same depth the filesystem store searches for KOs. */
+  static final int MAX_DEPTH = 3;
+
+  private StorePaths() {}
+
+  static String toPath(URI relativeLocation) {
+    if (relativeLocation == null) {
+      return "";
+    }
+    String path = relativeLocation.normalize().getPath();
+    if (path == null) {
+      path = relativeLocation.toString();
+    }
+    while (path.startsWith("/") || path.startsWith("./")) {
+      path = path.substring(path.indexOf('/') + 1);
+    }
+    while (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    return path;
+  }
+
+  static String child(String path, String childName) {
+    return path.isEmpty() ? childName : path + "/" + childName;
+  }
+
+  /** The upper bound for a sorted-map range holding everything that starts with {@code prefix}. */
+  static String prefixEnd(String prefix) {
+    return prefix + '\uffff';
+  }
+
+  /**
+   * False for paths in open transactions and in hidden entries at any depth, such as a KO that a
+   * commit has renamed aside while it moves the new copy into place.
+   */
+  static boolean isPublished(String path) {
+    for (String segment : path.split("/")) {
+      if (segment.startsWith("trx-") || segment.startsWith(".")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The KO directory for a metadata file path, or null if the path is not a KO's metadata. */
+  static String koPathOf(String path) {
+    if (!path.endsWith("/" + METADATA)) {
+      return null;
+    }
+    return path.substring(0, path.length() - METADATA.length() - 1);
+  }
+
+  /** The KOs on a shelf whose file paths are {@code paths}, as {@code getChildren} reports them. */
+  static List<URI> children(Collection<String> paths) {
+    List<URI> children = new ArrayList<>();
+    for (String path : paths) {
+      String koPath = koPathOf(path);
+      if (koPath != null && koPath.split("/").length <= MAX_DEPTH && isPublished(koPath)) {
+        children.add(URI.create(koPath.replaceAll(" ", "%20") + "/"));
+      }
+    }
+    return children;
+  }
+}
@@ -0,0 +1,692 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.kgrid.shelf.repository.StorePaths.child;
+import static org.kgrid.shelf.repository.StorePaths.toPath;
+
+/**
+ * A shelf whose canonical copy lives in a slow backing store, with recently or frequently used
+ * files kept in a faster cache store in front of it. Both tiers can be any {@link
+ * CompoundDigitalObjectStore}, for example a filesystem store on local SSD in front of one on a
+ * network mount.
+ *
+ * <p>Reads are served from the cache, copying the file up from the backing store on a miss. The
+ * cache holds at most {@link Options#budgetBytes} bytes and evicts by least recent use or least
+ * frequent use. Files larger than a quarter of the budget are never cached. Writes either go to
+ * both tiers at once (write-through) or only to the cache, reaching the backing store on the next
+ * flush or when evicted (write-back). Transactions always go straight to the backing store.
+ *
+ * <p>The cache tier holds a {@code .tiered-cache} file listing the files changed only in the
+ * cache. At startup those are written to the backing store and the rest of the cache is emptied,
+ * since its copies may be stale. A cache tier that holds KOs but no marker is not started on, in
+ * case it is a real shelf given as the cache by mistake.
+ *
+ * <p>When an access log is configured, the ranked list of cached paths is saved there on each
+ * flush and on close, and those files are loaded into the cache again in the background at
+ * startup.
+ *
+ * <p>Use it with a connection string made of the cache and backing store connection strings and
+ * optional settings, separated by '|', like {@code
+ * tiered:filesystem:file:///ssd/cache|filesystem:file:///nfs/shelf|budget=10737418240&eviction=lfu}
+ * (on one line).
+ */
+@Qualifier("tiered")
+public class TieredCDOStore implements CompoundDigitalObjectStore {
+
+  private static final int LOCK_STRIPES = 64;
+  private static final double EVICT_TO = 0.9;
+  static final String MARKER = ".tiered-cache";
+
+  private final CompoundDigitalObjectStore cache;
+  private final CompoundDigitalObjectStore backing;
+  private final Options options;
+  private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+  private final Set<String> transactions = ConcurrentHashMap.newKeySet();
+  private final Map<String, Set<String>> transactionKos = new ConcurrentHashMap<>();
+  private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+  private final ScheduledExecutorService scheduler;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Object markerLock = new Object();
+  private long usedBytes;
+  private final Logger log = LoggerFactory.getLogger(TieredCDOStore.class);
+
+  public enum Eviction {
+    LRU,
+    LFU
+  }
+
+  public enum WritePolicy {
+    WRITE_THROUGH,
+    WRITE_BACK
+  }
+
+  /** Cache settings, parsed from {@code key=value} pairs joined by {@code &}. */
+  public static class Options {
+
+    long budgetBytes = 1024L * 1024 * 1024;
+    Eviction eviction = Eviction.LRU;
+    WritePolicy writePolicy = WritePolicy.WRITE_THROUGH;
+    long flushIntervalSeconds = 30;
+    Path accessLog;
+
+    public static Options parse(String settings) {
+      Options options = new Options();
+      if (settings == null || settings.isBlank()) {
+        return options;
+      }
+      for (String setting : settings.split("&")) {
+        String[] keyValue = setting.split("=", 2);
+        String value = keyValue.length > 1 ? keyValue[1].trim() : "";
+        switch (keyValue[0].trim()) {
+          case "budget":
+            options.budgetBytes = Long.parseLong(value);
+            break;
+          case "eviction":
+            options.eviction = Eviction.valueOf(value.toUpperCase());
+            break;
+          case "write":
+            options.writePolicy =
+                "back".equalsIgnoreCase(value) ? WritePolicy.WRITE_BACK : WritePolicy.WRITE_THROUGH;
+            break;
+          case "flush-interval":
+            options.flushIntervalSeconds = Long.parseLong(value);
+            break;
+          case "access-log":
+            options.accessLog = Paths.get(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown tiered store setting " + keyValue[0]);
+        }
+      }
+      return options;
+    }
+  }
+
+  public TieredCDOStore(String connectionURI) {
+    this(
+        CompoundDigitalObjectStoreFactory.create(tierSpec(connectionURI, 0)),
+        CompoundDigitalObjectStoreFactory.create(tierSpec(connectionURI, 1)),
+        Options.parse(tierSpec(connectionURI, 2)));
+  }
+
+  public TieredCDOStore(
+      CompoundDigitalObjectStore cache, CompoundDigitalObjectStore backing, Options options) {
+    this.cache = cache;
+    this.backing = backing;
+    this.options = options;
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    recoverCache();
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "tiered-store");
+              thread.setDaemon(true);
+              return thread;
+            });
+    if (options.flushIntervalSeconds > 0) {
+      scheduler.scheduleWithFixedDelay(
+          this::flushQuietly,
+          options.flushIntervalSeconds,
+          options.flushIntervalSeconds,
+          TimeUnit.SECONDS);
+    }
+    if (options.accessLog != null && Files.exists(options.accessLog)) {
+      scheduler.execute(this::warmUp);
+    }
+  }
+
+  @Override
+  public List<URI> getChildren() {
+    return backing.getChildren();
+  }
+
+  @Override
+  public URI getAbsoluteLocation(URI relativeLocation) {
+    return backing.getAbsoluteLocation(relativeLocation);
+  }
+
+  @Override
+  public ObjectNode getMetadata(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (!path.endsWith(StorePaths.METADATA)) {
+      path = child(path, StorePaths.METADATA);
+    }
+    return read(path, relativeLocation, CompoundDigitalObjectStore::getMetadata);
+  }
+
+  @Override
+  public byte[] getBinary(URI relativeLocation) {
+    return read(toPath(relativeLocation), relativeLocation, CompoundDigitalObjectStore::getBinary);
+  }
+
+  @Override
+  public InputStream getBinaryStream(URI relativeLocation) {
+    return read(
+        toPath(relativeLocation), relativeLocation, CompoundDigitalObjectStore::getBinaryStream);
+  }
+
+  @Override
+  public long getBinarySize(URI relativeLocation) {
+    CacheEntry entry = entries.get(toPath(relativeLocation));
+    return entry != null ? entry.size : backing.getBinarySize(relativeLocation);
+  }
+
+  @Override
+  public void createContainer(URI relativeLocation) {
+    backing.createContainer(relativeLocation);
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (!path.endsWith(StorePaths.METADATA)) {
+      path = child(path, StorePaths.METADATA);
+    }
+    try {
+      byte[] json =
+          mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValueAsBytes(metadata);
+      saveBinary(new ByteArrayInputStream(json), toUri(path));
+    } catch (IOException e) {
+      throw new ShelfException("Could not write to file at " + path, e);
+    }
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] data, URI relativeLocation) {
+    saveBinary(new ByteArrayInputStream(data), relativeLocation);
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (isInTransaction(path)) {
+      recordTransactionWrite(path);
+      backing.saveBinary(stream, relativeLocation);
+      return;
+    }
+    ReentrantLock lock = lockFor(path);
+    lock.lock();
+    try {
+      URI cacheUri = toUri(path);
+      removeEntry(path);
+      cache.saveBinary(stream, cacheUri);
+      long size = cache.getBinarySize(cacheUri);
+      boolean writeBack = options.writePolicy == WritePolicy.WRITE_BACK;
+      if (!writeBack || size > maxEntryBytes()) {
+        try (InputStream cached = cache.getBinaryStream(cacheUri)) {
+          backing.saveBinary(cached, relativeLocation);
+        } catch (IOException e) {
+          throw new ShelfException("Could not write to file at " + path, e);
+        }
+      }
+      if (size > maxEntryBytes()) {
+        cache.delete(cacheUri);
+        return;
+      }
+      addEntry(path, new CacheEntry(size, writeBack));
+    } finally {
+      lock.unlock();
+    }
+    if (options.writePolicy == WritePolicy.WRITE_BACK) {
+      saveMarker();
+    }
+    evictIfOverBudget(path);
+  }
+
+  @Override
+  public void delete(URI relativeLocation) throws ShelfException {
+    String path = toPath(relativeLocation);
+    for (String cached : cachedPathsUnder(path)) {
+      ReentrantLock lock = lockFor(cached);
+      lock.lock();
+      try {
+        removeEntry(cached);
+      } finally {
+        lock.unlock();
+      }
+    }
+    cache.delete(toUri(path));
+    backing.delete(relativeLocation);
+  }
+
+  @Override
+  public String createTransaction() {
+    String transactionID = backing.createTransaction();
+    transactions.add(transactionID);
+    return transactionID;
+  }
+
+  @Override
+  public void commitTransaction(String transactionID) {
+    try {
+      backing.commitTransaction(transactionID);
+    } finally {
+      transactions.remove(transactionID);
+      Set<String> kos = transactionKos.remove(transactionID);
+      if (kos != null) {
+        kos.forEach(ko -> invalidate(toUri(ko)));
+      }
+    }
+  }
+
+  @Override
+  public void rollbackTransaction(String transactionID) {
+    transactions.remove(transactionID);
+    transactionKos.remove(transactionID);
+    backing.rollbackTransaction(transactionID);
+  }
+
+  /** Drops cached copies of everything under a path, writing back any unflushed changes first. */
+  public void invalidate(URI relativeLocation) {
+    for (String cached : cachedPathsUnder(toPath(relativeLocation))) {
+      ReentrantLock lock = lockFor(cached);
+      lock.lock();
+      try {
+        evict(cached);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /** Writes every file changed only in the cache to the backing store, and saves the access log. */
+  public void flush() {
+    boolean wroteBack = false;
+    for (Map.Entry<String, CacheEntry> cached : new ArrayList<>(entries.entrySet())) {
+      if (cached.getValue().dirty) {
+        ReentrantLock lock = lockFor(cached.getKey());
+        lock.lock();
+        try {
+          writeBack(cached.getKey(), entries.get(cached.getKey()));
+          wroteBack = true;
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    if (wroteBack) {
+      saveMarker();
+    }
+    saveAccessLog();
+  }
+
+  public void close() {
+    scheduler.shutdownNow();
+    flush();
+  }
+
+  long getUsedBytes() {
+    synchronized (entries) {
+      return usedBytes;
+    }
+  }
+
+  boolean isCached(URI relativeLocation) {
+    return entries.containsKey(toPath(relativeLocation));
+  }
+
+  /**
+   * Reads a file from the cache, copying it up first if it is small enough, or else from the
+   * backing store. Another read can evict the file between the two steps, and every evicted file
+   * is in the backing store, so a cache miss falls back to it too.
+   */
+  private <T> T read(
+      String path,
+      URI relativeLocation,
+      BiFunction<CompoundDigitalObjectStore, URI, T> reader) {
+    if (!isInTransaction(path) && ensureCached(path)) {
+      try {
+        return reader.apply(cache, toUri(path));
+      } catch (ShelfResourceNotFound e) {
+        log.debug("{} was evicted while it was read, reading it from the backing store", path);
+      }
+    }
+    return reader.apply(backing, relativeLocation);
+  }
+
+  /** Copies a file up into the cache if it is not there already and is small enough. */
+  private boolean ensureCached(String path) {
+    CacheEntry entry = entries.get(path);
+    if (entry != null) {
+      entry.touch();
+      return true;
+    }
+    ReentrantLock lock = lockFor(path);
+    lock.lock();
+    try {
+      entry = entries.get(path);
+      if (entry != null) {
+        entry.touch();
+        return true;
+      }
+      URI uri = toUri(path);
+      long size;
+      try {
+        size = backing.getBinarySize(uri);
+      } catch (ShelfException e) {
+        return false;
+      }
+      if (size > maxEntryBytes()) {
+        return false;
+      }
+      try (InputStream data = backing.getBinaryStream(uri)) {
+        cache.saveBinary(data, uri);
+      } catch (IOException | ShelfException e) {
+        log.debug("Cannot cache {}: {}", path, e.getMessage());
+        return false;
+      }
+      addEntry(path, new CacheEntry(size, false));
+    } finally {
+      lock.unlock();
+    }
+    evictIfOverBudget(path);
+    return true;
+  }
+
+  /**
+   * Evicts the coldest files until the cache is back under its target size. The file just added
+   * is left out, since under LFU it is always among the coldest.
+   */
+  private void evictIfOverBudget(String added) {
+    if (getUsedBytes() <= options.budgetBytes) {
+      return;
+    }
+    Comparator<Map.Entry<String, CacheEntry>> coldestFirst =
+        options.eviction == Eviction.LFU
+            ? Comparator.comparingLong((Map.Entry<String, CacheEntry> e) -> e.getValue().hits)
+                .thenComparingLong(e -> e.getValue().lastAccess)
+            : Comparator.comparingLong(e -> e.getValue().lastAccess);
+    List<String> candidates =
+        new ArrayList<>(entries.entrySet())
+            .stream()
+            .filter(e -> !e.getKey().equals(added))
+            .sorted(coldestFirst)
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+    long target = (long) (options.budgetBytes * EVICT_TO);
+    for (String path : candidates) {
+      if (getUsedBytes() <= target) {
+        break;
+      }
+      ReentrantLock lock = lockFor(path);
+      if (lock.tryLock()) {
+        try {
+          evict(path);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /** Removes a file from the cache, writing it back first if it has unflushed changes. */
+  private void evict(String path) {
+    CacheEntry entry = entries.get(path);
+    if (entry == null) {
+      return;
+    }
+    writeBack(path, entry);
+    removeEntry(path);
+  }
+
+  private void writeBack(String path, CacheEntry entry) {
+    if (entry == null || !entry.dirty) {
+      return;
+    }
+    try (InputStream cached = cache.getBinaryStream(toUri(path))) {
+      backing.saveBinary(cached, toUri(path));
+      entry.dirty = false;
+    } catch (IOException e) {
+      throw new ShelfException("Cannot write back " + path, e);
+    }
+  }
+
+  private void addEntry(String path, CacheEntry entry) {
+    synchronized (entries) {
+      CacheEntry previous = entries.put(path, entry);
+      usedBytes += entry.size - (previous != null ? previous.size : 0);
+    }
+  }
+
+  private void removeEntry(String path) {
+    CacheEntry removed;
+    synchronized (entries) {
+      removed = entries.remove(path);
+      if (removed != null) {
+        usedBytes -= removed.size;
+      }
+    }
+    if (removed != null) {
+      cache.delete(toUri(path));
+    }
+  }
+
+  private List<String> cachedPathsUnder(String path) {
+    return entries.keySet().stream()
+        .filter(cached -> cached.equals(path) || cached.startsWith(path + "/"))
+        .collect(Collectors.toList());
+  }
+
+  private void saveAccessLog() {
+    if (options.accessLog == null) {
+      return;
+    }
+    Comparator<Map.Entry<String, CacheEntry>> hottestFirst =
+        options.eviction == Eviction.LFU
+            ? Comparator.comparingLong((Map.Entry<String, CacheEntry> e) -> -e.getValue().hits)
+            : Comparator.comparingLong(e -> -e.getValue().lastAccess);
+    List<String> ranked =
+        new ArrayList<>(entries.entrySet())
+            .stream().sorted(hottestFirst).map(Map.Entry::getKey).collect(Collectors.toList());
+    try {
+      Path temp = options.accessLog.resolveSibling(options.accessLog.getFileName() + ".tmp");
+      Files.write(temp, ranked, StandardCharsets.UTF_8);
+      Files.move(temp, options.accessLog, REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.warn("Cannot save cache access log {}: {}", options.accessLog, e.getMessage());
+    }
+  }
+
+  /** Loads the files named in the access log into the cache, hottest first, until it is full. */
+  private void warmUp() {
+    List<String> ranked;
+    try {
+      ranked = Files.readAllLines(options.accessLog, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      log.warn("Cannot read cache access log {}: {}", options.accessLog, e.getMessage());
+      return;
+    }
+    int warmed = 0;
+    for (String path : ranked) {
+      if (Thread.currentThread().isInterrupted() || getUsedBytes() >= options.budgetBytes) {
+        break;
+      }
+      if (!path.isBlank() && ensureCached(path.trim())) {
+        warmed++;
+      }
+    }
+    log.info("Warmed cache with {} files from {}", warmed, options.accessLog);
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      log.warn("Cannot flush tiered store cache: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the files an earlier run left changed only in the cache to the backing store, then
+   * empties the cache, whose other copies may be stale. Fails rather than delete anything when the
+   * cache holds KOs but no marker, or when the earlier changes cannot be written back.
+   */
+  private void recoverCache() {
+    List<URI> children = cache.getChildren();
+    List<String> dirty = readMarker();
+    if (dirty == null && !children.isEmpty()) {
+      throw new ShelfException(
+          "The cache tier "
+              + cache.getAbsoluteLocation(null)
+              + " holds KOs the tiered store did not write, is it the right location?");
+    }
+    if (dirty != null) {
+      for (String path : dirty) {
+        InputStream cached;
+        try {
+          cached = cache.getBinaryStream(toUri(path));
+        } catch (ShelfException e) {
+          // Deleted after it was written, so there is nothing to write back
+          continue;
+        }
+        try (InputStream data = cached) {
+          backing.saveBinary(data, toUri(path));
+        } catch (IOException e) {
+          throw new ShelfException("Cannot write back " + path + " left in the cache tier", e);
+        }
+      }
+      if (!dirty.isEmpty()) {
+        log.info("Wrote back {} files left unflushed in the cache tier", dirty.size());
+      }
+    }
+    for (URI child : children) {
+      cache.delete(child);
+    }
+    saveMarker();
+  }
+
+  /** The files an earlier run left changed only in the cache, or null if it has no marker. */
+  private List<String> readMarker() {
+    byte[] marker;
+    try {
+      marker = cache.getBinary(toUri(MARKER));
+    } catch (ShelfException e) {
+      return null;
+    }
+    try {
+      List<String> dirty = new ArrayList<>();
+      mapper.readTree(marker).path("dirty").forEach(path -> dirty.add(path.asText()));
+      return dirty;
+    } catch (IOException e) {
+      throw new ShelfException(
+          "Cannot read "
+              + MARKER
+              + " in the cache tier, it may list changes that were never written back",
+          e);
+    }
+  }
+
+  /** Saves the marker, listing the files that are changed only in the cache. */
+  private void saveMarker() {
+    synchronized (markerLock) {
+      List<String> dirty =
+          entries.entrySet().stream()
+              .filter(cached -> cached.getValue().dirty)
+              .map(Map.Entry::getKey)
+              .sorted()
+              .collect(Collectors.toList());
+      ObjectNode marker = mapper.createObjectNode();
+      marker.set("dirty", mapper.valueToTree(dirty));
+      try {
+        cache.saveBinary(
+            new ByteArrayInputStream(mapper.writeValueAsBytes(marker)), toUri(MARKER));
+      } catch (IOException e) {
+        throw new ShelfException("Cannot save " + MARKER + " in the cache tier", e);
+      }
+    }
+  }
+
+  /** Remembers the top-level entry a transaction wrote so its cached copy is dropped on commit. */
+  private void recordTransactionWrite(String path) {
+    String[] segments = path.split("/", 3);
+    if (segments.length > 1) {
+      transactionKos
+          .computeIfAbsent(segments[0], id -> ConcurrentHashMap.newKeySet())
+          .add(segments[1]);
+    }
+  }
+
+  private boolean isInTransaction(String path) {
+    int slash = path.indexOf('/');
+    return slash > 0 && transactions.contains(path.substring(0, slash));
+  }
+
+  private long maxEntryBytes() {
+    return options.budgetBytes / 4;
+  }
+
+  private ReentrantLock lockFor(String path) {
+    return locks[Math.floorMod(path.hashCode(), LOCK_STRIPES)];
+  }
+
+  private URI toUri(String path) {
+    try {
+      return new URI(null, null, path, null);
+    } catch (URISyntaxException e) {
+      throw new ShelfException("Invalid path " + path, e);
+    }
+  }
+
+  /** The cache store, backing store or settings part of a tiered connection string. */
+  private static String tierSpec(String connectionURI, int part) {
+    String[] parts = connectionURI.substring(connectionURI.indexOf(':') + 1).split("\\|", 3);
+    if (parts.length < 2) {
+      throw new IllegalArgumentException(
+          "A tiered store needs a cache and a backing store, separated by '|'");
+    }
+    return part < parts.length ? parts[part] : null;
+  }
+
+  private static class CacheEntry {
+
+    final long size;
+    volatile long hits = 1;
+    volatile long lastAccess = System.nanoTime();
+    volatile boolean dirty;
+
+    CacheEntry(long size, boolean dirty) {
+      this.size = size;
+      this.dirty = dirty;
+    }
+
+    void touch() {
+      hits++;
+      lastAccess = System.nanoTime();
+    }
+  }
+}
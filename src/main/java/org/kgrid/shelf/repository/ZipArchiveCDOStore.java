@@ -0,0 +1,417 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.kgrid.shelf.repository.StorePaths.child;
+import static org.kgrid.shelf.repository.StorePaths.toPath;
+
+/**
+ * A read-only shelf served straight out of a directory of KO zips, the same zips the shelf exports
+ * and imports. Only each archive's central directory is read to build the index, so nothing is
+ * unpacked at startup. Files stored without compression are read with positional reads from the
+ * archive itself; compressed files are inflated through a shared pool of open {@link ZipFile}
+ * handles. Archives added to, changed in or removed from the directory are picked up the next time
+ * the shelf is listed.
+ *
+ * <p>Use it with a connection string like {@code zip:file:///data/kos}. Anything that would change
+ * the shelf throws a {@link ShelfException}.
+ */
+@Qualifier("zip")
+public class ZipArchiveCDOStore implements CompoundDigitalObjectStore {
+
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+  private static final int LOCAL_FILE_HEADER = 0x04034b50;
+  private static final int END_RECORD_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final long ZIP64_MARKER = 0xffffffffL;
+
+  int maxOpenArchives = 64;
+
+  private final Path archiveDir;
+  private final ZipFilePool pool;
+  private final Map<Path, Archive> archives = new HashMap<>();
+  private volatile ConcurrentSkipListMap<String, ArchiveEntry> index =
+      new ConcurrentSkipListMap<>();
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Logger log = LoggerFactory.getLogger(ZipArchiveCDOStore.class);
+
+  public ZipArchiveCDOStore(String connectionURI) {
+    connectionURI = connectionURI.replace(" ", "%20");
+    URI uri = URI.create(connectionURI.substring(connectionURI.indexOf(':') + 1));
+    archiveDir = uri.getHost() == null ? Paths.get(uri) : Paths.get(uri.getHost(), uri.getPath());
+    pool = new ZipFilePool(maxOpenArchives);
+    if (!Files.isDirectory(archiveDir)) {
+      log.error("Unable to find KO archive directory at {}", archiveDir);
+    }
+    refresh();
+  }
+
+  @Override
+  public List<URI> getChildren() {
+    refresh();
+    return StorePaths.children(index.keySet());
+  }
+
+  @Override
+  public URI getAbsoluteLocation(URI relativeLocation) {
+    URI root = archiveDir.toUri();
+    return relativeLocation == null ? root : root.resolve(relativeLocation);
+  }
+
+  @Override
+  public ObjectNode getMetadata(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    if (!path.endsWith(StorePaths.METADATA) || isDirectory(path)) {
+      path = child(path, StorePaths.METADATA);
+    }
+    ArchiveEntry entry = index.get(path);
+    if (entry == null) {
+      throw new ShelfResourceNotFound("Metadata resource not found " + path);
+    }
+    try (InputStream json = open(entry)) {
+      return (ObjectNode) mapper.readTree(json);
+    } catch (IOException | ClassCastException e) {
+      throw new ShelfResourceNotFound("Metadata resource not found " + path, e);
+    }
+  }
+
+  @Override
+  public byte[] getBinary(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    try (InputStream data = open(findExisting(path))) {
+      return data.readAllBytes();
+    } catch (IOException e) {
+      throw new ShelfResourceNotFound("Binary resource not found " + path, e);
+    }
+  }
+
+  @Override
+  public InputStream getBinaryStream(URI relativeLocation) {
+    String path = toPath(relativeLocation);
+    try {
+      return open(findExisting(path));
+    } catch (IOException e) {
+      throw new ShelfResourceNotFound("Binary resource not found " + path, e);
+    }
+  }
+
+  @Override
+  public long getBinarySize(URI relativeLocation) {
+    ArchiveEntry entry = index.get(toPath(relativeLocation));
+    if (entry == null) {
+      throw new ShelfException("Cannot get file size for " + relativeLocation);
+    }
+    return entry.size;
+  }
+
+  @Override
+  public void createContainer(URI relativeLocation) {
+    throw readOnly();
+  }
+
+  @Override
+  public void saveMetadata(JsonNode metadata, URI relativeLocation) {
+    throw readOnly();
+  }
+
+  @Override
+  @Deprecated
+  public void saveBinary(byte[] data, URI relativeLocation) {
+    throw readOnly();
+  }
+
+  @Override
+  public void saveBinary(InputStream stream, URI relativeLocation) {
+    throw readOnly();
+  }
+
+  @Override
+  public void delete(URI relativeLocation) throws ShelfException {
+    throw readOnly();
+  }
+
+  @Override
+  public String createTransaction() {
+    throw readOnly();
+  }
+
+  @Override
+  public void commitTransaction(String transactionID) {
+    throw readOnly();
+  }
+
+  @Override
+  public void rollbackTransaction(String transactionID) {
+    throw readOnly();
+  }
+
+  /** Closes every open archive handle. */
+  public void close() {
+    pool.close();
+  }
+
+  /**
+   * Re-reads the central directory of each archive that was added or changed since the last
+   * refresh, and drops archives that are gone. Unchanged archives are not opened.
+   */
+  public synchronized void refresh() {
+    List<Path> zips;
+    try (Stream<Path> files = Files.list(archiveDir)) {
+      zips =
+          files
+              .filter(file -> file.getFileName().toString().toLowerCase().endsWith(".zip"))
+              .sorted()
+              .collect(Collectors.toList());
+    } catch (IOException e) {
+      log.warn("Cannot list KO archives in {}: {}", archiveDir, e.getMessage());
+      return;
+    }
+    boolean changed = archives.keySet().retainAll(zips);
+    for (Path zip : zips) {
+      Archive current = archives.get(zip);
+      try {
+        long size = Files.size(zip);
+        long modified = Files.getLastModifiedTime(zip).toMillis();
+        if (current == null || current.size != size || current.modified != modified) {
+          pool.invalidate(zip);
+          archives.put(zip, new Archive(size, modified, readEntries(zip)));
+          changed = true;
+        }
+      } catch (IOException e) {
+        log.warn("Skipping unreadable KO archive {}: {}", zip, e.getMessage());
+        changed |= archives.remove(zip) != null;
+      }
+    }
+    if (changed) {
+      ConcurrentSkipListMap<String, ArchiveEntry> rebuilt = new ConcurrentSkipListMap<>();
+      for (Path zip : zips) {
+        Archive archive = archives.get(zip);
+        if (archive == null) {
+          continue;
+        }
+        for (ArchiveEntry entry : archive.entries) {
+          ArchiveEntry shadowed = rebuilt.put(entry.name, entry);
+          if (shadowed != null) {
+            log.warn("{} in {} hides the copy in {}", entry.name, zip, shadowed.archive);
+          }
+        }
+      }
+      index = rebuilt;
+    }
+  }
+
+  private InputStream open(ArchiveEntry entry) throws IOException {
+    ZipFilePool.Lease lease = pool.acquire(entry.archive);
+    try {
+      if (entry.method == ZipEntry.STORED && entry.localHeaderOffset >= 0) {
+        FileChannel channel = lease.channel();
+        return new ChannelRegionInputStream(channel, dataOffset(entry, channel), entry.size, lease);
+      }
+      ZipFile zipFile = lease.zipFile();
+      ZipEntry zipEntry = zipFile.getEntry(entry.name);
+      if (zipEntry == null) {
+        throw new IOException("No " + entry.name + " in " + entry.archive);
+      }
+      return new FilterInputStream(zipFile.getInputStream(zipEntry)) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            lease.close();
+          }
+        }
+      };
+    } catch (IOException | RuntimeException e) {
+      lease.close();
+      throw e;
+    }
+  }
+
+  /** Where a stored file's bytes start, read from its local header the first time it is needed. */
+  private long dataOffset(ArchiveEntry entry, FileChannel channel) throws IOException {
+    if (entry.dataOffset < 0) {
+      ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header, entry.localHeaderOffset);
+      if (header.getInt(0) != LOCAL_FILE_HEADER) {
+        throw new IOException("Bad local header for " + entry.name + " in " + entry.archive);
+      }
+      int nameLength = Short.toUnsignedInt(header.getShort(26));
+      int extraLength = Short.toUnsignedInt(header.getShort(28));
+      entry.dataOffset = entry.localHeaderOffset + 30 + nameLength + extraLength;
+    }
+    return entry.dataOffset;
+  }
+
+  private List<ArchiveEntry> readEntries(Path zip) throws IOException {
+    try (FileChannel channel = FileChannel.open(zip, READ)) {
+      List<ArchiveEntry> entries = readCentralDirectory(zip, channel);
+      if (entries != null) {
+        return entries;
+      }
+    }
+    // Zip64 and other layouts the central directory reader does not handle: let ZipFile read
+    // them, and inflate every file through it
+    List<ArchiveEntry> entries = new ArrayList<>();
+    try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+      Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+      while (zipEntries.hasMoreElements()) {
+        ZipEntry zipEntry = zipEntries.nextElement();
+        if (!zipEntry.isDirectory()) {
+          entries.add(
+              new ArchiveEntry(
+                  zip, zipEntry.getName(), ZipEntry.DEFLATED, zipEntry.getSize(), -1));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /** Reads the file list from the central directory, or returns null if it cannot. */
+  private List<ArchiveEntry> readCentralDirectory(Path zip, FileChannel channel)
+      throws IOException {
+    long fileSize = channel.size();
+    int tailSize = (int) Math.min(fileSize, END_RECORD_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, tail, fileSize - tailSize);
+    int end = -1;
+    for (int i = tailSize - END_RECORD_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new IOException("Not a zip archive");
+    }
+    int entryCount = Short.toUnsignedInt(tail.getShort(end + 10));
+    long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+    long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+    if (entryCount == 0xffff || directorySize == ZIP64_MARKER || directoryOffset == ZIP64_MARKER) {
+      return null;
+    }
+    ByteBuffer directory =
+        ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, directory, directoryOffset);
+
+    List<ArchiveEntry> entries = new ArrayList<>(entryCount);
+    int position = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (directory.getInt(position) != CENTRAL_DIRECTORY_HEADER) {
+        return null;
+      }
+      int method = Short.toUnsignedInt(directory.getShort(position + 10));
+      long compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+      long size = Integer.toUnsignedLong(directory.getInt(position + 24));
+      int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+      int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+      int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+      long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+      if (compressedSize == ZIP64_MARKER
+          || size == ZIP64_MARKER
+          || localHeaderOffset == ZIP64_MARKER) {
+        return null;
+      }
+      byte[] name = new byte[nameLength];
+      directory.position(position + 46);
+      directory.get(name);
+      String entryName = new String(name, StandardCharsets.UTF_8).replace('\\', '/');
+      if (!entryName.endsWith("/")) {
+        entries.add(new ArchiveEntry(zip, entryName, method, size, localHeaderOffset));
+      }
+      position += 46 + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of archive");
+      }
+    }
+    buffer.flip();
+  }
+
+  private boolean isDirectory(String path) {
+    String firstFile = index.ceilingKey(path + "/");
+    return firstFile != null && firstFile.startsWith(path + "/");
+  }
+
+  private ArchiveEntry findExisting(String path) {
+    ArchiveEntry entry = index.get(path);
+    if (entry == null) {
+      throw new ShelfResourceNotFound("Binary resource not found " + path);
+    }
+    return entry;
+  }
+
+  private ShelfException readOnly() {
+    return new ShelfException("The KO archive shelf at " + archiveDir + " is read-only");
+  }
+
+  private static class Archive {
+
+    final long size;
+    final long modified;
+    final List<ArchiveEntry> entries;
+
+    Archive(long size, long modified, List<ArchiveEntry> entries) {
+      this.size = size;
+      this.modified = modified;
+      this.entries = entries;
+    }
+  }
+
+  /** A file in an archive. {@code localHeaderOffset} is -1 if it must be read through ZipFile. */
+  private static class ArchiveEntry {
+
+    final Path archive;
+    final String name;
+    final int method;
+    final long size;
+    final long localHeaderOffset;
+    volatile long dataOffset = -1;
+
+    ArchiveEntry(Path archive, String name, int method, long size, long localHeaderOffset) {
+      this.archive = archive;
+      this.name = name;
+      this.method = method;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package org.kgrid.shelf.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Open handles on zip archives, shared between readers. Each handle is reference counted and only
+ * closed once nobody holds a lease on it. Beyond {@code maxOpen} handles, the least recently used
+ * idle ones are closed.
+ */
+class ZipFilePool implements Closeable {
+
+  private final int maxOpen;
+  private final LinkedHashMap<Path, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+  private final Logger log = LoggerFactory.getLogger(ZipFilePool.class);
+
+  ZipFilePool(int maxOpen) {
+    this.maxOpen = maxOpen;
+  }
+
+  synchronized Lease acquire(Path archive) {
+    Handle handle = handles.computeIfAbsent(archive, Handle::new);
+    handle.refs++;
+    evictIdle();
+    return new Lease(handle);
+  }
+
+  /** Closes the handle on an archive that has changed, once its current readers are done. */
+  synchronized void invalidate(Path archive) {
+    Handle handle = handles.remove(archive);
+    if (handle != null) {
+      handle.retired = true;
+      if (handle.refs == 0) {
+        handle.close();
+      }
+    }
+  }
+
+  synchronized int openHandles() {
+    return handles.size();
+  }
+
+  @Override
+  public synchronized void close() {
+    handles.values().forEach(Handle::close);
+    handles.clear();
+  }
+
+  private synchronized void release(Handle handle) {
+    handle.refs--;
+    if (handle.retired && handle.refs == 0) {
+      handle.close();
+    } else {
+      evictIdle();
+    }
+  }
+
+  private void evictIdle() {
+    Iterator<Map.Entry<Path, Handle>> leastRecentFirst = handles.entrySet().iterator();
+    while (handles.size() > maxOpen && leastRecentFirst.hasNext()) {
+      Handle handle = leastRecentFirst.next().getValue();
+      if (handle.refs == 0) {
+        leastRecentFirst.remove();
+        handle.close();
+      }
+    }
+  }
+
+  /** A reader's hold on an archive. Closing it hands the archive back to the pool. */
+  class Lease implements Closeable {
+
+    private final Handle handle;
+    private boolean released;
+
+    private Lease(Handle handle) {
+      this.handle = handle;
+    }
+
+    ZipFile zipFile() throws IOException {
+      return handle.zipFile();
+    }
+
+    FileChannel channel() throws IOException {
+      return handle.channel();
+    }
+
+    @Override
+    public void close() {
+      synchronized (ZipFilePool.this) {
+        if (!released) {
+          released = true;
+          release(handle);
+        }
+      }
+    }
+  }
+
+  private class Handle {
+
+    private final Path archive;
+    private ZipFile zipFile;
+    private FileChannel channel;
+    private int refs;
+    private boolean retired;
+
+    Handle(Path archive) {
+      this.archive = archive;
+    }
+
+    synchronized ZipFile zipFile() throws IOException {
+      if (zipFile == null) {
+        zipFile = new ZipFile(archive.toFile());
+      }
+      return zipFile;
+    }
+
+    synchronized FileChannel channel() throws IOException {
+      if (channel == null) {
+        channel = FileChannel.open(archive, READ);
+      }
+      return channel;
+    }
+
+    synchronized void close() {
+      try {
+        if (zipFile != null) {
+          zipFile.close();
+        }
+        if (channel != null) {
+          channel.close();
+        }
+      } catch (IOException e) {
+        log.warn("Cannot close {}: {}", archive, e.getMessage());
+      }
+    }
+  }
+}
@@ -3,17 +3,17 @@ package org.kgrid.shelf.service;
 import org.kgrid.shelf.domain.ArkId;
 import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.kgrid.shelf.repository.ShelfMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.zeroturnaround.zip.FileSource;
 import org.zeroturnaround.zip.ZipEntrySource;
 
-import java.io.File;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
-import org.zeroturnaround.zip.ZipUtil;
+import java.util.zip.ZipEntry;
 
 import static org.zeroturnaround.zip.ZipUtil.pack;
 
@@ -21,23 +21,54 @@ import static org.zeroturnaround.zip.ZipUtil.pack;
 public class ExportService {
 
   @Autowired KnowledgeObjectRepository knowledgeObjectRepository;
+  @Autowired ShelfMetrics metrics = ShelfMetrics.disabled();
 
   public void zipKnowledgeObject(ArkId arkId, OutputStream outputStream)
       throws ImportExportException {
 
     KnowledgeObjectWrapper kow = knowledgeObjectRepository.getKow(arkId);
 
-    URI koBase =
-        knowledgeObjectRepository
-            .getKoRepoLocation()
-            .resolve(knowledgeObjectRepository.getObjectLocation(arkId) + "/");
-
     List<ZipEntrySource> koFiles = new ArrayList<>();
     for (URI uri : kow.getArtifactLocations()) {
-      URI location = koBase.resolve(uri);
-      koFiles.add(
-          new FileSource(arkId.getFullDashArk() + "/" + uri.toString(), new File(location)));
+      koFiles.add(new ArtifactSource(arkId, uri.toString()));
+    }
+    ShelfMetrics.Transfer transfer = metrics.startTransfer("export");
+    boolean exported = false;
+    try {
+      pack(koFiles.toArray(new ZipEntrySource[0]), transfer.meter(outputStream));
+      exported = true;
+    } finally {
+      transfer.finish(exported);
+    }
+  }
+
+  /**
+   * A zip entry read from the shelf through the repository when it is packed, so exports work for
+   * any store and never hold more than one artifact open.
+   */
+  private class ArtifactSource implements ZipEntrySource {
+
+    private final ArkId arkId;
+    private final String artifact;
+
+    ArtifactSource(ArkId arkId, String artifact) {
+      this.arkId = arkId;
+      this.artifact = artifact;
+    }
+
+    @Override
+    public String getPath() {
+      return arkId.getFullDashArk() + "/" + artifact;
+    }
+
+    @Override
+    public ZipEntry getEntry() {
+      return new ZipEntry(getPath());
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return knowledgeObjectRepository.getBinaryStream(arkId, artifact);
     }
-    pack(koFiles.toArray(new ZipEntrySource[0]), outputStream);
   }
 }
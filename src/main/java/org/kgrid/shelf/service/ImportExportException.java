@@ -2,6 +2,10 @@ package org.kgrid.shelf.service;
 
 public class ImportExportException extends RuntimeException {
 
+  public ImportExportException(String s) {
+    super(s);
+  }
+
   public ImportExportException(String s, Exception e) {
     super(s,e);
   }
@@ -0,0 +1,132 @@
+package org.kgrid.shelf.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** An import running in the background, as reported by the import job status endpoint. */
+public class ImportJob {
+
+  public enum Status {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED,
+    CANCELLED;
+
+    boolean isFinished() {
+      return this == COMPLETED || this == FAILED || this == CANCELLED;
+    }
+  }
+
+  private final String id;
+  private final String type;
+  private final ImportProgress progress = new ImportProgress();
+  private final List<String> imported = Collections.synchronizedList(new ArrayList<>());
+  private final Date submitted = new Date();
+  private volatile Status status = Status.QUEUED;
+  private volatile Date finished;
+  private volatile String error;
+  private volatile Future<?> future;
+  private final AtomicReference<Runnable> cleanup;
+
+  ImportJob(String id, String type, Runnable cleanup) {
+    this.id = id;
+    this.type = type;
+    this.cleanup = new AtomicReference<>(cleanup);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public ImportProgress getProgress() {
+    return progress;
+  }
+
+  public List<String> getImported() {
+    synchronized (imported) {
+      return new ArrayList<>(imported);
+    }
+  }
+
+  public Date getSubmitted() {
+    return submitted;
+  }
+
+  public Date getFinished() {
+    return finished;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  @JsonIgnore
+  public boolean isFinished() {
+    return status.isFinished();
+  }
+
+  void setFuture(Future<?> future) {
+    this.future = future;
+  }
+
+  void addImported(String ark) {
+    imported.add(ark);
+  }
+
+  synchronized boolean start() {
+    if (status != Status.QUEUED) {
+      return false;
+    }
+    status = Status.RUNNING;
+    progress.started();
+    return true;
+  }
+
+  synchronized void finish(Status finalStatus, String error) {
+    if (isFinished()) {
+      return;
+    }
+    progress.finished();
+    this.status = finalStatus;
+    this.error = error;
+    this.finished = new Date();
+  }
+
+  synchronized void cancel() {
+    if (isFinished()) {
+      return;
+    }
+    boolean neverStarted = status == Status.QUEUED;
+    progress.cancel();
+    if (future != null) {
+      future.cancel(true);
+    }
+    finish(Status.CANCELLED, null);
+    if (neverStarted) {
+      cleanUp();
+    }
+  }
+
+  /** Releases anything the job holds on to, such as an uploaded zip. Runs at most once. */
+  void cleanUp() {
+    Runnable task = cleanup.getAndSet(null);
+    if (task != null) {
+      task.run();
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package org.kgrid.shelf.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.apache.commons.io.FileUtils;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs imports in the background on a bounded executor so that import requests can return right
+ * away with a job id. Finished jobs are kept for {@code kgrid.shelf.import.jobs.ttl} seconds so
+ * their status can still be read, then dropped.
+ */
+@Service
+public class ImportJobService implements InitializingBean, DisposableBean {
+
+  @Autowired ImportService importService;
+  @Autowired ManifestReader manifestReader;
+
+  @Value("${kgrid.shelf.import.jobs.threads:2}")
+  int threads;
+
+  @Value("${kgrid.shelf.import.jobs.queue:100}")
+  int queueCapacity;
+
+  @Value("${kgrid.shelf.import.jobs.ttl:3600}")
+  long ttlSeconds;
+
+  private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+  private ThreadPoolExecutor executor;
+  private final Logger log = LoggerFactory.getLogger(ImportJobService.class);
+
+  @Override
+  public void afterPropertiesSet() {
+    AtomicInteger threadCount = new AtomicInteger();
+    executor =
+        new ThreadPoolExecutor(
+            Math.max(threads, 1),
+            Math.max(threads, 1),
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(queueCapacity, 1)),
+            runnable -> {
+              Thread thread = new Thread(runnable, "ko-import-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Imports a zip that has been copied somewhere that outlives the request. The directory holding
+   * it is deleted once the import is done.
+   */
+  public ImportJob submitZip(Resource zipResource, File uploadDir) {
+    return submit(
+        "zip",
+        progress -> {
+          try {
+            ArrayNode imported = JsonNodeFactory.instance.arrayNode();
+            imported.add(importService.importZip(zipResource, progress).toString());
+            progress.koImported();
+            return imported;
+          } catch (RuntimeException e) {
+            progress.koFailed(zipResource.getDescription(), e.getMessage());
+            throw e;
+          }
+        },
+        () -> FileUtils.deleteQuietly(uploadDir));
+  }
+
+  public ImportJob submitManifest(JsonNode manifest) {
+    return submit("manifest", progress -> manifestReader.loadManifest(manifest, progress), null);
+  }
+
+  public ImportJob submitManifestList(JsonNode manifestList) {
+    return submit(
+        "manifest-list", progress -> manifestReader.loadManifests(manifestList, progress), null);
+  }
+
+  public ImportJob getJob(String jobId) {
+    purgeExpiredJobs();
+    ImportJob job = jobs.get(jobId);
+    if (job == null) {
+      throw new ShelfResourceNotFound("Import job not found " + jobId);
+    }
+    return job;
+  }
+
+  public Collection<ImportJob> getJobs() {
+    purgeExpiredJobs();
+    List<ImportJob> allJobs = new ArrayList<>(jobs.values());
+    allJobs.sort(Comparator.comparing(ImportJob::getSubmitted));
+    return allJobs;
+  }
+
+  public ImportJob cancel(String jobId) {
+    ImportJob job = getJob(jobId);
+    job.cancel();
+    log.info("Cancelled import job {}", jobId);
+    return job;
+  }
+
+  void purgeExpiredJobs() {
+    long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ttlSeconds);
+    jobs.values()
+        .removeIf(job -> job.isFinished() && job.getFinished().getTime() < cutoff);
+  }
+
+  private ImportJob submit(
+      String type, Function<ImportProgress, ArrayNode> work, Runnable cleanup) {
+    purgeExpiredJobs();
+    ImportJob job = new ImportJob(UUID.randomUUID().toString(), type, cleanup);
+    jobs.put(job.getId(), job);
+    try {
+      job.setFuture(executor.submit(() -> run(job, work)));
+    } catch (RejectedExecutionException e) {
+      jobs.remove(job.getId());
+      job.cleanUp();
+      throw new ShelfException("Import queue is full, try again later", e);
+    }
+    log.info("Queued {} import job {}", type, job.getId());
+    return job;
+  }
+
+  private void run(ImportJob job, Function<ImportProgress, ArrayNode> work) {
+    if (!job.start()) {
+      return;
+    }
+    try {
+      ArrayNode imported = work.apply(job.getProgress());
+      imported.forEach(ark -> job.addImported(ark.asText()));
+      job.finish(ImportJob.Status.COMPLETED, null);
+    } catch (Exception e) {
+      log.warn("Import job {} failed: {}", job.getId(), e.getMessage());
+      job.finish(ImportJob.Status.FAILED, e.getMessage());
+    } finally {
+      job.cleanUp();
+    }
+    log.info(
+        "Import job {} {}: {} imported, {} failed, {} bytes",
+        job.getId(),
+        job.getStatus(),
+        job.getProgress().getKosImported(),
+        job.getProgress().getKosFailed(),
+        job.getProgress().getBytesCopied());
+  }
+}
@@ -0,0 +1,85 @@
+package org.kgrid.shelf.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for an import: KOs imported and failed, and bytes copied onto the shelf. Safe to
+ * update from several import threads at once. Cancelling only sets a flag; importers check it
+ * between KOs and between artifacts. The copy rate is over the time the import actually ran, from
+ * when a worker picked it up to when it finished.
+ */
+public class ImportProgress {
+
+  private static final int MAX_RECORDED_ERRORS = 100;
+
+  private final AtomicInteger kosImported = new AtomicInteger();
+  private final AtomicInteger kosFailed = new AtomicInteger();
+  private final AtomicLong bytesCopied = new AtomicLong();
+  private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+  private volatile long startTime = System.currentTimeMillis();
+  private volatile long endTime;
+  private volatile boolean cancelled;
+
+  public void koImported() {
+    kosImported.incrementAndGet();
+  }
+
+  public void koFailed(String source, String message) {
+    kosFailed.incrementAndGet();
+    if (errors.size() < MAX_RECORDED_ERRORS) {
+      errors.add(source + ": " + message);
+    }
+  }
+
+  public void addBytesCopied(long bytes) {
+    bytesCopied.addAndGet(bytes);
+  }
+
+  /** Starts the clock again, for an import that waited in a queue before it ran. */
+  void started() {
+    startTime = System.currentTimeMillis();
+  }
+
+  /** Stops the clock, so the rate of a finished import stays what it was. */
+  void finished() {
+    if (endTime == 0) {
+      endTime = System.currentTimeMillis();
+    }
+  }
+
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public int getKosImported() {
+    return kosImported.get();
+  }
+
+  public int getKosFailed() {
+    return kosFailed.get();
+  }
+
+  public long getBytesCopied() {
+    return bytesCopied.get();
+  }
+
+  public List<String> getErrors() {
+    synchronized (errors) {
+      return new ArrayList<>(errors);
+    }
+  }
+
+  public long getBytesPerSecond() {
+    long end = endTime != 0 ? endTime : System.currentTimeMillis();
+    long elapsed = end - startTime;
+    return elapsed > 0 ? bytesCopied.get() * 1000 / elapsed : 0;
+  }
+}
@@ -0,0 +1,77 @@
+package org.kgrid.shelf.service;
+
+import java.util.Date;
+
+/**
+ * What the shelf knows about the last import from a source zip: where the KO was put, the HTTP
+ * validators the server sent with the zip, and the SHA-256 of the zip itself.
+ */
+public class ImportRecord {
+
+  private String source;
+  private String location;
+  private String etag;
+  private String lastModified;
+  private String sha256;
+  private Date imported;
+
+  public ImportRecord() {}
+
+  public ImportRecord(
+      String source, String location, String etag, String lastModified, String sha256) {
+    this.source = source;
+    this.location = location;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.sha256 = sha256;
+    this.imported = new Date();
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public void setSource(String source) {
+    this.source = source;
+  }
+
+  public String getLocation() {
+    return location;
+  }
+
+  public void setLocation(String location) {
+    this.location = location;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public void setEtag(String etag) {
+    this.etag = etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  public void setLastModified(String lastModified) {
+    this.lastModified = lastModified;
+  }
+
+  public String getSha256() {
+    return sha256;
+  }
+
+  public void setSha256(String sha256) {
+    this.sha256 = sha256;
+  }
+
+  public Date getImported() {
+    return imported;
+  }
+
+  public void setImported(Date imported) {
+    this.imported = imported;
+  }
+}
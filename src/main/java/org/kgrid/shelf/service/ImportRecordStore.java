@@ -0,0 +1,95 @@
+package org.kgrid.shelf.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.kgrid.shelf.repository.CompoundDigitalObjectStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Keeps an {@link ImportRecord} for each source zip that has been imported, so that importing the
+ * same source again can be skipped when it has not changed. Each record is a JSON file of its own
+ * under {@code .import-records/} at the root of the shelf, named by a hash of the source URI.
+ * Saving a record writes only that file, and records are read from the shelf every time, so
+ * instances sharing a shelf see each other's records instead of overwriting them.
+ *
+ * <p>Records from shelves that kept them all in one {@code .import-records.json} are still found.
+ */
+@Component
+public class ImportRecordStore {
+
+  static final String RECORDS_DIR = ".import-records";
+  static final URI LEGACY_RECORDS_LOCATION = URI.create(".import-records.json");
+
+  @Autowired CompoundDigitalObjectStore cdoStore;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private Map<String, ImportRecord> legacyRecords;
+  private final Logger log = LoggerFactory.getLogger(ImportRecordStore.class);
+
+  public Optional<ImportRecord> find(URI source) {
+    try (InputStream json = cdoStore.getBinaryStream(recordLocation(source.toString()))) {
+      return Optional.of(mapper.readValue(json, ImportRecord.class));
+    } catch (ShelfResourceNotFound e) {
+      return Optional.ofNullable(getLegacyRecords().get(source.toString()));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Ignoring unreadable import record for {}: {}", source, e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  public void save(ImportRecord record) {
+    try {
+      byte[] json = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(record);
+      cdoStore.saveBinary(new ByteArrayInputStream(json), recordLocation(record.getSource()));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot save import record for {}: {}", record.getSource(), e.getMessage());
+    }
+  }
+
+  /** True if the KO the record points at is still on the shelf. */
+  public boolean isOnShelf(ImportRecord record) {
+    if (record.getLocation() == null) {
+      return false;
+    }
+    try {
+      cdoStore.getMetadata(URI.create(record.getLocation()));
+      return true;
+    } catch (ShelfResourceNotFound e) {
+      return false;
+    }
+  }
+
+  static URI recordLocation(String source) {
+    String name = DigestUtils.sha256Hex(source.getBytes(StandardCharsets.UTF_8));
+    return URI.create(RECORDS_DIR + "/" + name + ".json");
+  }
+
+  private synchronized Map<String, ImportRecord> getLegacyRecords() {
+    if (legacyRecords == null) {
+      legacyRecords = new TreeMap<>();
+      try (InputStream json = cdoStore.getBinaryStream(LEGACY_RECORDS_LOCATION)) {
+        legacyRecords.putAll(
+            mapper.readValue(json, new TypeReference<Map<String, ImportRecord>>() {}));
+      } catch (ShelfResourceNotFound e) {
+        log.debug("No import records from before records were kept one per source");
+      } catch (IOException | RuntimeException e) {
+        log.warn("Ignoring unreadable import records: {}", e.getMessage());
+      }
+    }
+    return legacyRecords;
+  }
+}
@@ -7,17 +7,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.HashSet;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
 import org.kgrid.shelf.repository.CompoundDigitalObjectStore;
+import org.kgrid.shelf.repository.KnowledgeObjectLocks;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.kgrid.shelf.repository.ShelfMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
-import org.springframework.http.RequestEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
 @Service
@@ -28,27 +32,79 @@ public class ImportService {
     @Autowired
     KnowledgeObjectRepository koRepo;
     @Autowired
+    KnowledgeObjectLocks locks;
+    @Autowired
     ApplicationContext applicationContext;
 
     @Autowired
-    RestTemplate restTemplate;
+    RemoteZipFetcher zipFetcher;
+    @Autowired
+    ImportRecordStore importRecords;
+    @Autowired
+    ShelfMetrics metrics = ShelfMetrics.disabled();
+
+    @Value("${kgrid.shelf.import.skip-unchanged:true}")
+    boolean skipUnchanged = true;
 
     Logger log = LoggerFactory.getLogger(ImportService.class);
 
     public URI importZip(URI zipUri) {
-        Resource resource;
+        return importZip(zipUri, new ImportProgress());
+    }
+
+    public URI importZip(URI zipUri, ImportProgress progress) {
+        ImportRecord previous = skipUnchanged
+            ? importRecords.find(zipUri).filter(importRecords::isOnShelf).orElse(null)
+            : null;
 
         if (zipUri.getScheme().contains("http")) {
-            RequestEntity<Void> request = RequestEntity
-                .get(zipUri)
-                .header("Accept", "application/zip", "application/octet-stream")
-                .build();
-            resource =  restTemplate.exchange(request, Resource.class).getBody();
-        } else {
-            resource = applicationContext.getResource(zipUri.toString());
+            // Spool remote zips to disk rather than holding the whole download in memory
+            try (RemoteZipFetcher.Download download = previous == null
+                    ? zipFetcher.fetch(zipUri)
+                    : zipFetcher.fetch(zipUri, previous.getEtag(), previous.getLastModified())) {
+                if (download.isNotModified() || isUnchanged(previous, download.getSha256())) {
+                    log.info("Skipping import of {}, it has not changed", zipUri);
+                    return URI.create(previous.getLocation());
+                }
+                URI id = importZip(new FileSystemResource(download.getFile().toFile()), progress);
+                recordImport(zipUri, id, download.getEtag(), download.getLastModified(),
+                    download.getSha256());
+                return id;
+            } catch (IOException e) {
+                throw new ImportExportException("Cannot download " + zipUri, e);
+            }
         }
 
-        return importZip(resource);
+        Resource resource = applicationContext.getResource(zipUri.toString());
+        String sha256 = skipUnchanged ? digest(resource) : null;
+        if (isUnchanged(previous, sha256)) {
+            log.info("Skipping import of {}, it has not changed", zipUri);
+            return URI.create(previous.getLocation());
+        }
+        URI id = importZip(resource, progress);
+        recordImport(zipUri, id, null, null, sha256);
+        return id;
+    }
+
+    private boolean isUnchanged(ImportRecord previous, String sha256) {
+        return previous != null && sha256 != null && sha256.equals(previous.getSha256());
+    }
+
+    private void recordImport(
+            URI source, URI id, String etag, String lastModified, String sha256) {
+        if (skipUnchanged) {
+            importRecords.save(
+                new ImportRecord(source.toString(), id.toString(), etag, lastModified, sha256));
+        }
+    }
+
+    private String digest(Resource resource) {
+        try (InputStream zip = resource.getInputStream()) {
+            return DigestUtils.sha256Hex(zip);
+        } catch (IOException e) {
+            // Let the import itself report the unreadable zip
+            return null;
+        }
     }
 
     public URI importZip(MultipartFile zippedKo) {
@@ -57,9 +113,14 @@ public class ImportService {
     }
 
     public URI importZip(Resource zipResource) {
+        return importZip(zipResource, new ImportProgress());
+    }
+
+    public URI importZip(Resource zipResource, ImportProgress progress) {
         URI id;
-        try {
-            ZipImportReader reader = new ZipImportReader(zipResource);
+        ShelfMetrics.Transfer transfer = metrics.startTransfer("import");
+        boolean imported = false;
+        try (ZipImportReader reader = new ZipImportReader(zipResource)) {
 
             // URIs are relative to `metadata.json`; can be resolved against zip base and `@id`
             JsonNode metadata = reader.getMetadata(URI.create(METADATA_FILENAME.asStr()));
@@ -74,31 +135,71 @@ public class ImportService {
             kow.addDeployment(deploymentSpec);
             kow.addService(serviceSpec);
 
-            copyArtifactsToShelf(reader, kow);
-            koRepo.addKnowledgeObjectToLocationMap(id, metadata);
+            String transactionId = copyArtifactsToShelf(reader, kow, progress, transfer);
+            publish(transactionId, kow, metadata);
+            imported = true;
 
         } catch (Exception e) {
             final String errorMsg =
                     "Error importing: " + zipResource.getDescription() + ", " + e.getMessage();
             log.warn(e.getMessage());
             throw new ImportExportException(errorMsg, e);
+        } finally {
+            transfer.finish(imported);
         }
         return id;
     }
 
-    private void copyArtifactsToShelf(ZipImportReader reader, KnowledgeObjectWrapper kow) {
+    /**
+     * Streams each artifact out of the zip into a store transaction, so the KO only shows up on
+     * the shelf once every artifact has been written.
+     *
+     * @return the transaction holding the artifacts, ready to commit
+     */
+    private String copyArtifactsToShelf(
+            ZipImportReader reader,
+            KnowledgeObjectWrapper kow,
+            ImportProgress progress,
+            ShelfMetrics.Transfer transfer) {
         HashSet<URI> artifacts = kow.getArtifactLocations();
         URI identifier = kow.getId();
-        artifacts.forEach(
-                artifact -> {
-                    try {
-                        InputStream data = reader.getFileStream(artifact);
-                        cdoStore.saveBinary(data, identifier.resolve(artifact));
-                    } catch (IOException e) {
-                        cdoStore.delete(identifier);
-                        throw new ImportExportException(
-                                "Cannot read in file " + artifact + " to copy onto shelf", e);
-                    }
-                });
+        String transactionId = cdoStore.createTransaction();
+        URI transactionBase = URI.create(transactionId + "/");
+        URI artifact = null;
+        try {
+            for (URI location : artifacts) {
+                artifact = location;
+                if (progress.isCancelled()) {
+                    throw new ImportExportException("Import of " + identifier + " was cancelled");
+                }
+                try (CountingInputStream data =
+                        new CountingInputStream(reader.getFileStream(artifact))) {
+                    cdoStore.saveBinary(data, transactionBase.resolve(identifier.resolve(artifact)));
+                    progress.addBytesCopied(data.getByteCount());
+                    transfer.addBytes(data.getByteCount());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            cdoStore.rollbackTransaction(transactionId);
+            throw new ImportExportException(
+                    "Cannot read in file " + artifact + " to copy onto shelf", e);
+        }
+        return transactionId;
+    }
+
+    /**
+     * Commits the import under the KO's write lock, so readers see either the old version or the
+     * new one. Copying the artifacts happens before, without the lock.
+     */
+    private void publish(String transactionId, KnowledgeObjectWrapper kow, JsonNode metadata) {
+        locks.write(kow.getArkId(), () -> {
+            try {
+                cdoStore.commitTransaction(transactionId);
+            } catch (RuntimeException e) {
+                cdoStore.rollbackTransaction(transactionId);
+                throw new ImportExportException("Cannot publish " + kow.getId(), e);
+            }
+            koRepo.addKnowledgeObjectToLocationMap(kow.getId(), metadata);
+        });
     }
 }
@@ -17,7 +17,15 @@ import org.springframework.stereotype.Component;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Component
 public class ManifestReader implements InitializingBean {
@@ -32,6 +40,12 @@ public class ManifestReader implements InitializingBean {
     @Value("${kgrid.shelf.manifest:}")
     String[] startupManifestLocations;
 
+    @Value("${kgrid.shelf.manifest.import.concurrency:1}")
+    int importConcurrency;
+
+    @Value("${kgrid.shelf.manifest.import.timeout:300}")
+    long importTimeoutSeconds;
+
     private final Logger log = LoggerFactory.getLogger(ManifestReader.class);
 
     @Override
@@ -40,12 +54,12 @@ public class ManifestReader implements InitializingBean {
             log.info("Initializing shelf with {} Manifests", startupManifestLocations.length);
             for (String location : startupManifestLocations) {
                 log.info("Loading manifest from location: {}", location);
-                loadManifestFromLocation(location);
+                loadManifestFromLocation(location, new ImportProgress());
             }
         }
     }
 
-    private ArrayNode loadManifestFromLocation(String manifestLocation) {
+    private ArrayNode loadManifestFromLocation(String manifestLocation, ImportProgress progress) {
         Resource manifestResource;
         try {
             manifestResource = applicationContext.getResource(manifestLocation);
@@ -57,7 +71,7 @@ public class ManifestReader implements InitializingBean {
         try (InputStream stream = manifestResource.getInputStream()) {
             JsonNode manifest = mapper.readTree(stream);
             URI baseURI = getBaseUri(manifestResource);
-            return loadManifest(manifest, baseURI);
+            return loadManifest(manifest, baseURI, progress);
         } catch (IOException e) {
             log.warn("Failed to load manifest; {}", e.getMessage());
             return null;
@@ -65,9 +79,16 @@ public class ManifestReader implements InitializingBean {
     }
 
     public ArrayNode loadManifests(JsonNode manifestList) {
+        return loadManifests(manifestList, new ImportProgress());
+    }
+
+    public ArrayNode loadManifests(JsonNode manifestList, ImportProgress progress) {
         ArrayNode loadedObjects = new ObjectMapper().createArrayNode();
         for (JsonNode node : manifestList) {
-            ArrayNode objects = loadManifestFromLocation(node.asText());
+            if (progress.isCancelled()) {
+                break;
+            }
+            ArrayNode objects = loadManifestFromLocation(node.asText(), progress);
             if (objects != null) {
                 loadedObjects.addAll(objects);
             }
@@ -77,10 +98,14 @@ public class ManifestReader implements InitializingBean {
     }
 
     public ArrayNode loadManifest(JsonNode manifest) {
-        return loadManifest(manifest, null);
+        return loadManifest(manifest, null, new ImportProgress());
     }
 
-    private ArrayNode loadManifest(JsonNode manifest, URI baseUri) {
+    public ArrayNode loadManifest(JsonNode manifest, ImportProgress progress) {
+        return loadManifest(manifest, null, progress);
+    }
+
+    private ArrayNode loadManifest(JsonNode manifest, URI baseUri, ImportProgress progress) {
         ArrayNode uris;
         if (manifest.has("manifest")) {
             uris = (ArrayNode) manifest.get("manifest");
@@ -92,8 +117,7 @@ public class ManifestReader implements InitializingBean {
             uris = idNodes.deepCopy();
         }
 
-        ArrayNode arkList = JsonNodeFactory.instance.arrayNode();
-        log.info("importing {} kos", uris.size());
+        List<URI> koUris = new ArrayList<>();
         uris.forEach(
                 ko -> {
                     try {
@@ -101,16 +125,126 @@ public class ManifestReader implements InitializingBean {
                         if (baseUri != null && !koUri.isAbsolute()) {
                             koUri = baseUri.resolve(koUri);
                         }
-                        log.info("import {}", koUri);
-                        URI result = importService.importZip(koUri);
-                        arkList.add(result.toString());
+                        koUris.add(koUri);
                     } catch (Exception ex) {
                         log.warn("Error importing {}, {}", ko.asText(), ex.getMessage());
+                        progress.koFailed(ko.asText(), ex.getMessage());
                     }
                 });
+
+        log.info("importing {} kos", uris.size());
+        ArrayNode arkList = JsonNodeFactory.instance.arrayNode();
+        if (importConcurrency > 1 && koUris.size() > 1) {
+            importInParallel(koUris, progress).forEach(arkList::add);
+        } else {
+            for (URI koUri : koUris) {
+                if (progress.isCancelled()) {
+                    break;
+                }
+                try {
+                    log.info("import {}", koUri);
+                    URI result = importService.importZip(koUri, progress);
+                    arkList.add(result.toString());
+                    progress.koImported();
+                } catch (Exception ex) {
+                    log.warn("Error importing {}, {}", koUri, ex.getMessage());
+                    progress.koFailed(koUri.toString(), ex.getMessage());
+                }
+            }
+        }
         return arkList;
     }
 
+    /**
+     * Imports the KOs on a bounded pool so downloads, unpacking and store writes of different KOs
+     * overlap. Results are collected in manifest order, whatever order the imports finish in.
+     */
+    private List<String> importInParallel(List<URI> koUris, ImportProgress progress) {
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(importConcurrency, koUris.size()));
+        try {
+            List<ImportTask> tasks = new ArrayList<>();
+            for (URI koUri : koUris) {
+                ImportTask task = new ImportTask(koUri, progress);
+                task.future = executor.submit(task);
+                tasks.add(task);
+            }
+            List<String> results = new ArrayList<>();
+            for (ImportTask task : tasks) {
+                if (progress.isCancelled()) {
+                    break;
+                }
+                try {
+                    results.add(task.await(importTimeoutSeconds).toString());
+                    progress.koImported();
+                } catch (TimeoutException ex) {
+                    task.future.cancel(true);
+                    log.warn("Timed out importing {} after {} seconds",
+                            task.koUri, importTimeoutSeconds);
+                    progress.koFailed(task.koUri.toString(), "timed out");
+                } catch (ExecutionException ex) {
+                    log.warn("Error importing {}, {}", task.koUri, ex.getCause().getMessage());
+                    progress.koFailed(task.koUri.toString(), ex.getCause().getMessage());
+                } catch (RuntimeException ex) {
+                    log.warn("Error importing {}, {}", task.koUri, ex.getMessage());
+                    progress.koFailed(task.koUri.toString(), ex.getMessage());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while importing {}", task.koUri);
+                    break;
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class ImportTask implements Callable<URI> {
+        private final URI koUri;
+        private final ImportProgress progress;
+        private volatile long startedAt;
+        private Future<URI> future;
+
+        ImportTask(URI koUri, ImportProgress progress) {
+            this.koUri = koUri;
+            this.progress = progress;
+        }
+
+        @Override
+        public URI call() {
+            startedAt = System.nanoTime();
+            if (progress.isCancelled()) {
+                throw new ImportExportException("Import of " + koUri + " was cancelled");
+            }
+            log.info("import {}", koUri);
+            return importService.importZip(koUri, progress);
+        }
+
+        /**
+         * Waits for the import, timing it from when a worker picked it up rather than from when it
+         * was queued. A timeout of zero or less waits indefinitely.
+         */
+        URI await(long timeoutSeconds)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (timeoutSeconds <= 0) {
+                return future.get();
+            }
+            long timeout = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (true) {
+                long started = startedAt;
+                long remaining = started == 0 ? timeout : started + timeout - System.nanoTime();
+                try {
+                    return future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException ex) {
+                    if (startedAt != 0 && System.nanoTime() - startedAt >= timeout) {
+                        throw ex;
+                    }
+                }
+            }
+        }
+    }
+
     private URI getBaseUri(Resource manifestResource) throws IOException {
         String fullUriWithFile = manifestResource.getURI().toString();
         String fullPathWithoutFile = FilenameUtils.getFullPath(fullUriWithFile);
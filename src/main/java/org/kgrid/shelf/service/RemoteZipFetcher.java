@@ -0,0 +1,227 @@
+package org.kgrid.shelf.service;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Downloads remote KO zips by streaming the response body to a temp file through a fixed-size
+ * buffer, so a download never has to fit in memory. Connections come from a pool that is bounded
+ * per host, and downloads larger than {@code kgrid.shelf.import.http.max-zip-size} are aborted.
+ */
+@Component
+public class RemoteZipFetcher implements InitializingBean, DisposableBean {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @Value("${kgrid.shelf.import.http.connect-timeout:10000}")
+  int connectTimeoutMillis = 10000;
+
+  @Value("${kgrid.shelf.import.http.read-timeout:60000}")
+  int readTimeoutMillis = 60000;
+
+  @Value("${kgrid.shelf.import.http.max-connections:20}")
+  int maxConnections = 20;
+
+  @Value("${kgrid.shelf.import.http.max-connections-per-host:4}")
+  int maxConnectionsPerHost = 4;
+
+  @Value("${kgrid.shelf.import.http.max-zip-size:1073741824}")
+  long maxZipSize = 1073741824L;
+
+  private PoolingHttpClientConnectionManager connectionManager;
+  private CloseableHttpClient httpClient;
+  private final Logger log = LoggerFactory.getLogger(RemoteZipFetcher.class);
+
+  @Override
+  public void afterPropertiesSet() {
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMillis)
+            .setConnectionRequestTimeout(connectTimeoutMillis)
+            .setSocketTimeout(readTimeoutMillis)
+            .build();
+    httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .build();
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    if (httpClient != null) {
+      httpClient.close();
+    }
+  }
+
+  public Download fetch(URI zipUri) throws IOException {
+    return fetch(zipUri, null, null);
+  }
+
+  /**
+   * Downloads the zip at {@code zipUri} into a new temp directory. The file is named after the
+   * Content-Disposition filename, or the last segment of the URI, because the import reader finds
+   * the KO inside the zip by the zip's name. If an ETag or Last-Modified value from an earlier
+   * download is given the request is made conditional, and a 304 response is returned as a
+   * download with no file. Closing the download deletes its temp directory.
+   */
+  public Download fetch(URI zipUri, String etag, String lastModified) throws IOException {
+    HttpGet request = new HttpGet(zipUri);
+    request.setHeader(HttpHeaders.ACCEPT, "application/zip, application/octet-stream");
+    if (etag != null) {
+      request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    }
+    if (lastModified != null) {
+      request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    }
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_NOT_MODIFIED && (etag != null || lastModified != null)) {
+        return new Download(null, etag, lastModified, null);
+      }
+      if (status != HttpStatus.SC_OK) {
+        throw new ImportExportException(
+            "Cannot download " + zipUri + ", server responded with " + response.getStatusLine());
+      }
+      HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        throw new ImportExportException("Cannot download " + zipUri + ", response has no body");
+      }
+      if (entity.getContentLength() > maxZipSize) {
+        throw new ImportExportException(
+            String.format(
+                "Cannot download %s, %d bytes is more than the limit of %d bytes",
+                zipUri, entity.getContentLength(), maxZipSize));
+      }
+      Path downloadDir = Files.createTempDirectory("ko-download");
+      Path download = downloadDir.resolve(getFilename(zipUri, response));
+      MessageDigest digest = DigestUtils.getSha256Digest();
+      try (InputStream body = entity.getContent();
+          OutputStream out = Files.newOutputStream(download)) {
+        copyWithLimit(zipUri, new DigestInputStream(body, digest), out);
+      } catch (IOException | RuntimeException e) {
+        request.abort();
+        FileUtils.deleteQuietly(downloadDir.toFile());
+        throw e;
+      }
+      log.debug("Downloaded {} to {}", zipUri, download);
+      return new Download(
+          download,
+          getHeader(response, HttpHeaders.ETAG),
+          getHeader(response, HttpHeaders.LAST_MODIFIED),
+          Hex.encodeHexString(digest.digest()));
+    }
+  }
+
+  private void copyWithLimit(URI zipUri, InputStream body, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long total = 0;
+    int read;
+    while ((read = body.read(buffer)) != -1) {
+      total += read;
+      if (total > maxZipSize) {
+        throw new ImportExportException(
+            String.format(
+                "Cannot download %s, it is more than the limit of %d bytes", zipUri, maxZipSize));
+      }
+      out.write(buffer, 0, read);
+    }
+  }
+
+  private String getHeader(CloseableHttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    return header != null ? header.getValue() : null;
+  }
+
+  private String getFilename(URI zipUri, CloseableHttpResponse response) {
+    String filename = null;
+    String disposition = getHeader(response, "Content-Disposition");
+    if (disposition != null) {
+      try {
+        filename = ContentDisposition.parse(disposition).getFilename();
+      } catch (IllegalArgumentException e) {
+        log.debug("Ignoring malformed Content-Disposition from {}", zipUri);
+      }
+    }
+    if (!StringUtils.hasText(filename) && zipUri.getPath() != null) {
+      filename = StringUtils.getFilename(zipUri.getPath());
+    }
+    filename = StringUtils.getFilename(StringUtils.cleanPath(String.valueOf(filename)));
+    return StringUtils.hasText(filename) && !"null".equals(filename) ? filename : "ko.zip";
+  }
+
+  /** A downloaded zip, or a record that the server reported it as not modified. */
+  public static class Download implements Closeable {
+
+    private final Path file;
+    private final String etag;
+    private final String lastModified;
+    private final String sha256;
+
+    Download(Path file, String etag, String lastModified, String sha256) {
+      this.file = file;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.sha256 = sha256;
+    }
+
+    public boolean isNotModified() {
+      return file == null;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    public String getSha256() {
+      return sha256;
+    }
+
+    @Override
+    public void close() {
+      if (file != null) {
+        FileUtils.deleteQuietly(file.getParent().toFile());
+      }
+    }
+  }
+}
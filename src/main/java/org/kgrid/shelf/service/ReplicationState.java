@@ -0,0 +1,115 @@
+package org.kgrid.shelf.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * How far a replica has got with its source shelf: the source's sequence number it has caught up
+ * to, the versions that failed to copy and are tried again next time, and totals for the status
+ * endpoint. Kept in a JSON file at the root of the replica so replication carries on from the same
+ * place after a restart.
+ */
+public class ReplicationState {
+
+  static final int MAX_RECORDED_ERRORS = 100;
+
+  private String source;
+  private long position;
+  private TreeSet<String> pending = new TreeSet<>();
+  private Date lastRound;
+  private Date lastResync;
+  private long versionsCopied;
+  private long versionsRemoved;
+  private long versionsFailed;
+  private List<String> errors = new ArrayList<>();
+
+  public ReplicationState() {}
+
+  ReplicationState(String source) {
+    this.source = source;
+  }
+
+  void addError(String error) {
+    errors.add(error);
+    if (errors.size() > MAX_RECORDED_ERRORS) {
+      errors.remove(0);
+    }
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public void setSource(String source) {
+    this.source = source;
+  }
+
+  /** The sequence number of the source's delta to ask for changes after next time. */
+  public long getPosition() {
+    return position;
+  }
+
+  public void setPosition(long position) {
+    this.position = position;
+  }
+
+  /** Full ark ids of the versions that failed to copy, tried again on the next round. */
+  public TreeSet<String> getPending() {
+    return pending;
+  }
+
+  public void setPending(TreeSet<String> pending) {
+    this.pending = pending;
+  }
+
+  public Date getLastRound() {
+    return lastRound;
+  }
+
+  public void setLastRound(Date lastRound) {
+    this.lastRound = lastRound;
+  }
+
+  public Date getLastResync() {
+    return lastResync;
+  }
+
+  public void setLastResync(Date lastResync) {
+    this.lastResync = lastResync;
+  }
+
+  public long getVersionsCopied() {
+    return versionsCopied;
+  }
+
+  public void setVersionsCopied(long versionsCopied) {
+    this.versionsCopied = versionsCopied;
+  }
+
+  public long getVersionsRemoved() {
+    return versionsRemoved;
+  }
+
+  public void setVersionsRemoved(long versionsRemoved) {
+    this.versionsRemoved = versionsRemoved;
+  }
+
+  public long getVersionsFailed() {
+    return versionsFailed;
+  }
+
+  public void setVersionsFailed(long versionsFailed) {
+    this.versionsFailed = versionsFailed;
+  }
+
+  /** The most recent failures, oldest first. */
+  public List<String> getErrors() {
+    return errors;
+  }
+
+  public void setErrors(List<String> errors) {
+    this.errors = errors;
+  }
+}
@@ -0,0 +1,425 @@
+package org.kgrid.shelf.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
+import org.kgrid.shelf.repository.CompoundDigitalObjectStore;
+import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.stereotype.Service;
+import org.springframework.web.util.UriUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps this shelf a copy of another one. When {@code kgrid.shelf.replication.source} is set to
+ * the source shelf's KO endpoint, e.g. {@code http://primary:8080/kos}, every {@code
+ * kgrid.shelf.replication.interval} milliseconds (or only when asked, if that is 0) the
+ * replicator asks the source for its delta since the last round and copies the versions that were
+ * added or changed, by downloading the source's export zip of each one and importing it like any
+ * other zip. Versions removed from the source are
+ * deleted here. When the source says the delta cannot be worked out, the replicator compares the
+ * metadata of every KO on the source with its own and copies only the ones that differ.
+ *
+ * <p>Versions are copied by {@code kgrid.shelf.replication.workers} threads at once. A copy is
+ * checked against the source: the metadata tag of the imported version must match the ETag the
+ * source gave for it, and the zip's entries are checked against their CRCs as they are read.
+ * Versions that fail are kept in the replication state and tried again next round.
+ *
+ * <p>The state is saved in a JSON file at the root of this shelf after each round. A round cut
+ * short by a restart is run again from the same position, and versions that had already been
+ * copied are skipped because their metadata already matches.
+ */
+@Service
+public class ShelfReplicator implements InitializingBean, DisposableBean {
+
+  static final URI STATE_LOCATION = URI.create(".replication-state.json");
+
+  @Autowired KnowledgeObjectRepository koRepo;
+  @Autowired ImportService importService;
+  @Autowired RemoteZipFetcher zipFetcher;
+  @Autowired CompoundDigitalObjectStore cdoStore;
+
+  @Value("${kgrid.shelf.replication.source:}")
+  String source = "";
+
+  @Value("${kgrid.shelf.replication.interval:5000}")
+  long intervalMillis = 5000;
+
+  @Value("${kgrid.shelf.replication.workers:4}")
+  int workers = 4;
+
+  @Value("${kgrid.shelf.replication.delete:true}")
+  boolean deleteRemoved = true;
+
+  @Value("${kgrid.shelf.import.http.connect-timeout:10000}")
+  int connectTimeoutMillis = 10000;
+
+  @Value("${kgrid.shelf.import.http.read-timeout:60000}")
+  int readTimeoutMillis = 60000;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Logger log = LoggerFactory.getLogger(ShelfReplicator.class);
+  private final Object rounds = new Object();
+  private ReplicationState state;
+  private CloseableHttpClient httpClient;
+  private ExecutorService transfers;
+  private ScheduledExecutorService scheduler;
+
+  @Override
+  public void afterPropertiesSet() {
+    if (!isEnabled()) {
+      return;
+    }
+    source = source.replaceAll("/+$", "");
+    state = loadState();
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMillis)
+            .setConnectionRequestTimeout(connectTimeoutMillis)
+            .setSocketTimeout(readTimeoutMillis)
+            .build();
+    httpClient = HttpClients.custom().setDefaultRequestConfig(requestConfig).build();
+    AtomicInteger threadCount = new AtomicInteger();
+    transfers =
+        Executors.newFixedThreadPool(
+            Math.max(workers, 1),
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "ko-replication-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    if (intervalMillis <= 0) {
+      log.info("Replicating from {} when asked", source);
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "ko-replication");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(
+        this::replicateQuietly, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    log.info("Replicating from {} every {} ms", source, intervalMillis);
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    if (transfers != null) {
+      transfers.shutdownNow();
+      httpClient.close();
+    }
+  }
+
+  public boolean isEnabled() {
+    return source != null && !source.isBlank();
+  }
+
+  /** The replication state for the status endpoint, or just {@code enabled: false}. */
+  public synchronized ObjectNode getStatus() {
+    if (!isEnabled()) {
+      return mapper.createObjectNode().put("enabled", false);
+    }
+    ObjectNode status = mapper.createObjectNode().put("enabled", true);
+    status.setAll((ObjectNode) mapper.valueToTree(state));
+    return status;
+  }
+
+  /**
+   * Runs a round of replication now: copies the versions that changed on the source since the
+   * last round, and the ones that failed last time, and deletes the ones that were removed.
+   *
+   * @return the state after the round
+   */
+  public ObjectNode replicate() {
+    if (!isEnabled()) {
+      throw new ShelfException(
+          "Replication is not set up, set kgrid.shelf.replication.source to the source shelf");
+    }
+    synchronized (rounds) {
+      Date started = new Date();
+      long position;
+      Set<String> pending;
+      synchronized (this) {
+        position = state.getPosition();
+        pending = new TreeSet<>(state.getPending());
+      }
+      Response delta = get(URI.create(source + "/delta?since=" + position));
+      if (delta == null) {
+        throw new ImportExportException("Cannot read the delta of " + source);
+      }
+      long latest = delta.body.path("latest").asLong();
+      boolean resync = delta.body.path("resync").asBoolean();
+      Set<String> toCopy = new TreeSet<>(pending);
+      Set<String> toRemove = new TreeSet<>();
+      if (resync) {
+        compareWithSource(toCopy, toRemove);
+      } else {
+        delta.body.path("added").forEach(ark -> toCopy.add(ark.asText()));
+        delta.body.path("updated").forEach(ark -> toCopy.add(ark.asText()));
+        delta.body.path("removed").forEach(ark -> toRemove.add(ark.asText()));
+      }
+      toCopy.removeAll(toRemove);
+
+      Set<String> failed = Collections.synchronizedSet(new TreeSet<>());
+      List<String> errors = Collections.synchronizedList(new ArrayList<>());
+      AtomicLong copied = new AtomicLong();
+      AtomicLong removed = new AtomicLong();
+      List<CompletableFuture<Void>> running = new ArrayList<>();
+      for (String ark : toCopy) {
+        running.add(
+            transfer(ark, failed, errors, () -> {
+              if (copy(new ArkId(ark))) {
+                copied.incrementAndGet();
+              }
+            }));
+      }
+      if (deleteRemoved) {
+        for (String ark : toRemove) {
+          running.add(
+              transfer(ark, failed, errors, () -> {
+                if (remove(new ArkId(ark))) {
+                  removed.incrementAndGet();
+                }
+              }));
+        }
+      }
+      CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).join();
+
+      synchronized (this) {
+        state.setPosition(latest);
+        state.setPending(new TreeSet<>(failed));
+        state.setLastRound(started);
+        if (resync) {
+          state.setLastResync(started);
+        }
+        state.setVersionsCopied(state.getVersionsCopied() + copied.get());
+        state.setVersionsRemoved(state.getVersionsRemoved() + removed.get());
+        state.setVersionsFailed(state.getVersionsFailed() + failed.size());
+        errors.forEach(state::addError);
+        saveState();
+      }
+      log.info(
+          "Replicated {} from {}: {} copied, {} removed, {} failed",
+          resync ? "everything" : "changes since " + position,
+          source,
+          copied.get(),
+          removed.get(),
+          failed.size());
+      return getStatus();
+    }
+  }
+
+  private void replicateQuietly() {
+    try {
+      replicate();
+    } catch (RuntimeException e) {
+      log.warn("Cannot replicate from {}: {}", source, e.getMessage());
+    }
+  }
+
+  private CompletableFuture<Void> transfer(
+      String ark, Set<String> failed, List<String> errors, Transfer work) {
+    return CompletableFuture.runAsync(
+        () -> {
+          try {
+            work.run();
+          } catch (IOException | RuntimeException e) {
+            log.warn("Cannot replicate {}: {}", ark, e.getMessage());
+            failed.add(ark);
+            errors.add(new Date() + " " + ark + ": " + e.getMessage());
+          }
+        },
+        transfers);
+  }
+
+  /** Lists the versions whose metadata differs from the source, and the ones it does not have. */
+  private void compareWithSource(Set<String> toCopy, Set<String> toRemove) {
+    Response all = get(URI.create(source));
+    if (all == null || !all.body.isArray()) {
+      throw new ImportExportException("Cannot read the list of KOs on " + source);
+    }
+    Set<String> onSource = new HashSet<>();
+    for (JsonNode metadata : all.body) {
+      ArkId arkId;
+      try {
+        arkId = new KnowledgeObjectWrapper(metadata).getArkId();
+      } catch (RuntimeException e) {
+        log.warn("Skipping KO on {} with no ark id: {}", source, metadata.path("@id"));
+        continue;
+      }
+      onSource.add(arkId.getFullArk());
+      if (!KnowledgeObjectRepository.metadataTag(metadata).equals(localTag(arkId))) {
+        toCopy.add(arkId.getFullArk());
+      }
+    }
+    koRepo.findAll().keySet().stream()
+        .map(ArkId::getFullArk)
+        .filter(ark -> !onSource.contains(ark))
+        .forEach(toRemove::add);
+  }
+
+  /**
+   * Copies a version from the source unless it is already the same here.
+   *
+   * @return true if it was copied
+   */
+  private boolean copy(ArkId arkId) throws IOException {
+    Response metadata = get(versionUri(arkId));
+    if (metadata == null) {
+      // Gone from the source since it was listed
+      return deleteRemoved && remove(arkId);
+    }
+    String expected =
+        metadata.etag != null
+            ? metadata.etag
+            : KnowledgeObjectRepository.metadataTag(metadata.body);
+    if (expected.equals(localTag(arkId))) {
+      return false;
+    }
+    try (RemoteZipFetcher.Download download = zipFetcher.fetch(versionUri(arkId))) {
+      importService.importZip(new FileSystemResource(download.getFile().toFile()));
+      log.debug("Copied {} from {}, zip SHA-256 {}", arkId, source, download.getSha256());
+    }
+    String copied = localTag(arkId);
+    if (!expected.equals(copied)) {
+      throw new ImportExportException(
+          String.format(
+              "Copy of %s does not match the source, metadata tag is %s instead of %s",
+              arkId.getFullArk(), copied, expected));
+    }
+    return true;
+  }
+
+  private boolean remove(ArkId arkId) {
+    if (localTag(arkId) == null) {
+      return false;
+    }
+    koRepo.delete(arkId);
+    return true;
+  }
+
+  private String localTag(ArkId arkId) {
+    try {
+      return koRepo.getMetadataTag(arkId);
+    } catch (ShelfResourceNotFound e) {
+      return null;
+    }
+  }
+
+  private URI versionUri(ArkId arkId) {
+    return URI.create(
+        source
+            + "/"
+            + UriUtils.encodePathSegment(arkId.getNaan(), StandardCharsets.UTF_8)
+            + "/"
+            + UriUtils.encodePathSegment(arkId.getName(), StandardCharsets.UTF_8)
+            + "/"
+            + UriUtils.encodePathSegment(arkId.getVersion(), StandardCharsets.UTF_8));
+  }
+
+  /** Reads JSON from the source, or returns null if it is not found there. */
+  private Response get(URI uri) {
+    HttpGet request = new HttpGet(uri);
+    request.setHeader(HttpHeaders.ACCEPT, "application/json");
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_NOT_FOUND) {
+        return null;
+      }
+      HttpEntity entity = response.getEntity();
+      if (status != HttpStatus.SC_OK || entity == null) {
+        throw new ImportExportException(
+            "Cannot read " + uri + ", server responded with " + response.getStatusLine());
+      }
+      try (InputStream body = entity.getContent()) {
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        return new Response(mapper.readTree(body), etag != null ? etag.getValue() : null);
+      }
+    } catch (IOException e) {
+      throw new ImportExportException("Cannot read " + uri, e);
+    }
+  }
+
+  private ReplicationState loadState() {
+    try (InputStream json = cdoStore.getBinaryStream(STATE_LOCATION)) {
+      ReplicationState saved = mapper.readValue(json, ReplicationState.class);
+      if (source.equals(saved.getSource())) {
+        log.info("Carrying on replication from {} after {}", source, saved.getPosition());
+        return saved;
+      }
+      log.info("Replication source changed from {}, starting again", saved.getSource());
+    } catch (ShelfResourceNotFound e) {
+      log.debug("No replication state on the shelf yet");
+    } catch (IOException | RuntimeException e) {
+      log.warn("Ignoring unreadable replication state: {}", e.getMessage());
+    }
+    return new ReplicationState(source);
+  }
+
+  private void saveState() {
+    try {
+      byte[] json = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(state);
+      cdoStore.saveBinary(new ByteArrayInputStream(json), STATE_LOCATION);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot save replication state: {}", e.getMessage());
+    }
+  }
+
+  private interface Transfer {
+    void run() throws IOException;
+  }
+
+  private static class Response {
+    final JsonNode body;
+    final String etag;
+
+    Response(JsonNode body, String etag) {
+      this.body = body;
+      this.etag = etag;
+    }
+  }
+}
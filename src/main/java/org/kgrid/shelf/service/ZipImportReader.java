@@ -3,74 +3,132 @@ package org.kgrid.shelf.service;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.core.io.Resource;
-import org.zeroturnaround.zip.ZipUtil;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
-public class ZipImportReader {
+/**
+ * Reads a zipped KO in place through the zip central directory. Only the entries that are asked
+ * for are inflated, so nothing is unpacked to disk. Resources that are not backed by a file (e.g.
+ * multipart uploads) are spooled once to a temp file, which is removed again on {@link #close()}.
+ */
+public class ZipImportReader implements Closeable {
 
   private ObjectMapper jsonMapper = new ObjectMapper();
   private ObjectMapper yamlMapper = new YAMLMapper();
-  private File koBase;
+  private final ZipFile zipFile;
+  private final Path spooledZip;
+  private final String koBase;
 
   public ZipImportReader(Resource zipResource) throws IOException {
+    if (zipResource.isFile()) {
+      File file = zipResource.getFile();
+      if (!file.exists()) {
+        throw new FileNotFoundException(zipResource.getDescription() + " does not exist");
+      }
+      spooledZip = null;
+      zipFile = openZip(file);
+    } else {
+      spooledZip = spoolToTemp(zipResource);
+      try {
+        zipFile = openZip(spooledZip.toFile());
+      } catch (ImportExportException e) {
+        Files.deleteIfExists(spooledZip);
+        throw e;
+      }
+    }
     koBase = createKoBase(zipResource);
   }
 
-  private File createKoBase(Resource zipResource) throws IOException {
+  private String createKoBase(Resource zipResource) {
     String filename = zipResource.getFilename();
-    String koName;
     if (filename != null) {
-      koName = StringUtils.removeEnd(filename, ".zip");
-    } else {
-      koName =
-          StringUtils.removeEnd(
-              StringUtils.removeStart(zipResource.getDescription(), "Byte array resource ["),
-              ".zip]");
+      return StringUtils.removeEnd(filename, ".zip");
     }
-    File parentDir = unzipToTemp(zipResource.getInputStream());
-    FileUtils.forceDeleteOnExit(parentDir);
-    return new File(parentDir, koName);
+    return StringUtils.removeEnd(
+        StringUtils.removeStart(zipResource.getDescription(), "Byte array resource ["), ".zip]");
   }
 
-  private File unzipToTemp(InputStream inputStream) {
+  private Path spoolToTemp(Resource zipResource) throws IOException {
+    Path temp = Files.createTempFile("ko", ".zip");
+    try (InputStream inputStream = zipResource.getInputStream()) {
+      Files.copy(inputStream, temp, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+    return temp;
+  }
+
+  private ZipFile openZip(File file) {
     try {
-      File temp = Files.createTempDirectory("ko").toFile();
-      ZipUtil.unpack(inputStream, temp);
-      return temp;
+      return new ZipFile(file);
     } catch (Exception e) {
-      throw new ImportExportException("Cannot unpack zip to temporary directory", e);
+      throw new ImportExportException("Cannot read zip " + file.getName(), e);
     }
   }
 
   public JsonNode getMetadata(URI specName) throws IOException {
 
-    final File specFile = new File(koBase, specName.toString());
-
     JsonNode jsonNode;
-    if (specName.getPath().endsWith(".json")) {
-      jsonNode = jsonMapper.readTree(specFile);
-    } else {
-      jsonNode = yamlMapper.readTree(specFile);
+    try (InputStream spec = getFileStream(specName)) {
+      if (specName.getPath().endsWith(".json")) {
+        jsonNode = jsonMapper.readTree(spec);
+      } else {
+        jsonNode = yamlMapper.readTree(spec);
+      }
     }
 
     return jsonNode;
   }
 
   public InputStream getFileStream(URI artifact) throws IOException {
-    File artifactFile = new File(koBase, artifact.toString());
-    final InputStream data = Files.newInputStream(artifactFile.toPath());
-    return data;
+    ZipEntry entry = getEntry(artifact);
+    if (entry == null || entry.isDirectory()) {
+      throw new FileNotFoundException(
+          "Cannot find " + artifact + " in " + koBase + " (" + zipFile.getName() + ")");
+    }
+    return zipFile.getInputStream(entry);
   }
 
-  public File getKoBase() {
+  public long getFileSize(URI artifact) {
+    ZipEntry entry = getEntry(artifact);
+    return entry == null ? -1 : entry.getSize();
+  }
+
+  private ZipEntry getEntry(URI artifact) {
+    String entryName = koBase + "/" + artifact.getPath();
+    ZipEntry entry = zipFile.getEntry(entryName);
+    if (entry == null) {
+      // zips packed on windows can use backslashes as separators
+      entry = zipFile.getEntry(entryName.replace('/', '\\'));
+    }
+    return entry;
+  }
+
+  public String getKoBase() {
     return koBase;
   }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      zipFile.close();
+    } finally {
+      if (spooledZip != null) {
+        Files.deleteIfExists(spooledZip);
+      }
+    }
+  }
 }
@@ -0,0 +1,179 @@
+package org.kgrid.shelf.controller;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.repository.KnowledgeObjectChange;
+import org.kgrid.shelf.repository.KnowledgeObjectChangeFeed;
+import org.kgrid.shelf.repository.KnowledgeObjectChangeLog;
+import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.mockito.Mockito;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kgrid.shelf.TestHelper.ARK_ID_V1;
+import static org.kgrid.shelf.TestHelper.ARK_ID_V2;
+
+@DisplayName("Change Feed Controller Tests")
+public class ChangeFeedControllerTest {
+
+  private KnowledgeObjectChangeFeed changes;
+  private KnowledgeObjectChangeLog changeLog;
+  private ChangeFeedController controller;
+
+  @BeforeEach
+  public void setUp() {
+    changes = new KnowledgeObjectChangeFeed(2);
+    changeLog = Mockito.mock(KnowledgeObjectChangeLog.class);
+    controller =
+        new ChangeFeedController(
+            Mockito.mock(KnowledgeObjectRepository.class), changes, changeLog);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    controller.destroy();
+    changes.destroy();
+  }
+
+  @Test
+  @DisplayName("Get changes returns the changes after the given sequence number right away")
+  public void getChangesReturnsChangesSince() {
+    changes.publish(KnowledgeObjectChange.Type.ADDED, ARK_ID_V1, "\"1\"");
+    changes.publish(KnowledgeObjectChange.Type.ADDED, ARK_ID_V2, "\"2\"");
+
+    ObjectNode page = (ObjectNode) controller.getChanges(1, 30).getResult();
+
+    assertAll(
+        () -> assertEquals(2, page.get("latest").asLong()),
+        () -> assertFalse(page.get("resync").asBoolean()),
+        () -> assertEquals(1, page.get("changes").size()),
+        () -> assertEquals(ARK_ID_V2.getFullArk(), page.at("/changes/0/ark").asText()),
+        () -> assertEquals("ADDED", page.at("/changes/0/type").asText()));
+  }
+
+  @Test
+  @DisplayName("Get changes tells a client that fell too far behind to resync")
+  public void getChangesAsksForResync() {
+    for (int i = 0; i < 3; i++) {
+      changes.publish(KnowledgeObjectChange.Type.UPDATED, ARK_ID_V1, "\"" + i + "\"");
+    }
+
+    ObjectNode page = (ObjectNode) controller.getChanges(0, 0).getResult();
+
+    assertAll(
+        () -> assertEquals(3, page.get("latest").asLong()),
+        () -> assertTrue(page.get("resync").asBoolean()),
+        () -> assertEquals(0, page.get("changes").size()));
+  }
+
+  @Test
+  @DisplayName("Get changes with wait holds the response until the next change")
+  public void getChangesWaitsForNextChange() throws InterruptedException {
+    DeferredResult<ObjectNode> result = controller.getChanges(0, 30);
+    assertFalse(result.hasResult());
+
+    changes.publish(KnowledgeObjectChange.Type.DELETED, ARK_ID_V1, null);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!result.hasResult() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    ObjectNode page = (ObjectNode) result.getResult();
+    assertAll(
+        () -> assertEquals(1, page.get("latest").asLong()),
+        () -> assertEquals("DELETED", page.at("/changes/0/type").asText()));
+  }
+
+  @Test
+  @DisplayName("Get delta reads the time as epoch milliseconds or an ISO instant")
+  public void getDeltaReadsTimes() {
+    Instant time = Instant.parse("2021-07-01T12:00:00Z");
+
+    controller.getDelta(null, String.valueOf(time.toEpochMilli()));
+    controller.getDelta(null, "2021-07-01T12:00:00Z");
+    controller.getDelta(null, null);
+
+    Mockito.verify(changeLog, Mockito.times(2)).since(time);
+    Mockito.verify(changeLog).since(0);
+    assertThrows(ShelfException.class, () -> controller.getDelta(5L, "yesterday"));
+    assertThrows(ShelfException.class, () -> controller.getDelta(null, "yesterday"));
+  }
+
+  @Test
+  @DisplayName("A slow stream client holds up nobody else and is told to resync when it overflows")
+  public void slowStreamDoesNotStallFeed() throws InterruptedException {
+    controller.streamQueueSize = 2;
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingEmitter slow = new RecordingEmitter(release);
+    RecordingEmitter fast = new RecordingEmitter(new CountDownLatch(0));
+    controller.stream(slow, 0);
+    controller.stream(fast, 0);
+
+    for (int i = 1; i <= 5; i++) {
+      changes.publish(KnowledgeObjectChange.Type.UPDATED, ARK_ID_V1, "\"" + i + "\"");
+      int sent = i;
+      assertTrue(waitFor(() -> fast.events.size() == sent), "fast client got change " + i);
+    }
+    release.countDown();
+    assertTrue(waitFor(() -> slow.completed), "slow client's stream was closed");
+
+    assertAll(
+        () -> assertTrue(fast.events.stream().allMatch(event -> event.contains("event:change"))),
+        () -> assertTrue(fast.events.get(4).contains("id:5\n")),
+        () -> assertTrue(slow.events.get(0).contains("event:change")),
+        () -> assertTrue(slow.events.get(slow.events.size() - 1).contains("event:resync")));
+  }
+
+  private boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    return condition.getAsBoolean();
+  }
+
+  /** Records the events sent to it, each one held until the latch opens. */
+  private static class RecordingEmitter extends SseEmitter {
+
+    private final CountDownLatch latch;
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private volatile boolean completed;
+
+    RecordingEmitter(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void send(SseEventBuilder builder) throws IOException {
+      events.add(
+          builder.build().stream()
+              .map(part -> String.valueOf(part.getData()))
+              .collect(Collectors.joining()));
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public void complete() {
+      completed = true;
+    }
+  }
+}
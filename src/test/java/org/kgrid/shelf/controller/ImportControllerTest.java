@@ -10,6 +10,8 @@ import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.kgrid.shelf.domain.ArkId;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.kgrid.shelf.service.ImportJob;
+import org.kgrid.shelf.service.ImportJobService;
 import org.kgrid.shelf.service.ImportService;
 import org.kgrid.shelf.service.ManifestReader;
 import org.mockito.Mockito;
@@ -17,16 +19,20 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.File;
 import java.net.URI;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.kgrid.shelf.TestHelper.*;
 import static org.mockito.Mockito.*;
 
@@ -38,6 +44,7 @@ public class ImportControllerTest {
   private MultipartFile multiPartFile;
   private ImportService mockImportService;
   private ManifestReader mockManifestReader;
+  private ImportJobService mockImportJobService;
 
   @BeforeEach
   public void setup() throws Exception {
@@ -45,10 +52,15 @@ public class ImportControllerTest {
     KnowledgeObjectRepository mockKnowledgeObjectRepository =
         Mockito.mock(KnowledgeObjectRepository.class);
     mockManifestReader = Mockito.mock(ManifestReader.class);
+    mockImportJobService = Mockito.mock(ImportJobService.class);
     validArkId = new ArkId(NAAN, NAME, VERSION_1);
     multiPartFile = mock(MultipartFile.class);
     importController =
-        new ImportController(mockKnowledgeObjectRepository, mockImportService, mockManifestReader);
+        new ImportController(
+            mockKnowledgeObjectRepository,
+            mockImportService,
+            mockManifestReader,
+            mockImportJobService);
   }
 
   @Test
@@ -102,4 +114,55 @@ public class ImportControllerTest {
     importController.depositManifests(manifestList);
     verify(mockManifestReader).loadManifests(manifestList);
   }
+
+  @Test
+  @DisplayName("Async deposit copies the upload and returns 202 with the job")
+  public void depositKnowledgeObjectAsync_SubmitsJobAndReturnsAccepted() throws Exception {
+    RequestContextHolder.setRequestAttributes(
+        new ServletRequestAttributes(new MockHttpServletRequest()));
+    MockMultipartFile upload =
+        new MockMultipartFile("ko", "mycoolko.zip", "application/zip", new byte[] {1, 2, 3});
+    ImportJob job = Mockito.mock(ImportJob.class);
+    when(job.getId()).thenReturn("job-1");
+    when(mockImportJobService.submitZip(any(FileSystemResource.class), any(File.class)))
+        .thenAnswer(
+            invocation -> {
+              FileSystemResource resource = invocation.getArgument(0);
+              assertEquals("mycoolko.zip", resource.getFilename());
+              assertTrue(resource.exists());
+              return job;
+            });
+
+    ResponseEntity<ImportJob> response = importController.depositKnowledgeObjectAsync(upload);
+
+    assertAll(
+        () -> assertEquals(HttpStatus.ACCEPTED, response.getStatusCode()),
+        () ->
+            assertEquals(
+                URI.create("http://localhost/kos/import-jobs/job-1"),
+                response.getHeaders().getLocation()));
+  }
+
+  @Test
+  @DisplayName("Async manifest deposit submits a job")
+  public void depositManifestAsync_SubmitsJob() {
+    RequestContextHolder.setRequestAttributes(
+        new ServletRequestAttributes(new MockHttpServletRequest()));
+    ObjectNode manifest = getManifestNode();
+    ImportJob job = Mockito.mock(ImportJob.class);
+    when(mockImportJobService.submitManifest(manifest)).thenReturn(job);
+
+    ResponseEntity<ImportJob> response = importController.depositManifestAsync(manifest);
+
+    assertAll(
+        () -> verify(mockImportJobService).submitManifest(manifest),
+        () -> assertEquals(HttpStatus.ACCEPTED, response.getStatusCode()));
+  }
+
+  @Test
+  @DisplayName("Cancel import job cancels through the job service")
+  public void cancelImportJob_CancelsJob() {
+    importController.cancelImportJob("job-1");
+    verify(mockImportJobService).cancel("job-1");
+  }
 }
@@ -9,7 +9,9 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.kgrid.shelf.ShelfPreconditionRequired;
 import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
@@ -21,10 +23,16 @@ import org.springframework.web.context.request.ServletRequestAttributes;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.kgrid.shelf.TestHelper.*;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -90,18 +98,97 @@ public class KnowledgeObjectControllerTest {
     verify(koRepo).findKnowledgeObjectMetadata(arkNoVersion);
   }
 
+  @Test
+  @DisplayName("Bulk find returns the kos found and lists the arks that were missing")
+  public void findKnowledgeObjects_ReturnsKosAndMissingArks() throws JsonProcessingException {
+    ArkId missing = new ArkId("not", "there");
+    KnowledgeObjectWrapper kow =
+        new KnowledgeObjectWrapper(objectMapper.readTree("{\"@id\":\"naan/name/1\"}"));
+    when(koRepo.getKows(List.of(ARK_ID_V1, missing))).thenReturn(Map.of(ARK_ID_V1, kow));
+
+    ObjectNode response =
+        koController
+            .findKnowledgeObjects(List.of(ARK_ID_V1.getFullArk(), missing.getFullArk()), true)
+            .getBody();
+
+    assertAll(
+        () -> assertEquals(kow.getMetadata(), response.at("/kos/ark:~1naan~1name~11/metadata")),
+        () -> assertTrue(response.at("/kos/ark:~1naan~1name~11/service").isObject()),
+        () -> assertEquals("[\"ark:/not/there\"]", response.get("missing").toString()));
+  }
+
+  @Test
+  @DisplayName("Bulk find without specs reads only metadata")
+  public void findKnowledgeObjects_WithoutSpecs_ReadsOnlyMetadata() {
+    when(koRepo.findKnowledgeObjectsMetadata(List.of(arkNoVersion)))
+        .thenReturn(Map.of(ARK_ID_V1, koMap.get(ARK_ID_V1)));
+
+    ObjectNode response =
+        koController.findKnowledgeObjects(List.of(arkNoVersion.getFullArk()), false).getBody();
+
+    assertAll(
+        () -> assertEquals(1, response.get("kos").size()),
+        () -> assertEquals(0, response.get("missing").size()));
+  }
+
   @Test
   @DisplayName("Edit metadata calls edit in ko repo and returns new metadata")
   public void editKnowledgeObjectMetadata_CallsEditMetadataOnKoRepo()
       throws JsonProcessingException {
-    when(koRepo.editMetadata(ARK_ID_V1, metadataString))
-        .thenReturn((ObjectNode) objectMapper.readTree(metadataString));
+    ObjectNode saved = (ObjectNode) objectMapper.readTree(metadataString);
+    when(koRepo.editMetadata(ARK_ID_V1, metadataString, "\"tag\"")).thenReturn(saved);
     ResponseEntity<JsonNode> newMetaData =
-        koController.editVersionMetadata(NAAN, NAME, VERSION_1, metadataString);
+        koController.editVersionMetadata(NAAN, NAME, VERSION_1, "\"tag\"", metadataString);
     assertAll(
-        () -> verify(koRepo).editMetadata(ARK_ID_V1, metadataString),
+        () -> verify(koRepo).editMetadata(ARK_ID_V1, metadataString, "\"tag\""),
+        () ->
+            assertEquals(metadataString, Objects.requireNonNull(newMetaData.getBody()).toString()),
         () ->
-            assertEquals(metadataString, Objects.requireNonNull(newMetaData.getBody()).toString()));
+            assertEquals(
+                KnowledgeObjectRepository.metadataTag(saved), newMetaData.getHeaders().getETag()));
+  }
+
+  @Test
+  @DisplayName("Edit metadata without If-Match is refused")
+  public void editKnowledgeObjectMetadata_WithoutIfMatch_IsRefused() {
+    assertThrows(
+        ShelfPreconditionRequired.class,
+        () -> koController.editVersionMetadata(NAAN, NAME, VERSION_1, null, metadataString));
+    verify(koRepo, never()).editMetadata(any(), any(), any());
+  }
+
+  @Test
+  @DisplayName("Merge patch and JSON patch pass the patch to the ko repo and return the ETag")
+  public void patchKnowledgeObjectMetadata_CallsPatchOnKoRepo() throws JsonProcessingException {
+    ObjectNode saved = (ObjectNode) objectMapper.readTree(metadataString);
+    JsonNode mergePatch = objectMapper.readTree(metadataString);
+    JsonNode jsonPatch =
+        objectMapper.readTree("[{\"op\":\"replace\",\"path\":\"/key\",\"value\":\"v\"}]");
+    when(koRepo.mergePatchMetadata(ARK_ID_V1, mergePatch, null)).thenReturn(saved);
+    when(koRepo.jsonPatchMetadata(ARK_ID_V1, jsonPatch, "\"tag\"")).thenReturn(saved);
+
+    ResponseEntity<JsonNode> merged =
+        koController.mergePatchVersionMetadata(NAAN, NAME, VERSION_1, null, mergePatch);
+    ResponseEntity<JsonNode> patched =
+        koController.jsonPatchVersionMetadata(NAAN, NAME, VERSION_1, "\"tag\"", jsonPatch);
+
+    String tag = KnowledgeObjectRepository.metadataTag(saved);
+    assertAll(
+        () -> assertEquals(saved, merged.getBody()),
+        () -> assertEquals(tag, merged.getHeaders().getETag()),
+        () -> assertEquals(saved, patched.getBody()),
+        () -> assertEquals(tag, patched.getHeaders().getETag()));
+  }
+
+  @Test
+  @DisplayName("Find knowledge object with a version returns the metadata tag as the ETag")
+  public void findKnowledgeObject_WithVersion_ReturnsETag() {
+    JsonNode metadata = new ObjectMapper().createObjectNode().put("title", "read");
+    when(koRepo.findKnowledgeObjectMetadata(ARK_ID_V1)).thenReturn(metadata);
+    ResponseEntity<JsonNode> response = koController.findKnowledgeObject(NAAN, NAME, VERSION_1);
+    assertEquals(
+        KnowledgeObjectRepository.metadataTag(metadata), response.getHeaders().getETag());
+    verify(koRepo, never()).getMetadataTag(ARK_ID_V1);
   }
 
   @Test
@@ -0,0 +1,96 @@
+package org.kgrid.shelf.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.ShelfException;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayName("Metadata Patch Tests")
+public class MetadataPatchTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  @DisplayName("Merge patch replaces, removes and merges members without changing the target")
+  public void mergePatchFollowsRfc7386() throws IOException {
+    String original =
+        "{'title':'Hello','keywords':['a'],'contributors':{'author':'x','editor':'y'}}";
+    JsonNode target = json(original);
+
+    JsonNode patched =
+        MetadataPatch.merge(
+            target, json("{'title':'Hi','keywords':['b'],'contributors':{'editor':null}}"));
+
+    assertAll(
+        () ->
+            assertEquals(
+                json("{'title':'Hi','keywords':['b'],'contributors':{'author':'x'}}"), patched),
+        () -> assertEquals(json(original), target));
+  }
+
+  @Test
+  @DisplayName("JSON patch applies each kind of operation in order")
+  public void jsonPatchFollowsRfc6902() throws IOException {
+    JsonNode target = json("{'title':'Hello','keywords':['a','c'],'a/b':1}");
+
+    JsonNode patched =
+        MetadataPatch.apply(
+            target,
+            json(
+                "[{'op':'test','path':'/title','value':'Hello'},"
+                    + "{'op':'add','path':'/keywords/1','value':'b'},"
+                    + "{'op':'add','path':'/keywords/-','value':'d'},"
+                    + "{'op':'replace','path':'/title','value':'Hi'},"
+                    + "{'op':'copy','from':'/title','path':'/label'},"
+                    + "{'op':'move','from':'/a~1b','path':'/ab'},"
+                    + "{'op':'remove','path':'/keywords/0'}]"));
+
+    assertAll(
+        () ->
+            assertEquals(
+                json("{'title':'Hi','keywords':['b','c','d'],'label':'Hi','ab':1}"), patched),
+        () -> assertEquals(json("{'title':'Hello','keywords':['a','c'],'a/b':1}"), target));
+  }
+
+  @Test
+  @DisplayName("JSON patch fails as a whole on a failed test or a missing path")
+  public void jsonPatchFailures() throws IOException {
+    JsonNode target = json("{'title':'Hello','keywords':[]}");
+
+    assertAll(
+        () ->
+            assertThrows(
+                ShelfException.class,
+                () ->
+                    MetadataPatch.apply(
+                        target,
+                        json(
+                            "[{'op':'remove','path':'/title'},"
+                                + "{'op':'test','path':'/keywords','value':['a']}]"))),
+        () ->
+            assertThrows(
+                ShelfException.class,
+                () -> MetadataPatch.apply(target, json("[{'op':'remove','path':'/missing'}]"))),
+        () ->
+            assertThrows(
+                ShelfException.class,
+                () ->
+                    MetadataPatch.apply(
+                        target, json("[{'op':'add','path':'/keywords/2','value':'x'}]"))),
+        () ->
+            assertThrows(
+                ShelfException.class, () -> MetadataPatch.apply(target, json("{'op':'add'}"))),
+        () -> assertEquals(json("{'title':'Hello','keywords':[]}"), target));
+  }
+
+  private JsonNode json(String singleQuoted) throws IOException {
+    return mapper.readTree(singleQuoted.replace('\'', '"'));
+  }
+}
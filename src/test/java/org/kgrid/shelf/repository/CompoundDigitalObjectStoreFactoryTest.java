@@ -1,5 +1,6 @@
 package org.kgrid.shelf.repository;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
@@ -7,9 +8,8 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.UUID;
 import java.util.stream.Stream;
 
@@ -24,7 +24,21 @@ public class CompoundDigitalObjectStoreFactoryTest {
   private static Stream<Arguments> provideConnectionUris() {
 
     return Stream.of(
-        Arguments.of(new Object[]{"filesystem:file://gibberish" + uuid, FilesystemCDOStore.class})
+        Arguments.of(new Object[]{"filesystem:file://gibberish" + uuid, FilesystemCDOStore.class}),
+        Arguments.of(
+            new Object[]{"dedup:file://gibberish" + uuid, DeduplicatingFilesystemCDOStore.class}),
+        Arguments.of(new Object[]{"memory:gibberish" + uuid, InMemoryCDOStore.class}),
+        Arguments.of(new Object[]{"pack:file://gibberish" + uuid, PackedCDOStore.class}),
+        Arguments.of(new Object[]{"zip:file://gibberish" + uuid, ZipArchiveCDOStore.class}),
+        Arguments.of(
+            new Object[]{
+              "sharded:file://gibberish" + uuid + "/a|file://gibberish" + uuid + "/b",
+              ShardedFilesystemCDOStore.class
+            }),
+        Arguments.of(
+            new Object[]{
+              "tiered:memory:cache|filesystem:file://gibberish" + uuid, TieredCDOStore.class
+            })
     );
   }
 
@@ -38,8 +52,22 @@ public class CompoundDigitalObjectStoreFactoryTest {
     assertEquals(expectedStoreClass, store.getClass());
 
     // Cleanup
-    if (Files.exists(Paths.get("gibberish" + uuid))) {
-      Files.delete(Paths.get("gibberish" + uuid));
+    FileUtils.deleteDirectory(new File("gibberish" + uuid));
+  }
+
+  @Test
+  @DisplayName("Creates s3 store with credentials from system properties")
+  public void createsS3StoreWithSystemPropertyCredentials() throws IOException {
+    System.setProperty("aws.accessKeyId", "access");
+    System.setProperty("aws.secretAccessKey", "secret");
+    try {
+      CompoundDigitalObjectStore store =
+          CompoundDigitalObjectStoreFactory.create("s3:http://localhost:9000/bucket/shelf");
+      assertEquals(S3CDOStore.class, store.getClass());
+      ((S3CDOStore) store).close();
+    } finally {
+      System.clearProperty("aws.accessKeyId");
+      System.clearProperty("aws.secretAccessKey");
     }
   }
 
@@ -0,0 +1,199 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Deduplicating Filesystem CDO Store Tests")
+public class DeduplicatingFilesystemCDOStoreTest {
+
+  private static final byte[] MAIN_JS = "function main() {}".getBytes(StandardCharsets.UTF_8);
+
+  @TempDir Path shelf;
+  private DeduplicatingFilesystemCDOStore koStore;
+
+  @BeforeEach
+  public void setUp() {
+    koStore = new DeduplicatingFilesystemCDOStore("dedup:" + shelf.toUri());
+    koStore.gracePeriodMillis = -1;
+  }
+
+  @Test
+  @DisplayName("Identical artifacts in different versions are stored once")
+  public void saveBinary_sharesIdenticalArtifacts() throws IOException {
+    save("hello-world-v1/dist/main.js", MAIN_JS);
+    save("hello-world-v2/dist/main.js", MAIN_JS);
+
+    Path v1 = shelf.resolve("hello-world-v1/dist/main.js");
+    Path v2 = shelf.resolve("hello-world-v2/dist/main.js");
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, read("hello-world-v2/dist/main.js")),
+        () -> assertTrue(Files.isSameFile(v1, v2)),
+        () -> assertTrue(Files.isSameFile(v1, blobFor(MAIN_JS))),
+        () -> assertEquals(1, countBlobs()));
+  }
+
+  @Test
+  @DisplayName("Large artifacts are deduplicated too")
+  public void saveBinary_sharesLargeArtifacts() throws IOException {
+    byte[] large = new byte[3 * 1024 * 1024];
+    Arrays.fill(large, (byte) 7);
+    save("v1/big.bin", large);
+    save("v2/big.bin", large);
+
+    assertAll(
+        () ->
+            assertTrue(Files.isSameFile(shelf.resolve("v1/big.bin"), shelf.resolve("v2/big.bin"))),
+        () -> assertArrayEquals(large, read("v2/big.bin")),
+        () -> assertEquals(1, countBlobs()));
+  }
+
+  @Test
+  @DisplayName("Overwriting a shared artifact leaves the other versions alone")
+  public void saveBinary_replacesRatherThanOverwritesSharedArtifacts() throws IOException {
+    save("hello-world-v1/dist/main.js", MAIN_JS);
+    save("hello-world-v2/dist/main.js", MAIN_JS);
+    byte[] changed = "function main() { return 1; }".getBytes(StandardCharsets.UTF_8);
+
+    save("hello-world-v2/dist/main.js", changed);
+
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, read("hello-world-v1/dist/main.js")),
+        () -> assertArrayEquals(changed, read("hello-world-v2/dist/main.js")),
+        () -> assertArrayEquals(MAIN_JS, Files.readAllBytes(blobFor(MAIN_JS))));
+  }
+
+  @Test
+  @DisplayName("Saving metadata over a shared metadata file leaves the other versions alone")
+  public void saveMetadata_replacesRatherThanOverwritesSharedMetadata() throws IOException {
+    byte[] metadata = "{\"@id\":\"hello-world\"}".getBytes(StandardCharsets.UTF_8);
+    save("hello-world-v1/metadata.json", metadata);
+    save("hello-world-v2/metadata.json", metadata);
+
+    koStore.saveMetadata(
+        new ObjectMapper().readTree("{\"@id\":\"hello-world\",\"title\":\"v2\"}"),
+        URI.create("hello-world-v2"));
+
+    assertAll(
+        () -> assertArrayEquals(metadata, read("hello-world-v1/metadata.json")),
+        () ->
+            assertEquals(
+                "v2", koStore.getMetadata(URI.create("hello-world-v2")).get("title").asText()));
+  }
+
+  @Test
+  @DisplayName("Deleting a ko removes blobs that no other ko uses")
+  public void delete_removesUnsharedBlobs() throws IOException {
+    byte[] onlyInV1 = "only in v1".getBytes(StandardCharsets.UTF_8);
+    save("hello-world-v1/dist/main.js", MAIN_JS);
+    save("hello-world-v1/notes.txt", onlyInV1);
+    save("hello-world-v2/dist/main.js", MAIN_JS);
+
+    koStore.delete(URI.create("hello-world-v1"));
+
+    assertAll(
+        () -> assertFalse(Files.exists(blobFor(onlyInV1))),
+        () -> assertTrue(Files.exists(blobFor(MAIN_JS))),
+        () -> assertArrayEquals(MAIN_JS, read("hello-world-v2/dist/main.js")));
+  }
+
+  @Test
+  @DisplayName("Deleting a ko leaves blobs it did not use to the garbage collection")
+  public void delete_onlyTouchesItsOwnBlobs() throws IOException {
+    byte[] orphan = "left behind".getBytes(StandardCharsets.UTF_8);
+    save("orphan/notes.txt", orphan);
+    Files.delete(shelf.resolve("orphan/notes.txt"));
+    save("hello-world-v1/dist/main.js", MAIN_JS);
+
+    koStore.delete(URI.create("hello-world-v1"));
+
+    assertAll(
+        () -> assertFalse(Files.exists(blobFor(MAIN_JS))),
+        () -> assertTrue(Files.exists(blobFor(orphan))),
+        () -> assertEquals(1, koStore.collectGarbage()),
+        () -> assertFalse(Files.exists(blobFor(orphan))));
+  }
+
+  @Test
+  @DisplayName("Reusing a blob leaves the modification time of the kos sharing it alone")
+  public void saveBinary_reuseKeepsModificationTimes() throws IOException {
+    save("hello-world-v1/dist/main.js", MAIN_JS);
+    Path v1 = shelf.resolve("hello-world-v1/dist/main.js");
+    FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 3_600_000);
+    Files.setLastModifiedTime(v1, old);
+
+    save("hello-world-v2/dist/main.js", MAIN_JS);
+
+    assertAll(
+        () -> assertTrue(Files.isSameFile(v1, shelf.resolve("hello-world-v2/dist/main.js"))),
+        () -> assertEquals(old, Files.getLastModifiedTime(v1)));
+  }
+
+  @Test
+  @DisplayName("Garbage collection keeps recently reused blobs")
+  public void collectGarbage_keepsRecentlyReusedBlobs() throws IOException {
+    save("hello-world-v1/dist/main.js", MAIN_JS);
+    Files.setLastModifiedTime(
+        blobFor(MAIN_JS), FileTime.fromMillis(System.currentTimeMillis() - 3_600_000));
+    koStore.gracePeriodMillis = 60_000;
+    save("hello-world-v2/dist/main.js", MAIN_JS);
+    Files.delete(shelf.resolve("hello-world-v1/dist/main.js"));
+    Files.delete(shelf.resolve("hello-world-v2/dist/main.js"));
+
+    assertEquals(0, koStore.collectGarbage());
+    assertTrue(Files.exists(blobFor(MAIN_JS)));
+  }
+
+  @Test
+  @DisplayName("Garbage collection keeps recently used blobs")
+  public void collectGarbage_keepsRecentBlobs() throws IOException {
+    save("hello-world-v1/dist/main.js", MAIN_JS);
+    Files.delete(shelf.resolve("hello-world-v1/dist/main.js"));
+    koStore.gracePeriodMillis = 60_000;
+
+    assertEquals(0, koStore.collectGarbage());
+    assertTrue(Files.exists(blobFor(MAIN_JS)));
+  }
+
+  @Test
+  @DisplayName("The blob directory is not a child of the shelf")
+  public void getChildren_skipsBlobDirectory() throws IOException {
+    save("hello-world-v1/metadata.json", "{}".getBytes(StandardCharsets.UTF_8));
+
+    assertEquals(1, koStore.getChildren().size());
+  }
+
+  private void save(String path, byte[] data) {
+    koStore.saveBinary(new ByteArrayInputStream(data), URI.create(path));
+  }
+
+  private byte[] read(String path) {
+    return koStore.getBinary(URI.create(path));
+  }
+
+  private Path blobFor(byte[] data) {
+    return koStore.getBlobPath(DigestUtils.sha256Hex(data));
+  }
+
+  private long countBlobs() throws IOException {
+    Path blobDir = shelf.resolve(DeduplicatingFilesystemCDOStore.BLOB_DIR);
+    try (Stream<Path> paths = Files.walk(blobDir)) {
+      return paths.filter(Files::isRegularFile).count();
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package org.kgrid.shelf.repository;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for one S3 bucket with just the operations the S3 store uses. Listings return {@link
+ * #pageSize} keys per page so paging is exercised with a handful of objects.
+ */
+class FakeS3Server {
+
+  static final String BUCKET = "shelf-bucket";
+  static final String ACCESS_KEY = "test-key";
+
+  final NavigableMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+  final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+  int pageSize = 2;
+
+  private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+  private final HttpServer server;
+
+  FakeS3Server() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/" + BUCKET, this::handle);
+    server.start();
+  }
+
+  String endpoint() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  int count(String request) {
+    return requests.computeIfAbsent(request, name -> new AtomicInteger()).get();
+  }
+
+  private void record(String request) {
+    requests.computeIfAbsent(request, name -> new AtomicInteger()).incrementAndGet();
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      if (authorization == null
+          || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=" + ACCESS_KEY + "/")) {
+        respond(exchange, 403, "<Error><Code>AccessDenied</Code></Error>");
+        return;
+      }
+      String key = exchange.getRequestURI().getPath().substring(BUCKET.length() + 1);
+      key = key.startsWith("/") ? key.substring(1) : key;
+      Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+      byte[] body = exchange.getRequestBody().readAllBytes();
+      switch (exchange.getRequestMethod()) {
+        case "GET":
+          if (query.containsKey("list-type")) {
+            list(exchange, query);
+          } else {
+            get(exchange, key);
+          }
+          break;
+        case "HEAD":
+          record("head");
+          byte[] object = objects.get(key);
+          if (object != null) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.length));
+          }
+          exchange.sendResponseHeaders(object != null ? 200 : 404, -1);
+          break;
+        case "PUT":
+          put(exchange, key, query, body);
+          break;
+        case "POST":
+          post(exchange, key, query, body);
+          break;
+        case "DELETE":
+          if (query.containsKey("uploadId")) {
+            uploads.remove(query.get("uploadId"));
+          } else {
+            objects.remove(key);
+          }
+          exchange.sendResponseHeaders(204, -1);
+          break;
+        default:
+          exchange.sendResponseHeaders(405, -1);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+    record("list");
+    String prefix = query.getOrDefault("prefix", "");
+    String after = query.get("continuation-token");
+    StringBuilder xml = new StringBuilder("<ListBucketResult>");
+    int listed = 0;
+    String last = null;
+    boolean truncated = false;
+    for (Map.Entry<String, byte[]> object :
+        (after == null ? objects : objects.tailMap(after, false)).entrySet()) {
+      if (!object.getKey().startsWith(prefix)) {
+        continue;
+      }
+      if (listed == pageSize) {
+        truncated = true;
+        break;
+      }
+      xml.append("<Contents><Key>")
+          .append(object.getKey().replace("&", "&amp;"))
+          .append("</Key><Size>")
+          .append(object.getValue().length)
+          .append("</Size></Contents>");
+      last = object.getKey();
+      listed++;
+    }
+    xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+    if (truncated) {
+      xml.append("<NextContinuationToken>")
+          .append(last.replace("&", "&amp;"))
+          .append("</NextContinuationToken>");
+    }
+    respond(exchange, 200, xml.append("</ListBucketResult>").toString());
+  }
+
+  private void get(HttpExchange exchange, String key) throws IOException {
+    byte[] object = objects.get(key);
+    if (object == null) {
+      respond(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>");
+      return;
+    }
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    int status = 200;
+    if (range != null) {
+      record("range");
+      String[] bounds = range.substring("bytes=".length()).split("-");
+      int start = Integer.parseInt(bounds[0]);
+      int end = Math.min(object.length - 1, Integer.parseInt(bounds[1]));
+      exchange
+          .getResponseHeaders()
+          .add("Content-Range", "bytes " + start + "-" + end + "/" + object.length);
+      object = Arrays.copyOfRange(object, start, end + 1);
+      status = 206;
+    }
+    exchange.sendResponseHeaders(status, object.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(object);
+    }
+  }
+
+  private void put(HttpExchange exchange, String key, Map<String, String> query, byte[] body)
+      throws IOException {
+    if (query.containsKey("uploadId")) {
+      record("part");
+      uploads
+          .get(query.get("uploadId"))
+          .put(Integer.parseInt(query.get("partNumber")), body);
+      exchange.getResponseHeaders().add("ETag", "\"" + UUID.randomUUID() + "\"");
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+    if (copySource != null) {
+      String source =
+          URLDecoder.decode(copySource, StandardCharsets.UTF_8).substring(BUCKET.length() + 2);
+      objects.put(key, objects.get(source));
+      respond(exchange, 200, "<CopyObjectResult></CopyObjectResult>");
+      return;
+    }
+    objects.put(key, body);
+    exchange.sendResponseHeaders(200, -1);
+  }
+
+  private void post(HttpExchange exchange, String key, Map<String, String> query, byte[] body)
+      throws IOException {
+    if (query.containsKey("uploads")) {
+      String uploadId = UUID.randomUUID().toString();
+      uploads.put(uploadId, new ConcurrentSkipListMap<>());
+      respond(
+          exchange,
+          200,
+          "<InitiateMultipartUploadResult><UploadId>"
+              + uploadId
+              + "</UploadId></InitiateMultipartUploadResult>");
+    } else if (query.containsKey("uploadId")) {
+      ByteArrayOutputStream object = new ByteArrayOutputStream();
+      for (byte[] part : uploads.remove(query.get("uploadId")).values()) {
+        object.write(part);
+      }
+      objects.put(key, object.toByteArray());
+      respond(exchange, 200, "<CompleteMultipartUploadResult></CompleteMultipartUploadResult>");
+    } else if (query.containsKey("delete")) {
+      if (exchange.getRequestHeaders().getFirst("Content-MD5") == null) {
+        respond(exchange, 400, "<Error><Code>InvalidRequest</Code></Error>");
+        return;
+      }
+      Matcher keys =
+          Pattern.compile("<Key>(.*?)</Key>").matcher(new String(body, StandardCharsets.UTF_8));
+      while (keys.find()) {
+        objects.remove(keys.group(1).replace("&amp;", "&"));
+      }
+      respond(exchange, 200, "<DeleteResult></DeleteResult>");
+    } else {
+      exchange.sendResponseHeaders(400, -1);
+    }
+  }
+
+  private void respond(HttpExchange exchange, int status, String xml) throws IOException {
+    byte[] body = xml.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static Map<String, String> query(String rawQuery) {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery != null) {
+      for (String parameter : rawQuery.split("&")) {
+        String[] keyValue = parameter.split("=", 2);
+        query.put(
+            keyValue[0],
+            keyValue.length > 1 ? URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8) : "");
+      }
+    }
+    return query;
+  }
+}
@@ -17,8 +17,14 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -96,6 +102,54 @@ public class FilesystemCDOStoreTest {
         code, new String(koStore.getBinary(helloDirName.resolve("src/").resolve("index.js"))));
   }
 
+  @Test
+  @DisplayName("Async reads return the same data as blocking reads")
+  public void asyncReadsMatchBlockingReads() throws Exception {
+    FilesystemCDOStore store = (FilesystemCDOStore) koStore;
+    URI indexJs = helloDirName.resolve("src/").resolve("index.js");
+
+    assertAll(
+        () ->
+            assertEquals(
+                koStore.getMetadata(helloDirName), store.getMetadataAsync(helloDirName).get()),
+        () -> assertArrayEquals(koStore.getBinary(indexJs), store.getBinaryAsync(indexJs).get()),
+        () ->
+            assertEquals(
+                koStore.getBinarySize(indexJs), (long) store.getBinarySizeAsync(indexJs).get()));
+  }
+
+  @Test
+  @DisplayName("Async reads of missing files fail with resource not found")
+  public void asyncReadsOfMissingFilesFail() {
+    FilesystemCDOStore store = (FilesystemCDOStore) koStore;
+
+    ExecutionException metadata =
+        assertThrows(
+            ExecutionException.class, () -> store.getMetadataAsync(URI.create("missing")).get());
+    ExecutionException binary =
+        assertThrows(
+            ExecutionException.class, () -> store.getBinaryAsync(URI.create("missing.js")).get());
+    assertAll(
+        () -> assertTrue(metadata.getCause() instanceof ShelfResourceNotFound),
+        () -> assertTrue(binary.getCause() instanceof ShelfResourceNotFound));
+  }
+
+  @Test
+  @DisplayName("Batch reads return what they can read in the order asked for")
+  public void batchReadsLeaveOutMissingFiles() {
+    URI indexJs = helloDirName.resolve("src/").resolve("index.js");
+    URI missing = URI.create("missing.js");
+
+    Map<URI, JsonNode> metadata =
+        Map.copyOf(koStore.getMetadata(List.of(URI.create("missing"), helloDirName)));
+    Map<URI, byte[]> binaries = koStore.getBinaries(List.of(missing, indexJs));
+
+    assertAll(
+        () -> assertEquals(Map.of(helloDirName, koStore.getMetadata(helloDirName)), metadata),
+        () -> assertEquals(List.of(indexJs), List.copyOf(binaries.keySet())),
+        () -> assertArrayEquals(koStore.getBinary(indexJs), binaries.get(indexJs)));
+  }
+
   @Test
   @DisplayName("Get binary stream returns correct stream data")
   public void getBinaryStreamReturnsCorrectStream() throws IOException {
@@ -132,6 +186,26 @@ public class FilesystemCDOStoreTest {
     assertEquals(metadata, new ObjectMapper().readTree(Files.readAllBytes(metadataPath)));
   }
 
+  @Test
+  @DisplayName("Saving metadata over existing metadata replaces it and leaves no temp files")
+  public void saveMetadataReplacesFileWholesale() throws IOException {
+    Path koDir = Paths.get(tempShelf.getPath(), helloDirName.toString());
+    List<Path> before;
+    try (Stream<Path> files = Files.list(koDir)) {
+      before = files.sorted().collect(Collectors.toList());
+    }
+    JsonNode metadata = new ObjectMapper().readTree("{\"@id\":\"replaced\"}");
+
+    koStore.saveMetadata(metadata, helloDirName);
+
+    try (Stream<Path> files = Files.list(koDir)) {
+      List<Path> after = files.sorted().collect(Collectors.toList());
+      assertAll(
+          () -> assertEquals(before, after),
+          () -> assertEquals(metadata, koStore.getMetadata(helloDirName)));
+    }
+  }
+
   @Test
   @DisplayName("Bad create metadata throws exception")
   public void cantCreateMetadataThrowsEx() throws IOException {
@@ -198,6 +272,93 @@ public class FilesystemCDOStoreTest {
     assertTrue(Files.exists(Paths.get(tempShelf.getPath(), "file.txt")));
   }
 
+  @Test
+  @DisplayName("Commit transaction replaces a ko that is already on the shelf")
+  public void commitTransactionReplacesExistingKo() throws IOException {
+    Path existingKo = Paths.get(tempShelf.getPath(), helloDirName.getPath());
+    Files.writeString(existingKo.resolve("stale.txt"), "stale");
+    String dirID = koStore.createTransaction();
+    Path newKo = Paths.get(tempShelf.getPath(), dirID, helloDirName.getPath());
+    Files.createDirectories(newKo);
+    Files.writeString(newKo.resolve("metadata.json"), "{\"@id\":\"hello-world\"}");
+
+    koStore.commitTransaction(dirID);
+
+    String[] shelfEntries = tempShelf.list();
+    assertAll(
+        () ->
+            assertEquals(
+                "{\"@id\":\"hello-world\"}",
+                Files.readString(existingKo.resolve("metadata.json"))),
+        () -> assertFalse(Files.exists(existingKo.resolve("stale.txt"))),
+        () -> assertFalse(Files.exists(Paths.get(tempShelf.getPath(), dirID))),
+        () -> assertTrue(Arrays.stream(shelfEntries).noneMatch(name -> name.startsWith("."))));
+  }
+
+  @Test
+  @DisplayName("A nested ko renamed aside during a replace is not a child of the shelf")
+  public void commitTransactionReplacesNestedKo() throws IOException {
+    Path nameDir = Paths.get(tempShelf.getPath(), "naan", "name");
+    Files.createDirectories(nameDir.resolve("v1"));
+    Files.writeString(nameDir.resolve("v1/metadata.json"), "{\"version\":\"old\"}");
+    // Where a commit that is replacing v1 has renamed the old copy for a moment
+    Path aside = nameDir.resolve(".v1.replaced-" + UUID.randomUUID());
+    Files.createDirectories(aside);
+    Files.writeString(aside.resolve("metadata.json"), "{\"version\":\"old\"}");
+    List<URI> during = koStore.getChildren();
+    FileUtils.deleteDirectory(aside.toFile());
+    String dirID = koStore.createTransaction();
+    Path newKo = Paths.get(tempShelf.getPath(), dirID, "naan", "name", "v1");
+    Files.createDirectories(newKo);
+    Files.writeString(newKo.resolve("metadata.json"), "{\"version\":\"new\"}");
+
+    koStore.commitTransaction(dirID);
+
+    assertAll(
+        () -> assertTrue(during.contains(URI.create("naan/name/v1/"))),
+        () -> assertTrue(during.stream().noneMatch(child -> child.toString().contains(".v1"))),
+        () ->
+            assertEquals(
+                "{\"version\":\"new\"}", Files.readString(nameDir.resolve("v1/metadata.json"))),
+        () -> assertArrayEquals(new String[] {"v1"}, nameDir.toFile().list()));
+  }
+
+  @Test
+  @DisplayName("Commit transaction merges into directories that are not kos")
+  public void commitTransactionMergesIntoParentDirectories() throws IOException {
+    Path naanDir = Paths.get(tempShelf.getPath(), "naan");
+    Files.createDirectories(naanDir.resolve("existing"));
+    Files.writeString(naanDir.resolve("existing/metadata.json"), "{}");
+    String dirID = koStore.createTransaction();
+    Path newKo = Paths.get(tempShelf.getPath(), dirID, "naan", "added");
+    Files.createDirectories(newKo);
+    Files.writeString(newKo.resolve("metadata.json"), "{}");
+
+    koStore.commitTransaction(dirID);
+
+    assertAll(
+        () -> assertTrue(Files.exists(naanDir.resolve("existing/metadata.json"))),
+        () -> assertTrue(Files.exists(naanDir.resolve("added/metadata.json"))));
+  }
+
+  @Test
+  @DisplayName("Committing a transaction that does not exist does nothing")
+  public void commitMissingTransactionDoesNothing() {
+    assertDoesNotThrow(() -> koStore.commitTransaction("trx-missing"));
+  }
+
+  @Test
+  @DisplayName("Kos in open transactions are not children of the shelf")
+  public void getChildrenSkipsOpenTransactions() throws IOException {
+    String dirID = koStore.createTransaction();
+    Path newKo = Paths.get(tempShelf.getPath(), dirID, "pending-ko");
+    Files.createDirectories(newKo);
+    Files.writeString(newKo.resolve("metadata.json"), "{}");
+
+    assertTrue(
+        koStore.getChildren().stream().noneMatch(child -> child.toString().contains("pending-ko")));
+  }
+
   @Test
   @DisplayName("Rollback transaction deletes temp dir")
   public void rollbackTransactionDeletesTempDir() throws IOException {
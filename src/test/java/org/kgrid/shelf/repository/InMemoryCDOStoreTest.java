@@ -0,0 +1,152 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("In Memory CDO Store Tests")
+public class InMemoryCDOStoreTest {
+
+  private static final byte[] MAIN_JS = "function main() {}".getBytes(StandardCharsets.UTF_8);
+  private final ObjectMapper mapper = new ObjectMapper();
+  private InMemoryCDOStore koStore;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    koStore = new InMemoryCDOStore("memory:shelf");
+    koStore.saveMetadata(
+        mapper.readTree("{\"@id\":\"hello-world\"}"),
+        URI.create("hello-world-v0.1.0/metadata.json"));
+    koStore.saveBinary(
+        new ByteArrayInputStream(MAIN_JS), URI.create("hello-world-v0.1.0/dist/main.js"));
+    koStore.saveMetadata(mapper.readTree("{}"), URI.create("My%20First%20Ko/metadata.json"));
+  }
+
+  @Test
+  @DisplayName("Shelf has all kos")
+  public void getChildrenListsKos() {
+    List<URI> children = koStore.getChildren();
+    assertAll(
+        () -> assertEquals(2, children.size()),
+        () -> assertTrue(children.contains(URI.create("hello-world-v0.1.0/"))),
+        () -> assertTrue(children.contains(URI.create("My%20First%20Ko/"))));
+  }
+
+  @Test
+  @DisplayName("Reads metadata from a ko directory or its metadata file")
+  public void getMetadataReadsFromDirectoryOrFile() {
+    assertAll(
+        () ->
+            assertEquals(
+                "hello-world",
+                koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("@id").asText()),
+        () ->
+            assertEquals(
+                "hello-world",
+                koStore
+                    .getMetadata(URI.create("hello-world-v0.1.0/metadata.json"))
+                    .get("@id")
+                    .asText()),
+        () ->
+            assertThrows(
+                ShelfResourceNotFound.class, () -> koStore.getMetadata(URI.create("missing"))));
+  }
+
+  @Test
+  @DisplayName("Binaries can be read as bytes, streams and sizes")
+  public void getBinaryReadsWhatWasSaved() throws IOException {
+    URI mainJs = URI.create("hello-world-v0.1.0/dist/main.js");
+    try (InputStream stream = koStore.getBinaryStream(mainJs)) {
+      assertArrayEquals(MAIN_JS, stream.readAllBytes());
+    }
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(mainJs)),
+        () -> assertEquals(MAIN_JS.length, koStore.getBinarySize(mainJs)),
+        () -> assertThrows(ShelfResourceNotFound.class, () -> koStore.getBinary(URI.create("x"))),
+        () -> assertThrows(ShelfException.class, () -> koStore.getBinarySize(URI.create("x"))));
+  }
+
+  @Test
+  @DisplayName("Saving metadata to a ko directory writes its metadata file")
+  public void saveMetadataToDirectory() throws IOException {
+    koStore.saveMetadata(
+        mapper.readTree("{\"@id\":\"hello-world\",\"title\":\"new\"}"),
+        URI.create("hello-world-v0.1.0"));
+    assertEquals(
+        "new", koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("title").asText());
+  }
+
+  @Test
+  @DisplayName("Delete removes the ko and everything in it")
+  public void deleteRemovesKo() {
+    koStore.delete(URI.create("hello-world-v0.1.0"));
+    assertAll(
+        () -> assertEquals(1, koStore.getChildren().size()),
+        () ->
+            assertThrows(
+                ShelfResourceNotFound.class,
+                () -> koStore.getBinary(URI.create("hello-world-v0.1.0/dist/main.js"))));
+  }
+
+  @Test
+  @DisplayName("Transaction writes are only visible on the shelf after commit")
+  public void commitPublishesTransaction() {
+    String trxId = koStore.createTransaction();
+    koStore.saveBinary(
+        new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8)),
+        URI.create(trxId + "/new-ko/metadata.json"));
+
+    assertAll(
+        () -> assertEquals(2, koStore.getChildren().size()),
+        () -> assertNotNull(koStore.getMetadata(URI.create(trxId + "/new-ko"))));
+
+    koStore.commitTransaction(trxId);
+    assertAll(
+        () -> assertEquals(3, koStore.getChildren().size()),
+        () -> assertNotNull(koStore.getMetadata(URI.create("new-ko"))));
+  }
+
+  @Test
+  @DisplayName("Committing a ko replaces the whole ko")
+  public void commitReplacesExistingKo() {
+    String trxId = koStore.createTransaction();
+    koStore.saveBinary(
+        new ByteArrayInputStream("{\"@id\":\"v2\"}".getBytes(StandardCharsets.UTF_8)),
+        URI.create(trxId + "/hello-world-v0.1.0/metadata.json"));
+    koStore.commitTransaction(trxId);
+
+    assertAll(
+        () ->
+            assertEquals(
+                "v2", koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("@id").asText()),
+        () ->
+            assertThrows(
+                ShelfResourceNotFound.class,
+                () -> koStore.getBinary(URI.create("hello-world-v0.1.0/dist/main.js"))));
+  }
+
+  @Test
+  @DisplayName("Rolling back discards the transaction")
+  public void rollbackDiscardsTransaction() {
+    String trxId = koStore.createTransaction();
+    koStore.saveBinary(
+        new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8)),
+        URI.create(trxId + "/new-ko/metadata.json"));
+    koStore.rollbackTransaction(trxId);
+    koStore.commitTransaction(trxId);
+
+    assertEquals(2, koStore.getChildren().size());
+  }
+}
@@ -0,0 +1,89 @@
+package org.kgrid.shelf.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.domain.ArkId;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kgrid.shelf.repository.KnowledgeObjectChange.Type.*;
+
+@DisplayName("Knowledge Object Change Feed Tests")
+public class KnowledgeObjectChangeFeedTest {
+
+  private final KnowledgeObjectChangeFeed feed = new KnowledgeObjectChangeFeed(3);
+  private final ArkId arkId = new ArkId("naan", "name", "v1");
+
+  @AfterEach
+  public void tearDown() {
+    feed.destroy();
+  }
+
+  @Test
+  @DisplayName("Changes are numbered in order and read back after a sequence number")
+  public void changesAreSequenced() {
+    feed.publish(ADDED, arkId, "\"1\"");
+    feed.publish(UPDATED, arkId, "\"2\"");
+    feed.publish(DELETED, arkId, null);
+
+    assertAll(
+        () -> assertEquals(3, feed.getLatestSequence()),
+        () -> assertEquals(List.of(2L, 3L), sequences(feed.since(1, 10))),
+        () -> assertEquals(List.of(1L), sequences(feed.since(0, 1))),
+        () -> assertEquals(List.of(), feed.since(3, 10)),
+        () -> assertEquals("ark:/naan/name/v1", feed.since(2, 1).get(0).getArk()),
+        () -> assertNull(feed.since(2, 1).get(0).getTag()));
+  }
+
+  @Test
+  @DisplayName("Clients too far behind, or ahead after a restart, are told to resync")
+  public void oldChangesFallOutOfTheRing() {
+    for (int i = 0; i < 5; i++) {
+      feed.publish(UPDATED, arkId, "\"" + i + "\"");
+    }
+
+    assertAll(
+        () -> assertFalse(feed.hasChangesSince(1)),
+        () -> assertTrue(feed.hasChangesSince(2)),
+        () -> assertTrue(feed.hasChangesSince(5)),
+        () -> assertFalse(feed.hasChangesSince(6)),
+        () -> assertEquals(List.of(3L, 4L, 5L), sequences(feed.since(0, 10))));
+  }
+
+  @Test
+  @DisplayName("Subscribers get each change in order until they unsubscribe")
+  public void subscribersGetChangesInOrder() throws InterruptedException {
+    List<Long> seen = new CopyOnWriteArrayList<>();
+    CountDownLatch twoSeen = new CountDownLatch(2);
+    Runnable unsubscribe =
+        feed.subscribe(
+            change -> {
+              seen.add(change.getSequence());
+              twoSeen.countDown();
+            });
+
+    feed.publish(ADDED, arkId, "\"1\"");
+    feed.publish(UPDATED, arkId, "\"2\"");
+    assertTrue(twoSeen.await(5, TimeUnit.SECONDS));
+    unsubscribe.run();
+    feed.publish(DELETED, arkId, null);
+    CountDownLatch delivered = new CountDownLatch(1);
+    feed.subscribe(change -> delivered.countDown());
+    feed.publish(DELETED, arkId, null);
+    assertTrue(delivered.await(5, TimeUnit.SECONDS));
+
+    assertEquals(List.of(1L, 2L), seen);
+  }
+
+  private static List<Long> sequences(List<KnowledgeObjectChange> changes) {
+    return changes.stream()
+        .map(KnowledgeObjectChange::getSequence)
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,196 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.domain.ArkId;
+import org.mockito.Mockito;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kgrid.shelf.repository.KnowledgeObjectChange.Type.*;
+import static org.mockito.Mockito.when;
+
+@DisplayName("Knowledge Object Change Log Tests")
+public class KnowledgeObjectChangeLogTest {
+
+  private final ArkId v1 = new ArkId("naan", "name", "v1");
+  private final ArkId v2 = new ArkId("naan", "name", "v2");
+  private final CompoundDigitalObjectStore cdoStore = new InMemoryCDOStore("memory:shelf");
+  private final KnowledgeObjectRepository koRepo = Mockito.mock(KnowledgeObjectRepository.class);
+  private KnowledgeObjectChangeFeed feed;
+  private KnowledgeObjectChangeLog changeLog;
+  private long start;
+  private long now;
+
+  @BeforeEach
+  public void setUp() {
+    now = System.currentTimeMillis();
+    feed = new KnowledgeObjectChangeFeed();
+    changeLog = start(feed, 10);
+    start = changeLog.since(0).getLatest();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    changeLog.destroy();
+    feed.destroy();
+  }
+
+  @Test
+  @DisplayName("Each version is listed once, by what happened to it since the client's position")
+  public void deltaIsCompacted() {
+    record(start + 1, ADDED, v1, "\"1\"", 1000);
+    record(start + 2, ADDED, v2, "\"2\"", 2000);
+    record(start + 3, UPDATED, v1, "\"1a\"", 3000);
+    record(start + 4, DELETED, v2, null, 4000);
+
+    KnowledgeObjectChangeLog.Delta fromStart = changeLog.since(start);
+    KnowledgeObjectChangeLog.Delta fromSecond = changeLog.since(start + 2);
+    KnowledgeObjectChangeLog.Delta afterTime = changeLog.since(Instant.ofEpochMilli(now + 3000));
+    assertAll(
+        () -> assertTrue(changeLog.since(0).isResync()),
+        () -> assertTrue(changeLog.since(start + 5).isResync()),
+        () -> assertFalse(fromStart.isResync()),
+        () -> assertEquals(start + 4, fromStart.getLatest()),
+        () -> assertEquals(List.of(v1.getFullArk()), fromStart.getAdded()),
+        () -> assertEquals(List.of(), fromStart.getUpdated()),
+        () -> assertEquals(List.of(v2.getFullArk()), fromStart.getRemoved()),
+        () -> assertEquals(List.of(v1.getFullArk()), fromSecond.getUpdated()),
+        () -> assertEquals(List.of(v2.getFullArk()), fromSecond.getRemoved()),
+        () -> assertEquals(List.of(), afterTime.getUpdated()),
+        () -> assertEquals(List.of(v2.getFullArk()), afterTime.getRemoved()));
+  }
+
+  @Test
+  @DisplayName("Only the newest tombstones are kept and clients behind the rest resync")
+  public void oldTombstonesArePruned() {
+    changeLog.destroy();
+    changeLog = start(feed, 1);
+    start = changeLog.since(0).getLatest();
+    record(start + 1, DELETED, v1, null, 1000);
+    record(start + 2, DELETED, v2, null, 2000);
+
+    KnowledgeObjectChangeLog.Delta delta = changeLog.since(start + 1);
+    assertAll(
+        () -> assertTrue(changeLog.since(start).isResync()),
+        () -> assertTrue(changeLog.since(Instant.ofEpochMilli(now + 500)).isResync()),
+        () -> assertFalse(delta.isResync()),
+        () -> assertEquals(List.of(v2.getFullArk()), delta.getRemoved()));
+  }
+
+  @Test
+  @DisplayName("Gaps left by restarts are dropped once tombstones are pruned past them")
+  public void prunedGapsAreDropped() throws Exception {
+    for (int restart = 0; restart < 3; restart++) {
+      changeLog.destroy();
+      Thread.sleep(2);
+      changeLog = start(feed, 1);
+    }
+    start = changeLog.since(0).getLatest();
+    record(start + 1, DELETED, v1, null, 1000);
+    record(start + 2, DELETED, v2, null, 2000);
+    changeLog.flush();
+
+    JsonNode saved =
+        new ObjectMapper().readTree(cdoStore.getBinary(KnowledgeObjectChangeLog.LOG_LOCATION));
+    assertAll(
+        () -> assertEquals(0, saved.path("gaps").size()),
+        () -> assertTrue(changeLog.since(start).isResync()),
+        () -> assertFalse(changeLog.since(start + 1).isResync()));
+  }
+
+  @Test
+  @DisplayName("The log survives a restart and picks up changes it missed from the shelf")
+  public void logIsReloadedAndReconciled() throws InterruptedException {
+    record(start + 1, ADDED, v1, "\"1\"", 1000);
+    record(start + 2, ADDED, v2, "\"2\"", 2000);
+    changeLog.destroy();
+    feed.destroy();
+    // The restart numbers from a later millisecond, leaving a gap no client can be inside of
+    Thread.sleep(5);
+
+    JsonNode metadata = new ObjectMapper().createObjectNode();
+    when(koRepo.findAll()).thenReturn(Map.of(v1, metadata));
+    when(koRepo.getMetadataTag(v1)).thenReturn("\"1-edited\"");
+    feed = new KnowledgeObjectChangeFeed();
+    changeLog = start(feed, 10);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    KnowledgeObjectChangeLog.Delta delta = changeLog.since(start + 2);
+    while (delta.getRemoved().isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+      delta = changeLog.since(start + 2);
+    }
+    KnowledgeObjectChangeLog.Delta missed = delta;
+    assertAll(
+        () -> assertTrue(feed.getLatestSequence() > start + 2),
+        () -> assertFalse(missed.isResync()),
+        () -> assertEquals(List.of(v1.getFullArk()), missed.getUpdated()),
+        () -> assertEquals(List.of(v2.getFullArk()), missed.getRemoved()),
+        () -> assertTrue(changeLog.since(start + 3).isResync()));
+  }
+
+  @Test
+  @DisplayName("Instances sharing a shelf keep their own logs, or none without a name")
+  public void sharedShelfNeedsInstanceLogs() throws Exception {
+    record(start + 1, ADDED, v1, "\"1\"", 1000);
+    changeLog.destroy();
+    KnowledgeObjectChangeFeed otherFeed = new KnowledgeObjectChangeFeed();
+    KnowledgeObjectChangeLog first = startShared(feed, "first");
+    KnowledgeObjectChangeLog second = startShared(otherFeed, "second");
+    KnowledgeObjectChangeLog unnamed = startShared(otherFeed, "");
+    try {
+      first.flush();
+      second.flush();
+
+      long firstLatest = first.since(0).getLatest();
+      JsonNode firstLog =
+          new ObjectMapper().readTree(cdoStore.getBinary(URI.create(".change-log-first.json")));
+      JsonNode secondLog =
+          new ObjectMapper().readTree(cdoStore.getBinary(URI.create(".change-log-second.json")));
+      assertAll(
+          () -> assertEquals(firstLatest, firstLog.path("latest").asLong()),
+          () -> assertEquals(second.since(0).getLatest(), secondLog.path("latest").asLong()),
+          () -> assertFalse(first.since(firstLatest).isResync()),
+          () -> assertTrue(unnamed.since(unnamed.since(0).getLatest()).isResync()));
+    } finally {
+      first.destroy();
+      second.destroy();
+      unnamed.destroy();
+      otherFeed.destroy();
+    }
+    changeLog = start(feed, 10);
+  }
+
+  private KnowledgeObjectChangeLog startShared(KnowledgeObjectChangeFeed feed, String instance) {
+    KnowledgeObjectChangeLog started = new KnowledgeObjectChangeLog(cdoStore, feed, koRepo);
+    started.flushIntervalMillis = TimeUnit.HOURS.toMillis(1);
+    started.sharedShelf = true;
+    started.instance = instance;
+    started.afterPropertiesSet();
+    return started;
+  }
+
+  private KnowledgeObjectChangeLog start(KnowledgeObjectChangeFeed feed, int maxTombstones) {
+    KnowledgeObjectChangeLog started = new KnowledgeObjectChangeLog(cdoStore, feed, koRepo);
+    started.flushIntervalMillis = TimeUnit.HOURS.toMillis(1);
+    started.maxTombstones = maxTombstones;
+    started.afterPropertiesSet();
+    return started;
+  }
+
+  private void record(
+      long sequence, KnowledgeObjectChange.Type type, ArkId arkId, String tag, long time) {
+    changeLog.record(new KnowledgeObjectChange(sequence, type, arkId, tag, new Date(now + time)));
+  }
+}
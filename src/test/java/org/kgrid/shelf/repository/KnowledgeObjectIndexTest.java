@@ -0,0 +1,58 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.domain.ArkId;
+
+import java.net.URI;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Knowledge Object Index Tests")
+public class KnowledgeObjectIndexTest {
+
+  private final KnowledgeObjectIndex index = new KnowledgeObjectIndex();
+  private final JsonNode metadata = new ObjectMapper().createObjectNode().put("title", "t");
+  private final ArkId v1 = new ArkId("naan", "name", "v1");
+  private final ArkId v2 = new ArkId("naan", "name", "v2");
+
+  @Test
+  @DisplayName("Versions are listed in reverse order and the ark goes with its last version")
+  public void removingTheLastVersionRemovesTheArk() {
+    index.put(v1, URI.create("naan-name-v1/"), metadata, "\"1\"");
+    index.put(v2, URI.create("naan-name-v2/"), metadata, "\"2\"");
+
+    assertEquals(List.of("v2", "v1"), List.copyOf(index.versions("naan/name").keySet()));
+
+    index.remove(v1);
+    assertAll(
+        () -> assertNull(index.location(v1)),
+        () -> assertNull(index.metadata(v1)),
+        () -> assertNull(index.tag(v1)),
+        () -> assertEquals(URI.create("naan-name-v2/"), index.location(v2)));
+
+    index.remove(v2);
+    index.remove(v2);
+    assertAll(
+        () -> assertNull(index.versions("naan/name")),
+        () -> assertTrue(index.allMetadata().isEmpty()));
+  }
+
+  @Test
+  @DisplayName("Replacing metadata keeps the location and changes the tag")
+  public void putMetadataKeepsLocation() {
+    index.put(v1, URI.create("naan-name-v1/"), metadata, "\"1\"");
+    JsonNode edited = new ObjectMapper().createObjectNode().put("title", "edited");
+
+    index.putMetadata(v1, edited, "\"edited\"");
+
+    assertAll(
+        () -> assertEquals(URI.create("naan-name-v1/"), index.location(v1)),
+        () -> assertEquals(edited, index.metadata(v1)),
+        () -> assertEquals("\"edited\"", index.tag(v1)),
+        () -> assertNull(index.location(new ArkId("naan", "name"))));
+  }
+}
@@ -0,0 +1,132 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.domain.ArkId;
+import org.zeroturnaround.zip.ZipUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Knowledge Object Journal Tests")
+public class KnowledgeObjectJournalTest {
+
+  private static final ArkId HELLO_WORLD = new ArkId("hello", "world", "v3");
+  private static final ArkId HELLO_COPY = new ArkId("hello", "copy", "v3");
+
+  @TempDir Path shelf;
+  private Instance first;
+  private Instance second;
+
+  @BeforeEach
+  public void setUp() {
+    ZipUtil.unpack(
+        new File("src/test/resources/fixtures/import-export/mycoolko.zip"), shelf.toFile());
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    first.close();
+    second.close();
+  }
+
+  @Test
+  @DisplayName("Imports, edits and deletes on one instance reach the other without a rescan")
+  public void changesReachTheOtherInstance() throws IOException, InterruptedException {
+    first = new Instance(8388608);
+    second = new Instance(8388608);
+    long scannedAt = second.repo.indexScanStarted();
+
+    JsonNode copied = copyKo();
+    first.repo.addKnowledgeObjectToLocationMap(URI.create("hello-copy/"), copied);
+    await(() -> second.repo.findAll().containsKey(HELLO_COPY));
+
+    ObjectNode edited = first.repo.findKnowledgeObjectMetadata(HELLO_WORLD).deepCopy();
+    first.repo.editMetadata(HELLO_WORLD, edited.put("title", "Edited").toString());
+    await(() -> first.repo.getMetadataTag(HELLO_WORLD)
+        .equals(second.repo.getMetadataTag(HELLO_WORLD)));
+
+    first.repo.delete(HELLO_COPY);
+    await(() -> !second.repo.findAll().containsKey(HELLO_COPY));
+
+    assertAll(
+        () -> assertEquals(scannedAt, second.repo.indexScanStarted()),
+        () -> assertEquals(
+            "Edited", second.repo.findKnowledgeObjectMetadata(HELLO_WORLD).get("title").asText()),
+        () -> assertEquals(first.repo.findAll().keySet(), second.repo.findAll().keySet()));
+  }
+
+  @Test
+  @DisplayName("An instance rescans the shelf once when the journal is started again")
+  public void restartedJournalTriggersRescan() throws IOException, InterruptedException {
+    first = new Instance(1);
+    second = new Instance(8388608);
+    long scannedAt = second.repo.indexScanStarted();
+    Thread.sleep(5);
+
+    ObjectNode edited = first.repo.findKnowledgeObjectMetadata(HELLO_WORLD).deepCopy();
+    first.repo.editMetadata(HELLO_WORLD, edited.put("title", "Edited").toString());
+
+    await(() -> second.repo.indexScanStarted() > scannedAt);
+    assertEquals(
+        first.repo.getMetadataTag(HELLO_WORLD), second.repo.getMetadataTag(HELLO_WORLD));
+  }
+
+  private JsonNode copyKo() throws IOException {
+    Path copy = shelf.resolve("hello-copy");
+    FileUtils.copyDirectory(shelf.resolve("mycoolko").toFile(), copy.toFile());
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode metadata = (ObjectNode) mapper.readTree(copy.resolve("metadata.json").toFile());
+    metadata.put("@id", "hello-copy").put("identifier", "ark:/hello/copy");
+    mapper.writeValue(copy.resolve("metadata.json").toFile(), metadata);
+    return metadata;
+  }
+
+  /** Polls the second instance's journal until the condition holds. */
+  private void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (System.nanoTime() < deadline) {
+      second.journal.poll();
+      if (condition.getAsBoolean()) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    fail("Change did not reach the other instance");
+  }
+
+  /** A repository and journal of its own over the shared shelf, as another JVM would have. */
+  private class Instance {
+    final KnowledgeObjectChangeFeed changes = new KnowledgeObjectChangeFeed();
+    final KnowledgeObjectRepository repo;
+    final KnowledgeObjectJournal journal;
+
+    Instance(long maxJournalSize) throws IOException {
+      FilesystemCDOStore store = new FilesystemCDOStore("filesystem:" + shelf.toUri());
+      repo = new KnowledgeObjectRepository(store, new KnowledgeObjectLocks(), changes);
+      journal = new KnowledgeObjectJournal(store, changes, repo);
+      journal.enabled = true;
+      journal.pollIntervalMillis = TimeUnit.HOURS.toMillis(1);
+      journal.maxSize = maxJournalSize;
+      journal.afterPropertiesSet();
+    }
+
+    void close() throws IOException {
+      journal.destroy();
+      changes.destroy();
+    }
+  }
+}
@@ -0,0 +1,236 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
+import org.kgrid.shelf.service.ImportService;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Knowledge Object Locks Tests")
+public class KnowledgeObjectLocksTest {
+
+  private static final ArkId STRESS_ARK = new ArkId("hello", "stress", "v1");
+  private static final ArkId EDIT_ARK = new ArkId("hello", "edit", "v1");
+  private static final ArkId QUIET_ARK = new ArkId("hello", "quiet", "v1");
+
+  private final KnowledgeObjectLocks locks = new KnowledgeObjectLocks();
+  private final ExecutorService threads = Executors.newCachedThreadPool();
+
+  @TempDir Path temp;
+
+  @AfterEach
+  public void tearDown() {
+    threads.shutdownNow();
+  }
+
+  @Test
+  @DisplayName("Readers of a version hold it at the same time")
+  public void readersShareAVersion() throws Exception {
+    CountDownLatch bothReading = new CountDownLatch(2);
+    Future<Boolean> other =
+        threads.submit(() -> locks.read(STRESS_ARK, () -> awaitQuietly(bothReading)));
+
+    assertTrue(locks.read(STRESS_ARK, () -> awaitQuietly(bothReading)));
+    assertTrue(other.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  @DisplayName("A writer waits for readers and readers wait for a writer")
+  public void writerIsExclusive() throws Exception {
+    KnowledgeObjectLocks.Held read = locks.lockRead(List.of(STRESS_ARK));
+    Future<?> write = threads.submit(() -> locks.write(STRESS_ARK, () -> {}));
+    assertThrows(TimeoutException.class, () -> write.get(200, TimeUnit.MILLISECONDS));
+
+    // Closed from another thread, as an async read does when it completes
+    CompletableFuture.runAsync(read::close, threads).get(5, TimeUnit.SECONDS);
+    write.get(5, TimeUnit.SECONDS);
+
+    KnowledgeObjectLocks.Held written = locks.lockWrite(List.of(STRESS_ARK));
+    Future<?> reader = threads.submit(() -> locks.read(STRESS_ARK, () -> true));
+    assertThrows(TimeoutException.class, () -> reader.get(200, TimeUnit.MILLISECONDS));
+    written.close();
+    reader.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  @DisplayName("Versions in other stripes are not held up by a writer")
+  public void otherStripesAreNotBlocked() throws Exception {
+    ArkId otherStripe = new ArkId("hello", "stress", "v2");
+    for (int i = 3; locks.stripeOf(otherStripe) == locks.stripeOf(STRESS_ARK); i++) {
+      otherStripe = new ArkId("hello", "stress", "v" + i);
+    }
+    ArkId other = otherStripe;
+
+    try (KnowledgeObjectLocks.Held held = locks.lockWrite(List.of(STRESS_ARK))) {
+      assertTrue(threads.submit(() -> locks.read(other, () -> true)).get(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  @DisplayName("Thousands of reads alongside imports and edits see no torn kos")
+  public void concurrentReadsImportsAndEditsStayConsistent() throws Exception {
+    FilesystemCDOStore store =
+        new FilesystemCDOStore("filesystem:" + temp.resolve("shelf").toUri());
+    KnowledgeObjectRepository koRepo = new KnowledgeObjectRepository(store, locks);
+    ImportService importService = new ImportService();
+    ReflectionTestUtils.setField(importService, "cdoStore", store);
+    ReflectionTestUtils.setField(importService, "koRepo", koRepo);
+    ReflectionTestUtils.setField(importService, "locks", locks);
+    FileSystemResource[] generations = {
+      koZip("stress", 0), koZip("stress", 1), koZip("stress", 2)
+    };
+    importService.importZip(generations[0]);
+    importService.importZip(koZip("edit", 0));
+    importService.importZip(koZip("quiet", 0));
+
+    int readers = 8;
+    int readsPerReader = 500;
+    Queue<String> torn = new ConcurrentLinkedQueue<>();
+    AtomicInteger reads = new AtomicInteger();
+    AtomicLong slowestQuietRead = new AtomicLong();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> work = new ArrayList<>();
+    for (int r = 0; r < readers; r++) {
+      work.add(
+          threads.submit(
+              () -> {
+                start.await();
+                for (int i = 0; i < readsPerReader; i++) {
+                  checkKo(koRepo.getKow(STRESS_ARK), koRepo, torn);
+                  JsonNode edited = koRepo.findKnowledgeObjectMetadata(EDIT_ARK);
+                  if (!edited.get("generation").equals(edited.get("check"))) {
+                    torn.add("edit " + edited);
+                  }
+                  long before = System.nanoTime();
+                  koRepo.getBinary(QUIET_ARK, "src/index.js");
+                  slowestQuietRead.accumulateAndGet(System.nanoTime() - before, Math::max);
+                  reads.addAndGet(3);
+                }
+                return null;
+              }));
+    }
+    work.add(
+        threads.submit(
+            () -> {
+              start.await();
+              for (int i = 0; i < 60; i++) {
+                importService.importZip(generations[i % generations.length]);
+              }
+              return null;
+            }));
+    work.add(
+        threads.submit(
+            () -> {
+              start.await();
+              for (int i = 0; i < 300; i++) {
+                koRepo.editMetadata(EDIT_ARK, metadata("edit", i));
+              }
+              return null;
+            }));
+
+    start.countDown();
+    for (Future<?> task : work) {
+      task.get(120, TimeUnit.SECONDS);
+    }
+
+    assertAll(
+        () -> assertEquals(List.of(), List.copyOf(torn)),
+        () -> assertEquals(readers * readsPerReader * 3, reads.get()),
+        () ->
+            assertTrue(
+                TimeUnit.NANOSECONDS.toSeconds(slowestQuietRead.get()) < 5,
+                "Reads of a ko nobody writes were held up by writers of other kos"));
+  }
+
+  private static void checkKo(
+      KnowledgeObjectWrapper kow, KnowledgeObjectRepository koRepo, Queue<String> torn) {
+    String generation = kow.getMetadata().get("generation").asText();
+    if (!generation.equals(kow.getService().at("/info/version").asText())) {
+      torn.add("metadata generation " + generation + " with service " + kow.getService());
+    }
+    String payload =
+        new String(koRepo.getBinary(STRESS_ARK, "src/index.js"), StandardCharsets.UTF_8);
+    if (payload.isEmpty() || !payload.equals(payload(payload.charAt(0) - '0'))) {
+      torn.add("payload mixing generations");
+    }
+  }
+
+  private FileSystemResource koZip(String name, int generation) throws IOException {
+    // The directory inside a ko zip is named after the zip
+    Path zip = Files.createDirectories(temp.resolve("generation-" + generation))
+        .resolve("hello-" + name + ".zip");
+    try (OutputStream file = Files.newOutputStream(zip);
+        ZipOutputStream out = new ZipOutputStream(file)) {
+      String base = "hello-" + name + "/";
+      write(out, base + "metadata.json", metadata(name, generation));
+      write(
+          out,
+          base + "deployment.yaml",
+          "/welcome:\n  post:\n    artifact: src/index.js\n    engine: javascript\n");
+      write(
+          out,
+          base + "service.yaml",
+          "openapi: 3.0.2\ninfo:\n  title: " + name + "\n  version: '" + generation + "'\n");
+      write(out, base + "src/index.js", payload(generation));
+    }
+    return new FileSystemResource(zip);
+  }
+
+  private static String metadata(String name, int generation) {
+    return String.format(
+        "{\"@id\":\"hello-%s\",\"identifier\":\"ark:/hello/%s\",\"version\":\"v1\","
+            + "\"hasServiceSpecification\":\"service.yaml\","
+            + "\"hasDeploymentSpecification\":\"deployment.yaml\","
+            + "\"hasPayload\":\"src/index.js\",\"generation\":%d,\"check\":%d}",
+        name, name, generation, generation);
+  }
+
+  private static String payload(int generation) {
+    return String.valueOf(generation).repeat(64 * 1024);
+  }
+
+  private static void write(ZipOutputStream out, String name, String content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes(StandardCharsets.UTF_8));
+    out.closeEntry();
+  }
+
+  private static boolean awaitQuietly(CountDownLatch latch) {
+    latch.countDown();
+    try {
+      return latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
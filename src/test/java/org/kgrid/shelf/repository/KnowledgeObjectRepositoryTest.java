@@ -8,8 +8,10 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfPreconditionFailed;
 import org.kgrid.shelf.ShelfResourceNotFound;
 import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
 import org.kgrid.shelf.domain.KoFields;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
@@ -19,7 +21,10 @@ import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.kgrid.shelf.TestHelper.*;
@@ -89,21 +94,218 @@ public class KnowledgeObjectRepositoryTest {
         koRepo.getKow(ARK_ID_V2);
     }
 
+    @Test
+    @DisplayName("Imports, edits and deletes show up in find all without rescanning the shelf")
+    public void testMutationsUpdateTheIndexWithoutRescan() {
+        ArkId importedArk = new ArkId(NAAN, NAME, "v3");
+        URI importedUri = URI.create(String.format("%s/%s/%s/", NAAN, NAME, "v3"));
+        JsonNode importedMetadata =
+                generateMetadata(importedUri.toString(), "ark:/" + NAAN + "/" + NAME, "v3");
+
+        koRepo.addKnowledgeObjectToLocationMap(importedUri, importedMetadata);
+        ObjectNode edited = koRepo.editMetadata(ARK_ID_V1, "{\"edited\":true}");
+        koRepo.delete(ARK_ID_V2);
+        koRepo.delete(importedArk);
+        Map<ArkId, JsonNode> all = koRepo.findAll();
+
+        assertAll(
+                () -> verify(cdoStore, times(1)).getChildren(),
+                () -> assertEquals(Map.of(ARK_ID_V1, edited), all),
+                () -> assertThrows(ShelfResourceNotFound.class,
+                        () -> koRepo.findKnowledgeObjectMetadata(ARK_ID_V2)),
+                () -> assertThrows(ShelfResourceNotFound.class, () -> koRepo.delete(ARK_ID_V2))
+        );
+    }
+
+    @Test
+    @DisplayName("Refresh keeps changes made while it was scanning the shelf")
+    public void testRefreshReplaysChangesMadeDuringTheScan() {
+        ArkId importedArk = new ArkId(NAAN, NAME, "v3");
+        URI importedUri = URI.create(String.format("%s/%s/%s/", NAAN, NAME, "v3"));
+        JsonNode importedMetadata =
+                generateMetadata(importedUri.toString(), "ark:/" + NAAN + "/" + NAME, "v3");
+        when(cdoStore.getMetadata(koV2Uri)).thenAnswer(invocation -> {
+            // An import that finishes after the scan has listed the shelf
+            koRepo.addKnowledgeObjectToLocationMap(importedUri, importedMetadata);
+            return koV2MetadataNode;
+        });
+
+        koRepo.refreshObjectMap();
+
+        assertAll(
+                () -> assertEquals(3, koRepo.findAll().size()),
+                () -> assertEquals(importedMetadata, koRepo.findAll().get(importedArk)),
+                () -> assertEquals(importedUri, koRepo.getObjectLocation(importedArk))
+        );
+    }
+
+    @Test
+    @DisplayName("Imports, edits, deletes and changes found by a refresh go to the change feed")
+    public void testMutationsArePublishedToTheChangeFeed() {
+        KnowledgeObjectChangeFeed changes = new KnowledgeObjectChangeFeed();
+        koRepo = new KnowledgeObjectRepository(cdoStore, new KnowledgeObjectLocks(), changes);
+        URI importedUri = URI.create(String.format("%s/%s/%s/", NAAN, NAME, "v3"));
+        ObjectNode importedMetadata = (ObjectNode)
+                generateMetadata(importedUri.toString(), "ark:/" + NAAN + "/" + NAME, "v3");
+        koRepo.addKnowledgeObjectToLocationMap(importedUri, importedMetadata);
+        ObjectNode edited = koRepo.editMetadata(ARK_ID_V1, "{\"edited\":true}");
+        koRepo.delete(ARK_ID_V1);
+        // v2 is removed from the store behind the repository's back
+        cdoStoreChildren.clear();
+        cdoStoreChildren.add(importedUri);
+        when(cdoStore.getMetadata(importedUri)).thenReturn(importedMetadata);
+
+        koRepo.refreshObjectMap();
+
+        List<KnowledgeObjectChange> published = changes.since(0, 10);
+        changes.destroy();
+        assertAll(
+                () -> assertEquals(4, published.size()),
+                () -> assertEquals(KnowledgeObjectChange.Type.ADDED, published.get(0).getType()),
+                () -> assertEquals(KnowledgeObjectChange.Type.UPDATED, published.get(1).getType()),
+                () -> assertEquals(KnowledgeObjectRepository.metadataTag(edited),
+                        published.get(1).getTag()),
+                () -> assertEquals(KnowledgeObjectChange.Type.DELETED, published.get(2).getType()),
+                () -> assertEquals(ARK_ID_V1.getFullArk(), published.get(2).getArk()),
+                () -> assertEquals(KnowledgeObjectChange.Type.DELETED, published.get(3).getType()),
+                () -> assertEquals(ARK_ID_V2.getFullArk(), published.get(3).getArk())
+        );
+    }
+
+    @Test
+    @DisplayName("Get kow reads the service and deployment specifications at the same time")
+    public void testGetKowReadsSpecificationsInParallel() {
+        CountDownLatch bothRequested = new CountDownLatch(2);
+        when(cdoStore.getBinary(v1ServiceUri))
+                .thenAnswer(invocation -> awaitBoth(bothRequested, SERVICE_BYTES));
+        when(cdoStore.getBinary(v1DeploymentUri))
+                .thenAnswer(invocation -> awaitBoth(bothRequested, DEPLOYMENT_BYTES));
+
+        KnowledgeObjectWrapper kow = koRepo.getKow(ARK_ID_V1);
+
+        assertAll(
+                () -> assertEquals(koV1MetadataNode, kow.getMetadata()),
+                () -> assertEquals(0, bothRequested.getCount())
+        );
+    }
+
+    private byte[] awaitBoth(CountDownLatch bothRequested, byte[] result)
+            throws InterruptedException {
+        bothRequested.countDown();
+        assertTrue(bothRequested.await(5, TimeUnit.SECONDS), "Specs were read one at a time");
+        return result;
+    }
+
     @Test
     @DisplayName("Edit Metadata uses CdoStore to save and get new metadata")
     public void testEditMetadata() throws JsonProcessingException {
         String newMetadata = "{\"metadata\":\"yes, metadata\"}";
         JsonNode newMetadataJson = new ObjectMapper().readTree(newMetadata);
         URI metadataUri = getFileUri(VERSION_1, METADATA_FILENAME.asStr());
-        when(cdoStore.getMetadata(metadataUri))
-                .thenReturn((ObjectNode) newMetadataJson);
 
         ObjectNode savedMetadata = koRepo.editMetadata(ARK_ID_V1, newMetadata);
 
         assertAll(
                 () -> verify(cdoStore).saveMetadata(newMetadataJson, metadataUri),
-                () -> verify(cdoStore).getMetadata(metadataUri),
-                () -> assertEquals(newMetadataJson, savedMetadata)
+                () -> verify(cdoStore, never()).getMetadata(metadataUri),
+                () -> assertEquals(newMetadataJson, savedMetadata),
+                () -> assertEquals(
+                        KnowledgeObjectRepository.metadataTag(newMetadataJson),
+                        koRepo.getMetadataTag(ARK_ID_V1))
+        );
+    }
+
+    @Test
+    @DisplayName("Edit Metadata with the current tag saves and gives the metadata a new tag")
+    public void testEditMetadataWithCurrentTag() {
+        String tag = koRepo.getMetadataTag(ARK_ID_V1);
+
+        ObjectNode saved = koRepo.editMetadata(ARK_ID_V1, "{\"edited\":true}", "\"x\", " + tag);
+
+        assertAll(
+                () -> assertEquals(KnowledgeObjectRepository.metadataTag(koV1MetadataNode), tag),
+                () -> assertEquals(
+                        KnowledgeObjectRepository.metadataTag(saved),
+                        koRepo.getMetadataTag(ARK_ID_V1)),
+                () -> assertNotEquals(tag, koRepo.getMetadataTag(ARK_ID_V1))
+        );
+    }
+
+    @Test
+    @DisplayName("Edit Metadata with a stale tag fails and leaves the metadata alone")
+    public void testEditMetadataWithStaleTag() {
+        String tag = koRepo.getMetadataTag(ARK_ID_V1);
+        koRepo.editMetadata(ARK_ID_V1, "{\"edited\":\"first\"}", tag);
+
+        assertThrows(ShelfPreconditionFailed.class,
+                () -> koRepo.editMetadata(ARK_ID_V1, "{\"edited\":\"second\"}", tag));
+        verify(cdoStore, times(1)).saveMetadata(any(), any());
+    }
+
+    @Test
+    @DisplayName("Edit Metadata cannot change the identifier or version")
+    public void testEditMetadataRejectsArkChanges() {
+        assertAll(
+                () -> assertThrows(ShelfException.class,
+                        () -> koRepo.editMetadata(ARK_ID_V1, "{\"version\":\"v9\"}")),
+                () -> assertThrows(ShelfException.class,
+                        () -> koRepo.editMetadata(ARK_ID_V1, "{\"identifier\":\"ark:/x/y\"}")),
+                () -> verify(cdoStore, never()).saveMetadata(any(), any()),
+                () -> assertEquals(koV1MetadataNode, koRepo.findKnowledgeObjectMetadata(ARK_ID_V1))
+        );
+    }
+
+    @Test
+    @DisplayName("Merge Patch saves a patched copy of the indexed metadata")
+    public void testMergePatchMetadata() throws JsonProcessingException {
+        URI metadataUri = getFileUri(VERSION_1, METADATA_FILENAME.asStr());
+        JsonNode before = koV1MetadataNode.deepCopy();
+
+        ObjectNode patched = koRepo.mergePatchMetadata(ARK_ID_V1,
+                objectMapper.readTree("{\"title\":\"Patched\",\"@id\":null}"), null);
+
+        ObjectNode expected = koV1MetadataNode.deepCopy();
+        expected.put("title", "Patched").remove("@id");
+        assertAll(
+                () -> verify(cdoStore).saveMetadata(expected, metadataUri),
+                () -> verify(cdoStore, times(1)).getMetadata(koV1Uri),
+                () -> assertEquals(expected, patched),
+                () -> assertEquals(before, koV1MetadataNode),
+                () -> assertEquals(
+                        KnowledgeObjectRepository.metadataTag(expected),
+                        koRepo.getMetadataTag(ARK_ID_V1))
+        );
+    }
+
+    @Test
+    @DisplayName("A patch that changes nothing is not written")
+    public void testJsonPatchThatChangesNothingIsNotSaved() throws JsonProcessingException {
+        String tag = koRepo.getMetadataTag(ARK_ID_V1);
+
+        ObjectNode patched = koRepo.jsonPatchMetadata(ARK_ID_V1, objectMapper.readTree(
+                "[{\"op\":\"test\",\"path\":\"/version\",\"value\":\"" + VERSION_1 + "\"}]"),
+                tag);
+
+        assertAll(
+                () -> verify(cdoStore, never()).saveMetadata(any(), any()),
+                () -> assertEquals(koV1MetadataNode, patched),
+                () -> assertEquals(tag, koRepo.getMetadataTag(ARK_ID_V1))
+        );
+    }
+
+    @Test
+    @DisplayName("Patches cannot change the identifier or version, or apply over a stale tag")
+    public void testPatchRejectsArkChangesAndStaleTags() throws JsonProcessingException {
+        JsonNode newVersion = objectMapper.readTree(
+                "[{\"op\":\"replace\",\"path\":\"/version\",\"value\":\"v9\"}]");
+
+        assertAll(
+                () -> assertThrows(ShelfException.class,
+                        () -> koRepo.jsonPatchMetadata(ARK_ID_V1, newVersion, null)),
+                () -> assertThrows(ShelfPreconditionFailed.class,
+                        () -> koRepo.mergePatchMetadata(ARK_ID_V1,
+                                objectMapper.readTree("{\"title\":\"x\"}"), "\"stale\"")),
+                () -> verify(cdoStore, never()).saveMetadata(any(), any())
         );
     }
 
@@ -176,6 +378,37 @@ public class KnowledgeObjectRepositoryTest {
         );
     }
 
+    @Test
+    @DisplayName("Get kows reads many kos with one batch for metadata and one for specs")
+    public void testGetKowsReadsInBatches() {
+        when(cdoStore.getMetadata(anyCollection())).thenCallRealMethod();
+        when(cdoStore.getBinaries(anyCollection())).thenCallRealMethod();
+
+        Map<ArkId, KnowledgeObjectWrapper> kows =
+                koRepo.getKows(List.of(arkNoVersion, missingKoArk));
+
+        assertAll(
+                () -> verify(cdoStore).getMetadata(List.of(koV2Uri, koV1Uri)),
+                () -> verify(cdoStore).getBinaries(
+                        List.of(v2ServiceUri, v2DeploymentUri, v1ServiceUri, v1DeploymentUri)),
+                () -> assertEquals(List.of(ARK_ID_V2, ARK_ID_V1), List.copyOf(kows.keySet())),
+                () -> assertEquals(koV1MetadataNode, kows.get(ARK_ID_V1).getMetadata()),
+                () -> assertEquals(
+                        yamlMapper.readTree(SERVICE_BYTES), kows.get(ARK_ID_V1).getService())
+        );
+    }
+
+    @Test
+    @DisplayName("Find ko metadata in a batch leaves out kos that are not on the shelf")
+    public void testFindKoMetadataBatchLeavesOutMissingKos() {
+        when(cdoStore.getMetadata(anyCollection())).thenCallRealMethod();
+
+        Map<ArkId, JsonNode> metadata =
+                koRepo.findKnowledgeObjectsMetadata(List.of(missingKoArk, ARK_ID_V1));
+
+        assertEquals(Map.of(ARK_ID_V1, koV1MetadataNode), metadata);
+    }
+
     @Test
     @DisplayName("find Ko metadata throws if given null ark id")
     public void testFindKoMetadataThrowsIfGivenNullArkId() {
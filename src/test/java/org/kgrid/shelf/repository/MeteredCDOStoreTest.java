@@ -0,0 +1,97 @@
+package org.kgrid.shelf.repository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Metered CDO Store Tests")
+public class MeteredCDOStoreTest {
+
+  private static final byte[] MAIN_JS = "function main() {}".getBytes(StandardCharsets.UTF_8);
+  private static final URI MAIN_JS_LOCATION = URI.create("hello-world/dist/main.js");
+
+  private MeterRegistry registry;
+  private MeteredCDOStore store;
+
+  @BeforeEach
+  public void setUp() {
+    registry = new SimpleMeterRegistry();
+    store = new MeteredCDOStore(new InMemoryCDOStore("memory:shelf"), new ShelfMetrics(registry));
+  }
+
+  @Test
+  @DisplayName("Operations are timed and the bytes read and written are recorded")
+  public void operationsAndBytesAreRecorded() throws IOException {
+    store.saveBinary(new ByteArrayInputStream(MAIN_JS), MAIN_JS_LOCATION);
+    store.getBinary(MAIN_JS_LOCATION);
+    try (InputStream stream = store.getBinaryStream(MAIN_JS_LOCATION)) {
+      stream.readAllBytes();
+    }
+    store.getBinaryAsync(MAIN_JS_LOCATION).join();
+
+    assertAll(
+        () -> assertEquals(1, timerCount("saveBinaryStream", ShelfMetrics.SUCCESS)),
+        () -> assertEquals(1, timerCount("getBinary", ShelfMetrics.SUCCESS)),
+        () -> assertEquals(1, timerCount("getBinaryStream", ShelfMetrics.SUCCESS)),
+        () -> assertEquals(1, timerCount("getBinaryAsync", ShelfMetrics.SUCCESS)),
+        () -> assertEquals(
+            MAIN_JS.length, bytes(MeteredCDOStore.BYTES_WRITTEN, "saveBinaryStream")),
+        () -> assertEquals(MAIN_JS.length, bytes(MeteredCDOStore.BYTES_READ, "getBinary")),
+        () -> assertEquals(MAIN_JS.length, bytes(MeteredCDOStore.BYTES_READ, "getBinaryStream")),
+        () -> assertEquals(MAIN_JS.length, bytes(MeteredCDOStore.BYTES_READ, "getBinaryAsync")));
+  }
+
+  @Test
+  @DisplayName("Failed operations are timed with an error outcome and still fail")
+  public void failuresAreRecorded() {
+    URI missing = URI.create("missing/metadata.json");
+    assertThrows(ShelfResourceNotFound.class, () -> store.getMetadata(missing));
+    assertEquals(1, timerCount("getMetadata", ShelfMetrics.ERROR));
+  }
+
+  @Test
+  @DisplayName("The store bean is only wrapped when there is a registry to report to")
+  public void storeIsOnlyWrappedWhenEnabled() {
+    InMemoryCDOStore bean = new InMemoryCDOStore("memory:shelf");
+
+    Object disabled =
+        decorator(new ShelfMetrics(null)).postProcessAfterInitialization(bean, "s");
+    Object enabled =
+        decorator(new ShelfMetrics(registry)).postProcessAfterInitialization(bean, "s");
+
+    assertAll(
+        () -> assertSame(bean, disabled),
+        () -> assertTrue(enabled instanceof MeteredCDOStore),
+        () -> assertSame(bean, ((MeteredCDOStore) enabled).getDelegate()));
+  }
+
+  private MeteredCDOStore.Decorator decorator(ShelfMetrics metrics) {
+    DefaultListableBeanFactory beans = new DefaultListableBeanFactory();
+    beans.registerSingleton("shelfMetrics", metrics);
+    return new MeteredCDOStore.Decorator(beans.getBeanProvider(ShelfMetrics.class));
+  }
+
+  private long timerCount(String operation, String outcome) {
+    return registry
+        .get(MeteredCDOStore.OPERATIONS)
+        .tags("operation", operation, "outcome", outcome)
+        .timer()
+        .count();
+  }
+
+  private double bytes(String name, String operation) {
+    return registry.get(name).tags("operation", operation).summary().totalAmount();
+  }
+}
@@ -0,0 +1,266 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.ShelfResourceNotFound;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Packed CDO Store Tests")
+public class PackedCDOStoreTest {
+
+  private static final byte[] MAIN_JS = "function main() {}".getBytes(StandardCharsets.UTF_8);
+  private static final URI MAIN_JS_PATH = URI.create("hello-world-v0.1.0/dist/main.js");
+
+  @TempDir Path shelf;
+  private PackedCDOStore koStore;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    koStore = open();
+    koStore.saveMetadata(
+        new ObjectMapper().readTree("{\"@id\":\"hello-world\"}"),
+        URI.create("hello-world-v0.1.0/metadata.json"));
+    koStore.saveBinary(new ByteArrayInputStream(MAIN_JS), MAIN_JS_PATH);
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    koStore.close();
+  }
+
+  @Test
+  @DisplayName("Files are read back from the segments")
+  public void readsSavedFiles() throws IOException {
+    try (InputStream stream = koStore.getBinaryStream(MAIN_JS_PATH)) {
+      assertArrayEquals(MAIN_JS, stream.readAllBytes());
+    }
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(MAIN_JS_PATH)),
+        () -> assertEquals(MAIN_JS.length, koStore.getBinarySize(MAIN_JS_PATH)),
+        () ->
+            assertEquals(
+                "hello-world",
+                koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("@id").asText()),
+        () -> assertEquals(1, koStore.getChildren().size()),
+        () -> assertEquals(2, countFiles()));
+  }
+
+  @Test
+  @DisplayName("Batch reads across segments come back in the order asked for")
+  public void batchReadsAcrossSegments() throws IOException {
+    koStore.segmentSize = 1;
+    URI first = URI.create("hello-world-v0.1.0/first.js");
+    URI second = URI.create("hello-world-v0.1.0/second.js");
+    koStore.saveBinary(new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)), first);
+    koStore.saveBinary(new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)), second);
+
+    Map<URI, byte[]> binaries =
+        koStore.getBinaries(List.of(second, URI.create("missing.js"), MAIN_JS_PATH, first));
+
+    assertAll(
+        () -> assertEquals(List.of(second, MAIN_JS_PATH, first), List.copyOf(binaries.keySet())),
+        () -> assertEquals("second", new String(binaries.get(second), StandardCharsets.UTF_8)),
+        () -> assertArrayEquals(MAIN_JS, binaries.get(MAIN_JS_PATH)),
+        () -> assertEquals("first", new String(binaries.get(first), StandardCharsets.UTF_8)),
+        () ->
+            assertEquals(
+                "hello-world",
+                koStore
+                    .getMetadata(List.of(URI.create("hello-world-v0.1.0")))
+                    .get(URI.create("hello-world-v0.1.0"))
+                    .get("@id")
+                    .asText()));
+  }
+
+  @Test
+  @DisplayName("The shelf is the same after a restart")
+  public void reopensFromIndex() throws IOException {
+    koStore.close();
+    koStore = open();
+
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(MAIN_JS_PATH)),
+        () -> assertEquals(1, koStore.getChildren().size()));
+  }
+
+  @Test
+  @DisplayName("Committed transactions replace kos, rolled back ones leave no trace")
+  public void commitsAndRollsBackTransactions() throws IOException {
+    String committed = koStore.createTransaction();
+    save(committed + "/hello-world-v0.1.0/metadata.json", "{\"@id\":\"v2\"}");
+    assertEquals(
+        "hello-world",
+        koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("@id").asText());
+    koStore.commitTransaction(committed);
+
+    String rolledBack = koStore.createTransaction();
+    save(rolledBack + "/other-ko/metadata.json", "{}");
+    koStore.rollbackTransaction(rolledBack);
+
+    koStore.close();
+    koStore = open();
+    assertAll(
+        () ->
+            assertEquals(
+                "v2", koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("@id").asText()),
+        () -> assertThrows(ShelfResourceNotFound.class, () -> koStore.getBinary(MAIN_JS_PATH)),
+        () -> assertEquals(1, koStore.getChildren().size()));
+  }
+
+  @Test
+  @DisplayName("A torn write at the end of the index is dropped on restart")
+  public void dropsTornIndexTail() throws IOException {
+    koStore.close();
+    Path index = shelf.resolve(PackedCDOStore.INDEX_FILE);
+    long goodLength = Files.size(index);
+    Files.write(index, new byte[] {0, 0, 0, 5, 0, 0}, StandardOpenOption.APPEND);
+
+    koStore = open();
+    save("another-ko/metadata.json", "{}");
+
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(MAIN_JS_PATH)),
+        () -> assertEquals(2, koStore.getChildren().size()),
+        () -> assertTrue(Files.size(index) > goodLength));
+  }
+
+  @Test
+  @DisplayName("A torn batch length larger than the index is dropped without allocating it")
+  public void dropsTornBatchWithHugeLength() throws IOException {
+    koStore.close();
+    Path index = shelf.resolve(PackedCDOStore.INDEX_FILE);
+    long goodLength = Files.size(index);
+    Files.write(
+        index,
+        new byte[] {0, 0, 0, 1, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0, 1, 2, 3},
+        StandardOpenOption.APPEND);
+
+    koStore = open();
+
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(MAIN_JS_PATH)),
+        () -> assertEquals(1, koStore.getChildren().size()),
+        () -> assertEquals(goodLength, Files.size(index)));
+  }
+
+  @Test
+  @DisplayName("A slow write does not hold up other writes")
+  public void slowWriteDoesNotBlockOthers() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    InputStream slow =
+        new InputStream() {
+          private int sent;
+
+          @Override
+          public int read() throws IOException {
+            if (sent == 0) {
+              started.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+            }
+            return sent++ < 10 ? 'x' : -1;
+          }
+        };
+    Thread slowWrite =
+        new Thread(() -> koStore.saveBinary(slow, URI.create("slow-ko/slow.bin")));
+    slowWrite.start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    CompletableFuture<Void> fastWrite =
+        CompletableFuture.runAsync(() -> save("fast-ko/metadata.json", "{}"));
+    fastWrite.get(5, TimeUnit.SECONDS);
+    release.countDown();
+    slowWrite.join(5000);
+
+    assertAll(
+        () -> assertEquals(2, koStore.getChildren().size()),
+        () -> assertEquals(10, koStore.getBinary(URI.create("slow-ko/slow.bin")).length),
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(MAIN_JS_PATH)));
+  }
+
+  @Test
+  @DisplayName("Compaction reclaims deleted space and keeps live files")
+  public void compactionReclaimsDeletedSpace() throws IOException {
+    koStore.segmentSize = 1;
+    save("deleted-ko/metadata.json", "{}");
+    save("deleted-ko/big.bin", new String(new byte[4096], StandardCharsets.UTF_8));
+    koStore.delete(URI.create("deleted-ko"));
+    long before = totalSegmentBytes();
+
+    assertTrue(koStore.compact());
+    koStore.close();
+    koStore = open();
+
+    assertAll(
+        () -> assertTrue(totalSegmentBytes() < before),
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(MAIN_JS_PATH)),
+        () -> assertEquals(1, koStore.getChildren().size()));
+  }
+
+  @Test
+  @DisplayName("Compaction keeps an old segment until its readers are done")
+  public void compactionWaitsForReaders() throws IOException {
+    koStore.segmentSize = 1;
+    save("deleted-ko/metadata.json", "{}");
+    koStore.delete(URI.create("deleted-ko"));
+    Path oldSegment = shelf.resolve("segment-00001.pack");
+    InputStream reading = koStore.getBinaryStream(MAIN_JS_PATH);
+
+    assertTrue(koStore.compact());
+    assertTrue(Files.exists(oldSegment));
+    assertArrayEquals(MAIN_JS, reading.readAllBytes());
+    reading.close();
+
+    assertAll(
+        () -> assertFalse(Files.exists(oldSegment)),
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(MAIN_JS_PATH)));
+  }
+
+  private PackedCDOStore open() {
+    return new PackedCDOStore("pack:" + shelf.toUri());
+  }
+
+  private void save(String path, String data) {
+    koStore.saveBinary(
+        new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), URI.create(path));
+  }
+
+  private long countFiles() throws IOException {
+    try (Stream<Path> files = Files.list(shelf)) {
+      return files.count();
+    }
+  }
+
+  private long totalSegmentBytes() throws IOException {
+    try (Stream<Path> files = Files.list(shelf)) {
+      return files
+          .filter(file -> file.getFileName().toString().endsWith(".pack"))
+          .mapToLong(file -> file.toFile().length())
+          .sum();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.kgrid.shelf.repository;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kgrid.shelf.repository.StorePaths.prefixEnd;
+
+@DisplayName("Persistent Sorted Map Tests")
+public class PersistentSortedMapTest {
+
+  @Test
+  @DisplayName("Changes return a new map and leave the old one as it was")
+  public void changesLeaveOldVersionsAlone() {
+    PersistentSortedMap<Integer> before =
+        PersistentSortedMap.<Integer>empty().plus("a", 1).plus("b/x", 2).plus("b/y", 3);
+
+    PersistentSortedMap<Integer> after = before.plus("a", 10).minusRange("b/", prefixEnd("b/"));
+
+    assertAll(
+        () -> assertEquals(List.of("a", "b/x", "b/y"), before.keys()),
+        () -> assertEquals(1, before.get("a")),
+        () -> assertEquals(List.of("a"), after.keys()),
+        () -> assertEquals(10, after.get("a")),
+        () -> assertEquals(1, after.size()));
+  }
+
+  @Test
+  @DisplayName("Lookups, ranges and ordering match a sorted map")
+  public void matchesTreeMap() {
+    Random random = new Random(42);
+    TreeMap<String, Integer> expected = new TreeMap<>();
+    PersistentSortedMap<Integer> map = PersistentSortedMap.empty();
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      paths.add("ko" + random.nextInt(200) + "/file" + random.nextInt(20));
+    }
+    Collections.shuffle(paths, random);
+    for (int i = 0; i < paths.size(); i++) {
+      String path = paths.get(i);
+      if (i % 5 == 0) {
+        expected.remove(path);
+        map = map.minus(path);
+      } else {
+        expected.put(path, i);
+        map = map.plus(path, i);
+      }
+    }
+    expected.subMap("ko1/", prefixEnd("ko1/")).clear();
+    map = map.minusRange("ko1/", prefixEnd("ko1/"));
+
+    PersistentSortedMap<Integer> result = map;
+    assertAll(
+        () -> assertEquals(new ArrayList<>(expected.keySet()), result.keys()),
+        () -> assertEquals(new ArrayList<>(expected.values()), result.values()),
+        () -> assertEquals(expected.size(), result.size()),
+        () -> assertEquals(expected.ceilingKey("ko5/"), result.ceilingKey("ko5/")),
+        () -> assertNull(result.ceilingKey("zz")),
+        () ->
+            assertEquals(
+                new ArrayList<>(expected.subMap("ko2/", prefixEnd("ko2/")).keySet()),
+                result.keys("ko2/", prefixEnd("ko2/"))));
+    for (String path : paths) {
+      assertEquals(expected.get(path), result.get(path), path);
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.ShelfResourceNotFound;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("S3 CDO Store Tests")
+public class S3CDOStoreTest {
+
+  private static final byte[] MAIN_JS = "function main() {}".getBytes(StandardCharsets.UTF_8);
+  private final ObjectMapper mapper = new ObjectMapper();
+  private FakeS3Server s3;
+  private S3CDOStore koStore;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    s3 = new FakeS3Server();
+    koStore =
+        new S3CDOStore(
+            "s3:" + s3.endpoint() + "/" + FakeS3Server.BUCKET + "/shelf?region=us-west-2",
+            FakeS3Server.ACCESS_KEY,
+            "secret",
+            null);
+    koStore.saveMetadata(
+        mapper.readTree("{\"@id\":\"hello-world\"}"), URI.create("hello-world-v0.1.0"));
+    koStore.saveBinary(
+        new ByteArrayInputStream(MAIN_JS), URI.create("hello-world-v0.1.0/dist/main.js"));
+    koStore.saveMetadata(mapper.readTree("{}"), URI.create("My%20First%20Ko/metadata.json"));
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    koStore.close();
+    s3.stop();
+  }
+
+  @Test
+  @DisplayName("Kos are saved under the key prefix and read back")
+  public void savesAndReadsKos() throws IOException {
+    URI mainJs = URI.create("hello-world-v0.1.0/dist/main.js");
+    List<URI> children = koStore.getChildren();
+    try (InputStream stream = koStore.getBinaryStream(mainJs)) {
+      assertArrayEquals(MAIN_JS, stream.readAllBytes());
+    }
+    assertAll(
+        () -> assertTrue(s3.objects.containsKey("shelf/hello-world-v0.1.0/metadata.json")),
+        () -> assertTrue(s3.objects.containsKey("shelf/My First Ko/metadata.json")),
+        () -> assertEquals(2, children.size()),
+        () -> assertTrue(children.contains(URI.create("My%20First%20Ko/"))),
+        () ->
+            assertEquals(
+                "hello-world",
+                koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("@id").asText()),
+        () -> assertArrayEquals(MAIN_JS, koStore.getBinary(mainJs)),
+        () -> assertEquals(MAIN_JS.length, koStore.getBinarySize(mainJs)),
+        () ->
+            assertThrows(
+                ShelfResourceNotFound.class, () -> koStore.getBinary(URI.create("missing"))));
+  }
+
+  @Test
+  @DisplayName("Large artifacts are uploaded in parts and streamed back in ranges")
+  public void largeArtifactsUseMultipartAndRanges() throws IOException {
+    koStore.partSize = 1024;
+    koStore.rangeSize = 1000;
+    byte[] model = new byte[5000];
+    new Random(42).nextBytes(model);
+    URI modelUri = URI.create("hello-world-v0.1.0/model.bin");
+
+    koStore.saveBinary(new ByteArrayInputStream(model), modelUri);
+    byte[] read;
+    try (InputStream stream = koStore.getBinaryStream(modelUri)) {
+      read = stream.readAllBytes();
+    }
+
+    assertAll(
+        () -> assertEquals(5, s3.count("part")),
+        () -> assertArrayEquals(model, s3.objects.get("shelf/hello-world-v0.1.0/model.bin")),
+        () -> assertEquals(5, s3.count("range")),
+        () -> assertArrayEquals(model, read));
+  }
+
+  @Test
+  @DisplayName("Listing is cached and kept up to date with this store's writes")
+  public void listingIsCached() throws IOException {
+    koStore.getChildren();
+    int lists = s3.count("list");
+    koStore.saveMetadata(mapper.readTree("{}"), URI.create("another-ko"));
+
+    assertAll(
+        () -> assertTrue(lists >= 2, "three objects take two pages"),
+        () -> assertEquals(3, koStore.getChildren().size()),
+        () -> assertEquals(lists, s3.count("list")));
+
+    s3.objects.put("shelf/added-elsewhere/metadata.json", "{}".getBytes(StandardCharsets.UTF_8));
+    koStore.listingTtlMillis = 0;
+    assertEquals(4, koStore.getChildren().size());
+  }
+
+  @Test
+  @DisplayName("Deleting a ko removes all of its objects")
+  public void deleteRemovesKoObjects() {
+    koStore.delete(URI.create("hello-world-v0.1.0"));
+
+    assertAll(
+        () ->
+            assertEquals(
+                List.of("shelf/My First Ko/metadata.json"), List.copyOf(s3.objects.keySet())),
+        () -> assertEquals(List.of(URI.create("My%20First%20Ko/")), koStore.getChildren()),
+        () ->
+            assertThrows(
+                ShelfResourceNotFound.class,
+                () -> koStore.getMetadata(URI.create("hello-world-v0.1.0"))));
+  }
+
+  @Test
+  @DisplayName("Committed transactions replace kos and rolled back ones leave nothing behind")
+  public void transactionsCommitAndRollBack() throws IOException {
+    String trx = koStore.createTransaction();
+    koStore.saveMetadata(
+        mapper.readTree("{\"@id\":\"hello-world-2\"}"),
+        URI.create(trx + "/hello-world-v0.1.0/metadata.json"));
+    assertEquals(2, koStore.getChildren().size());
+    koStore.commitTransaction(trx);
+
+    String rolledBack = koStore.createTransaction();
+    koStore.saveBinary(
+        new ByteArrayInputStream(MAIN_JS), URI.create(rolledBack + "/other-ko/main.js"));
+    koStore.rollbackTransaction(rolledBack);
+
+    assertAll(
+        () ->
+            assertEquals(
+                "hello-world-2",
+                koStore.getMetadata(URI.create("hello-world-v0.1.0")).get("@id").asText()),
+        () -> assertFalse(s3.objects.containsKey("shelf/hello-world-v0.1.0/dist/main.js")),
+        () -> assertTrue(s3.objects.keySet().stream().noneMatch(key -> key.contains("trx-"))));
+  }
+
+  @Test
+  @DisplayName("Uncached reads skip the HEAD and commits list each ko once")
+  public void readsWithoutHeadAndCommitsListOncePerKo() throws IOException {
+    koStore.rangeSize = 10;
+    byte[] streamed;
+    try (InputStream stream =
+        koStore.getBinaryStream(URI.create("hello-world-v0.1.0/dist/main.js"))) {
+      streamed = stream.readAllBytes();
+    }
+    int heads = s3.count("head");
+    String trx = koStore.createTransaction();
+    koStore.saveMetadata(mapper.readTree("{}"), URI.create(trx + "/hello-world-v0.1.0"));
+    koStore.saveMetadata(mapper.readTree("{}"), URI.create(trx + "/hello-world-v0.1.0/nested"));
+    int lists = s3.count("list");
+    koStore.commitTransaction(trx);
+
+    assertAll(
+        () -> assertArrayEquals(MAIN_JS, streamed),
+        () -> assertEquals(0, heads),
+        () -> assertEquals(2, s3.count("range")),
+        () -> assertEquals(lists + 1, s3.count("list")),
+        () -> assertFalse(s3.objects.containsKey("shelf/hello-world-v0.1.0/dist/main.js")),
+        () -> assertTrue(s3.objects.containsKey("shelf/hello-world-v0.1.0/nested/metadata.json")));
+  }
+}
@@ -0,0 +1,252 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Sharded Filesystem CDO Store Tests")
+public class ShardedFilesystemCDOStoreTest {
+
+  private static final int KOS = 30;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private ShardedFilesystemCDOStore koStore;
+
+  @TempDir Path disks;
+
+  @AfterEach
+  public void tearDown() {
+    koStore.close();
+  }
+
+  @Test
+  @DisplayName("Kos are spread over the roots and read back from the root that owns them")
+  public void spreadsKosOverRoots() throws IOException {
+    koStore = open(3);
+    saveKos();
+
+    Set<Integer> usedRoots = new HashSet<>();
+    for (int i = 0; i < KOS; i++) {
+      int owner = koStore.ownerOf(ko(i));
+      usedRoots.add(owner);
+      assertTrue(Files.exists(koStore.rootDir(owner).resolve(ko(i)).resolve("metadata.json")));
+    }
+    assertAll(
+        () -> assertEquals(3, usedRoots.size()),
+        () -> assertEquals(KOS, koStore.getChildren().size()),
+        () -> assertEquals("ko-7", koStore.getMetadata(URI.create("ko-7")).get("@id").asText()),
+        () ->
+            assertArrayEquals(
+                "ko-7".getBytes(StandardCharsets.UTF_8),
+                koStore.getBinary(URI.create("ko-7/dist/main.js"))));
+  }
+
+  @Test
+  @DisplayName("A ko belongs to the same root whatever order the roots are listed in")
+  public void ownershipDependsOnRootPathsNotOrder() {
+    koStore = open(3);
+    ShardedFilesystemCDOStore reversed =
+        new ShardedFilesystemCDOStore(
+            "sharded:"
+                + disks.resolve("disk2").toUri()
+                + "|"
+                + disks.resolve("disk1").toUri()
+                + "|"
+                + disks.resolve("disk0").toUri()
+                + "|rebalance=false");
+    try {
+      for (int i = 0; i < KOS; i++) {
+        assertEquals(
+            koStore.rootDir(koStore.ownerOf(ko(i))),
+            reversed.rootDir(reversed.ownerOf(ko(i))));
+      }
+    } finally {
+      reversed.close();
+    }
+  }
+
+  @Test
+  @DisplayName("After a root is added kos stay readable and the rebalancer moves only some")
+  public void rebalanceMovesKosToNewRoot() throws Exception {
+    koStore = open(2);
+    saveKos();
+    koStore.close();
+
+    koStore = open(3);
+    long misplaced =
+        IntStream.range(0, KOS)
+            .filter(i -> !Files.exists(koStore.rootDir(koStore.ownerOf(ko(i))).resolve(ko(i))))
+            .count();
+    assertAll(
+        () -> assertTrue(misplaced > 0 && misplaced < KOS),
+        () -> assertEquals(KOS, koStore.getChildren().size()),
+        () -> assertEquals("ko-3", koStore.getMetadata(URI.create("ko-3")).get("@id").asText()));
+
+    assertEquals(misplaced, koStore.rebalance());
+    for (int i = 0; i < KOS; i++) {
+      assertTrue(Files.exists(koStore.rootDir(koStore.ownerOf(ko(i))).resolve(ko(i))));
+    }
+    assertAll(
+        () -> assertEquals(0, koStore.rebalance()),
+        () -> assertEquals(KOS, koStore.getChildren().size()));
+  }
+
+  @Test
+  @DisplayName("Committing a ko writes it to its owner and removes copies on other roots")
+  public void commitRemovesStaleCopies() throws IOException {
+    koStore = open(2);
+    saveKos();
+    koStore.close();
+    koStore = open(3);
+    String misplaced =
+        IntStream.range(0, KOS)
+            .mapToObj(this::ko)
+            .filter(ko -> !Files.exists(koStore.rootDir(koStore.ownerOf(ko)).resolve(ko)))
+            .findFirst()
+            .orElseThrow();
+
+    String trx = koStore.createTransaction();
+    koStore.createContainer(URI.create(trx + "/" + misplaced));
+    koStore.saveMetadata(
+        mapper.createObjectNode().put("@id", "replaced"),
+        URI.create(trx + "/" + misplaced + "/metadata.json"));
+    koStore.commitTransaction(trx);
+
+    long copies =
+        IntStream.range(0, 3)
+            .filter(root -> Files.exists(koStore.rootDir(root).resolve(misplaced)))
+            .count();
+    assertAll(
+        () -> assertEquals(1, copies),
+        () ->
+            assertEquals(
+                "replaced", koStore.getMetadata(URI.create(misplaced)).get("@id").asText()));
+  }
+
+  @Test
+  @DisplayName("Kos with slash-form ids are spread by their full path, not their naan")
+  public void spreadsSlashFormKosByFullPath() {
+    koStore = open(3);
+    for (int i = 0; i < KOS; i++) {
+      importKo(slashKo(i), slashKo(i));
+    }
+
+    Set<Integer> usedRoots = new HashSet<>();
+    for (int i = 0; i < KOS; i++) {
+      int owner = koStore.ownerOf(slashKo(i));
+      usedRoots.add(owner);
+      assertTrue(Files.exists(koStore.rootDir(owner).resolve(slashKo(i)).resolve("metadata.json")));
+    }
+    assertAll(
+        () -> assertEquals(3, usedRoots.size()),
+        () -> assertEquals(KOS, koStore.getChildren().size()),
+        () ->
+            assertEquals(
+                slashKo(7), koStore.getMetadata(URI.create(slashKo(7))).get("@id").asText()));
+  }
+
+  @Test
+  @DisplayName("Importing a ko after a root is added keeps the other kos of its naan")
+  public void commitKeepsOtherKosOfSameNaan() {
+    koStore = open(2);
+    for (int i = 0; i < KOS; i++) {
+      importKo(slashKo(i), slashKo(i));
+    }
+    koStore.close();
+    koStore = open(3);
+    String misplaced =
+        IntStream.range(0, KOS)
+            .mapToObj(this::slashKo)
+            .filter(ko -> !Files.exists(koStore.rootDir(koStore.ownerOf(ko)).resolve(ko)))
+            .findFirst()
+            .orElseThrow();
+
+    importKo(misplaced, "replaced");
+
+    assertAll(
+        () -> assertEquals(KOS, koStore.getChildren().size()),
+        () ->
+            assertEquals(
+                "replaced", koStore.getMetadata(URI.create(misplaced)).get("@id").asText()),
+        () ->
+            assertTrue(
+                Files.exists(koStore.rootDir(koStore.ownerOf(misplaced)).resolve(misplaced))));
+    for (int i = 0; i < KOS; i++) {
+      String ko = slashKo(i);
+      long copies =
+          IntStream.range(0, 3)
+              .filter(root -> Files.exists(koStore.rootDir(root).resolve(ko)))
+              .count();
+      assertEquals(1, copies, ko);
+      if (!ko.equals(misplaced)) {
+        assertEquals(ko, koStore.getMetadata(URI.create(ko)).get("@id").asText());
+      }
+    }
+  }
+
+  @Test
+  @DisplayName("Deleting a ko removes it from every root")
+  public void deleteRemovesKoEverywhere() throws IOException {
+    koStore = open(3);
+    saveKos();
+
+    koStore.delete(URI.create("ko-1"));
+
+    assertAll(
+        () -> assertEquals(KOS - 1, koStore.getChildren().size()),
+        () ->
+            assertTrue(
+                IntStream.range(0, 3)
+                    .noneMatch(root -> Files.exists(koStore.rootDir(root).resolve("ko-1")))));
+  }
+
+  private ShardedFilesystemCDOStore open(int roots) {
+    StringBuilder connection = new StringBuilder("sharded:");
+    for (int i = 0; i < roots; i++) {
+      connection.append(disks.resolve("disk" + i).toUri()).append("|");
+    }
+    return new ShardedFilesystemCDOStore(connection.append("rebalance=false").toString());
+  }
+
+  private void saveKos() throws IOException {
+    for (int i = 0; i < KOS; i++) {
+      koStore.createContainer(URI.create(ko(i)));
+      koStore.saveMetadata(
+          mapper.readTree("{\"@id\":\"" + ko(i) + "\"}"), URI.create(ko(i) + "/metadata.json"));
+      koStore.saveBinary(
+          new ByteArrayInputStream(ko(i).getBytes(StandardCharsets.UTF_8)),
+          URI.create(ko(i) + "/dist/main.js"));
+    }
+  }
+
+  private void importKo(String ko, String id) {
+    String trx = koStore.createTransaction();
+    koStore.saveBinary(
+        new ByteArrayInputStream(id.getBytes(StandardCharsets.UTF_8)),
+        URI.create(trx + "/" + ko + "/dist/main.js"));
+    koStore.saveMetadata(
+        mapper.createObjectNode().put("@id", id), URI.create(trx + "/" + ko + "/metadata.json"));
+    koStore.commitTransaction(trx);
+  }
+
+  private String ko(int i) {
+    return "ko-" + i;
+  }
+
+  private String slashKo(int i) {
+    return "naan/ko" + i + "/v1";
+  }
+}
@@ -0,0 +1,94 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.kgrid.shelf.domain.ArkId;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Shelf Metrics Tests")
+public class ShelfMetricsTest {
+
+  private MeterRegistry registry;
+  private ShelfMetrics metrics;
+
+  @BeforeEach
+  public void setUp() {
+    registry = new SimpleMeterRegistry();
+    metrics = new ShelfMetrics(registry);
+  }
+
+  @Test
+  @DisplayName("A transfer is in flight until its stream is closed, then its bytes are recorded")
+  public void transferIsRecordedWhenStreamIsClosed() throws IOException {
+    InputStream stream =
+        metrics.startTransfer("binary").meter(new ByteArrayInputStream(new byte[42]));
+    double inFlight = registry.get("shelf.transfers.active").gauge().value();
+    stream.readAllBytes();
+    stream.close();
+    stream.close();
+
+    assertAll(
+        () -> assertEquals(1, inFlight),
+        () -> assertEquals(0, registry.get("shelf.transfers.active").gauge().value()),
+        () -> assertEquals(1, registry.get("shelf.transfers")
+            .tags("operation", "binary", "outcome", ShelfMetrics.SUCCESS).timer().count()),
+        () -> assertEquals(42, registry.get("shelf.transfers.bytes").summary().totalAmount()),
+        () -> assertEquals(1, registry.get("shelf.transfers.throughput").summary().count()));
+  }
+
+  @Test
+  @DisplayName("Disabled metrics measure nothing and leave streams as they are")
+  public void disabledMetricsDoNothing() {
+    InputStream stream = new ByteArrayInputStream(new byte[42]);
+    ShelfMetrics disabled = ShelfMetrics.disabled();
+    disabled.startTransfer("binary").finish(true);
+
+    assertAll(
+        () -> assertFalse(disabled.isEnabled()),
+        () -> assertSame(stream, disabled.startTransfer("binary").meter(stream)),
+        () -> assertSame(stream, disabled.countBytes(stream, "shelf.store.bytes.read", "get")),
+        () -> assertEquals("done", disabled.time("timer", "operation", () -> "done")));
+  }
+
+  @Test
+  @DisplayName("The repository records index refreshes, the versions indexed and lookups")
+  public void repositoryIsMeasured() throws IOException {
+    InMemoryCDOStore store = new InMemoryCDOStore("memory:shelf");
+    store.saveMetadata(
+        new ObjectMapper()
+            .readTree("{\"@id\":\"hello-world\",\"identifier\":\"ark:/hello/world\","
+                + "\"version\":\"v1\"}"),
+        URI.create("hello-world/metadata.json"));
+    KnowledgeObjectRepository repo =
+        new KnowledgeObjectRepository(
+            store, new KnowledgeObjectLocks(), new KnowledgeObjectChangeFeed(), metrics);
+    repo.findKnowledgeObjectMetadata(new ArkId("hello", "world", "v1"));
+    assertThrows(
+        ShelfResourceNotFound.class,
+        () -> repo.findKnowledgeObjectMetadata(new ArkId("hello", "world", "v2")));
+    repo.refreshObjectMap();
+
+    assertAll(
+        () -> assertEquals(1, registry.get(KnowledgeObjectRepository.INDEXED_VERSIONS)
+            .gauge().value()),
+        () -> assertEquals(1, registry.get(KnowledgeObjectRepository.INDEX_REFRESH)
+            .tags("operation", "startup").timer().count()),
+        () -> assertEquals(1, registry.get(KnowledgeObjectRepository.INDEX_REFRESH)
+            .tags("operation", "refresh").timer().count()),
+        () -> assertEquals(1, registry.get(KnowledgeObjectRepository.LOOKUPS)
+            .tags("outcome", "hit").counter().count()),
+        () -> assertEquals(1, registry.get(KnowledgeObjectRepository.LOOKUPS)
+            .tags("outcome", "miss").counter().count()));
+  }
+}
@@ -0,0 +1,253 @@
+package org.kgrid.shelf.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.ShelfException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Tiered CDO Store Tests")
+public class TieredCDOStoreTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private InMemoryCDOStore cache;
+  private FilesystemCDOStore backing;
+  private TieredCDOStore koStore;
+
+  @TempDir Path shelfDir;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    cache = new InMemoryCDOStore("memory:cache");
+    backing = new FilesystemCDOStore("filesystem:" + shelfDir.resolve("shelf").toUri());
+    backing.createContainer(ko());
+    backing.saveMetadata(
+        mapper.readTree("{\"@id\":\"hello-world\"}"),
+        URI.create("hello-world-v0.1.0/metadata.json"));
+    for (String name : new String[] {"a", "b", "c", "d", "e"}) {
+      backing.saveBinary(new ByteArrayInputStream(new byte[100]), file(name));
+    }
+  }
+
+  @AfterEach
+  public void tearDown() {
+    if (koStore != null) {
+      koStore.close();
+    }
+  }
+
+  @Test
+  @DisplayName("Reads are served from the backing store and then from the cache")
+  public void readsCopyFilesIntoCache() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=1000"));
+
+    assertEquals("hello-world", koStore.getMetadata(ko()).get("@id").asText());
+    assertEquals(100, koStore.getBinary(file("a")).length);
+    backing.delete(file("a"));
+
+    assertAll(
+        () -> assertEquals(100, koStore.getBinary(file("a")).length),
+        () -> assertTrue(koStore.isCached(URI.create("hello-world-v0.1.0/metadata.json"))),
+        () -> assertEquals(1, koStore.getChildren().size()),
+        () -> assertTrue(koStore.getUsedBytes() > 100));
+  }
+
+  @Test
+  @DisplayName("Least recently used files are evicted once the budget is exceeded")
+  public void lruEvictsOldestFiles() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=400&eviction=lru"));
+
+    for (String name : new String[] {"a", "b", "c", "d", "a", "e"}) {
+      koStore.getBinary(file(name));
+    }
+
+    assertAll(
+        () -> assertTrue(koStore.isCached(file("a"))),
+        () -> assertFalse(koStore.isCached(file("b"))),
+        () -> assertFalse(koStore.isCached(file("c"))),
+        () -> assertTrue(koStore.isCached(file("d"))),
+        () -> assertTrue(koStore.isCached(file("e"))),
+        () -> assertEquals(300, koStore.getUsedBytes()));
+  }
+
+  @Test
+  @DisplayName("Least frequently used files are evicted once the budget is exceeded")
+  public void lfuEvictsLeastReadFiles() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=400&eviction=lfu"));
+
+    for (String name : new String[] {"a", "b", "c", "d", "b", "a", "a", "e"}) {
+      koStore.getBinary(file(name));
+    }
+
+    assertAll(
+        () -> assertTrue(koStore.isCached(file("a"))),
+        () -> assertTrue(koStore.isCached(file("b"))),
+        () -> assertFalse(koStore.isCached(file("c"))),
+        () -> assertFalse(koStore.isCached(file("d"))),
+        () -> assertTrue(koStore.isCached(file("e"))));
+  }
+
+  @Test
+  @DisplayName("A file just copied into the cache is not evicted to make room for itself")
+  public void newFileSurvivesItsOwnEviction() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=400&eviction=lfu"));
+
+    for (String name : new String[] {"a", "b", "c", "d", "a", "b", "c", "d"}) {
+      koStore.getBinary(file(name));
+    }
+
+    assertAll(
+        () -> assertEquals(100, koStore.getBinary(file("e")).length),
+        () -> assertTrue(koStore.isCached(file("e"))),
+        () -> assertTrue(koStore.getUsedBytes() <= 400));
+  }
+
+  @Test
+  @DisplayName("A file evicted between caching it and reading it is read from the backing store")
+  public void evictedFileIsReadFromBackingStore() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=1000"));
+    koStore.getBinary(file("a"));
+
+    // As if another read evicted it after this one found it cached
+    cache.delete(file("a"));
+
+    assertEquals(100, koStore.getBinary(file("a")).length);
+  }
+
+  @Test
+  @DisplayName("Files larger than a quarter of the budget are not cached")
+  public void largeFilesBypassCache() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=399"));
+
+    assertEquals(100, koStore.getBinary(file("a")).length);
+    assertFalse(koStore.isCached(file("a")));
+  }
+
+  @Test
+  @DisplayName("Write-through saves to both tiers, write-back waits for a flush")
+  public void writePoliciesControlWhenBackingStoreIsUpdated() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=1000"));
+    koStore.saveBinary(new ByteArrayInputStream(new byte[] {1}), file("through"));
+    assertArrayEquals(new byte[] {1}, backing.getBinary(file("through")));
+    koStore.close();
+
+    koStore = new TieredCDOStore(new InMemoryCDOStore("memory:cache"), backing, writeBack());
+    koStore.saveBinary(new ByteArrayInputStream(new byte[] {2}), file("back"));
+    assertFalse(Files.exists(shelfDir.resolve("shelf/hello-world-v0.1.0/dist/back")));
+    assertArrayEquals(new byte[] {2}, koStore.getBinary(file("back")));
+
+    koStore.flush();
+    assertArrayEquals(new byte[] {2}, backing.getBinary(file("back")));
+  }
+
+  @Test
+  @DisplayName("Unflushed files are written back before they are evicted")
+  public void evictionWritesBackDirtyFiles() {
+    koStore = new TieredCDOStore(cache, backing, writeBack());
+    koStore.saveBinary(new ByteArrayInputStream(new byte[] {3}), file("dirty"));
+
+    koStore.invalidate(ko());
+
+    assertAll(
+        () -> assertFalse(koStore.isCached(file("dirty"))),
+        () -> assertArrayEquals(new byte[] {3}, backing.getBinary(file("dirty"))));
+  }
+
+  @Test
+  @DisplayName("Files left unflushed by an earlier run are written back at startup")
+  public void startupWritesBackUnflushedFiles() {
+    TieredCDOStore crashed = new TieredCDOStore(cache, backing, writeBack());
+    crashed.getMetadata(ko());
+    crashed.getBinary(file("a"));
+    crashed.saveBinary(new ByteArrayInputStream(new byte[] {4}), file("unflushed"));
+
+    koStore = new TieredCDOStore(cache, backing, writeBack());
+
+    assertAll(
+        () -> assertArrayEquals(new byte[] {4}, backing.getBinary(file("unflushed"))),
+        () -> assertFalse(koStore.isCached(file("a"))),
+        () -> assertTrue(cache.getChildren().isEmpty()));
+  }
+
+  @Test
+  @DisplayName("A cache tier holding kos the tiered store did not write is left alone")
+  public void refusesForeignCacheContents() {
+    assertThrows(ShelfException.class, () -> new TieredCDOStore(backing, cache, writeBack()));
+    assertAll(
+        () -> assertEquals(1, backing.getChildren().size()),
+        () -> assertEquals(100, backing.getBinary(file("a")).length));
+  }
+
+  @Test
+  @DisplayName("Committed transactions replace cached copies of the kos they wrote")
+  public void commitInvalidatesCachedKo() {
+    koStore = new TieredCDOStore(cache, backing, options("budget=1000"));
+    assertEquals(100, koStore.getBinary(file("a")).length);
+
+    String trx = koStore.createTransaction();
+    koStore.saveMetadata(
+        mapper.createObjectNode().put("@id", "hello-world"),
+        URI.create(trx + "/hello-world-v0.1.0/metadata.json"));
+    koStore.saveBinary(
+        new ByteArrayInputStream(new byte[10]), URI.create(trx + "/hello-world-v0.1.0/dist/a"));
+    koStore.commitTransaction(trx);
+
+    assertAll(
+        () -> assertFalse(koStore.isCached(file("a"))),
+        () -> assertEquals(10, koStore.getBinary(file("a")).length));
+  }
+
+  @Test
+  @DisplayName("Files in the access log are loaded into the cache at startup")
+  public void accessLogWarmsCache() throws Exception {
+    Path accessLog = shelfDir.resolve("access.log");
+    koStore = new TieredCDOStore(cache, backing, options("access-log=" + accessLog));
+    koStore.getBinary(file("b"));
+    koStore.getBinary(file("c"));
+    koStore.close();
+    assertEquals(
+        List.of("hello-world-v0.1.0/dist/c", "hello-world-v0.1.0/dist/b"),
+        Files.readAllLines(accessLog));
+
+    koStore =
+        new TieredCDOStore(
+            new InMemoryCDOStore("memory:cache"), backing, options("access-log=" + accessLog));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!koStore.isCached(file("b")) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertAll(
+        () -> assertTrue(koStore.isCached(file("b"))),
+        () -> assertFalse(koStore.isCached(file("a"))));
+  }
+
+  private TieredCDOStore.Options options(String settings) {
+    TieredCDOStore.Options options = TieredCDOStore.Options.parse(settings);
+    options.flushIntervalSeconds = 0;
+    return options;
+  }
+
+  private TieredCDOStore.Options writeBack() {
+    return options("budget=1000&write=back");
+  }
+
+  private URI ko() {
+    return URI.create("hello-world-v0.1.0");
+  }
+
+  private URI file(String name) {
+    return URI.create("hello-world-v0.1.0/dist/" + name);
+  }
+}
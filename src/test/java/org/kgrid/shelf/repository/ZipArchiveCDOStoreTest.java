@@ -0,0 +1,150 @@
+package org.kgrid.shelf.repository;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.ShelfException;
+import org.kgrid.shelf.ShelfResourceNotFound;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Zip Archive CDO Store Tests")
+public class ZipArchiveCDOStoreTest {
+
+  private static final byte[] STORED_JS = "function stored() {}".getBytes(StandardCharsets.UTF_8);
+
+  @TempDir Path archiveDir;
+  private ZipArchiveCDOStore koStore;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    FileUtils.copyFileToDirectory(
+        new File("src/test/resources/fixtures/import-export/mycoolko.zip"),
+        archiveDir.toFile());
+    writeStoredZip(archiveDir.resolve("stored-ko.zip"));
+    koStore = new ZipArchiveCDOStore("zip:" + archiveDir.toUri());
+  }
+
+  @AfterEach
+  public void tearDown() {
+    koStore.close();
+  }
+
+  @Test
+  @DisplayName("Every ko in every archive is a child of the shelf")
+  public void getChildrenListsKosInArchives() {
+    List<URI> children = koStore.getChildren();
+    assertAll(
+        () -> assertEquals(2, children.size()),
+        () -> assertTrue(children.contains(URI.create("mycoolko/"))),
+        () -> assertTrue(children.contains(URI.create("stored-ko/"))));
+  }
+
+  @Test
+  @DisplayName("Compressed files are inflated from the archive")
+  public void readsCompressedFiles() throws IOException {
+    byte[] expected;
+    try (ZipFile zip = new ZipFile("src/test/resources/fixtures/import-export/mycoolko.zip")) {
+      expected = zip.getInputStream(zip.getEntry("mycoolko/dist/main.js")).readAllBytes();
+    }
+    URI mainJs = URI.create("mycoolko/dist/main.js");
+    try (InputStream stream = koStore.getBinaryStream(mainJs)) {
+      assertArrayEquals(expected, stream.readAllBytes());
+    }
+    assertAll(
+        () -> assertEquals(expected.length, koStore.getBinarySize(mainJs)),
+        () -> assertNotNull(koStore.getMetadata(URI.create("mycoolko")).get("@id")));
+  }
+
+  @Test
+  @DisplayName("Uncompressed files are read straight from the archive")
+  public void readsStoredFiles() throws IOException {
+    URI storedJs = URI.create("stored-ko/dist/main.js");
+    try (InputStream stream = koStore.getBinaryStream(storedJs)) {
+      assertArrayEquals(STORED_JS, stream.readAllBytes());
+    }
+    assertAll(
+        () -> assertArrayEquals(STORED_JS, koStore.getBinary(storedJs)),
+        () -> assertEquals(STORED_JS.length, koStore.getBinarySize(storedJs)),
+        () ->
+            assertEquals(
+                "stored-ko", koStore.getMetadata(URI.create("stored-ko")).get("@id").asText()),
+        () ->
+            assertThrows(
+                ShelfResourceNotFound.class,
+                () -> koStore.getBinary(URI.create("stored-ko/missing.js"))));
+  }
+
+  @Test
+  @DisplayName("Archives added to or removed from the directory are picked up")
+  public void picksUpChangedArchives() throws IOException {
+    FileUtils.copyFileToDirectory(
+        new File("src/test/resources/fixtures/import-export/hello-world-v1.zip"),
+        archiveDir.toFile());
+    Files.delete(archiveDir.resolve("mycoolko.zip"));
+
+    List<URI> children = koStore.getChildren();
+    assertAll(
+        () -> assertEquals(2, children.size()),
+        () -> assertTrue(children.contains(URI.create("hello-world-v1/"))),
+        () ->
+            assertThrows(
+                ShelfResourceNotFound.class,
+                () -> koStore.getBinary(URI.create("mycoolko/metadata.json"))));
+  }
+
+  @Test
+  @DisplayName("The shelf cannot be changed")
+  public void rejectsChanges() {
+    URI location = URI.create("stored-ko/dist/main.js");
+    assertAll(
+        () ->
+            assertThrows(
+                ShelfException.class,
+                () -> koStore.saveBinary(new ByteArrayInputStream(STORED_JS), location)),
+        () -> assertThrows(ShelfException.class, () -> koStore.delete(location)),
+        () -> assertThrows(ShelfException.class, () -> koStore.createTransaction()));
+  }
+
+  private void writeStoredZip(Path zip) throws IOException {
+    try (OutputStream file = Files.newOutputStream(zip);
+        ZipOutputStream out = new ZipOutputStream(file)) {
+      out.setMethod(ZipOutputStream.STORED);
+      putStored(
+          out,
+          "stored-ko/metadata.json",
+          "{\"@id\":\"stored-ko\"}".getBytes(StandardCharsets.UTF_8));
+      putStored(out, "stored-ko/dist/main.js", STORED_JS);
+    }
+  }
+
+  private void putStored(ZipOutputStream out, String name, byte[] data) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    entry.setSize(data.length);
+    entry.setCompressedSize(data.length);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(data);
+    out.closeEntry();
+  }
+}
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.kgrid.shelf.TestHelper;
 import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.domain.KoFields;
 import org.kgrid.shelf.domain.KnowledgeObjectWrapper;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
 import org.mockito.InjectMocks;
@@ -18,9 +19,13 @@ import org.zeroturnaround.zip.ZipUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.net.URI;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -41,9 +46,6 @@ public class ExportServiceTest {
     arkId = TestHelper.ARK_ID_V1;
     kow = new KnowledgeObjectWrapper(TestHelper.generateMetadata());
 
-    when(knowledgeObjectRepository.getKoRepoLocation()).thenReturn(URI.create("file:/root/"));
-    when(knowledgeObjectRepository.getObjectLocation(arkId))
-        .thenReturn(URI.create(TestHelper.KO_PATH_V1));
     when(knowledgeObjectRepository.getKow(arkId)).thenReturn(kow);
 
     ByteArrayOutputStream outStream = new ByteArrayOutputStream();
@@ -52,4 +54,22 @@ public class ExportServiceTest {
       mockZip.verify(() -> ZipUtil.pack(any(ZipEntrySource[].class), any(OutputStream.class)));
     }
   }
+
+  @Test
+  @DisplayName("Reads artifacts through the repository")
+  public void testZipsArtifactsFromRepository() throws IOException {
+    arkId = TestHelper.ARK_ID_V1;
+    kow = new KnowledgeObjectWrapper(TestHelper.generateMetadata());
+    when(knowledgeObjectRepository.getKow(arkId)).thenReturn(kow);
+    when(knowledgeObjectRepository.getBinaryStream(eq(arkId), anyString()))
+        .thenAnswer(invocation -> new ByteArrayInputStream(TestHelper.DEPLOYMENT_BYTES));
+
+    ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+    exportService.zipKnowledgeObject(arkId, outStream);
+
+    String entry = arkId.getFullDashArk() + "/" + KoFields.METADATA_FILENAME.asStr();
+    assertArrayEquals(
+        TestHelper.DEPLOYMENT_BYTES,
+        ZipUtil.unpackEntry(new ByteArrayInputStream(outStream.toByteArray()), entry));
+  }
 }
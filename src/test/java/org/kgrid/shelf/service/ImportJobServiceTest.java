@@ -0,0 +1,156 @@
+package org.kgrid.shelf.service;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.ShelfResourceNotFound;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.kgrid.shelf.TestHelper.getManifestNode;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("Import Job Service Tests")
+public class ImportJobServiceTest {
+
+  @Mock ImportService importService;
+  @Mock ManifestReader manifestReader;
+  @InjectMocks ImportJobService importJobService;
+
+  @TempDir File uploadDir;
+
+  @BeforeEach
+  public void setUp() {
+    ReflectionTestUtils.setField(importJobService, "threads", 1);
+    ReflectionTestUtils.setField(importJobService, "queueCapacity", 10);
+    ReflectionTestUtils.setField(importJobService, "ttlSeconds", 3600L);
+    importJobService.afterPropertiesSet();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    importJobService.destroy();
+  }
+
+  @Test
+  @DisplayName("Zip job imports the upload, reports progress and deletes the upload")
+  public void submitZip_importsAndCleansUp() throws Exception {
+    File upload = new File(uploadDir, "ko.zip");
+    Files.write(upload.toPath(), new byte[] {1});
+    FileSystemResource resource = new FileSystemResource(upload);
+    when(importService.importZip(eq(resource), any(ImportProgress.class)))
+        .thenReturn(URI.create("naan/name/version/"));
+
+    ImportJob job = importJobService.submitZip(resource, uploadDir);
+    awaitFinished(job);
+
+    assertAll(
+        () -> assertEquals(ImportJob.Status.COMPLETED, job.getStatus()),
+        () -> assertEquals(1, job.getProgress().getKosImported()),
+        () -> assertEquals("naan/name/version/", job.getImported().get(0)),
+        () -> assertFalse(uploadDir.exists()));
+  }
+
+  @Test
+  @DisplayName("A finished job's copy rate is over the time it ran and stays put")
+  public void finishedJob_keepsItsCopyRate() throws Exception {
+    File upload = new File(uploadDir, "ko.zip");
+    Files.write(upload.toPath(), new byte[] {1});
+    FileSystemResource resource = new FileSystemResource(upload);
+    when(importService.importZip(eq(resource), any(ImportProgress.class)))
+        .thenAnswer(
+            invocation -> {
+              invocation.getArgument(1, ImportProgress.class).addBytesCopied(1000);
+              Thread.sleep(50);
+              return URI.create("naan/name/version/");
+            });
+
+    ImportJob job = importJobService.submitZip(resource, uploadDir);
+    awaitFinished(job);
+    long rate = job.getProgress().getBytesPerSecond();
+    Thread.sleep(200);
+
+    assertAll(
+        () -> assertTrue(rate > 0 && rate <= 20000, "rate was " + rate),
+        () -> assertEquals(rate, job.getProgress().getBytesPerSecond()));
+  }
+
+  @Test
+  @DisplayName("Failed zip job is marked failed")
+  public void submitZip_marksFailedJobs() throws Exception {
+    FileSystemResource resource = new FileSystemResource(new File(uploadDir, "ko.zip"));
+    when(importService.importZip(eq(resource), any(ImportProgress.class)))
+        .thenThrow(new ImportExportException("bad zip"));
+
+    ImportJob job = importJobService.submitZip(resource, uploadDir);
+    awaitFinished(job);
+
+    assertAll(
+        () -> assertEquals(ImportJob.Status.FAILED, job.getStatus()),
+        () -> assertEquals(1, job.getProgress().getKosFailed()),
+        () -> assertEquals("bad zip", job.getError()));
+  }
+
+  @Test
+  @DisplayName("Cancelling a running manifest job stops it")
+  public void cancel_flagsRunningJob() throws Exception {
+    ObjectNode manifest = getManifestNode();
+    CountDownLatch started = new CountDownLatch(1);
+    when(manifestReader.loadManifest(eq(manifest), any(ImportProgress.class)))
+        .thenAnswer(
+            invocation -> {
+              started.countDown();
+              ImportProgress progress = invocation.getArgument(1);
+              while (!progress.isCancelled()) {
+                Thread.sleep(10);
+              }
+              return JsonNodeFactory.instance.arrayNode();
+            });
+
+    ImportJob job = importJobService.submitManifest(manifest);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    importJobService.cancel(job.getId());
+
+    assertAll(
+        () -> assertEquals(ImportJob.Status.CANCELLED, job.getStatus()),
+        () -> assertTrue(job.getProgress().isCancelled()));
+  }
+
+  @Test
+  @DisplayName("Finished jobs are dropped after their ttl")
+  public void purgeExpiredJobs_dropsFinishedJobsAfterTtl() throws Exception {
+    when(manifestReader.loadManifests(any(), any(ImportProgress.class)))
+        .thenReturn(JsonNodeFactory.instance.arrayNode());
+    ImportJob job = importJobService.submitManifestList(JsonNodeFactory.instance.arrayNode());
+    awaitFinished(job);
+    assertEquals(job, importJobService.getJob(job.getId()));
+
+    ReflectionTestUtils.setField(importJobService, "ttlSeconds", -1L);
+    assertThrows(ShelfResourceNotFound.class, () -> importJobService.getJob(job.getId()));
+  }
+
+  private void awaitFinished(ImportJob job) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!job.isFinished() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.kgrid.shelf.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.repository.FilesystemCDOStore;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Import record store tests")
+public class ImportRecordStoreTest {
+
+  private static final URI SOURCE = URI.create("https://example.com/naan-name-version.zip");
+
+  @TempDir Path shelf;
+  private FilesystemCDOStore cdoStore;
+
+  @BeforeEach
+  public void setUp() {
+    cdoStore = new FilesystemCDOStore("filesystem:" + shelf.toUri());
+  }
+
+  @Test
+  @DisplayName("Saved records can be found after a restart")
+  public void save_persistsRecordsOnTheShelf() {
+    newRecordStore()
+        .save(new ImportRecord(SOURCE.toString(), "naan-name-version/", "\"v1\"", null, "abc"));
+
+    ImportRecord record = newRecordStore().find(SOURCE).orElseThrow();
+    assertAll(
+        () -> assertEquals("naan-name-version/", record.getLocation()),
+        () -> assertEquals("\"v1\"", record.getEtag()),
+        () -> assertEquals("abc", record.getSha256()),
+        () -> assertNotNull(record.getImported()));
+  }
+
+  @Test
+  @DisplayName("Each record is a file of its own, so stores sharing a shelf keep each other's")
+  public void save_writesOneFilePerSource() {
+    URI other = URI.create("https://example.com/other.zip");
+    ImportRecordStore first = newRecordStore();
+    ImportRecordStore second = newRecordStore();
+    first.find(SOURCE);
+    second.find(other);
+
+    first.save(new ImportRecord(SOURCE.toString(), "naan-name-version/", null, null, "abc"));
+    second.save(new ImportRecord(other.toString(), "other/", null, null, "def"));
+
+    assertAll(
+        () -> assertEquals("other/", first.find(other).orElseThrow().getLocation()),
+        () -> assertEquals("naan-name-version/", second.find(SOURCE).orElseThrow().getLocation()),
+        () ->
+            assertTrue(
+                Files.isRegularFile(
+                    shelf.resolve(ImportRecordStore.recordLocation(SOURCE.toString()).getPath()))));
+  }
+
+  @Test
+  @DisplayName("Records saved in the old single file are still found")
+  public void find_readsLegacyRecords() throws IOException {
+    Files.writeString(
+        shelf.resolve(ImportRecordStore.LEGACY_RECORDS_LOCATION.getPath()),
+        "{\"" + SOURCE + "\":{\"source\":\"" + SOURCE + "\",\"location\":\"old/\"}}");
+
+    assertEquals("old/", newRecordStore().find(SOURCE).orElseThrow().getLocation());
+  }
+
+  @Test
+  @DisplayName("Unknown sources have no record")
+  public void find_returnsEmptyForUnknownSource() {
+    assertTrue(newRecordStore().find(SOURCE).isEmpty());
+  }
+
+  @Test
+  @DisplayName("A record is on the shelf only while its KO is")
+  public void isOnShelf_checksForKoMetadata() throws IOException {
+    ImportRecord record =
+        new ImportRecord(SOURCE.toString(), "naan-name-version/", null, null, "abc");
+    ImportRecordStore recordStore = newRecordStore();
+    assertFalse(recordStore.isOnShelf(record));
+
+    Files.createDirectories(shelf.resolve("naan-name-version"));
+    Files.writeString(shelf.resolve("naan-name-version/metadata.json"), "{}");
+    assertTrue(recordStore.isOnShelf(record));
+  }
+
+  private ImportRecordStore newRecordStore() {
+    ImportRecordStore recordStore = new ImportRecordStore();
+    recordStore.cdoStore = cdoStore;
+    return recordStore;
+  }
+}
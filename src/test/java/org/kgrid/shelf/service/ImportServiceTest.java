@@ -2,14 +2,20 @@ package org.kgrid.shelf.service;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.kgrid.shelf.TestHelper.DEPLOYMENT_BYTES;
 import static org.kgrid.shelf.TestHelper.packZipForImport;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import java.io.ByteArrayInputStream;
@@ -19,13 +25,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.util.Optional;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.jena.ext.com.google.common.io.Files;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.kgrid.shelf.ShelfException;
 import org.kgrid.shelf.repository.CompoundDigitalObjectStore;
+import org.kgrid.shelf.repository.KnowledgeObjectLocks;
 import org.kgrid.shelf.repository.KnowledgeObjectRepository;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -43,9 +54,19 @@ public class ImportServiceTest {
   @Spy ApplicationContext applicationContext = new ClassPathXmlApplicationContext();
   @Mock KnowledgeObjectRepository koRepo;
   @Mock CompoundDigitalObjectStore cdoStore;
+  @Mock RemoteZipFetcher zipFetcher;
+  @Mock ImportRecordStore importRecords;
+  @Spy KnowledgeObjectLocks locks = new KnowledgeObjectLocks();
   @InjectMocks ImportService importService;
   URI resourceUri;
 
+  private static final String TRANSACTION_ID = "trx-test";
+
+  @BeforeEach
+  public void setUp() {
+    lenient().when(cdoStore.createTransaction()).thenReturn(TRANSACTION_ID);
+  }
+
   @Test
   @DisplayName("Import zip takes a uri and extracts and saves artifacts")
   public void importZip_givenUri_canExtractAndSaveArtifacts()  {
@@ -55,18 +76,19 @@ public class ImportServiceTest {
     assertAll(
         () -> verify(applicationContext).getResource(anyString()),
         () -> verify(koRepo).addKnowledgeObjectToLocationMap(any(URI.class), any(JsonNode.class)),
+        () -> verify(cdoStore).commitTransaction(TRANSACTION_ID),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/metadata.json"))),
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/metadata.json"))),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/service.yaml"))),
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/service.yaml"))),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/deployment.yaml"))),
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/deployment.yaml"))),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/dist/main.js"))));
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/dist/main.js"))));
   }
 
   @Test
@@ -78,19 +100,19 @@ public class ImportServiceTest {
     assertAll(
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/metadata.json"))),
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/metadata.json"))),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/service.yaml"))),
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/service.yaml"))),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/deployment.yaml"))),
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/deployment.yaml"))),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/dist/main.js"))),
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/dist/main.js"))),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/src/index.js"))));
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/src/index.js"))));
   }
 
   @Test
@@ -148,6 +170,111 @@ public class ImportServiceTest {
         () -> verify(cdoStore, times(4)).saveBinary(any(InputStream.class), any()),
         () ->
             verify(cdoStore)
-                .saveBinary(any(InputStream.class), eq(URI.create("hello-world/metadata.json"))));
+                .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/metadata.json"))));
+  }
+
+  @Test
+  @DisplayName("Import zip rolls back the transaction when an artifact cannot be saved")
+  public void importZip_givenFailedSave_rollsBackTransaction() {
+    resourceUri = URI.create("file:src/test/resources/fixtures/import-export/mycoolko.zip");
+    doThrow(ShelfException.class)
+        .when(cdoStore)
+        .saveBinary(any(InputStream.class), eq(URI.create(TRANSACTION_ID + "/hello-world/dist/main.js")));
+
+    assertThrows(ImportExportException.class, () -> importService.importZip(resourceUri));
+    assertAll(
+        () -> verify(cdoStore).rollbackTransaction(TRANSACTION_ID),
+        () -> verify(cdoStore, never()).commitTransaction(TRANSACTION_ID),
+        () -> verify(koRepo, never()).addKnowledgeObjectToLocationMap(any(), any()));
+  }
+
+  @Test
+  @DisplayName("Import zip downloads http uris to a temp file and deletes it afterwards")
+  public void importZip_givenHttpUri_importsDownloadAndDeletesIt() throws IOException {
+    resourceUri = URI.create("http://example.com/kos/mycoolko.zip");
+    File downloadDir = Files.createTempDir();
+    File download = new File(downloadDir, "mycoolko.zip");
+    FileUtils.copyFile(
+        new File("src/test/resources/fixtures/import-export/mycoolko.zip"), download);
+    when(zipFetcher.fetch(resourceUri))
+        .thenReturn(new RemoteZipFetcher.Download(download.toPath(), "\"v1\"", null, "abc123"));
+
+    URI id = importService.importZip(resourceUri);
+    assertAll(
+        () -> assertEquals(URI.create("hello-world/"), id),
+        () -> verify(cdoStore).commitTransaction(TRANSACTION_ID),
+        () -> verify(applicationContext, never()).getResource(anyString()),
+        () -> assertFalse(downloadDir.exists()),
+        () ->
+            verify(importRecords)
+                .save(
+                    argThat(
+                        record ->
+                            record.getSource().equals(resourceUri.toString())
+                                && record.getLocation().equals("hello-world/")
+                                && record.getEtag().equals("\"v1\"")
+                                && record.getSha256().equals("abc123"))));
+  }
+
+  @Test
+  @DisplayName("Import zip skips http uris the server reports as not modified")
+  public void importZip_givenNotModifiedHttpUri_skipsImport() throws IOException {
+    resourceUri = URI.create("http://example.com/kos/mycoolko.zip");
+    ImportRecord previous =
+        new ImportRecord(resourceUri.toString(), "hello-world/", "\"v1\"", null, "abc123");
+    when(importRecords.find(resourceUri)).thenReturn(Optional.of(previous));
+    when(importRecords.isOnShelf(previous)).thenReturn(true);
+    when(zipFetcher.fetch(resourceUri, "\"v1\"", null))
+        .thenReturn(new RemoteZipFetcher.Download(null, "\"v1\"", null, null));
+
+    URI id = importService.importZip(resourceUri);
+    assertAll(
+        () -> assertEquals(URI.create("hello-world/"), id),
+        () -> verify(cdoStore, never()).createTransaction(),
+        () -> verify(importRecords, never()).save(any()));
+  }
+
+  @Test
+  @DisplayName("Import zip skips local zips whose digest has not changed")
+  public void importZip_givenUnchangedDigest_skipsImport() throws IOException {
+    resourceUri = URI.create("file:src/test/resources/fixtures/import-export/mycoolko.zip");
+    String sha256 =
+        DigestUtils.sha256Hex(
+            FileUtils.readFileToByteArray(
+                new File("src/test/resources/fixtures/import-export/mycoolko.zip")));
+    ImportRecord previous =
+        new ImportRecord(resourceUri.toString(), "hello-world/", null, null, sha256);
+    when(importRecords.find(resourceUri)).thenReturn(Optional.of(previous));
+    when(importRecords.isOnShelf(previous)).thenReturn(true);
+
+    URI id = importService.importZip(resourceUri);
+    assertAll(
+        () -> assertEquals(URI.create("hello-world/"), id),
+        () -> verify(cdoStore, never()).createTransaction());
+  }
+
+  @Test
+  @DisplayName("Import zip imports again when the KO has been removed from the shelf")
+  public void importZip_givenRecordForMissingKo_importsAgain() {
+    resourceUri = URI.create("file:src/test/resources/fixtures/import-export/mycoolko.zip");
+    ImportRecord previous =
+        new ImportRecord(resourceUri.toString(), "hello-world/", null, null, "stale");
+    when(importRecords.find(resourceUri)).thenReturn(Optional.of(previous));
+    when(importRecords.isOnShelf(previous)).thenReturn(false);
+
+    importService.importZip(resourceUri);
+    assertAll(
+        () -> verify(cdoStore).commitTransaction(TRANSACTION_ID),
+        () -> verify(importRecords).save(any(ImportRecord.class)));
+  }
+
+  @Test
+  @DisplayName("Import zip wraps download failures")
+  public void importZip_givenFailedDownload_throwsImportExportException() throws IOException {
+    resourceUri = URI.create("http://example.com/kos/mycoolko.zip");
+    when(zipFetcher.fetch(resourceUri)).thenThrow(new IOException("Read timed out"));
+
+    assertThrows(ImportExportException.class, () -> importService.importZip(resourceUri));
+    verify(cdoStore, never()).createTransaction();
   }
 }
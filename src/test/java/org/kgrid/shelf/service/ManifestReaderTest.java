@@ -46,6 +46,8 @@ public class ManifestReaderTest {
 
   @BeforeEach
   public void setUp() throws IOException {
+    ReflectionTestUtils.setField(manifestReader, "importConcurrency", 1);
+    ReflectionTestUtils.setField(manifestReader, "importTimeoutSeconds", 300L);
 
     mockResourceInputStream = Mockito.mock(InputStream.class);
     mockResourceInputStream = Mockito.mock(InputStream.class);
@@ -59,19 +61,23 @@ public class ManifestReaderTest {
         .when(mapper.createArrayNode())
         .thenReturn(JsonNodeFactory.instance.arrayNode());
     Mockito.lenient()
-        .when(importService.importZip(URI.create(RESOLVED_RELATIVE_RESOURCE_URI)))
+        .when(
+            importService.importZip(eq(URI.create(RESOLVED_RELATIVE_RESOURCE_URI)),
+                any(ImportProgress.class)))
         .thenReturn(URI.create(RELATIVE_RESOURCE_URI));
     Mockito.lenient()
-        .when(importService.importZip(URI.create(ABSOLUTE_RESOURCE_URI)))
+        .when(
+            importService.importZip(eq(URI.create(ABSOLUTE_RESOURCE_URI)),
+                any(ImportProgress.class)))
         .thenReturn(URI.create(ABSOLUTE_RESOURCE_URI));
   }
 
   @Test
   @DisplayName("Loads JsonLd Manifest")
   public void loadManifest_LoadsJsonLdManifests() throws MalformedURLException {
-    when(importService.importZip(URI.create(RELATIVE_RESOURCE_URI)))
+    when(importService.importZip(eq(URI.create(RELATIVE_RESOURCE_URI)), any(ImportProgress.class)))
             .thenReturn(URI.create(RELATIVE_RESOURCE_URI));
-    when(importService.importZip(URI.create(ABSOLUTE_RESOURCE_URI)))
+    when(importService.importZip(eq(URI.create(ABSOLUTE_RESOURCE_URI)), any(ImportProgress.class)))
             .thenReturn(URI.create(ABSOLUTE_RESOURCE_URI));
     ArrayNode jsonNodes = manifestReader.loadManifest(getJsonLdManifestNode());
     assertEquals(2,jsonNodes.size());
@@ -85,7 +91,7 @@ public class ManifestReaderTest {
     when(mapper.readTree(mockResourceInputStream)).thenReturn(getManifestNode());
     manifestReader.afterPropertiesSet();
 
-    verify(importService, times(4)).importZip(any(URI.class));
+    verify(importService, times(4)).importZip(any(URI.class), any(ImportProgress.class));
   }
 
   @Test
@@ -96,7 +102,7 @@ public class ManifestReaderTest {
     ReflectionTestUtils.setField(
         manifestReader, "startupManifestLocations", new String[] {GOOD_MANIFEST_PATH});
     manifestReader.afterPropertiesSet();
-    verify(importService, never()).importZip(any(URI.class));
+    verify(importService, never()).importZip(any(URI.class), any(ImportProgress.class));
   }
 
   @Test
@@ -106,10 +112,10 @@ public class ManifestReaderTest {
     ReflectionTestUtils.setField(
         manifestReader, "startupManifestLocations", new String[] {GOOD_MANIFEST_PATH});
 
-    when(importService.importZip(URI.create(RELATIVE_RESOURCE_URI)))
+    when(importService.importZip(eq(URI.create(RELATIVE_RESOURCE_URI)), any(ImportProgress.class)))
         .thenThrow(RuntimeException.class);
     URI resource2 = URI.create(ABSOLUTE_RESOURCE_URI);
-    when(importService.importZip(resource2)).thenReturn(resource2);
+    when(importService.importZip(eq(resource2), any(ImportProgress.class))).thenReturn(resource2);
 
     ArrayNode kos = manifestReader.loadManifest(getManifestNode());
     assertEquals(1, kos.size());
@@ -124,8 +130,13 @@ public class ManifestReaderTest {
     when(mapper.readTree(mockResourceInputStream)).thenReturn(manifestNode);
     manifestReader.afterPropertiesSet();
     assertAll(
-        () -> verify(importService).importZip(URI.create(RESOLVED_RELATIVE_RESOURCE_URI)),
-        () -> verify(importService).importZip(URI.create(ABSOLUTE_RESOURCE_URI)));
+        () ->
+            verify(importService)
+                .importZip(eq(URI.create(RESOLVED_RELATIVE_RESOURCE_URI)),
+                    any(ImportProgress.class)),
+        () ->
+            verify(importService)
+                .importZip(eq(URI.create(ABSOLUTE_RESOURCE_URI)), any(ImportProgress.class)));
   }
 
   @Test
@@ -136,8 +147,12 @@ public class ManifestReaderTest {
     JsonNode manifestNode = getManifestNode();
     manifestReader.loadManifest(manifestNode);
     assertAll(
-        () -> verify(importService).importZip(URI.create(RELATIVE_RESOURCE_URI)),
-        () -> verify(importService).importZip(URI.create(ABSOLUTE_RESOURCE_URI)));
+        () ->
+            verify(importService)
+                .importZip(eq(URI.create(RELATIVE_RESOURCE_URI)), any(ImportProgress.class)),
+        () ->
+            verify(importService)
+                .importZip(eq(URI.create(ABSOLUTE_RESOURCE_URI)), any(ImportProgress.class)));
   }
 
   @Test
@@ -160,7 +175,56 @@ public class ManifestReaderTest {
     when(mapper.readTree(mockResourceInputStream)).thenReturn(manifestNode);
     manifestReader.afterPropertiesSet();
     assertAll(
-        () -> verify(importService).importZip(URI.create(RESOLVED_RELATIVE_RESOURCE_URI)),
-        () -> verify(importService).importZip(URI.create(ABSOLUTE_RESOURCE_URI)));
+        () ->
+            verify(importService)
+                .importZip(eq(URI.create(RESOLVED_RELATIVE_RESOURCE_URI)),
+                    any(ImportProgress.class)),
+        () ->
+            verify(importService)
+                .importZip(eq(URI.create(ABSOLUTE_RESOURCE_URI)), any(ImportProgress.class)));
+  }
+
+  @Test
+  @DisplayName("Parallel import returns results in manifest order")
+  public void loadManifest_inParallelKeepsManifestOrder() {
+    ReflectionTestUtils.setField(manifestReader, "importConcurrency", 4);
+    when(importService.importZip(eq(URI.create(RELATIVE_RESOURCE_URI)), any(ImportProgress.class)))
+        .thenAnswer(
+            invocation -> {
+              Thread.sleep(200);
+              return URI.create(RELATIVE_RESOURCE_URI);
+            });
+    when(importService.importZip(eq(URI.create(ABSOLUTE_RESOURCE_URI)), any(ImportProgress.class)))
+        .thenReturn(URI.create(ABSOLUTE_RESOURCE_URI));
+
+    ArrayNode kos = manifestReader.loadManifest(getManifestNode());
+    assertAll(
+        () -> assertEquals(2, kos.size()),
+        () -> assertEquals(RELATIVE_RESOURCE_URI, kos.get(0).asText()),
+        () -> assertEquals(ABSOLUTE_RESOURCE_URI, kos.get(1).asText()));
+  }
+
+  @Test
+  @DisplayName("Parallel import skips kos that fail or time out")
+  public void loadManifest_inParallelSkipsFailedAndTimedOutKos() {
+    ReflectionTestUtils.setField(manifestReader, "importConcurrency", 2);
+    ReflectionTestUtils.setField(manifestReader, "importTimeoutSeconds", 1L);
+    ObjectNode manifest = getManifestNodeWithBadUri();
+    ((ArrayNode) manifest.get("manifest")).add("slow.zip");
+    when(importService.importZip(eq(URI.create(RELATIVE_RESOURCE_URI)), any(ImportProgress.class)))
+        .thenThrow(RuntimeException.class);
+    when(importService.importZip(eq(URI.create("slow.zip")), any(ImportProgress.class)))
+        .thenAnswer(
+            invocation -> {
+              Thread.sleep(5000);
+              return URI.create("slow.zip");
+            });
+    when(importService.importZip(eq(URI.create(ABSOLUTE_RESOURCE_URI)), any(ImportProgress.class)))
+        .thenReturn(URI.create(ABSOLUTE_RESOURCE_URI));
+
+    ArrayNode kos = manifestReader.loadManifest(manifest);
+    assertAll(
+        () -> assertEquals(1, kos.size()),
+        () -> assertEquals(ABSOLUTE_RESOURCE_URI, kos.get(0).asText()));
   }
 }
@@ -0,0 +1,130 @@
+package org.kgrid.shelf.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Remote zip fetcher tests")
+public class RemoteZipFetcherTest {
+
+  private static final byte[] ZIP_BYTES = new byte[200 * 1024];
+  private static final String ETAG = "\"v1\"";
+
+  private HttpServer server;
+  private RemoteZipFetcher fetcher;
+  private String baseUrl;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/kos/naan-name-version.zip",
+        exchange -> {
+          if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+          }
+          exchange.getResponseHeaders().add("ETag", ETAG);
+          exchange.sendResponseHeaders(200, ZIP_BYTES.length);
+          try (OutputStream body = exchange.getResponseBody()) {
+            body.write(ZIP_BYTES);
+          }
+        });
+    server.createContext(
+        "/kos/naan/name/version",
+        exchange -> {
+          exchange
+              .getResponseHeaders()
+              .add("Content-Disposition", "attachment; filename=\"naan-name-version.zip\"");
+          // chunked, so the size guard cannot rely on Content-Length
+          exchange.sendResponseHeaders(200, 0);
+          try (OutputStream body = exchange.getResponseBody()) {
+            body.write(ZIP_BYTES);
+          }
+        });
+    server.start();
+    baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+    fetcher = new RemoteZipFetcher();
+    fetcher.afterPropertiesSet();
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    fetcher.destroy();
+    server.stop(0);
+  }
+
+  @Test
+  @DisplayName("Fetch spools the download to a file named after the url")
+  public void fetch_spoolsDownloadToFile() throws IOException {
+    Path file;
+    try (RemoteZipFetcher.Download download =
+        fetcher.fetch(URI.create(baseUrl + "/kos/naan-name-version.zip"))) {
+      file = download.getFile();
+      assertAll(
+          () -> assertEquals("naan-name-version.zip", file.getFileName().toString()),
+          () -> assertArrayEquals(ZIP_BYTES, Files.readAllBytes(file)),
+          () -> assertEquals(ETAG, download.getEtag()),
+          () -> assertEquals(DigestUtils.sha256Hex(ZIP_BYTES), download.getSha256()));
+    }
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  @DisplayName("Fetch names the download after the Content-Disposition filename")
+  public void fetch_usesContentDispositionFilename() throws IOException {
+    try (RemoteZipFetcher.Download download =
+        fetcher.fetch(URI.create(baseUrl + "/kos/naan/name/version"))) {
+      assertEquals("naan-name-version.zip", download.getFile().getFileName().toString());
+    }
+  }
+
+  @Test
+  @DisplayName("Fetch sends the previous ETag and reports an unchanged zip as not modified")
+  public void fetch_returnsNotModifiedForMatchingEtag() throws IOException {
+    try (RemoteZipFetcher.Download download =
+        fetcher.fetch(URI.create(baseUrl + "/kos/naan-name-version.zip"), ETAG, null)) {
+      assertAll(
+          () -> assertTrue(download.isNotModified()),
+          () -> assertNull(download.getFile()));
+    }
+  }
+
+  @Test
+  @DisplayName("Fetch rejects downloads over the size limit")
+  public void fetch_rejectsOversizedDownloads() {
+    fetcher.maxZipSize = 1024;
+
+    assertAll(
+        () ->
+            assertThrows(
+                ImportExportException.class,
+                () -> fetcher.fetch(URI.create(baseUrl + "/kos/naan-name-version.zip"))),
+        () ->
+            assertThrows(
+                ImportExportException.class,
+                () -> fetcher.fetch(URI.create(baseUrl + "/kos/naan/name/version"))));
+  }
+
+  @Test
+  @DisplayName("Fetch throws when the server does not return the zip")
+  public void fetch_throwsOnErrorStatus() {
+    assertThrows(
+        ImportExportException.class,
+        () -> fetcher.fetch(URI.create(baseUrl + "/kos/missing.zip")));
+  }
+}
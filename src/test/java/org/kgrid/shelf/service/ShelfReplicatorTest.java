@@ -0,0 +1,118 @@
+package org.kgrid.shelf.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.kgrid.shelf.ShelfGateway;
+import org.kgrid.shelf.domain.ArkId;
+import org.kgrid.shelf.repository.KnowledgeObjectChangeLog;
+import org.kgrid.shelf.repository.KnowledgeObjectRepository;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.zeroturnaround.zip.ZipUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Shelf replicator tests")
+public class ShelfReplicatorTest {
+
+  private static final ArkId HELLO_WORLD = new ArkId("hello", "world", "v3");
+  private static final ArkId HELLO_COPY = new ArkId("hello", "copy", "v3");
+
+  @TempDir Path shelves;
+  private ConfigurableApplicationContext source;
+  private ConfigurableApplicationContext replica;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    Path sourceShelf = shelves.resolve("source");
+    ZipUtil.unpack(
+        new File("src/test/resources/fixtures/import-export/mycoolko.zip"), sourceShelf.toFile());
+    Path copy = sourceShelf.resolve("hello-copy");
+    FileUtils.copyDirectory(sourceShelf.resolve("mycoolko").toFile(), copy.toFile());
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode metadata = (ObjectNode) mapper.readTree(copy.resolve("metadata.json").toFile());
+    metadata.put("@id", "hello-copy").put("identifier", "ark:/hello/copy");
+    mapper.writeValue(copy.resolve("metadata.json").toFile(), metadata);
+    source = startShelf("source", null);
+    replica = startShelf("replica", source);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    replica.close();
+    source.close();
+  }
+
+  @Test
+  @DisplayName("A replica copies the source, then only what changed, and resumes after a restart")
+  public void replicaFollowsSource() throws InterruptedException {
+    KnowledgeObjectRepository sourceRepo = source.getBean(KnowledgeObjectRepository.class);
+    KnowledgeObjectRepository replicaRepo = replica.getBean(KnowledgeObjectRepository.class);
+
+    ObjectNode first = replica.getBean(ShelfReplicator.class).replicate();
+    assertAll(
+        () -> assertEquals(sourceRepo.findAll().keySet(), replicaRepo.findAll().keySet()),
+        () -> assertEquals(
+            sourceRepo.getMetadataTag(HELLO_WORLD), replicaRepo.getMetadataTag(HELLO_WORLD)),
+        () -> assertEquals(2, first.get("versionsCopied").asLong()),
+        () -> assertNotNull(first.get("lastResync")));
+
+    ObjectNode edited = sourceRepo.findKnowledgeObjectMetadata(HELLO_WORLD).deepCopy();
+    sourceRepo.editMetadata(HELLO_WORLD, edited.put("title", "Edited").toString());
+    sourceRepo.delete(HELLO_COPY);
+    KnowledgeObjectChangeLog sourceLog = source.getBean(KnowledgeObjectChangeLog.class);
+    long position = first.get("position").asLong();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (sourceLog.since(position).getRemoved().isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+
+    replica.close();
+    replica = startShelf("replica", source);
+    ObjectNode restarted = replica.getBean(ShelfReplicator.class).getStatus();
+    assertEquals(position, restarted.get("position").asLong());
+
+    ObjectNode second = replica.getBean(ShelfReplicator.class).replicate();
+    KnowledgeObjectRepository restartedRepo = replica.getBean(KnowledgeObjectRepository.class);
+    assertAll(
+        () -> assertEquals(
+            sourceRepo.getMetadataTag(HELLO_WORLD), restartedRepo.getMetadataTag(HELLO_WORLD)),
+        () -> assertEquals(
+            "Edited", restartedRepo.findKnowledgeObjectMetadata(HELLO_WORLD).get("title").asText()),
+        () -> assertFalse(restartedRepo.findAll().containsKey(HELLO_COPY)),
+        () -> assertEquals(3, second.get("versionsCopied").asLong()),
+        () -> assertEquals(1, second.get("versionsRemoved").asLong()),
+        () -> assertEquals(0, second.get("pending").size()),
+        () -> assertEquals(sourceLog.since(0).getLatest(), second.get("position").asLong()));
+  }
+
+  private ConfigurableApplicationContext startShelf(
+      String name, ConfigurableApplicationContext source) {
+    // Arguments rather than properties, to override the test application.properties
+    List<String> args = new ArrayList<>();
+    args.add("--server.port=0");
+    args.add("--kgrid.shelf.cdostore.url=filesystem:" + shelves.resolve(name).toUri());
+    args.add("--kgrid.shelf.replication.interval=0");
+    if (source != null) {
+      int port = ((ServletWebServerApplicationContext) source).getWebServer().getPort();
+      args.add("--kgrid.shelf.replication.source=http://localhost:" + port + "/kos");
+    }
+    return new SpringApplicationBuilder(ShelfGateway.class)
+        .profiles("Gateway")
+        .run(args.toArray(new String[0]));
+  }
+}
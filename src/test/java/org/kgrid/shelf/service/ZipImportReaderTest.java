@@ -11,7 +11,9 @@ import com.fasterxml.jackson.databind.JsonNode;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.net.URI;
+import java.util.zip.ZipException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -21,8 +23,8 @@ import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
-import org.zeroturnaround.zip.ZipException;
 
 @ExtendWith(MockitoExtension.class)
 public class ZipImportReaderTest {
@@ -45,7 +47,29 @@ public class ZipImportReaderTest {
   @DisplayName( "Ko base ends with mycoolko")
   public void canCreateNewZipImportReader() throws IOException {
     importReader = new ZipImportReader(zippedKo);
-    assertTrue(importReader.getKoBase().toString().endsWith("mycoolko"));
+    assertTrue(importReader.getKoBase().endsWith("mycoolko"));
+  }
+
+  @Test
+  @DisplayName("Ko reader reads resources that are not files")
+  public void canReadNonFileResource() throws IOException {
+    Resource bytes =
+        new ByteArrayResource(Files.readAllBytes(zippedKo.getFile().toPath()), "mycoolko.zip");
+    try (ZipImportReader reader = new ZipImportReader(bytes)) {
+      JsonNode metadata = reader.getMetadata(URI.create(KoFields.METADATA_FILENAME.asStr()));
+      assertEquals(DEPLOYMENT_YAML_PATH,
+          metadata.get(KoFields.DEPLOYMENT_SPEC_TERM.asStr()).asText());
+      assertEquals(5395, reader.getFileSize(URI.create("dist/main.js")));
+    }
+  }
+
+  @Test
+  @DisplayName("Ko reader throws file not found for missing entries")
+  public void throwsFileNotFoundForMissingEntry() throws IOException {
+    try (ZipImportReader reader = new ZipImportReader(zippedKo)) {
+      assertThrows(
+          FileNotFoundException.class, () -> reader.getFileStream(URI.create("nothere.js")));
+    }
   }
 
   @Test